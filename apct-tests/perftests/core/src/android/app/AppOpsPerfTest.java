@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Measures noteOp and checkOp round trips to the app ops service while other threads of the
+ * same process keep it busy with the same kind of call.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AppOpsPerfTest {
+    private static final long TIMEOUT_MS = 5000;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOpsManager;
+    private String mPackageName;
+    private int mUid;
+
+    private CountDownLatch mStartLatch;
+    private AtomicBoolean mThreadState;  // True for running, False for stopped.
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOpsManager = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getOpPackageName();
+        mUid = Process.myUid();
+    }
+
+    private void callOnce(boolean note) {
+        if (note) {
+            mAppOpsManager.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        } else {
+            mAppOpsManager.checkOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+        }
+    }
+
+    private Thread[] startBackgroundThreads(int numOfThreads, boolean note) {
+        mStartLatch = new CountDownLatch(numOfThreads);
+        mThreadState = new AtomicBoolean(true);
+
+        final Thread[] threads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; ++i) {
+            threads[i] = new Thread(() -> {
+                mStartLatch.countDown();
+                while (mThreadState.get()) {
+                    callOnce(note);
+                }
+            });
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+
+        try {
+            mStartLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return threads;
+    }
+
+    private void finishThreads(Thread[] threads) {
+        mThreadState.set(false);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        mStartLatch = null;
+        mThreadState = null;
+    }
+
+    private void runTest(int numOfTotalThreads, boolean note) {
+        // Make sure the service knows about this package before measuring.
+        mAppOpsManager.noteOpNoThrow(AppOpsManager.OP_COARSE_LOCATION, mUid, mPackageName);
+
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Thread[] threads = startBackgroundThreads(numOfTotalThreads - 1, note);
+        while (state.keepRunning()) {
+            callOnce(note);
+        }
+        finishThreads(threads);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_1() {
+        runTest(1, false);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_4() {
+        runTest(4, false);
+    }
+
+    @Test
+    public void timeCheckOp_Thread_8() {
+        runTest(8, false);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_1() {
+        runTest(1, true);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_4() {
+        runTest(4, true);
+    }
+
+    @Test
+    public void timeNoteOp_Thread_8() {
+        runTest(8, true);
+    }
+}
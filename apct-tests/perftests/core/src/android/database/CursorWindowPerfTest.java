@@ -21,6 +21,7 @@ import static org.junit.Assert.assertTrue;
 import android.content.Context;
 import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStreamingCursor;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -87,6 +88,34 @@ public class CursorWindowPerfTest {
         loadRowFromCursorWindow(TableHelper.USER, false);
     }
 
+    @Test
+    public void queryUser() {
+        queryRow(TableHelper.USER, null);
+    }
+
+    @Test
+    public void queryUser_streaming() {
+        queryRow(TableHelper.USER, new SQLiteStreamingCursor.Factory(false));
+    }
+
+    @Test
+    public void queryUser_streamingAdaptive() {
+        queryRow(TableHelper.USER, new SQLiteStreamingCursor.Factory(true));
+    }
+
+    /** Measures running a query and reading its row, including creating the cursor window. */
+    private void queryRow(TableHelper helper, SQLiteDatabase.CursorFactory factory) {
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = sDatabase.rawQueryWithFactory(factory, helper.readSql(),
+                    new String[0], null)) {
+                TableHelper.CursorReader reader = helper.createReader(cursor);
+                assertTrue(cursor.moveToFirst());
+                reader.read();
+            }
+        }
+    }
+
     private void loadRowFromCursorWindow(TableHelper helper, boolean doubleRef) {
         try (Cursor cursor = sDatabase.rawQuery(helper.readSql(), new String[0])) {
             TableHelper.CursorReader reader = helper.createReader(cursor);
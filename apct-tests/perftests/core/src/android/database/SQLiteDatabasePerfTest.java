@@ -19,6 +19,7 @@ package android.database;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStreamingCursor;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -31,7 +32,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -47,6 +51,9 @@ public class SQLiteDatabasePerfTest {
     // TODO b/64262688 Add Concurrency tests to compare WAL vs DELETE read/write
     private static final String DB_NAME = "dbperftest";
     private static final int DEFAULT_DATASET_SIZE = 1000;
+    private static final int LARGE_DATASET_SIZE = 100000;
+    private static final int CONCURRENT_READERS = 6;
+    private static final int CONCURRENT_SCANNERS = 2;
 
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
@@ -140,6 +147,42 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    @Test
+    public void testCursorIterateForwardLarge() {
+        iterateForward(null);
+    }
+
+    @Test
+    public void testStreamingCursorIterateForwardLarge() {
+        iterateForward(new SQLiteStreamingCursor.Factory(false));
+    }
+
+    @Test
+    public void testAdaptiveStreamingCursorIterateForwardLarge() {
+        iterateForward(new SQLiteStreamingCursor.Factory(true));
+    }
+
+    /** Scans a table of 100k rows with cursors from the given factory. */
+    private void iterateForward(SQLiteDatabase.CursorFactory factory) {
+        insertT1TestDataSet(LARGE_DATASET_SIZE);
+
+        BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            try (Cursor cursor = mDatabase.rawQueryWithFactory(factory,
+                    "SELECT _ID, COL_A, COL_B, COL_C FROM T1 ORDER BY _ID", null, null)) {
+                int i = 0;
+                while (cursor.moveToNext()) {
+                    assertEquals(i, cursor.getInt(0));
+                    assertEquals(i, cursor.getInt(1));
+                    assertEquals("T1Value" + i, cursor.getString(2));
+                    assertEquals(1.1 * i, cursor.getDouble(3), 0.0000001d);
+                    i++;
+                }
+                assertEquals(LARGE_DATASET_SIZE, i);
+            }
+        }
+    }
+
     @Test
     public void testCursorIterateBackwards() {
         // A larger dataset is needed to exceed default CursorWindow size
@@ -246,6 +289,90 @@ public class SQLiteDatabasePerfTest {
         }
     }
 
+    @Test
+    public void testSelectWithConcurrentReadersAndWriter() throws Exception {
+        runConcurrentReadersAndWriter(0);
+    }
+
+    @Test
+    public void testSelectWithConcurrentReadersAndWriterAdaptivePool() throws Exception {
+        runConcurrentReadersAndWriter(SQLiteDatabase.ENABLE_ADAPTIVE_CONNECTION_POOL);
+    }
+
+    /**
+     * Times point selects on a WAL database while other threads run point selects, full
+     * table scans and updates.
+     */
+    private void runConcurrentReadersAndWriter(int openFlags) throws Exception {
+        mDatabase.close();
+        mDatabase = SQLiteDatabase.openDatabase(mContext.getDatabasePath(DB_NAME).getPath(),
+                null, SQLiteDatabase.OPEN_READWRITE | SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING
+                        | openFlags);
+        final int datasetSize = DEFAULT_DATASET_SIZE * 10;
+        insertT1TestDataSet(datasetSize);
+
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<>();
+        final ArrayList<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < CONCURRENT_READERS; i++) {
+            final Random rnd = new Random(i + 1);
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    selectT1Row(rnd.nextInt(datasetSize));
+                }
+            }));
+        }
+        for (int i = 0; i < CONCURRENT_SCANNERS; i++) {
+            threads.add(new Thread(() -> {
+                while (!done.get()) {
+                    try (Cursor cursor = mDatabase.rawQuery("SELECT SUM(COL_C) FROM T1", null)) {
+                        assertTrue(cursor.moveToNext());
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(() -> {
+            final Random rnd = new Random(0);
+            final ContentValues cv = new ContentValues();
+            final String[] argArray = new String[1];
+            while (!done.get()) {
+                cv.put("COL_C", rnd.nextDouble());
+                argArray[0] = String.valueOf(rnd.nextInt(datasetSize));
+                assertEquals(1, mDatabase.update("T1", cv, "_ID=?", argArray));
+            }
+        }));
+        for (Thread thread : threads) {
+            thread.setUncaughtExceptionHandler((t, e) -> error.compareAndSet(null, e));
+            thread.start();
+        }
+
+        try {
+            BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+            Random rnd = new Random(0);
+            while (state.keepRunning()) {
+                selectT1Row(rnd.nextInt(datasetSize));
+            }
+        } finally {
+            done.set(true);
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+        if (error.get() != null) {
+            throw new AssertionError("Concurrent query failed", error.get());
+        }
+    }
+
+    private void selectT1Row(int index) {
+        try (Cursor cursor = mDatabase.rawQuery("SELECT _ID, COL_A, COL_B FROM T1 "
+                + "WHERE _ID=?", new String[]{String.valueOf(index)})) {
+            assertTrue(cursor.moveToNext());
+            assertEquals(index, cursor.getInt(0));
+            assertEquals(index, cursor.getInt(1));
+            assertEquals("T1Value" + index, cursor.getString(2));
+        }
+    }
+
     private void insertT1TestDataSet() {
         insertT1TestDataSet(DEFAULT_DATASET_SIZE);
     }
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.os;
+
+import android.app.Activity;
+import android.content.Context;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.util.IntArray;
+
+import com.android.internal.os.BatteryStatsDeltaJournal;
+import com.android.internal.util.JournaledFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Compares checkpointing a batterystats-sized summary through {@link BatteryStatsDeltaJournal}
+ * with rewriting the whole file, as BatteryStatsImpl used to.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class BatteryStatsDeltaJournalPerfTest {
+    private static final int HISTORY_SIZE = 128 * 1024;
+    private static final int HEADER_SIZE = 16 * 1024;
+    private static final int UID_SECTION_SIZE = 600;
+    /** Uids whose stats change between two checkpoints. */
+    private static final int CHANGED_UIDS = 10;
+    /** History bytes recorded between two checkpoints. */
+    private static final int HISTORY_BYTES_PER_CHECKPOINT = 256;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "uids={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {100}, {500}, {1000} });
+    }
+
+    private final int mNumUids;
+    private final Random mRandom = new Random(0);
+
+    private File mDir;
+    private JournaledFile mBaseFile;
+    private byte[] mSummary;
+    private IntArray mSections;
+    private int mHistoryPosition;
+
+    public BatteryStatsDeltaJournalPerfTest(int numUids) {
+        mNumUids = numUids;
+    }
+
+    @Before
+    public void setUp() {
+        mDir = InstrumentationRegistry.getContext().getDir("batterystats", Context.MODE_PRIVATE);
+        mBaseFile = new JournaledFile(new File(mDir, "batterystats.bin"),
+                new File(mDir, "batterystats.bin.tmp"));
+
+        // Lay out a summary the way BatteryStatsImpl.writeSummaryToParcel does.
+        final ByteBuffer buffer = ByteBuffer.allocate(HISTORY_SIZE + HEADER_SIZE + 4
+                + mNumUids * UID_SECTION_SIZE).order(ByteOrder.nativeOrder());
+        mSections = new IntArray();
+        buffer.position(HISTORY_SIZE);
+        mSections.add(buffer.position());
+        buffer.position(HISTORY_SIZE + HEADER_SIZE);
+        mSections.add(buffer.position());
+        buffer.putInt(mNumUids);
+        for (int i = 0; i < mNumUids; i++) {
+            mSections.add(buffer.position());
+            buffer.putInt(Process.FIRST_APPLICATION_UID + i);
+            buffer.position(buffer.position() + UID_SECTION_SIZE - 4);
+        }
+        mSections.add(buffer.position());
+        mSummary = buffer.array();
+        mRandom.nextBytes(mSummary);
+        for (int i = 0; i < mNumUids; i++) {
+            buffer.putInt(mSections.get(i + 2), Process.FIRST_APPLICATION_UID + i);
+        }
+        buffer.putInt(mSections.get(1), mNumUids);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+    }
+
+    /**
+     * Simulates a checkpoint interval in which history was recorded, the global timers moved on
+     * and a few uids were active.
+     */
+    private void touchSummary() {
+        for (int i = 0; i < HISTORY_BYTES_PER_CHECKPOINT; i++) {
+            mSummary[mHistoryPosition]++;
+            mHistoryPosition = (mHistoryPosition + 1) % HISTORY_SIZE;
+        }
+        mSummary[HISTORY_SIZE + mRandom.nextInt(HEADER_SIZE)]++;
+        for (int i = 0; i < CHANGED_UIDS; i++) {
+            final int section = 2 + mRandom.nextInt(mNumUids);
+            // Skip the uid key itself.
+            mSummary[mSections.get(section) + 4 + mRandom.nextInt(UID_SECTION_SIZE - 4)]++;
+        }
+    }
+
+    private void reportBytesPerCheckpoint(String name, long bytes, long checkpoints) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_bytesPerCheckpoint", checkpoints > 0 ? bytes / checkpoints : 0);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeFullRewrite() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        long bytes = 0;
+        long checkpoints = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            touchSummary();
+            state.resumeTiming();
+
+            FileOutputStream stream = new FileOutputStream(mBaseFile.chooseForWrite());
+            stream.write(mSummary);
+            stream.flush();
+            FileUtils.sync(stream);
+            stream.close();
+            mBaseFile.commit();
+            bytes += mSummary.length;
+            checkpoints++;
+        }
+        reportBytesPerCheckpoint("fullRewrite", bytes, checkpoints);
+    }
+
+    @Test
+    public void timeDeltaJournal() throws IOException {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final BatteryStatsDeltaJournal journal = new BatteryStatsDeltaJournal(mBaseFile,
+                new File(mDir, "batterystats-delta.bin"));
+        long bytes = 0;
+        long checkpoints = 0;
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            touchSummary();
+            state.resumeTiming();
+
+            journal.write(mSummary, mSections);
+            bytes += journal.getLastBytesWritten();
+            checkpoints++;
+        }
+        reportBytesPerCheckpoint("deltaJournal", bytes, checkpoints);
+    }
+}
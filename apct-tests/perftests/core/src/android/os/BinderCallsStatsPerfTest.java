@@ -29,6 +29,10 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 import static org.junit.Assert.assertNull;
 
 
@@ -75,4 +79,83 @@ public class BinderCallsStatsPerfTest {
         }
     }
 
+    private static final long TIMEOUT_MS = 5000;
+
+    private CountDownLatch mStartLatch;
+    private AtomicBoolean mThreadState;  // True for running, False for stopped.
+
+    private Thread[] startBackgroundThreads(int numOfThreads) {
+        mStartLatch = new CountDownLatch(numOfThreads);
+        mThreadState = new AtomicBoolean(true);
+
+        Thread[] threads = new Thread[numOfThreads];
+        for (int i = 0; i < numOfThreads; ++i) {
+            threads[i] = new Thread(() -> {
+                Binder b = new Binder();
+                int j = 0;
+                mStartLatch.countDown();
+                while (mThreadState.get()) {
+                    BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, j % 100);
+                    mBinderCallsStats.callEnded(s);
+                    j++;
+                }
+            });
+        }
+
+        for (int i = 0; i < numOfThreads; ++i) {
+            threads[i].start();
+        }
+
+        try {
+            mStartLatch.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+        return threads;
+    }
+
+    private void finishThreads(Thread[] threads) {
+        mThreadState.set(false);
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        mStartLatch = null;
+        mThreadState = null;
+    }
+
+    /**
+     * Measures a call session on this thread while numOfTotalThreads - 1 other threads record
+     * calls concurrently, as binder threads do under load.
+     */
+    private void runContendedCallSession(int numOfTotalThreads) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        Binder b = new Binder();
+        Thread[] threads = startBackgroundThreads(numOfTotalThreads - 1);
+        int i = 0;
+        while (state.keepRunning()) {
+            BinderCallsStats.CallSession s = mBinderCallsStats.callStarted(b, i % 100);
+            mBinderCallsStats.callEnded(s);
+            i++;
+        }
+        finishThreads(threads);
+    }
+
+    @Test
+    public void timeCallSession_Thread_2() {
+        runContendedCallSession(2);
+    }
+
+    @Test
+    public void timeCallSession_Thread_4() {
+        runContendedCallSession(4);
+    }
+
+    @Test
+    public void timeCallSession_Thread_8() {
+        runContendedCallSession(8);
+    }
 }
@@ -23,6 +23,7 @@ import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.InstrumentationRegistry;
@@ -80,6 +81,70 @@ public class PackageManagerPerfTest {
         }
     }
 
+    @Test
+    public void testQueryIntentActivitiesShareText() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_SEND).setType("text/plain");
+
+        while (state.keepRunning()) {
+            pm.queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
+        }
+    }
+
+    @Test
+    public void testResolveActivityWebLink() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com/"))
+                .addCategory(Intent.CATEGORY_BROWSABLE);
+
+        while (state.keepRunning()) {
+            pm.resolveActivity(intent, PackageManager.MATCH_DEFAULT_ONLY);
+        }
+    }
+
+    /**
+     * Same query as {@link #testQueryIntentActivitiesShareText}, but with a component state
+     * change before each call, so that every call misses the server side result cache.
+     */
+    @Test
+    public void testQueryIntentActivitiesShareTextAfterChange() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final Intent intent = new Intent(Intent.ACTION_SEND).setType("text/plain");
+        int enabledState = PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+
+        try {
+            while (state.keepRunning()) {
+                state.pauseTiming();
+                enabledState = enabledState == PackageManager.COMPONENT_ENABLED_STATE_DEFAULT
+                        ? PackageManager.COMPONENT_ENABLED_STATE_ENABLED
+                        : PackageManager.COMPONENT_ENABLED_STATE_DEFAULT;
+                pm.setComponentEnabledSetting(TEST_ACTIVITY, enabledState,
+                        PackageManager.DONT_KILL_APP);
+                state.resumeTiming();
+
+                pm.queryIntentActivities(intent, PackageManager.MATCH_DEFAULT_ONLY);
+            }
+        } finally {
+            pm.setComponentEnabledSetting(TEST_ACTIVITY,
+                    PackageManager.COMPONENT_ENABLED_STATE_DEFAULT, PackageManager.DONT_KILL_APP);
+        }
+    }
+
+    @Test
+    public void testGetPackageInfoWithComponents() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final PackageManager pm = InstrumentationRegistry.getTargetContext().getPackageManager();
+        final String packageName = TEST_ACTIVITY.getPackageName();
+
+        while (state.keepRunning()) {
+            pm.getPackageInfo(packageName, PackageManager.GET_ACTIVITIES
+                    | PackageManager.GET_SERVICES | PackageManager.GET_PERMISSIONS);
+        }
+    }
+
     @Test
     public void testGetPackageInfo() throws Exception {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
@@ -19,6 +19,8 @@ package android.os;
 import android.perftests.utils.BenchmarkState;
 import android.perftests.utils.PerfStatusReporter;
 import android.support.test.filters.LargeTest;
+import android.util.IntArray;
+import android.util.LongArray;
 
 import org.junit.After;
 import org.junit.Before;
@@ -28,6 +30,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -53,6 +56,11 @@ public class ParcelArrayPerfTest {
     private Parcel mByteParcel;
     private Parcel mIntParcel;
     private Parcel mLongParcel;
+    private Parcel mStringListParcel;
+
+    private IntArray mReusedIntArray;
+    private LongArray mReusedLongArray;
+    private ArrayList<String> mReusedStringList;
 
     public ParcelArrayPerfTest(int size) {
         mSize = size;
@@ -72,12 +80,27 @@ public class ParcelArrayPerfTest {
         mIntParcel.writeIntArray(mIntArray);
         mLongParcel = Parcel.obtain();
         mLongParcel.writeLongArray(mLongArray);
+
+        final ArrayList<String> strings = new ArrayList<>(mSize);
+        for (int i = 0; i < mSize; i++) {
+            strings.add("string" + i);
+        }
+        mStringListParcel = Parcel.obtain();
+        mStringListParcel.writeStringList(strings);
+
+        mReusedIntArray = new IntArray();
+        mReusedLongArray = new LongArray();
+        mReusedStringList = new ArrayList<>();
     }
 
     @After
     public void tearDown() {
         mWriteParcel.recycle();
         mWriteParcel = null;
+        mByteParcel.recycle();
+        mIntParcel.recycle();
+        mLongParcel.recycle();
+        mStringListParcel.recycle();
     }
 
     @Test
@@ -160,4 +183,58 @@ public class ParcelArrayPerfTest {
             mLongParcel.readLongArray(mLongArray);
         }
     }
+
+    @Test
+    public void timeWriteIntArraySlice() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            mWriteParcel.writeIntArray(mIntArray, 0, mSize);
+        }
+    }
+
+    @Test
+    public void timeReadIntArrayIntoIntArray() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mIntParcel.setDataPosition(0);
+            mIntParcel.readIntArray(mReusedIntArray);
+        }
+    }
+
+    @Test
+    public void timeWriteLongArraySlice() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            mWriteParcel.writeLongArray(mLongArray, 0, mSize);
+        }
+    }
+
+    @Test
+    public void timeReadLongArrayIntoLongArray() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mLongParcel.setDataPosition(0);
+            mLongParcel.readLongArray(mReusedLongArray);
+        }
+    }
+
+    @Test
+    public void timeCreateStringArrayList() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mStringListParcel.setDataPosition(0);
+            mStringListParcel.createStringArrayList();
+        }
+    }
+
+    @Test
+    public void timeReadStringListIntoReusedList() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mStringListParcel.setDataPosition(0);
+            mStringListParcel.readStringList(mReusedStringList);
+        }
+    }
 }
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.content.ContentResolver;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Measures Settings.Global/Secure/System.getString from an app process. Cold reads start
+ * without a provider or snapshot, as the first read of a process does; warm reads cycle
+ * through names this process hasn't cached, which are looked up in the mapped snapshot.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SettingsReadPerfTest {
+    private static final int NAME_COUNT = 100;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private ContentResolver mResolver;
+    private String[] mNames;
+
+    @Before
+    public void setUp() {
+        mResolver = InstrumentationRegistry.getTargetContext().getContentResolver();
+        mNames = new String[NAME_COUNT];
+        for (int i = 0; i < NAME_COUNT; i++) {
+            mNames[i] = "settings_read_perf_test_" + i;
+        }
+    }
+
+    @Test
+    public void timeGlobalGetString_cold() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Settings.Global.clearProviderForTest();
+            state.resumeTiming();
+            Settings.Global.getString(mResolver, Settings.Global.AIRPLANE_MODE_ON);
+        }
+    }
+
+    @Test
+    public void timeGlobalGetString_warm() {
+        Settings.Global.getString(mResolver, Settings.Global.AIRPLANE_MODE_ON);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            Settings.Global.getString(mResolver, mNames[i++ % NAME_COUNT]);
+        }
+    }
+
+    @Test
+    public void timeSecureGetString_cold() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Settings.Secure.clearProviderForTest();
+            state.resumeTiming();
+            Settings.Secure.getString(mResolver, Settings.Secure.DEFAULT_INPUT_METHOD);
+        }
+    }
+
+    @Test
+    public void timeSecureGetString_warm() {
+        Settings.Secure.getString(mResolver, Settings.Secure.DEFAULT_INPUT_METHOD);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            Settings.Secure.getString(mResolver, mNames[i++ % NAME_COUNT]);
+        }
+    }
+
+    @Test
+    public void timeSystemGetString_cold() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            state.pauseTiming();
+            Settings.System.clearProviderForTest();
+            state.resumeTiming();
+            Settings.System.getString(mResolver, Settings.System.SCREEN_BRIGHTNESS);
+        }
+    }
+
+    @Test
+    public void timeSystemGetString_warm() {
+        Settings.System.getString(mResolver, Settings.System.SCREEN_BRIGHTNESS);
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            Settings.System.getString(mResolver, mNames[i++ % NAME_COUNT]);
+        }
+    }
+}
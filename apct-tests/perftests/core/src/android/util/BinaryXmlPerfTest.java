@@ -0,0 +1,161 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.FastXmlSerializer;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compares writing and reading a packages.xml shaped document as text and in binary form.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class BinaryXmlPerfTest {
+    private static final String[] PERMISSIONS = {
+            "android.permission.INTERNET", "android.permission.ACCESS_NETWORK_STATE",
+            "android.permission.WAKE_LOCK", "android.permission.VIBRATE",
+            "android.permission.RECEIVE_BOOT_COMPLETED", "android.permission.FOREGROUND_SERVICE" };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "packages={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {100}, {300}, {600} });
+    }
+
+    private final int mNumPackages;
+
+    public BinaryXmlPerfTest(int numPackages) {
+        mNumPackages = numPackages;
+    }
+
+    private void writePackages(XmlSerializer serializer) throws IOException {
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < mNumPackages; i++) {
+            final String name = "com.example.app" + i;
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", name);
+            serializer.attribute(null, "codePath", "/data/app/" + name + "-abcdefgh==");
+            serializer.attribute(null, "nativeLibraryPath", "/data/app/" + name + "/lib");
+            serializer.attribute(null, "primaryCpuAbi", "arm64-v8a");
+            serializer.attribute(null, "publicFlags", Integer.toString(0x38c8be44 + i));
+            serializer.attribute(null, "privateFlags", "0");
+            serializer.attribute(null, "ft", Long.toHexString(1530000000000L + i));
+            serializer.attribute(null, "it", Long.toHexString(1520000000000L + i));
+            serializer.attribute(null, "ut", Long.toHexString(1530000000000L + i));
+            serializer.attribute(null, "version", Integer.toString(1000 + i));
+            serializer.attribute(null, "userId", Integer.toString(10000 + i));
+            serializer.attribute(null, "installer", "com.android.vending");
+            serializer.startTag(null, "sigs");
+            serializer.attribute(null, "count", "1");
+            serializer.attribute(null, "schemeVersion", "2");
+            serializer.startTag(null, "cert");
+            serializer.attribute(null, "index", Integer.toString(i));
+            serializer.endTag(null, "cert");
+            serializer.endTag(null, "sigs");
+            serializer.startTag(null, "perms");
+            for (String permission : PERMISSIONS) {
+                serializer.startTag(null, "item");
+                serializer.attribute(null, "name", permission);
+                serializer.attribute(null, "granted", "true");
+                serializer.attribute(null, "flags", "0");
+                serializer.endTag(null, "item");
+            }
+            serializer.endTag(null, "perms");
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+    }
+
+    private byte[] write(XmlSerializer serializer) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        writePackages(serializer);
+        return out.toByteArray();
+    }
+
+    private static int read(byte[] document) throws Exception {
+        final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                new ByteArrayInputStream(document));
+        int attributes = 0;
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.START_TAG) {
+                attributes += parser.getAttributeCount();
+            }
+        }
+        return attributes;
+    }
+
+    @Test
+    public void timeWriteText() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            write(new FastXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeWriteBinary() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            write(new BinaryXmlSerializer());
+        }
+    }
+
+    @Test
+    public void timeReadText() throws Exception {
+        final byte[] document = write(new FastXmlSerializer());
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            read(document);
+        }
+    }
+
+    @Test
+    public void timeReadBinary() throws Exception {
+        final byte[] document = write(new BinaryXmlSerializer());
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            read(document);
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.util;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Random;
+
+/**
+ * Compares the binary-search Sparse*Array containers with their open-addressing
+ * Sparse*HashArray counterparts.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class SparseHashArrayPerfTest {
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "size={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {10}, {1000}, {10000}, {100000} });
+    }
+
+    private final int mSize;
+
+    /** Keys in random order, so that inserts don't hit the append fast path. */
+    private int[] mKeys;
+
+    private SparseIntArray mSparseIntArray;
+    private SparseIntHashArray mSparseIntHashArray;
+    private SparseArray<Object> mSparseArray;
+    private SparseHashArray<Object> mSparseHashArray;
+    private LongSparseArray<Object> mLongSparseArray;
+    private LongSparseHashArray<Object> mLongSparseHashArray;
+
+    public SparseHashArrayPerfTest(int size) {
+        mSize = size;
+    }
+
+    @Before
+    public void setUp() {
+        final Random random = new Random(0);
+        mKeys = new int[mSize];
+        for (int i = 0; i < mSize; i++) {
+            // Spread keys out like uids across several users.
+            mKeys[i] = random.nextInt(20) * 100000 + 10000 + random.nextInt(mSize * 4);
+        }
+
+        mSparseIntArray = new SparseIntArray();
+        mSparseIntHashArray = new SparseIntHashArray();
+        mSparseArray = new SparseArray<>();
+        mSparseHashArray = new SparseHashArray<>();
+        mLongSparseArray = new LongSparseArray<>();
+        mLongSparseHashArray = new LongSparseHashArray<>();
+        for (int key : mKeys) {
+            mSparseIntArray.put(key, key);
+            mSparseIntHashArray.put(key, key);
+            mSparseArray.put(key, this);
+            mSparseHashArray.put(key, this);
+            mLongSparseArray.put(key, this);
+            mLongSparseHashArray.put(key, this);
+        }
+    }
+
+    @Test
+    public void timeSparseIntArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mSparseIntArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeSparseIntHashArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mSparseIntHashArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeSparseIntArrayRemoveAndPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int key = mKeys[i++ % mSize];
+            mSparseIntArray.delete(key);
+            mSparseIntArray.put(key, key);
+        }
+    }
+
+    @Test
+    public void timeSparseIntHashArrayRemoveAndPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int key = mKeys[i++ % mSize];
+            mSparseIntHashArray.delete(key);
+            mSparseIntHashArray.put(key, key);
+        }
+    }
+
+    @Test
+    public void timeSparseIntArrayIterate() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            int sum = 0;
+            for (int i = mSparseIntArray.size() - 1; i >= 0; i--) {
+                sum += mSparseIntArray.valueAt(i);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseIntHashArrayIterate() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            int sum = 0;
+            for (int i = mSparseIntHashArray.size() - 1; i >= 0; i--) {
+                sum += mSparseIntHashArray.valueAt(i);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseIntHashArrayIterateOrdered() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            int sum = 0;
+            final int[] indices = mSparseIntHashArray.orderedIndices();
+            for (int i = 0; i < indices.length; i++) {
+                sum += mSparseIntHashArray.valueAt(indices[i]);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mSparseArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeSparseHashArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mSparseHashArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeSparseArrayRemoveAndPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int key = mKeys[i++ % mSize];
+            mSparseArray.remove(key);
+            mSparseArray.put(key, this);
+        }
+    }
+
+    @Test
+    public void timeSparseHashArrayRemoveAndPut() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            final int key = mKeys[i++ % mSize];
+            mSparseHashArray.remove(key);
+            mSparseHashArray.put(key, this);
+        }
+    }
+
+    @Test
+    public void timeLongSparseArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mLongSparseArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeLongSparseHashArrayGet() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        int i = 0;
+        while (state.keepRunning()) {
+            mLongSparseHashArray.get(mKeys[i++ % mSize]);
+        }
+    }
+
+    @Test
+    public void timeSparseIntArrayFill() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final SparseIntArray array = new SparseIntArray();
+            for (int key : mKeys) {
+                array.put(key, key);
+            }
+        }
+    }
+
+    @Test
+    public void timeSparseIntHashArrayFill() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final SparseIntHashArray array = new SparseIntHashArray();
+            for (int key : mKeys) {
+                array.put(key, key);
+            }
+        }
+    }
+}
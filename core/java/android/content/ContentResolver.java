@@ -493,7 +493,8 @@ public abstract class ContentResolver {
     /** @hide */
     @IntDef(flag = true, prefix = { "NOTIFY_" }, value = {
             NOTIFY_SYNC_TO_NETWORK,
-            NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS
+            NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS,
+            NOTIFY_BATCH
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface NotifyFlags {}
@@ -514,6 +515,16 @@ public abstract class ContentResolver {
      */
     public static final int NOTIFY_SKIP_NOTIFY_FOR_DESCENDANTS = 1<<1;
 
+    /**
+     * Flag for {@link #notifyChange(Uri, ContentObserver, int)}: the change may be delivered a
+     * little later, together with other changes notified with this flag, in one callback to
+     * each observer. Changes to the same Uri within that window are delivered once. Meant for
+     * providers that notify a change per row of a bulk operation.
+     *
+     * @hide
+     */
+    public static final int NOTIFY_BATCH = 1<<15;
+
     /**
      * No exception, throttled by app standby normally.
      * @hide
@@ -90,26 +90,34 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
             return;
         }
         final IBinder retriever = p.readStrongBinder();
-        while (i < N) {
-            if (DEBUG) Log.d(TAG, "Reading more @" + i + " of " + N + ": retriever=" + retriever);
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            data.writeInt(i);
-            try {
-                retriever.transact(IBinder.FIRST_CALL_TRANSACTION, data, reply, 0);
-            } catch (RemoteException e) {
-                Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
-                return;
-            }
-            while (i < N && reply.readInt() != 0) {
-                final T parcelable = readCreator(creator, reply, loader);
-                verifySameType(listElementClass, parcelable.getClass());
-
-                mList.add(parcelable);
-
-                if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
-                i++;
+        // Reuse one request/reply pair for every chunk instead of obtaining a fresh pair each time.
+        final Parcel data = Parcel.obtain();
+        final Parcel reply = Parcel.obtain();
+        try {
+            while (i < N) {
+                if (DEBUG) {
+                    Log.d(TAG, "Reading more @" + i + " of " + N + ": retriever=" + retriever);
+                }
+                data.setDataSize(0);
+                data.writeInt(i);
+                reply.setDataSize(0);
+                try {
+                    retriever.transact(IBinder.FIRST_CALL_TRANSACTION, data, reply, 0);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
+                    return;
+                }
+                while (i < N && reply.readInt() != 0) {
+                    final T parcelable = readCreator(creator, reply, loader);
+                    verifySameType(listElementClass, parcelable.getClass());
+
+                    mList.add(parcelable);
+
+                    if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
+                    i++;
+                }
             }
+        } finally {
             reply.recycle();
             data.recycle();
         }
@@ -145,6 +145,24 @@ public abstract class ContentObserver {
         onChange(selfChange, uri);
     }
 
+    /**
+     * Dispatches changes to several Uris to the observer at once, in the order they were
+     * first notified. Calls {@link #onChange(boolean, Uri, int)} for each of them unless
+     * overridden.
+     *
+     * @param selfChange True if this is a self-change notification.
+     * @param uris The Uris of the changed content.
+     * @param userId The user whose content changed. Can be either a specific
+     *         user or {@link UserHandle#USER_ALL}.
+     *
+     * @hide
+     */
+    public void onChange(boolean selfChange, Uri[] uris, int userId) {
+        for (Uri uri : uris) {
+            onChange(selfChange, uri, userId);
+        }
+    }
+
     /**
      * Dispatches a change notification to the observer.
      * <p>
@@ -199,6 +217,14 @@ public abstract class ContentObserver {
         }
     }
 
+    private void dispatchChange(boolean selfChange, Uri[] uris, int userId) {
+        if (mHandler == null) {
+            onChange(selfChange, uris, userId);
+        } else {
+            mHandler.post(() -> onChange(selfChange, uris, userId));
+        }
+    }
+
 
     private final class NotificationRunnable implements Runnable {
         private final boolean mSelfChange;
@@ -232,6 +258,14 @@ public abstract class ContentObserver {
             }
         }
 
+        @Override
+        public void onChangeUris(boolean selfChange, Uri[] uris, int userId) {
+            ContentObserver contentObserver = mContentObserver;
+            if (contentObserver != null) {
+                contentObserver.dispatchChange(selfChange, uris, userId);
+            }
+        }
+
         public void releaseContentObserver() {
             mContentObserver = null;
         }
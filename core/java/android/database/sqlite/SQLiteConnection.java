@@ -112,6 +112,11 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
 
     private boolean mOnlyAllowReadOnlyOperations;
 
+    // The SQL and the time at which a reader acquired this connection, if the pool wants to
+    // learn how long readers of that SQL hold on to a connection.
+    private String mAcquiredSql;
+    private long mAcquiredTime;
+
     // The number of times attachCancellationSignal has been called.
     // Because SQLite statement execution can be reentrant, we keep track of how many
     // times we have attempted to attach a cancellation signal to the connection so that
@@ -155,6 +160,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
     private static native long nativeExecuteForCursorWindow(
             long connectionPtr, long statementPtr, long windowPtr,
             int startPos, int requiredPos, boolean countAllRows);
+    private static native long nativeStepIntoCursorWindow(
+            long connectionPtr, long statementPtr, long windowPtr, boolean hasPendingRow,
+            int skipRows);
     private static native int nativeGetDbLookaside(long connectionPtr);
     private static native void nativeCancel(long connectionPtr);
     private static native void nativeResetCancel(long connectionPtr, boolean cancelable);
@@ -502,6 +510,30 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         return mPreparedStatementCache.get(sql) != null;
     }
 
+    // Called by SQLiteConnectionPool only.
+    void setAcquiredSql(String sql, long acquiredTime) {
+        mAcquiredSql = sql;
+        mAcquiredTime = acquiredTime;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    String getAcquiredSql() {
+        return mAcquiredSql;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    long getAcquiredTime() {
+        return mAcquiredTime;
+    }
+
+    // Called by SQLiteConnectionPool only.
+    // Adds the prepared statement cache stats of this connection to the pool's.
+    void collectStatementCacheStatsUnsafe(SQLiteDebug.ConnectionPoolStats stats) {
+        stats.statementCacheHits += mPreparedStatementCache.mHits;
+        stats.statementCacheMisses += mPreparedStatementCache.mMisses;
+        stats.statementCacheEvictions += mPreparedStatementCache.mEvictions;
+    }
+
     /**
      * Gets the unique id of this connection.
      * @return The connection id.
@@ -925,11 +957,132 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         }
     }
 
+    /**
+     * Starts a query whose rows are read with {@link #stepIntoCursorWindow}, each one once.
+     * The statement stays in use, and keeps its place in the results, until
+     * {@link #endStreamingQuery} is called.
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @return The query, never null.
+     *
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     */
+    public StreamingQuery beginStreamingQuery(String sql, Object[] bindArgs) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+
+        final int cookie = mRecentOperations.beginOperation("beginStreamingQuery",
+                sql, bindArgs);
+        try {
+            final PreparedStatement statement = acquirePreparedStatement(sql);
+            try {
+                throwIfStatementForbidden(statement);
+                bindArguments(statement, bindArgs);
+                applyBlockGuardPolicy(statement);
+            } catch (RuntimeException ex) {
+                releasePreparedStatement(statement);
+                throw ex;
+            }
+            return new StreamingQuery(this, statement);
+        } catch (RuntimeException ex) {
+            mRecentOperations.failOperation(cookie, ex);
+            throw ex;
+        } finally {
+            mRecentOperations.endOperation(cookie);
+        }
+    }
+
+    /**
+     * Clears the specified {@link CursorWindow} and fills it with the next rows of a
+     * streaming query, as many as fit.  If the next row does not fit in the empty window,
+     * no rows are added and the row stays pending for the next call.
+     *
+     * @param query The query, from {@link #beginStreamingQuery}.
+     * @param window The cursor window to clear and fill.
+     * @param startPos The position in the results of the first row that will be read.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows that were added to the window.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public int stepIntoCursorWindow(StreamingQuery query, CursorWindow window, int startPos,
+            CancellationSignal cancellationSignal) {
+        if (query == null || query.mConnection != this) {
+            throw new IllegalArgumentException("query was not started on this connection.");
+        }
+        if (query.mStatement == null) {
+            throw new IllegalStateException("query has already ended.");
+        }
+        if (window == null) {
+            throw new IllegalArgumentException("window must not be null.");
+        }
+
+        window.acquireReference();
+        try {
+            int filledRows = -1;
+            final int cookie = mRecentOperations.beginOperation("stepIntoCursorWindow",
+                    query.mStatement.mSql, null);
+            try {
+                if (query.mDone) {
+                    window.clear();
+                    filledRows = 0;
+                } else {
+                    attachCancellationSignal(cancellationSignal);
+                    try {
+                        final long result = nativeStepIntoCursorWindow(mConnectionPtr,
+                                query.mStatement.mStatementPtr, window.mWindowPtr,
+                                query.mHasPendingRow, query.mSkipRows);
+                        query.mSkipRows = 0;
+                        query.mDone = (result >> 32) != 0;
+                        query.mHasPendingRow = !query.mDone;
+                        filledRows = (int) result;
+                    } finally {
+                        detachCancellationSignal(cancellationSignal);
+                    }
+                }
+                window.setStartPosition(startPos);
+                return filledRows;
+            } catch (RuntimeException ex) {
+                mRecentOperations.failOperation(cookie, ex);
+                throw ex;
+            } finally {
+                if (mRecentOperations.endOperationDeferLog(cookie)) {
+                    mRecentOperations.logOperation(cookie, "window='" + window
+                            + "', startPos=" + startPos
+                            + ", filledRows=" + filledRows);
+                }
+            }
+        } finally {
+            window.releaseReference();
+        }
+    }
+
+    /**
+     * Ends a streaming query, resetting its statement.  Does nothing if it has already ended.
+     *
+     * @param query The query, from {@link #beginStreamingQuery}.
+     */
+    public void endStreamingQuery(StreamingQuery query) {
+        if (query == null || query.mConnection != this) {
+            throw new IllegalArgumentException("query was not started on this connection.");
+        }
+        final PreparedStatement statement = query.mStatement;
+        if (statement != null) {
+            query.mStatement = null;
+            releasePreparedStatement(statement);
+        }
+    }
+
     private PreparedStatement acquirePreparedStatement(String sql) {
         PreparedStatement statement = mPreparedStatementCache.get(sql);
         boolean skipCache = false;
         if (statement != null) {
             if (!statement.mInUse) {
+                mPreparedStatementCache.mHits += 1;
                 return statement;
             }
             // The statement is already in the cache but is in use (this statement appears
@@ -938,6 +1091,7 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             skipCache = true;
         }
 
+        mPreparedStatementCache.mMisses += 1;
         final long statementPtr = nativePrepareStatement(mConnectionPtr, sql);
         try {
             final int numParameters = nativeGetParameterCount(mConnectionPtr, statementPtr);
@@ -1129,6 +1283,12 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         printer.println("  isPrimaryConnection: " + mIsPrimaryConnection);
         printer.println("  onlyAllowReadOnlyOperations: " + mOnlyAllowReadOnlyOperations);
 
+        printer.println("  preparedStatementCache: hits=" + mPreparedStatementCache.mHits
+                + ", misses=" + mPreparedStatementCache.mMisses
+                + ", evictions=" + mPreparedStatementCache.mEvictions
+                + ", size=" + mPreparedStatementCache.size()
+                + "/" + mPreparedStatementCache.maxSize());
+
         mRecentOperations.dump(printer, verbose);
 
         if (verbose) {
@@ -1220,8 +1380,8 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
             label += " (" + mConnectionId + ")";
         }
         return new DbStats(label, pageCount, pageSize, lookaside,
-                mPreparedStatementCache.hitCount(),
-                mPreparedStatementCache.missCount(),
+                mPreparedStatementCache.mHits,
+                mPreparedStatementCache.mMisses,
                 mPreparedStatementCache.size());
     }
 
@@ -1302,8 +1462,48 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         public boolean mInUse;
     }
 
+    /**
+     * A query started by {@link SQLiteConnection#beginStreamingQuery}.  Holds on to its
+     * prepared statement, which has stepped to the last row read, until it ends.
+     */
+    static final class StreamingQuery {
+        final SQLiteConnection mConnection;
+
+        // The statement, or null once the query has ended.
+        PreparedStatement mStatement;
+
+        // True if the current row of the statement did not fit in the last window.
+        boolean mHasPendingRow;
+
+        // The number of rows to step past before the next window is filled.
+        int mSkipRows;
+
+        // True once the statement has stepped past the last row.
+        boolean mDone;
+
+        StreamingQuery(SQLiteConnection connection, PreparedStatement statement) {
+            mConnection = connection;
+            mStatement = statement;
+        }
+
+        boolean isDone() {
+            return mDone;
+        }
+
+        boolean hasPendingRow() {
+            return mHasPendingRow;
+        }
+    }
+
     private final class PreparedStatementCache
             extends LruCache<String, PreparedStatement> {
+        // Lookups by the statements of this connection only; unlike hitCount() and missCount(),
+        // these don't count the pool looking for a connection that has a statement cached.
+        // Only written by the owner of the connection, so they may be read a little stale.
+        public int mHits;
+        public int mMisses;
+        public int mEvictions;
+
         public PreparedStatementCache(int size) {
             super(size);
         }
@@ -1311,6 +1511,9 @@ public final class SQLiteConnection implements CancellationSignal.OnCancelListen
         @Override
         protected void entryRemoved(boolean evicted, String key,
                 PreparedStatement oldValue, PreparedStatement newValue) {
+            if (evicted) {
+                mEvictions += 1;
+            }
             oldValue.mInCache = false;
             if (!oldValue.mInUse) {
                 finalizePreparedStatement(oldValue);
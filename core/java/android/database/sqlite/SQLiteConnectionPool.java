@@ -16,6 +16,7 @@
 
 package android.database.sqlite;
 
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.Handler;
@@ -25,6 +26,7 @@ import android.os.OperationCanceledException;
 import android.os.SystemClock;
 import android.text.TextUtils;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.PrefixPrinter;
 import android.util.Printer;
 
@@ -35,6 +37,7 @@ import dalvik.system.CloseGuard;
 
 import java.io.Closeable;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.WeakHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -84,6 +87,23 @@ public final class SQLiteConnectionPool implements Closeable {
     // and logging a message about the connection pool being busy.
     private static final long CONNECTION_POOL_BUSY_MILLIS = 30 * 1000; // 30 seconds
 
+    // How many times its usual size an adaptive pool may grow to while readers have to wait.
+    private static final int ADAPTIVE_POOL_GROWTH_FACTOR = 2;
+
+    // An adaptive pool that has grown closes one connection when no reader has had to wait
+    // for this long.
+    private static final long ADAPTIVE_POOL_SHRINK_MILLIS = 10 * 1000; // 10 seconds
+
+    // Readers that usually hold on to their connection for this long are long scans, which
+    // short readers may be served ahead of in an adaptive pool.
+    private static final long LONG_SCAN_MILLIS = 50;
+
+    // The number of times a long scan may be passed over by short readers.
+    private static final int MAX_LONG_SCAN_BYPASSES = 4;
+
+    // The number of SQL statements that the time readers hold their connection is kept for.
+    private static final int READER_HOLD_TIMES_SIZE = 64;
+
     private final CloseGuard mCloseGuard = CloseGuard.get();
 
     private final Object mLock = new Object();
@@ -106,6 +126,23 @@ public final class SQLiteConnectionPool implements Closeable {
 
     private final AtomicLong mTotalExecutionTimeCounter = new AtomicLong(0);
 
+    // Wait time histograms, and the prepared statement cache stats of closed connections.
+    @GuardedBy("mLock")
+    private final ConnectionPoolStats mStats = new ConnectionPoolStats();
+
+    // See SQLiteDatabase.ENABLE_ADAPTIVE_CONNECTION_POOL.  mMaxConnectionPoolSize starts at
+    // mBaseConnectionPoolSize and may grow up to mAdaptiveConnectionPoolLimit.
+    private boolean mAdaptive;
+    private int mBaseConnectionPoolSize;
+    private int mAdaptiveConnectionPoolLimit;
+    private long mLastReaderWaitTime;
+
+    // Average time in milliseconds that readers hold on to a connection, by the SQL they
+    // acquired it for.  Only kept by adaptive pools.
+    @GuardedBy("mLock")
+    private final LruCache<String, Long> mReaderHoldTimes =
+            new LruCache<String, Long>(READER_HOLD_TIMES_SIZE);
+
     // Describes what should happen to an acquired connection when it is returned to the pool.
     enum AcquiredConnectionStatus {
         // The connection should be returned to the pool as usual.
@@ -407,6 +444,7 @@ public final class SQLiteConnectionPool implements Closeable {
                         + "because the specified connection was not acquired "
                         + "from this pool or has already been released.");
             }
+            recordReaderHoldTimeLocked(connection);
 
             if (!mIsOpen) {
                 closeConnectionAndLogExceptionsLocked(connection);
@@ -416,7 +454,8 @@ public final class SQLiteConnectionPool implements Closeable {
                     mAvailablePrimaryConnection = connection;
                 }
                 wakeConnectionWaitersLocked();
-            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1) {
+            } else if (mAvailableNonPrimaryConnections.size() >= mMaxConnectionPoolSize - 1
+                    || shrinkConnectionPoolLocked()) {
                 closeConnectionAndLogExceptionsLocked(connection);
             } else {
                 if (recycleConnectionLocked(connection, status)) {
@@ -496,6 +535,38 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Returns how long sessions have waited for connections, and how well the prepared
+     * statement caches of the connections have worked.
+     */
+    public ConnectionPoolStats getConnectionPoolStats() {
+        final ConnectionPoolStats stats = new ConnectionPoolStats();
+        synchronized (mLock) {
+            stats.dbName = mConfiguration.label;
+            stats.maxConnections = mMaxConnectionPoolSize;
+            stats.growCount = mStats.growCount;
+            System.arraycopy(mStats.primaryWaitTimeHistogram, 0,
+                    stats.primaryWaitTimeHistogram, 0, stats.primaryWaitTimeHistogram.length);
+            System.arraycopy(mStats.nonPrimaryWaitTimeHistogram, 0,
+                    stats.nonPrimaryWaitTimeHistogram, 0,
+                    stats.nonPrimaryWaitTimeHistogram.length);
+            stats.statementCacheHits = mStats.statementCacheHits;
+            stats.statementCacheMisses = mStats.statementCacheMisses;
+            stats.statementCacheEvictions = mStats.statementCacheEvictions;
+
+            if (mAvailablePrimaryConnection != null) {
+                mAvailablePrimaryConnection.collectStatementCacheStatsUnsafe(stats);
+            }
+            for (SQLiteConnection connection : mAvailableNonPrimaryConnections) {
+                connection.collectStatementCacheStatsUnsafe(stats);
+            }
+            for (SQLiteConnection connection : mAcquiredConnections.keySet()) {
+                connection.collectStatementCacheStatsUnsafe(stats);
+            }
+        }
+        return stats;
+    }
+
     // Might throw.
     private SQLiteConnection openConnectionLocked(SQLiteDatabaseConfiguration configuration,
             boolean primaryConnection) {
@@ -604,6 +675,8 @@ public final class SQLiteConnectionPool implements Closeable {
     // Can't throw.
     @GuardedBy("mLock")
     private void closeConnectionAndLogExceptionsLocked(SQLiteConnection connection) {
+        // Keep the stats of the connection's prepared statement cache.
+        connection.collectStatementCacheStatsUnsafe(mStats);
         try {
             connection.close(); // might throw
             if (mIdleConnectionHandler != null) {
@@ -694,27 +767,47 @@ public final class SQLiteConnectionPool implements Closeable {
                         sql, connectionFlags); // might throw
             }
             if (connection == null) {
-                connection = tryAcquirePrimaryConnectionLocked(connectionFlags); // might throw
+                connection = tryAcquirePrimaryConnectionLocked(
+                        sql, connectionFlags); // might throw
+            }
+            if (connection == null && !wantPrimaryConnection && growConnectionPoolLocked()) {
+                connection = tryAcquireNonPrimaryConnectionLocked(
+                        sql, connectionFlags); // might throw
             }
             if (connection != null) {
+                recordWaitTimeLocked(wantPrimaryConnection, 0);
                 return connection;
             }
 
             // No connections available.  Enqueue a waiter in priority order.
+            // In an adaptive pool, short readers also go ahead of long scans of the same
+            // priority, unless a scan has already been passed over too many times.
             final int priority = getPriority(connectionFlags);
             final long startTime = SystemClock.uptimeMillis();
             waiter = obtainConnectionWaiterLocked(Thread.currentThread(), startTime,
                     priority, wantPrimaryConnection, sql, connectionFlags);
+            final boolean shortReader = mAdaptive && !wantPrimaryConnection
+                    && (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0 && !waiter.mLongScan;
             ConnectionWaiter predecessor = null;
             ConnectionWaiter successor = mConnectionWaiterQueue;
             while (successor != null) {
-                if (priority > successor.mPriority) {
+                if (priority > successor.mPriority
+                        || (shortReader && priority == successor.mPriority
+                                && successor.mLongScan
+                                && successor.mBypassCount < MAX_LONG_SCAN_BYPASSES)) {
                     waiter.mNext = successor;
                     break;
                 }
                 predecessor = successor;
                 successor = successor.mNext;
             }
+            if (shortReader) {
+                for (; successor != null; successor = successor.mNext) {
+                    if (successor.mLongScan && successor.mPriority == priority) {
+                        successor.mBypassCount += 1;
+                    }
+                }
+            }
             if (predecessor != null) {
                 predecessor.mNext = waiter;
             } else {
@@ -765,6 +858,8 @@ public final class SQLiteConnectionPool implements Closeable {
                     if (connection != null || ex != null) {
                         recycleConnectionWaiterLocked(waiter);
                         if (connection != null) {
+                            recordWaitTimeLocked(wantPrimaryConnection,
+                                    SystemClock.uptimeMillis() - waiter.mStartTime);
                             return connection;
                         }
                         throw ex; // rethrow!
@@ -887,7 +982,7 @@ public final class SQLiteConnectionPool implements Closeable {
                     }
                     if (connection == null && !primaryConnectionNotAvailable) {
                         connection = tryAcquirePrimaryConnectionLocked(
-                                waiter.mConnectionFlags); // might throw
+                                waiter.mSql, waiter.mConnectionFlags); // might throw
                         if (connection == null) {
                             primaryConnectionNotAvailable = true;
                         }
@@ -926,12 +1021,12 @@ public final class SQLiteConnectionPool implements Closeable {
 
     // Might throw.
     @GuardedBy("mLock")
-    private SQLiteConnection tryAcquirePrimaryConnectionLocked(int connectionFlags) {
+    private SQLiteConnection tryAcquirePrimaryConnectionLocked(String sql, int connectionFlags) {
         // If the primary connection is available, acquire it now.
         SQLiteConnection connection = mAvailablePrimaryConnection;
         if (connection != null) {
             mAvailablePrimaryConnection = null;
-            finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+            finishAcquireConnectionLocked(connection, sql, connectionFlags); // might throw
             return connection;
         }
 
@@ -946,7 +1041,7 @@ public final class SQLiteConnectionPool implements Closeable {
         // for it, or maybe it leaked?
         connection = openConnectionLocked(mConfiguration,
                 true /*primaryConnection*/); // might throw
-        finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+        finishAcquireConnectionLocked(connection, sql, connectionFlags); // might throw
         return connection;
     }
 
@@ -964,7 +1059,7 @@ public final class SQLiteConnectionPool implements Closeable {
                 connection = mAvailableNonPrimaryConnections.get(i);
                 if (connection.isPreparedStatementInCache(sql)) {
                     mAvailableNonPrimaryConnections.remove(i);
-                    finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+                    finishAcquireConnectionLocked(connection, sql, connectionFlags); // might throw
                     return connection;
                 }
             }
@@ -972,7 +1067,7 @@ public final class SQLiteConnectionPool implements Closeable {
         if (availableCount > 0) {
             // Otherwise, just grab the next one.
             connection = mAvailableNonPrimaryConnections.remove(availableCount - 1);
-            finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+            finishAcquireConnectionLocked(connection, sql, connectionFlags); // might throw
             return connection;
         }
 
@@ -986,16 +1081,19 @@ public final class SQLiteConnectionPool implements Closeable {
         }
         connection = openConnectionLocked(mConfiguration,
                 false /*primaryConnection*/); // might throw
-        finishAcquireConnectionLocked(connection, connectionFlags); // might throw
+        finishAcquireConnectionLocked(connection, sql, connectionFlags); // might throw
         return connection;
     }
 
     // Might throw.
     @GuardedBy("mLock")
-    private void finishAcquireConnectionLocked(SQLiteConnection connection, int connectionFlags) {
+    private void finishAcquireConnectionLocked(SQLiteConnection connection, String sql,
+            int connectionFlags) {
         try {
             final boolean readOnly = (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0;
             connection.setOnlyAllowReadOnlyOperations(readOnly);
+            connection.setAcquiredSql(mAdaptive && readOnly ? sql : null,
+                    SystemClock.uptimeMillis());
 
             mAcquiredConnections.put(connection, AcquiredConnectionStatus.NORMAL);
         } catch (RuntimeException ex) {
@@ -1035,9 +1133,12 @@ public final class SQLiteConnectionPool implements Closeable {
     }
 
     private void setMaxConnectionPoolSizeLocked() {
+        mAdaptive = false;
         if (!mConfiguration.isInMemoryDb()
                 && (mConfiguration.openFlags & SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING) != 0) {
             mMaxConnectionPoolSize = SQLiteGlobal.getWALConnectionPoolSize();
+            mAdaptive = (mConfiguration.openFlags
+                    & SQLiteDatabase.ENABLE_ADAPTIVE_CONNECTION_POOL) != 0;
         } else {
             // We don't actually need to always restrict the connection pool size to 1
             // for non-WAL databases.  There might be reasons to use connection pooling
@@ -1046,6 +1147,80 @@ public final class SQLiteConnectionPool implements Closeable {
             // For now, enabling connection pooling and using WAL are the same thing in the API.
             mMaxConnectionPoolSize = 1;
         }
+        mBaseConnectionPoolSize = mMaxConnectionPoolSize;
+        mAdaptiveConnectionPoolLimit = mAdaptive
+                ? mMaxConnectionPoolSize * ADAPTIVE_POOL_GROWTH_FACTOR : mMaxConnectionPoolSize;
+        if (!mAdaptive) {
+            mReaderHoldTimes.evictAll();
+        }
+    }
+
+    // Called when a reader finds no connection available.  Returns true if the pool is
+    // adaptive and may now open another connection.
+    @GuardedBy("mLock")
+    private boolean growConnectionPoolLocked() {
+        if (!mAdaptive) {
+            return false;
+        }
+        mLastReaderWaitTime = SystemClock.uptimeMillis();
+        if (mMaxConnectionPoolSize >= mAdaptiveConnectionPoolLimit) {
+            return false;
+        }
+        mMaxConnectionPoolSize += 1;
+        mStats.growCount += 1;
+        return true;
+    }
+
+    // Called when a non-primary connection is released.  Returns true if an adaptive pool
+    // that has grown has not had readers waiting for a while, in which case the pool
+    // gets smaller by one connection and the released connection should be closed.
+    @GuardedBy("mLock")
+    private boolean shrinkConnectionPoolLocked() {
+        if (!mAdaptive || mMaxConnectionPoolSize <= mBaseConnectionPoolSize
+                || mConnectionWaiterQueue != null) {
+            return false;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastReaderWaitTime < ADAPTIVE_POOL_SHRINK_MILLIS) {
+            return false;
+        }
+        mMaxConnectionPoolSize -= 1;
+        // Wait as long again before the next connection is closed.
+        mLastReaderWaitTime = now;
+        return true;
+    }
+
+    @GuardedBy("mLock")
+    private void recordWaitTimeLocked(boolean wantPrimaryConnection, long waitMillis) {
+        final long[] histogram = wantPrimaryConnection
+                ? mStats.primaryWaitTimeHistogram : mStats.nonPrimaryWaitTimeHistogram;
+        histogram[ConnectionPoolStats.getWaitTimeBucket(waitMillis)] += 1;
+    }
+
+    // Updates the average time that readers of the SQL the connection was acquired for hold
+    // on to their connection.
+    @GuardedBy("mLock")
+    private void recordReaderHoldTimeLocked(SQLiteConnection connection) {
+        final String sql = connection.getAcquiredSql();
+        if (sql == null) {
+            return;
+        }
+        final long holdMillis = SystemClock.uptimeMillis() - connection.getAcquiredTime();
+        connection.setAcquiredSql(null, 0);
+        if (!mAdaptive) {
+            return;
+        }
+        final Long average = mReaderHoldTimes.get(sql);
+        mReaderHoldTimes.put(sql, average != null ? (average * 3 + holdMillis) / 4 : holdMillis);
+    }
+
+    @GuardedBy("mLock")
+    private boolean isLongScanLocked(String sql) {
+        if (!mAdaptive || sql == null) {
+            return false;
+        }
+        final Long average = mReaderHoldTimes.get(sql);
+        return average != null && average >= LONG_SCAN_MILLIS;
     }
 
     /**
@@ -1064,6 +1239,33 @@ public final class SQLiteConnectionPool implements Closeable {
         }
     }
 
+    /**
+     * Returns whether readers of {@code sql} usually hold on to their connection long enough
+     * to be served after short readers.
+     */
+    @VisibleForTesting
+    boolean isLongScan(String sql) {
+        synchronized (mLock) {
+            return isLongScanLocked(sql);
+        }
+    }
+
+    /**
+     * Returns the SQL of the waiting threads, in the order they will be given a connection,
+     * each followed by the number of times the waiter was passed over by short readers.
+     */
+    @VisibleForTesting
+    ArrayList<String> getConnectionWaiters() {
+        synchronized (mLock) {
+            final ArrayList<String> waiters = new ArrayList<>();
+            for (ConnectionWaiter waiter = mConnectionWaiterQueue; waiter != null;
+                    waiter = waiter.mNext) {
+                waiters.add(waiter.mSql + ":" + waiter.mBypassCount);
+            }
+            return waiters;
+        }
+    }
+
     private void throwIfClosedLocked() {
         if (!mIsOpen) {
             throw new IllegalStateException("Cannot perform this operation "
@@ -1086,6 +1288,9 @@ public final class SQLiteConnectionPool implements Closeable {
         waiter.mWantPrimaryConnection = wantPrimaryConnection;
         waiter.mSql = sql;
         waiter.mConnectionFlags = connectionFlags;
+        waiter.mLongScan = !wantPrimaryConnection
+                && (connectionFlags & CONNECTION_FLAG_READ_ONLY) != 0 && isLongScanLocked(sql);
+        waiter.mBypassCount = 0;
         return waiter;
     }
 
@@ -1111,6 +1316,11 @@ public final class SQLiteConnectionPool implements Closeable {
             printer.println("Connection pool for " + mConfiguration.path + ":");
             printer.println("  Open: " + mIsOpen);
             printer.println("  Max connections: " + mMaxConnectionPoolSize);
+            if (mAdaptive) {
+                printer.println("  Adaptive: base=" + mBaseConnectionPoolSize
+                        + ", limit=" + mAdaptiveConnectionPoolLimit
+                        + ", grown=" + mStats.growCount);
+            }
             printer.println("  Total execution time: " + mTotalExecutionTimeCounter);
             printer.println("  Configuration: openFlags=" + mConfiguration.openFlags
                     + ", useCompatibilityWal=" + mConfiguration.useCompatibilityWal()
@@ -1131,6 +1341,10 @@ public final class SQLiteConnectionPool implements Closeable {
                 printer.println(
                         "  Idle connection timeout: " + mConfiguration.idleConnectionTimeoutMs);
             }
+            printer.println("  Wait time histogram (ms, buckets "
+                    + Arrays.toString(ConnectionPoolStats.WAIT_TIME_BUCKET_BOUNDS_MILLIS)
+                    + "): primary=" + Arrays.toString(mStats.primaryWaitTimeHistogram)
+                    + ", nonPrimary=" + Arrays.toString(mStats.nonPrimaryWaitTimeHistogram));
             printer.println("  Available primary connection:");
             if (mAvailablePrimaryConnection != null) {
                 mAvailablePrimaryConnection.dump(indentedPrinter, verbose);
@@ -1170,6 +1384,8 @@ public final class SQLiteConnectionPool implements Closeable {
                             + ((now - waiter.mStartTime) * 0.001f)
                             + " ms - thread=" + waiter.mThread
                             + ", priority=" + waiter.mPriority
+                            + (waiter.mLongScan ? ", longScan, bypassed=" + waiter.mBypassCount
+                                    : "")
                             + ", sql='" + waiter.mSql + "'");
                 }
             } else {
@@ -1191,6 +1407,8 @@ public final class SQLiteConnectionPool implements Closeable {
         public boolean mWantPrimaryConnection;
         public String mSql;
         public int mConnectionFlags;
+        public boolean mLongScan;
+        public int mBypassCount;
         public SQLiteConnection mAssignedConnection;
         public RuntimeException mException;
         public int mNonce;
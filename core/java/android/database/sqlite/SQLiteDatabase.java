@@ -27,6 +27,7 @@ import android.database.DatabaseErrorHandler;
 import android.database.DatabaseUtils;
 import android.database.DefaultDatabaseErrorHandler;
 import android.database.SQLException;
+import android.database.sqlite.SQLiteDebug.ConnectionPoolStats;
 import android.database.sqlite.SQLiteDebug.DbStats;
 import android.os.CancellationSignal;
 import android.os.Looper;
@@ -259,6 +260,15 @@ public final class SQLiteDatabase extends SQLiteClosable {
      */
     public static final int DISABLE_COMPATIBILITY_WAL = 0x40000000;
 
+    /**
+     * Open flag: Flag for {@link #openDatabase} to let the connection pool of a database that
+     * uses write-ahead logging open more reader connections while readers have to wait for
+     * one, and serve short reads ahead of long scans.
+     *
+     * @hide
+     */
+    public static final int ENABLE_ADAPTIVE_CONNECTION_POOL = 0x08000000;
+
     /**
      * Absolute max value that can be set by {@link #setMaxSqlCacheSize(int)}.
      *
@@ -2155,6 +2165,21 @@ public final class SQLiteDatabase extends SQLiteClosable {
         }
     }
 
+    /**
+     * Collect connection pool statistics about all open databases in the current process.
+     */
+    static ArrayList<ConnectionPoolStats> getConnectionPoolStats() {
+        ArrayList<ConnectionPoolStats> statsList = new ArrayList<ConnectionPoolStats>();
+        for (SQLiteDatabase db : getActiveDatabases()) {
+            synchronized (db.mLock) {
+                if (db.mConnectionPoolLocked != null) {
+                    statsList.add(db.mConnectionPoolLocked.getConnectionPoolStats());
+                }
+            }
+        }
+        return statsList;
+    }
+
     private static ArrayList<SQLiteDatabase> getActiveDatabases() {
         ArrayList<SQLiteDatabase> databases = new ArrayList<SQLiteDatabase>();
         synchronized (sActiveDatabases) {
@@ -146,6 +146,67 @@ public final class SQLiteDebug {
         }
     }
 
+    /**
+     * Contains statistics about a connection pool: how long sessions waited for a connection,
+     * and how well the prepared statement caches of its connections worked.
+     *
+     * @hide
+     */
+    public static class ConnectionPoolStats {
+        /**
+         * Upper bounds, in milliseconds, of the buckets of the wait time histograms. The last
+         * bucket of each histogram counts the waits of this long or longer.
+         */
+        public static final long[] WAIT_TIME_BUCKET_BOUNDS_MILLIS = { 1, 4, 16, 64, 256, 1024 };
+
+        /** name of the database */
+        public String dbName;
+
+        /** the most connections the pool currently allows */
+        public int maxConnections;
+
+        /** the number of times an adaptive pool grew, because readers had to wait */
+        public int growCount;
+
+        /** wait times of sessions that needed the primary connection */
+        public final long[] primaryWaitTimeHistogram =
+                new long[WAIT_TIME_BUCKET_BOUNDS_MILLIS.length + 1];
+
+        /** wait times of sessions that could use any connection */
+        public final long[] nonPrimaryWaitTimeHistogram =
+                new long[WAIT_TIME_BUCKET_BOUNDS_MILLIS.length + 1];
+
+        /** prepared statement cache stats, over every connection the pool has opened */
+        public long statementCacheHits;
+        public long statementCacheMisses;
+        public long statementCacheEvictions;
+
+        /** Returns the share of prepared statement lookups that were hits, from 0 to 1. */
+        public float getStatementCacheHitRate() {
+            final long lookups = statementCacheHits + statementCacheMisses;
+            return lookups != 0 ? (float) statementCacheHits / lookups : 0;
+        }
+
+        /** Returns the bucket of the wait time histograms that a wait of {@code millis} is in. */
+        public static int getWaitTimeBucket(long millis) {
+            int bucket = 0;
+            while (bucket < WAIT_TIME_BUCKET_BOUNDS_MILLIS.length
+                    && millis >= WAIT_TIME_BUCKET_BOUNDS_MILLIS[bucket]) {
+                bucket++;
+            }
+            return bucket;
+        }
+    }
+
+    /**
+     * Returns the connection pool stats of every database open in the current process.
+     *
+     * @hide
+     */
+    public static ArrayList<ConnectionPoolStats> getConnectionPoolStats() {
+        return SQLiteDatabase.getConnectionPoolStats();
+    }
+
     /**
      * return all pager and database stats for the current process.
      * @return {@link PagerStats}
@@ -77,6 +77,66 @@ public final class SQLiteQuery extends SQLiteProgram {
         }
     }
 
+    /**
+     * Starts reading the rows of the query in order, each one once, for
+     * {@link SQLiteStreamingCursor}.  The query may hold on to a connection between reads
+     * until {@link #endStreaming} is called.
+     *
+     * @return The streaming query.
+     */
+    SQLiteSession.Stream beginStreaming() {
+        acquireReference();
+        try {
+            return getSession().beginStreamingQuery(getSql(), getBindArgs(),
+                    getConnectionFlags());
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Reads the next rows of a streaming query into a buffer.
+     *
+     * @param stream The streaming query, from {@link #beginStreaming}.
+     * @param window The window to fill into.
+     * @param startPos The position of the first row that will be read.
+     * @return Number of rows that were added to the window; 0 if the query is done, or if
+     * the next row does not fit in the window.
+     *
+     * @throws SQLiteException if an error occurs.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    int stepIntoWindow(SQLiteSession.Stream stream, CursorWindow window, int startPos) {
+        acquireReference();
+        try {
+            window.acquireReference();
+            try {
+                return getSession().stepIntoCursorWindow(stream, window, startPos,
+                        mCancellationSignal);
+            } catch (SQLiteDatabaseCorruptException ex) {
+                onCorruption();
+                throw ex;
+            } catch (SQLiteException ex) {
+                Log.e(TAG, "exception: " + ex.getMessage() + "; query: " + getSql());
+                throw ex;
+            } finally {
+                window.releaseReference();
+            }
+        } finally {
+            releaseReference();
+        }
+    }
+
+    /**
+     * Ends a streaming query, letting go of its connection.  May be called on any thread,
+     * even once the database has been closed.
+     *
+     * @param stream The streaming query, from {@link #beginStreaming}.
+     */
+    void endStreaming(SQLiteSession.Stream stream) {
+        stream.end();
+    }
+
     @Override
     public String toString() {
         return "SQLiteQuery: " + getSql();
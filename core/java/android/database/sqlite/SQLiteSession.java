@@ -168,6 +168,7 @@ public final class SQLiteSession {
     private int mConnectionUseCount;
     private Transaction mTransactionPool;
     private Transaction mTransactionStack;
+    private Stream mStreamingQuery;
 
     /**
      * Transaction mode: Deferred.
@@ -841,6 +842,123 @@ public final class SQLiteSession {
         }
     }
 
+    /**
+     * Creates a query whose rows are read with {@link #stepIntoCursorWindow}, each one once.
+     * <p>
+     * Between reads, the query holds on to a connection of its own, outside of this session,
+     * so that it carries on from the row it stopped at.  It only does so while that is a
+     * non-primary connection and no other operation of this session needs a connection;
+     * otherwise it lets go of the connection after each read and the next read runs the
+     * query again, stepping past the rows already read.
+     * </p>
+     *
+     * @param sql The SQL statement to execute.
+     * @param bindArgs The arguments to bind, or null if none.
+     * @param connectionFlags The connection flags to use when a connection must be
+     * acquired for the query.  Refer to {@link SQLiteConnectionPool}.
+     * @return The query, never null.
+     */
+    public Stream beginStreamingQuery(String sql, Object[] bindArgs, int connectionFlags) {
+        if (sql == null) {
+            throw new IllegalArgumentException("sql must not be null.");
+        }
+        return new Stream(mConnectionPool, sql, bindArgs, connectionFlags);
+    }
+
+    /**
+     * Clears the specified {@link CursorWindow} and fills it with the next rows of a
+     * streaming query.  If the next row does not fit in the empty window, no rows are added
+     * and the query is not done.
+     *
+     * @param stream The query, from {@link #beginStreamingQuery}.
+     * @param window The cursor window to clear and fill.
+     * @param startPos The position in the results of the first row that will be read.
+     * @param cancellationSignal A signal to cancel the operation in progress, or null if none.
+     * @return The number of rows that were added to the window.
+     *
+     * @throws IllegalStateException if the query has ended.
+     * @throws SQLiteException if an error occurs, such as a syntax error
+     * or invalid number of bind arguments.
+     * @throws OperationCanceledException if the operation was canceled.
+     */
+    public int stepIntoCursorWindow(Stream stream, CursorWindow window, int startPos,
+            CancellationSignal cancellationSignal) {
+        if (stream == null) {
+            throw new IllegalArgumentException("stream must not be null.");
+        }
+        if (window == null) {
+            throw new IllegalArgumentException("window must not be null.");
+        }
+        if (cancellationSignal != null) {
+            cancellationSignal.throwIfCanceled();
+        }
+
+        synchronized (stream) {
+            if (stream.mEnded) {
+                throw new IllegalStateException("Cannot perform this operation because "
+                        + "the streaming query has ended.");
+            }
+            if (stream.mDone) {
+                window.clear();
+                window.setStartPosition(startPos);
+                return 0;
+            }
+
+            if (stream.mConnection == null && mConnection != null) {
+                // A transaction or an enclosing operation holds this session's connection;
+                // borrow it for this read only.
+                acquireConnection(stream.mSql, stream.mConnectionFlags,
+                        cancellationSignal); // might throw
+                try {
+                    return stream.stepLocked(mConnection, window, startPos,
+                            cancellationSignal); // might throw
+                } finally {
+                    try {
+                        stream.releaseLocked();
+                    } finally {
+                        releaseConnection(); // might throw
+                    }
+                }
+            }
+
+            if (stream.mConnection == null) {
+                // At most one query of this session holds a connection between reads.
+                suspendStreamingQuery();
+                stream.mConnection = mConnectionPool.acquireConnection(stream.mSql,
+                        stream.mConnectionFlags, cancellationSignal); // might throw
+            }
+            boolean hold = false;
+            try {
+                final int rows = stream.stepLocked(stream.mConnection, window, startPos,
+                        cancellationSignal); // might throw
+                // Holding the primary connection would block every other thread.
+                hold = !stream.mDone && !stream.mConnection.isPrimaryConnection();
+                return rows;
+            } finally {
+                if (hold) {
+                    mStreamingQuery = stream;
+                } else {
+                    if (mStreamingQuery == stream) {
+                        mStreamingQuery = null;
+                    }
+                    stream.releaseLocked(); // might throw
+                }
+            }
+        }
+    }
+
+    // Lets another operation have a connection ahead of the streaming query holding one
+    // between reads, if any.  The query runs again from where it stopped when next read.
+    private void suspendStreamingQuery() {
+        final Stream stream = mStreamingQuery;
+        if (stream != null) {
+            mStreamingQuery = null;
+            synchronized (stream) {
+                stream.releaseLocked(); // might throw
+            }
+        }
+    }
+
     /**
      * Performs special reinterpretation of certain SQL statements such as "BEGIN",
      * "COMMIT" and "ROLLBACK" to ensure that transaction state invariants are
@@ -891,6 +1009,7 @@ public final class SQLiteSession {
             CancellationSignal cancellationSignal) {
         if (mConnection == null) {
             assert mConnectionUseCount == 0;
+            suspendStreamingQuery(); // might throw
             mConnection = mConnectionPool.acquireConnection(sql, connectionFlags,
                     cancellationSignal); // might throw
             mConnectionFlags = connectionFlags;
@@ -953,6 +1072,91 @@ public final class SQLiteSession {
         mTransactionPool = transaction;
     }
 
+    /**
+     * A query started by {@link SQLiteSession#beginStreamingQuery}.  Its fields are guarded
+     * by the object itself, since the query may be ended on another thread.
+     */
+    public static final class Stream {
+        final SQLiteConnectionPool mPool;
+        final String mSql;
+        final Object[] mBindArgs;
+        final int mConnectionFlags;
+
+        // The connection held on to between reads, or null if none.
+        SQLiteConnection mConnection;
+
+        // The statement stepping through the rows, or null if it isn't running.
+        SQLiteConnection.StreamingQuery mQuery;
+
+        // The number of rows read into windows so far.
+        int mRowsRead;
+
+        // True once the last row has been read.
+        boolean mDone;
+
+        // True once the query has ended.
+        boolean mEnded;
+
+        Stream(SQLiteConnectionPool pool, String sql, Object[] bindArgs, int connectionFlags) {
+            mPool = pool;
+            mSql = sql;
+            mBindArgs = bindArgs;
+            mConnectionFlags = connectionFlags;
+        }
+
+        /** Returns true once the last row has been read. */
+        public synchronized boolean isDone() {
+            return mDone;
+        }
+
+        /** Returns true if the query is holding on to a connection between reads. */
+        public synchronized boolean isHoldingConnection() {
+            return mConnection != null;
+        }
+
+        int stepLocked(SQLiteConnection connection, CursorWindow window, int startPos,
+                CancellationSignal cancellationSignal) {
+            if (mQuery == null) {
+                // Run the query again, stepping past the rows already read.
+                mQuery = connection.beginStreamingQuery(mSql, mBindArgs); // might throw
+                mQuery.mSkipRows = mRowsRead;
+            }
+            final int rows = connection.stepIntoCursorWindow(mQuery, window, startPos,
+                    cancellationSignal); // might throw
+            mRowsRead += rows;
+            mDone = mQuery.isDone();
+            return rows;
+        }
+
+        void releaseLocked() {
+            final SQLiteConnection.StreamingQuery query = mQuery;
+            final SQLiteConnection connection = mConnection;
+            mQuery = null;
+            mConnection = null;
+            try {
+                if (query != null) {
+                    query.mConnection.endStreamingQuery(query);
+                }
+            } finally {
+                if (connection != null) {
+                    mPool.releaseConnection(connection); // might throw
+                }
+            }
+        }
+
+        /**
+         * Ends the query and lets go of the connection it was holding on to, if any.  Does
+         * nothing if it has already ended.  Unlike the operations of a session, this may be
+         * called on any thread.
+         */
+        public synchronized void end() {
+            if (!mEnded) {
+                mEnded = true;
+                releaseLocked();
+            }
+        }
+    }
+
     private static final class Transaction {
         public Transaction mParent;
         public int mMode;
@@ -0,0 +1,374 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
+import android.os.StrictMode;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A {@link Cursor} over the results of a query on a {@link SQLiteDatabase}, meant to be read
+ * forward once, such as to scan a large table.
+ * <p>
+ * {@link SQLiteCursor} runs its query again from the first row each time it fills its
+ * window, stepping past every row before the window, and uses a window of the default size
+ * of 2MB.  This cursor instead keeps the statement where it stopped and reads on from there
+ * into a small window that it reuses, so it reads each row once.  Moving back before the
+ * rows in the window runs the query again from the start.
+ * </p><p>
+ * Between moves, the cursor holds on to a database connection of its own, outside of the
+ * thread's session, until it has read the last row or is closed; it should be closed as
+ * soon as possible.  It lets go of the connection whenever another operation on the same
+ * thread needs one, and never holds on to the primary connection, which would block the
+ * other threads.  It then reads on by running the query again and stepping past the rows
+ * already read, as {@link SQLiteCursor} does.  It may be closed on any thread.
+ * </p><p>
+ * A row that does not fit in the window is read into a bigger one, up to the 2MB window of
+ * {@link SQLiteCursor}.
+ * </p><p>
+ * {@link #getCount} doesn't run the whole query: until the last row has been read, it returns
+ * the number of rows read so far plus one.
+ * </p>
+ *
+ * @hide
+ */
+public class SQLiteStreamingCursor extends AbstractWindowedCursor {
+    private static final String TAG = "SQLiteStreamingCursor";
+    private static final int NO_COUNT = -1;
+
+    /** The size of the window, unless it adapts. */
+    public static final int DEFAULT_WINDOW_SIZE = 64 * 1024;
+
+    /** The size that an adaptive window starts at. */
+    private static final int MIN_ADAPTIVE_WINDOW_SIZE = 8 * 1024;
+
+    /** The size that a window may grow to, that of a {@link SQLiteCursor} window. */
+    private static final int MAX_WINDOW_SIZE = 2 * 1024 * 1024;
+
+    /**
+     * Creates streaming cursors, for {@link SQLiteDatabase#rawQueryWithFactory} and the like.
+     */
+    public static final class Factory implements SQLiteDatabase.CursorFactory {
+        private final boolean mAdaptiveWindowSize;
+
+        /**
+         * @param adaptiveWindowSize If true, the windows of the cursors start small and grow
+         * each time they are filled, so that short results use little memory and long scans
+         * few fills.
+         */
+        public Factory(boolean adaptiveWindowSize) {
+            mAdaptiveWindowSize = adaptiveWindowSize;
+        }
+
+        @Override
+        public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery,
+                String editTable, SQLiteQuery query) {
+            return new SQLiteStreamingCursor(masterQuery, editTable, query, mAdaptiveWindowSize);
+        }
+    }
+
+    /** The name of the table to edit */
+    private final String mEditTable;
+
+    /** The names of the columns in the rows */
+    private final String[] mColumns;
+
+    /** The query object for the cursor */
+    private final SQLiteQuery mQuery;
+
+    /** The compiled query this cursor came from */
+    private final SQLiteCursorDriver mDriver;
+
+    /** True if the window starts small and grows each time it is filled */
+    private final boolean mAdaptiveWindowSize;
+
+    /** The size of the next window to create */
+    private int mWindowSize;
+
+    /** The size of the current window */
+    private int mCurrentWindowSize;
+
+    /** The query reading rows into the window, or null if none */
+    private volatile SQLiteSession.Stream mStream;
+
+    /** The number of rows read, up to the end of the window */
+    private int mRowsRead;
+
+    /** The number of rows in the cursor, once the last row has been read */
+    private int mCount = NO_COUNT;
+
+    /** A mapping of column names to column indices, to speed up lookups */
+    private Map<String, Integer> mColumnNameMap;
+
+    /** Used to find out where a cursor was allocated in case it never got released. */
+    private final Throwable mStackTrace;
+
+    /**
+     * Execute a query and provide access to its result set through a Cursor
+     * interface.
+     *
+     * @param editTable the name of the table used for this query
+     * @param query the {@link SQLiteQuery} object associated with this cursor object.
+     * @param adaptiveWindowSize true if the window should start small and grow each time
+     * it is filled.
+     */
+    public SQLiteStreamingCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query,
+            boolean adaptiveWindowSize) {
+        if (query == null) {
+            throw new IllegalArgumentException("query object cannot be null");
+        }
+        if (StrictMode.vmSqliteObjectLeaksEnabled()) {
+            mStackTrace = new DatabaseObjectNotClosedException().fillInStackTrace();
+        } else {
+            mStackTrace = null;
+        }
+        mDriver = driver;
+        mEditTable = editTable;
+        mQuery = query;
+        mAdaptiveWindowSize = adaptiveWindowSize;
+        mWindowSize = adaptiveWindowSize ? MIN_ADAPTIVE_WINDOW_SIZE : DEFAULT_WINDOW_SIZE;
+
+        mColumns = query.getColumnNames();
+    }
+
+    /**
+     * Get the database that this cursor is associated with.
+     * @return the SQLiteDatabase that this cursor is associated with.
+     */
+    public SQLiteDatabase getDatabase() {
+        return mQuery.getDatabase();
+    }
+
+    @Override
+    public boolean onMove(int oldPosition, int newPosition) {
+        if (mWindow != null && newPosition >= mWindow.getStartPosition()
+                && newPosition < mWindow.getStartPosition() + mWindow.getNumRows()) {
+            return true;
+        }
+        if (mWindow == null || newPosition < mWindow.getStartPosition() || !isStarted()) {
+            startQuery();
+        }
+        while (newPosition >= mRowsRead) {
+            if (!fillNextWindow()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public int getCount() {
+        if (mWindow == null || !isStarted()) {
+            startQuery();
+            fillNextWindow();
+        }
+        return mCount != NO_COUNT ? mCount : mRowsRead + 1;
+    }
+
+    /** Returns true if the query is reading rows, or has read the last one. */
+    private boolean isStarted() {
+        return mStream != null || mCount != NO_COUNT;
+    }
+
+    /** Runs the query again from the first row. */
+    private void startQuery() {
+        endQuery();
+        mRowsRead = 0;
+        mCount = NO_COUNT;
+        if (mWindow != null) {
+            mWindow.clear();
+        }
+        mStream = mQuery.beginStreaming();
+    }
+
+    /**
+     * Reads the rows after those in the window into it.  Returns false if there are no more.
+     */
+    private boolean fillNextWindow() {
+        final SQLiteSession.Stream stream = mStream;
+        if (stream == null) {
+            return false;
+        }
+        try {
+            if (mAdaptiveWindowSize && mWindow != null && mWindow.getNumRows() != 0) {
+                // The last window was filled and there are more rows.
+                mWindowSize = Math.min(mWindowSize * 2, MAX_WINDOW_SIZE);
+            }
+            if (mWindow == null || mCurrentWindowSize < mWindowSize) {
+                createWindow();
+            }
+            int rows = mQuery.stepIntoWindow(stream, mWindow, mRowsRead);
+            while (rows == 0 && !stream.isDone()) {
+                // The next row does not fit in the empty window.
+                if (mCurrentWindowSize >= MAX_WINDOW_SIZE) {
+                    throw new SQLiteBlobTooBigException("Row too big to fit into CursorWindow");
+                }
+                mWindowSize = Math.min(mCurrentWindowSize * 2, MAX_WINDOW_SIZE);
+                createWindow();
+                rows = mQuery.stepIntoWindow(stream, mWindow, mRowsRead);
+            }
+            mRowsRead += rows;
+            if (stream.isDone()) {
+                mCount = mRowsRead;
+                endQuery();
+            } else if (!stream.isHoldingConnection()) {
+                // Each fill runs the query again, so use as few windows as SQLiteCursor.
+                mWindowSize = MAX_WINDOW_SIZE;
+            }
+            return rows != 0;
+        } catch (RuntimeException ex) {
+            // Let go of the connection and the window if the query failed, as SQLiteCursor
+            // does, rather than rely on the client handling the exception.
+            endQuery();
+            closeWindow();
+            throw ex;
+        }
+    }
+
+    private void createWindow() {
+        super.setWindow(new CursorWindow(getDatabase().getPath(), mWindowSize));
+        mCurrentWindowSize = mWindowSize;
+    }
+
+    private void endQuery() {
+        final SQLiteSession.Stream stream = mStream;
+        if (stream != null) {
+            mStream = null;
+            mQuery.endStreaming(stream);
+        }
+    }
+
+    @Override
+    public int getColumnIndex(String columnName) {
+        // Create mColumnNameMap on demand
+        if (mColumnNameMap == null) {
+            String[] columns = mColumns;
+            int columnCount = columns.length;
+            HashMap<String, Integer> map = new HashMap<String, Integer>(columnCount, 1);
+            for (int i = 0; i < columnCount; i++) {
+                map.put(columns[i], i);
+            }
+            mColumnNameMap = map;
+        }
+
+        final int periodIndex = columnName.lastIndexOf('.');
+        if (periodIndex != -1) {
+            Exception e = new Exception();
+            Log.e(TAG, "requesting column name with table name -- " + columnName, e);
+            columnName = columnName.substring(periodIndex + 1);
+        }
+
+        Integer i = mColumnNameMap.get(columnName);
+        if (i != null) {
+            return i.intValue();
+        } else {
+            return -1;
+        }
+    }
+
+    @Override
+    public String[] getColumnNames() {
+        return mColumns;
+    }
+
+    @Override
+    public void deactivate() {
+        endQuery();
+        super.deactivate();
+        mDriver.cursorDeactivated();
+    }
+
+    @Override
+    public void close() {
+        try {
+            endQuery();
+        } finally {
+            super.close();
+            synchronized (this) {
+                mQuery.close();
+                mDriver.cursorClosed();
+            }
+        }
+    }
+
+    @Override
+    public boolean requery() {
+        if (isClosed()) {
+            return false;
+        }
+
+        synchronized (this) {
+            if (!mQuery.getDatabase().isOpen()) {
+                return false;
+            }
+
+            endQuery();
+            closeWindow();
+            mPos = -1;
+            mCount = NO_COUNT;
+
+            mDriver.cursorRequeried(this);
+        }
+
+        try {
+            return super.requery();
+        } catch (IllegalStateException e) {
+            // for backwards compatibility, just return false
+            Log.w(TAG, "requery() failed " + e.getMessage(), e);
+            return false;
+        }
+    }
+
+    @Override
+    public void setWindow(CursorWindow window) {
+        // Rows are only read forward, so a new window starts the query over.
+        endQuery();
+        super.setWindow(window);
+        mCurrentWindowSize = mWindowSize;
+        mCount = NO_COUNT;
+    }
+
+    /**
+     * Release the native resources, if they haven't been released yet.
+     */
+    @Override
+    protected void finalize() {
+        try {
+            // if the cursor hasn't been closed yet, close it first
+            if (mWindow != null || mStream != null) {
+                if (mStackTrace != null) {
+                    String sql = mQuery.getSql();
+                    int len = sql.length();
+                    StrictMode.onSqliteObjectLeaked(
+                        "Finalizing a Cursor that has not been deactivated or closed. " +
+                        "database = " + mQuery.getDatabase().getLabel() +
+                        ", table = " + mEditTable +
+                        ", query = " + sql.substring(0, (len > 1000) ? 1000 : len),
+                        mStackTrace);
+                }
+                close();
+            }
+        } finally {
+            super.finalize();
+        }
+    }
+}
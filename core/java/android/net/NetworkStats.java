@@ -283,21 +283,26 @@ public class NetworkStats implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel dest, int flags) {
+        // Only the first size rows are meaningful, so trim the spare capacity off the wire; the
+        // receiving side sees a full object with capacity == size.
         dest.writeLong(elapsedRealtime);
         dest.writeInt(size);
-        dest.writeInt(capacity);
-        dest.writeStringArray(iface);
-        dest.writeIntArray(uid);
-        dest.writeIntArray(set);
-        dest.writeIntArray(tag);
-        dest.writeIntArray(metered);
-        dest.writeIntArray(roaming);
-        dest.writeIntArray(defaultNetwork);
-        dest.writeLongArray(rxBytes);
-        dest.writeLongArray(rxPackets);
-        dest.writeLongArray(txBytes);
-        dest.writeLongArray(txPackets);
-        dest.writeLongArray(operations);
+        dest.writeInt(size);
+        dest.writeInt(size);
+        for (int i = 0; i < size; i++) {
+            dest.writeString(iface[i]);
+        }
+        dest.writeIntArray(uid, 0, size);
+        dest.writeIntArray(set, 0, size);
+        dest.writeIntArray(tag, 0, size);
+        dest.writeIntArray(metered, 0, size);
+        dest.writeIntArray(roaming, 0, size);
+        dest.writeIntArray(defaultNetwork, 0, size);
+        dest.writeLongArray(rxBytes, 0, size);
+        dest.writeLongArray(rxPackets, 0, size);
+        dest.writeLongArray(txBytes, 0, size);
+        dest.writeLongArray(txPackets, 0, size);
+        dest.writeLongArray(operations, 0, size);
     }
 
     @Override
@@ -21,7 +21,9 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.ExceptionUtils;
+import android.util.IntArray;
 import android.util.Log;
+import android.util.LongArray;
 import android.util.Size;
 import android.util.SizeF;
 import android.util.SparseArray;
@@ -1149,6 +1151,47 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Write the slice <code>[offset, offset + length)</code> of the given array in the same
+     * format as {@link #writeIntArray(int[])}, without first copying it into an array of its own.
+     *
+     * @hide
+     */
+    public final void writeIntArray(int[] val, int offset, int length) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        Arrays.checkOffsetAndCount(val.length, offset, length);
+        writeInt(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeInt(val[i]);
+        }
+    }
+
+    /**
+     * Read an array written with {@link #writeIntArray(int[])} into the given
+     * {@link IntArray}, replacing its contents and reusing its storage where possible.
+     *
+     * @return false if a null array was written, in which case <code>val</code> is left empty.
+     * @hide
+     */
+    public final boolean readIntArray(IntArray val) {
+        val.clear();
+        int N = readInt();
+        if (N < 0) {
+            return false;
+        }
+        if (N > (dataAvail() >> 2)) {
+            throw new BadParcelableException("Array length " + N + " exceeds available data");
+        }
+        val.resize(N);
+        for (int i=0; i<N; i++) {
+            val.set(i, readInt());
+        }
+        return true;
+    }
+
     public final void writeLongArray(long[] val) {
         if (val != null) {
             int N = val.length;
@@ -1186,6 +1229,49 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Write the slice <code>[offset, offset + length)</code> of the given array in the same
+     * format as {@link #writeLongArray(long[])}, without first copying it into an array of its
+     * own.
+     *
+     * @hide
+     */
+    public final void writeLongArray(long[] val, int offset, int length) {
+        if (val == null) {
+            writeInt(-1);
+            return;
+        }
+        Arrays.checkOffsetAndCount(val.length, offset, length);
+        writeInt(length);
+        for (int i = offset; i < offset + length; i++) {
+            writeLong(val[i]);
+        }
+    }
+
+    /**
+     * Read an array written with {@link #writeLongArray(long[])} into the given
+     * {@link LongArray}, replacing its contents and reusing its storage where possible.
+     *
+     * @return false if a null array was written, in which case <code>val</code> is left empty.
+     * @hide
+     */
+    public final boolean readLongArray(LongArray val) {
+        val.clear();
+        int N = readInt();
+        if (N < 0) {
+            return false;
+        }
+        // >>3 because stored longs are 64 bits
+        if (N > (dataAvail() >> 3)) {
+            throw new BadParcelableException("Array length " + N + " exceeds available data");
+        }
+        val.resize(N);
+        for (int i=0; i<N; i++) {
+            val.set(i, readLong());
+        }
+        return true;
+    }
+
     public final void writeFloatArray(float[] val) {
         if (val != null) {
             int N = val.length;
@@ -2424,14 +2510,19 @@ public final class Parcel {
         int M = list.size();
         int N = readInt();
         int i = 0;
+        // Every element takes at least 4 bytes, which bounds how much we presize for.
+        if (N > M && N <= (dataAvail() >> 2) && list instanceof ArrayList) {
+            ((ArrayList<?>) list).ensureCapacity(N);
+        }
         for (; i < M && i < N; i++) {
             list.set(i, readTypedObject(c));
         }
         for (; i<N; i++) {
             list.add(readTypedObject(c));
         }
-        for (; i<M; i++) {
-            list.remove(N);
+        if (i < M) {
+            // Drop the stale tail in one go rather than shifting it down once per element.
+            list.subList(N, M).clear();
         }
     }
 
@@ -2493,14 +2584,19 @@ public final class Parcel {
         int M = list.size();
         int N = readInt();
         int i = 0;
+        // Every element takes at least 4 bytes, which bounds how much we presize for.
+        if (N > M && N <= (dataAvail() >> 2) && list instanceof ArrayList) {
+            ((ArrayList<?>) list).ensureCapacity(N);
+        }
         for (; i < M && i < N; i++) {
             list.set(i, readString());
         }
         for (; i<N; i++) {
             list.add(readString());
         }
-        for (; i<M; i++) {
-            list.remove(N);
+        if (i < M) {
+            // Drop the stale tail in one go rather than shifting it down once per element.
+            list.subList(N, M).clear();
         }
     }
 
@@ -2520,8 +2616,9 @@ public final class Parcel {
         for (; i<N; i++) {
             list.add(readStrongBinder());
         }
-        for (; i<M; i++) {
-            list.remove(N);
+        if (i < M) {
+            // Drop the stale tail in one go rather than shifting it down once per element.
+            list.subList(N, M).clear();
         }
     }
 
@@ -2548,8 +2645,9 @@ public final class Parcel {
         for (; i<N; i++) {
             list.add((T) readParcelable(cl));
         }
-        for (; i<M; i++) {
-            list.remove(N);
+        if (i < M) {
+            // Drop the stale tail in one go rather than shifting it down once per element.
+            list.subList(N, M).clear();
         }
         return list;
     }
@@ -75,9 +75,11 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.provider.SettingsValidators.Validator;
 import android.speech.tts.TextToSpeech;
+import android.system.ErrnoException;
 import android.telephony.SubscriptionManager;
 import android.text.TextUtils;
 import android.util.AndroidException;
@@ -1626,6 +1628,18 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide - Specifies that the caller of the fast-path call()-based flow would like a
+     * snapshot of the whole settings table, to read values from locally until the
+     * generation changes. If this key is mapped to a <code>null</code> string extra in the
+     * request bundle, the response bundle may contain the same key mapped to a
+     * {@link android.os.SharedMemory} holding a {@link SettingsSnapshot}. The provider
+     * only shares snapshots with callers that see the same values in the whole table.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_SNAPSHOT_KEY = "_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1998,6 +2012,15 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Copy of the whole table, valid while its generation is the tracked one.
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
+        // Generation at which the provider last declined to share a snapshot, so we don't
+        // ask again until the table changes.
+        @GuardedBy("this")
+        private int mSnapshotDeclinedGeneration = -1;
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             mUri = uri;
@@ -2046,6 +2069,10 @@ public final class Settings {
                         if (mGenerationTracker != null) {
                             currentGeneration = mGenerationTracker.getCurrentGeneration();
                         }
+                        if (mSnapshot != null && mSnapshot.getGeneration() == currentGeneration
+                                && !mSnapshot.mustAskProvider(name)) {
+                            return mSnapshot.getValue(name);
+                        }
                     }
                 }
             } else {
@@ -2067,6 +2094,7 @@ public final class Settings {
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
                     }
                     boolean needsGenerationTracker = false;
+                    boolean needsSnapshot = false;
                     synchronized (NameValueCache.this) {
                         if (isSelf && mGenerationTracker == null) {
                             needsGenerationTracker = true;
@@ -2080,6 +2108,16 @@ public final class Settings {
                                         + userHandle);
                             }
                         }
+                        if (isSelf && (mSnapshot == null
+                                || mSnapshot.getGeneration() != currentGeneration)
+                                && (currentGeneration < 0
+                                        || currentGeneration != mSnapshotDeclinedGeneration)) {
+                            needsSnapshot = true;
+                            if (args == null) {
+                                args = new Bundle();
+                            }
+                            args.putString(CALL_METHOD_SNAPSHOT_KEY, null);
+                        }
                     }
                     Bundle b;
                     // If we're in system server and in a binder transaction we need to clear the
@@ -2131,11 +2169,15 @@ public final class Settings {
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
                                                     mValues.clear();
+                                                    closeSnapshotLocked();
                                                 }
                                             }
                                         });
                                     }
                                 }
+                                if (needsSnapshot) {
+                                    updateSnapshotLocked(b);
+                                }
                                 if (mGenerationTracker != null && currentGeneration ==
                                         mGenerationTracker.getCurrentGeneration()) {
                                     mValues.put(name, value);
@@ -2205,6 +2247,39 @@ public final class Settings {
                 }
                 mValues.clear();
                 mGenerationTracker = null;
+                closeSnapshotLocked();
+                mSnapshotDeclinedGeneration = -1;
+            }
+        }
+
+        @GuardedBy("this")
+        private void updateSnapshotLocked(Bundle b) {
+            final SharedMemory memory = b.getParcelable(CALL_METHOD_SNAPSHOT_KEY);
+            if (memory == null) {
+                mSnapshotDeclinedGeneration = mGenerationTracker != null
+                        ? mGenerationTracker.getCurrentGeneration() : -1;
+                return;
+            }
+            try {
+                final SettingsSnapshot snapshot = SettingsSnapshot.map(memory);
+                closeSnapshotLocked();
+                mSnapshot = snapshot;
+            } catch (ErrnoException | RuntimeException e) {
+                Log.w(TAG, "Can't map settings snapshot for " + mUri, e);
+            } finally {
+                // In the system server this is the provider's own copy, which it keeps
+                // handing out.
+                if (!Settings.isInSystemServer()) {
+                    memory.close();
+                }
+            }
+        }
+
+        @GuardedBy("this")
+        private void closeSnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.close();
+                mSnapshot = null;
             }
         }
     }
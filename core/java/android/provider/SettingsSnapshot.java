@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArraySet;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * A read-only copy of one settings table at one generation, in shared memory that the settings
+ * provider hands to client processes. Clients map it once and look settings up in place, by
+ * binary search over the names, until the generation of the table changes.
+ *
+ * <p>Layout, big endian: magic, generation, the number of names that have to be read from the
+ * provider followed by those names, the number of settings, the offset of each setting in
+ * name order, then the settings. Names and values are UTF-8, each preceded by its length in
+ * bytes; a null value has length -1.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final int MAGIC = 0x53534e31; // SSN1
+    private static final int NULL_LENGTH = -1;
+
+    private final ByteBuffer mBuffer;
+    private final int mGeneration;
+    private final ArraySet<String> mAskProviderNames;
+    private final int mCount;
+    private final int mOffsetsStart;
+
+    private SettingsSnapshot(ByteBuffer buffer) {
+        mBuffer = buffer;
+        if (buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException("Not a settings snapshot");
+        }
+        mGeneration = buffer.getInt(4);
+        int position = 8;
+        final int askCount = buffer.getInt(position);
+        position += 4;
+        mAskProviderNames = new ArraySet<>(askCount);
+        for (int i = 0; i < askCount; i++) {
+            final int length = buffer.getInt(position);
+            mAskProviderNames.add(readString(buffer, position + 4, length));
+            position += 4 + length;
+        }
+        mCount = buffer.getInt(position);
+        mOffsetsStart = position + 4;
+    }
+
+    /**
+     * Maps the snapshot in {@code memory}. The mapping stays valid until {@link #close}, even
+     * if {@code memory} is closed first.
+     */
+    public static @NonNull SettingsSnapshot map(@NonNull SharedMemory memory)
+            throws ErrnoException {
+        final ByteBuffer buffer = memory.mapReadOnly();
+        try {
+            return new SettingsSnapshot(buffer);
+        } catch (RuntimeException e) {
+            SharedMemory.unmap(buffer);
+            throw e;
+        }
+    }
+
+    /** Unmaps the snapshot. It can't be used afterwards. */
+    public void close() {
+        SharedMemory.unmap(mBuffer);
+    }
+
+    /** Returns the generation of the table this is a copy of. */
+    public int getGeneration() {
+        return mGeneration;
+    }
+
+    /**
+     * Returns whether {@code name} isn't the same for every caller, so has to be read from the
+     * provider.
+     */
+    public boolean mustAskProvider(@NonNull String name) {
+        return mAskProviderNames.contains(name);
+    }
+
+    /** Returns the value of {@code name}, or null if it isn't set. */
+    public @Nullable String getValue(@NonNull String name) {
+        final byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        int lo = 0;
+        int hi = mCount - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int offset = mBuffer.getInt(mOffsetsStart + mid * 4);
+            final int cmp = compareName(offset, key);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                final int valueStart = offset + 4 + mBuffer.getInt(offset);
+                final int length = mBuffer.getInt(valueStart);
+                return length == NULL_LENGTH ? null
+                        : readString(mBuffer, valueStart + 4, length);
+            }
+        }
+        return null;
+    }
+
+    /** Compares the name of the setting at {@code offset} with {@code key}, byte by byte. */
+    private int compareName(int offset, byte[] key) {
+        final int length = mBuffer.getInt(offset);
+        final int start = offset + 4;
+        final int n = Math.min(length, key.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = (mBuffer.get(start + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return length - key.length;
+    }
+
+    private static String readString(ByteBuffer buffer, int start, int length) {
+        final byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(start + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static int compareBytes(byte[] a, byte[] b) {
+        final int n = Math.min(a.length, b.length);
+        for (int i = 0; i < n; i++) {
+            final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+            if (cmp != 0) {
+                return cmp;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    /**
+     * Writes a snapshot of the settings in {@code names} and {@code values}, at {@code
+     * generation}, to new shared memory that can only be mapped read-only.
+     *
+     * @param askProviderNames settings that clients have to read from the provider.
+     */
+    public static @NonNull SharedMemory write(int generation, @NonNull List<String> names,
+            @NonNull List<String> values, @NonNull Collection<String> askProviderNames)
+            throws ErrnoException {
+        final int count = names.size();
+        final byte[][] nameBytes = new byte[count][];
+        final byte[][] valueBytes = new byte[count][];
+        final Integer[] order = new Integer[count];
+        int size = 4 * 4;
+        for (String name : askProviderNames) {
+            size += 4 + name.getBytes(StandardCharsets.UTF_8).length;
+        }
+        for (int i = 0; i < count; i++) {
+            nameBytes[i] = names.get(i).getBytes(StandardCharsets.UTF_8);
+            final String value = values.get(i);
+            valueBytes[i] = value != null ? value.getBytes(StandardCharsets.UTF_8) : null;
+            order[i] = i;
+            size += 4 + 4 + nameBytes[i].length + 4
+                    + (valueBytes[i] != null ? valueBytes[i].length : 0);
+        }
+        Arrays.sort(order, (a, b) -> compareBytes(nameBytes[a], nameBytes[b]));
+
+        final SharedMemory memory = SharedMemory.create("settings_snapshot", size);
+        final ByteBuffer buffer = memory.mapReadWrite();
+        try {
+            buffer.putInt(MAGIC);
+            buffer.putInt(generation);
+            buffer.putInt(askProviderNames.size());
+            for (String name : askProviderNames) {
+                final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                buffer.putInt(bytes.length);
+                buffer.put(bytes);
+            }
+            buffer.putInt(count);
+            int offset = buffer.position() + count * 4;
+            for (int i = 0; i < count; i++) {
+                final int index = order[i];
+                buffer.putInt(offset);
+                offset += 4 + nameBytes[index].length + 4
+                        + (valueBytes[index] != null ? valueBytes[index].length : 0);
+            }
+            for (int i = 0; i < count; i++) {
+                final int index = order[i];
+                buffer.putInt(nameBytes[index].length);
+                buffer.put(nameBytes[index]);
+                if (valueBytes[index] != null) {
+                    buffer.putInt(valueBytes[index].length);
+                    buffer.put(valueBytes[index]);
+                } else {
+                    buffer.putInt(NULL_LENGTH);
+                }
+            }
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+        memory.setProtect(OsConstants.PROT_READ);
+        return memory;
+    }
+}
@@ -16,6 +16,8 @@
 
 package android.util;
 
+import java.util.Arrays;
+
 class ContainerHelpers {
 
     // This is Arrays.binarySearch(), but doesn't do any argument validation.
@@ -56,4 +58,41 @@ class ContainerHelpers {
         }
         return ~lo;  // value not present
     }
+
+    // Open-addressing helpers shared by the Sparse*HashArray family. Tables are always a power
+    // of two in length and kept at most half full, so linear probing stays short.
+
+    static int hashSlot(int key, int mask) {
+        final int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    static int hashSlot(long key, int mask) {
+        return hashSlot((int) (key ^ (key >>> 32)), mask);
+    }
+
+    static int hashTableSizeFor(int capacity) {
+        if (capacity <= 0) {
+            return 0;
+        }
+        return Math.max(8, Integer.highestOneBit(capacity * 2 - 1) << 1);
+    }
+
+    static boolean hashTableNeedsGrowth(int size, int tableLength) {
+        return size * 2 > tableLength;
+    }
+
+    // Returns the indices of the first size keys, ordered by ascending key.
+    static int[] sortedIndices(int[] keys, int size) {
+        final long[] packed = new long[size];
+        for (int i = 0; i < size; i++) {
+            packed[i] = ((long) keys[i] << 32) | i;
+        }
+        Arrays.sort(packed);
+        final int[] indices = new int[size];
+        for (int i = 0; i < size; i++) {
+            indices[i] = (int) packed[i];
+        }
+        return indices;
+    }
 }
@@ -0,0 +1,376 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.GrowingArrayUtils;
+
+import libcore.util.EmptyArray;
+
+import java.util.Arrays;
+
+/**
+ * A hash-based replacement for {@link SparseArray} that maps integers to Objects.
+ *
+ * <p>Mappings are stored in packed key and value arrays, with an open-addressing table
+ * (linear probing) pointing into them.  Lookups, insertions and removals are O(1) on average,
+ * so unlike {@link SparseArray} this class remains fast with many thousands of entries.</p>
+ *
+ * <p>It is possible to iterate over the items in this container using
+ * {@link #keyAt(int)} and {@link #valueAt(int)}, but unlike {@link SparseArray} the
+ * indices are <em>not</em> ordered by key, and removing a mapping may move the last mapping
+ * into the removed index.  Callers that need ascending key order should iterate over
+ * {@link #orderedIndices()} instead.</p>
+ *
+ * @hide
+ */
+public class SparseHashArray<E> implements Cloneable {
+    private int[] mKeys;
+    private Object[] mValues;
+    private int mSize;
+
+    /** Hash table of {@code index + 1} into mKeys/mValues; {@code 0} marks an empty slot. */
+    private int[] mTable;
+    /** Cached result of {@link #orderedIndices()}, or null if it needs to be recomputed. */
+    private int[] mOrderedIndices;
+
+    /**
+     * Creates a new SparseHashArray containing no mappings.
+     */
+    public SparseHashArray() {
+        this(10);
+    }
+
+    /**
+     * Creates a new SparseHashArray containing no mappings that will not
+     * require any additional memory allocation to store the specified
+     * number of mappings.  If you supply an initial capacity of 0, the
+     * array will be initialized with a light-weight representation
+     * not requiring any additional array allocations.
+     */
+    public SparseHashArray(int initialCapacity) {
+        if (initialCapacity == 0) {
+            mKeys = EmptyArray.INT;
+            mValues = EmptyArray.OBJECT;
+            mTable = EmptyArray.INT;
+        } else {
+            mValues = ArrayUtils.newUnpaddedObjectArray(initialCapacity);
+            mKeys = new int[mValues.length];
+            mTable = new int[ContainerHelpers.hashTableSizeFor(initialCapacity)];
+        }
+        mSize = 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public SparseHashArray<E> clone() {
+        SparseHashArray<E> clone = null;
+        try {
+            clone = (SparseHashArray<E>) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            clone.mTable = mTable.clone();
+            clone.mOrderedIndices = null;
+        } catch (CloneNotSupportedException cnse) {
+            /* ignore */
+        }
+        return clone;
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or <code>null</code>
+     * if no such mapping has been made.
+     */
+    public E get(int key) {
+        return get(key, null);
+    }
+
+    /**
+     * Gets the Object mapped from the specified key, or the specified Object
+     * if no such mapping has been made.
+     */
+    @SuppressWarnings("unchecked")
+    public E get(int key, E valueIfKeyNotFound) {
+        final int slot = findSlot(key);
+        if (slot < 0) {
+            return valueIfKeyNotFound;
+        } else {
+            return (E) mValues[mTable[slot] - 1];
+        }
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any.
+     */
+    public void delete(int key) {
+        final int slot = findSlot(key);
+        if (slot >= 0) {
+            removeSlot(slot);
+        }
+    }
+
+    /**
+     * Removes the mapping from the specified key, if there was any, returning the old value.
+     */
+    @SuppressWarnings("unchecked")
+    public E removeReturnOld(int key) {
+        final int slot = findSlot(key);
+        if (slot >= 0) {
+            final E old = (E) mValues[mTable[slot] - 1];
+            removeSlot(slot);
+            return old;
+        }
+        return null;
+    }
+
+    /**
+     * Alias for {@link #delete(int)}.
+     */
+    public void remove(int key) {
+        delete(key);
+    }
+
+    /**
+     * Removes the mapping at the given index.  The last mapping is moved into
+     * <code>index</code>, so callers removing while iterating should iterate downwards.
+     */
+    public void removeAt(int index) {
+        removeSlot(findSlot(mKeys[index]));
+    }
+
+    /**
+     * Adds a mapping from the specified key to the specified value,
+     * replacing the previous mapping from the specified key if there
+     * was one.
+     */
+    public void put(int key, E value) {
+        int slot = findSlot(key);
+        if (slot >= 0) {
+            mValues[mTable[slot] - 1] = value;
+            return;
+        }
+
+        if (ContainerHelpers.hashTableNeedsGrowth(mSize + 1, mTable.length)) {
+            rehash(ContainerHelpers.hashTableSizeFor(mSize + 1));
+            slot = findSlot(key);
+        }
+        mKeys = GrowingArrayUtils.append(mKeys, mSize, key);
+        mValues = GrowingArrayUtils.append(mValues, mSize, value);
+        mSize++;
+        mTable[~slot] = mSize;
+        mOrderedIndices = null;
+    }
+
+    /**
+     * Returns the number of key-value mappings that this SparseHashArray
+     * currently stores.
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the key from the <code>index</code>th key-value mapping that this
+     * SparseHashArray stores.  Indices are not ordered by key.
+     */
+    public int keyAt(int index) {
+        return mKeys[index];
+    }
+
+    /**
+     * Given an index in the range <code>0...size()-1</code>, returns
+     * the value from the <code>index</code>th key-value mapping that this
+     * SparseHashArray stores.  Indices are not ordered by key.
+     */
+    @SuppressWarnings("unchecked")
+    public E valueAt(int index) {
+        return (E) mValues[index];
+    }
+
+    /**
+     * Directly set the value at a particular index.
+     */
+    public void setValueAt(int index, E value) {
+        mValues[index] = value;
+    }
+
+    /**
+     * Returns the index for which {@link #keyAt} would return the
+     * specified key, or a negative number if the specified
+     * key is not mapped.
+     */
+    public int indexOfKey(int key) {
+        final int slot = findSlot(key);
+        return slot < 0 ? -1 : mTable[slot] - 1;
+    }
+
+    /**
+     * Returns an index for which {@link #valueAt} would return the
+     * specified key, or a negative number if no keys map to the
+     * specified value.
+     * <p>Beware that this is a linear search, unlike lookups by key,
+     * and that multiple keys can map to the same value and this will
+     * find only one of them.
+     * <p>Note also that unlike most collections' {@code indexOf} methods,
+     * this method compares values using {@code ==} rather than {@code equals}.
+     */
+    public int indexOfValue(E value) {
+        for (int i = 0; i < mSize; i++)
+            if (mValues[i] == value)
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Removes all key-value mappings from this SparseHashArray.
+     */
+    public void clear() {
+        Arrays.fill(mValues, 0, mSize, null);
+        Arrays.fill(mTable, 0);
+        mSize = 0;
+        mOrderedIndices = null;
+    }
+
+    /**
+     * Equivalent to {@link #put(int, Object)}; provided for source compatibility
+     * with {@link SparseArray}.
+     */
+    public void append(int key, E value) {
+        put(key, value);
+    }
+
+    /**
+     * Returns the indices of all mappings ordered by ascending key, for use with
+     * {@link #keyAt(int)} and {@link #valueAt(int)}.  The result is cached until the next
+     * insertion or removal, and must not be modified by the caller.
+     */
+    public int[] orderedIndices() {
+        if (mOrderedIndices == null) {
+            mOrderedIndices = ContainerHelpers.sortedIndices(mKeys, mSize);
+        }
+        return mOrderedIndices;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * <p>This implementation composes a string by iterating over its mappings in
+     * ascending key order. If this map contains itself as a value, the string
+     * "(this Map)" will appear in its place.
+     */
+    @Override
+    public String toString() {
+        if (size() <= 0) {
+            return "{}";
+        }
+
+        final int[] indices = orderedIndices();
+        StringBuilder buffer = new StringBuilder(mSize * 28);
+        buffer.append('{');
+        for (int i=0; i<mSize; i++) {
+            if (i > 0) {
+                buffer.append(", ");
+            }
+            int key = keyAt(indices[i]);
+            buffer.append(key);
+            buffer.append('=');
+            Object value = valueAt(indices[i]);
+            if (value != this) {
+                buffer.append(value);
+            } else {
+                buffer.append("(this Map)");
+            }
+        }
+        buffer.append('}');
+        return buffer.toString();
+    }
+
+    /**
+     * Returns the table slot holding the specified key, or the bitwise complement
+     * of the empty slot where it would be inserted.
+     */
+    private int findSlot(int key) {
+        final int[] table = mTable;
+        if (table.length == 0) {
+            return ~0;
+        }
+        final int mask = table.length - 1;
+        int slot = ContainerHelpers.hashSlot(key, mask);
+        while (true) {
+            final int entry = table[slot];
+            if (entry == 0) {
+                return ~slot;
+            }
+            if (mKeys[entry - 1] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void removeSlot(int slot) {
+        final int index = mTable[slot] - 1;
+        clearSlot(slot);
+
+        // Keep the packed arrays dense by moving the last mapping into the hole.
+        final int last = mSize - 1;
+        if (index != last) {
+            final int lastSlot = findSlot(mKeys[last]);
+            mKeys[index] = mKeys[last];
+            mValues[index] = mValues[last];
+            mTable[lastSlot] = index + 1;
+        }
+        mValues[last] = null;
+        mSize = last;
+        mOrderedIndices = null;
+    }
+
+    /**
+     * Empties the given slot, shifting back any later entries in the same probe
+     * sequence so that lookups never need tombstones.
+     */
+    private void clearSlot(int slot) {
+        final int[] table = mTable;
+        final int mask = table.length - 1;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while (table[next] != 0) {
+            final int home = ContainerHelpers.hashSlot(mKeys[table[next] - 1], mask);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = 0;
+    }
+
+    private void rehash(int tableLength) {
+        final int[] table = new int[tableLength];
+        final int mask = tableLength - 1;
+        for (int i = 0; i < mSize; i++) {
+            int slot = ContainerHelpers.hashSlot(mKeys[i], mask);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+        mTable = table;
+    }
+}
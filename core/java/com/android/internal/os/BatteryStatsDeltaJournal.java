@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.os.FileUtils;
+import android.util.AtomicFile;
+import android.util.IntArray;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseLongHashArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.JournaledFile;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.CRC32;
+
+/**
+ * Persists {@link BatteryStatsImpl} summaries as a full base file plus an append-only journal
+ * of the sections that changed since the base was written, so that routine checkpoints only
+ * write what changed.
+ *
+ * <p>A summary is split into sections: the history (keyed {@link #KEY_HISTORY}), the global
+ * stats between the history and the uid table (keyed {@link #KEY_HEADER}) and one section per
+ * uid, keyed by the uid. The journal starts with the section table of the base file it applies
+ * to, followed by records that each replace or remove a single section. Once the journal grows
+ * past a fraction of the summary size, the next write compacts everything back into the base
+ * file and starts a fresh journal.
+ *
+ * <p>The history changes at nearly every checkpoint and is by far the largest section, so it is
+ * not journaled: it is only written when compacting, which a changed history forces after
+ * {@link #MAX_WRITES_WITHOUT_HISTORY} writes.
+ *
+ * <p>Callers must provide their own locking.
+ */
+public class BatteryStatsDeltaJournal {
+    private static final String TAG = "BatteryStatsDeltaJournal";
+
+    private static final int MAGIC = 0xBA77DE17;
+    private static final int VERSION = 2;
+
+    /** Key of the section holding the history. Uids are never negative. */
+    @VisibleForTesting
+    public static final int KEY_HISTORY = -2;
+
+    /** Key of the section between the history and the uid table. */
+    @VisibleForTesting
+    public static final int KEY_HEADER = -1;
+
+    private static final int LENGTH_REMOVED = -1;
+
+    /** Compact once the journal is larger than this percentage of the summary. */
+    private static final int COMPACT_JOURNAL_PERCENT = 50;
+
+    /** Number of journal writes after which a changed history is written by compacting. */
+    @VisibleForTesting
+    public static final int MAX_WRITES_WITHOUT_HISTORY = 16;
+
+    private final JournaledFile mBaseFile;
+    private final AtomicFile mJournalFile;
+
+    /**
+     * CRC32 of every section as currently persisted in base + journal, or null if the next
+     * write has to compact because the on-disk state is unknown.
+     */
+    private SparseLongHashArray mPersistedCrcs;
+    private long mJournalSize;
+    private int mWritesSinceCompaction;
+
+    private long mLastBytesWritten;
+    private boolean mLastWriteCompacted;
+
+    public BatteryStatsDeltaJournal(JournaledFile baseFile, File journalFile) {
+        mBaseFile = baseFile;
+        mJournalFile = new AtomicFile(journalFile);
+    }
+
+    /**
+     * Persists a summary.
+     *
+     * @param summary the marshalled summary parcel.
+     * @param sections offsets into {@code summary}: the end of the history section, the end of
+     *         the header section (where the uid count is written), the start of every uid
+     *         section, then the end of the last uid section.
+     */
+    public void write(byte[] summary, IntArray sections) throws IOException {
+        final int numUids = sections.size() - 3;
+        final int historyEnd = sections.get(0);
+        final int headerEnd = sections.get(1);
+        final SparseLongHashArray crcs = new SparseLongHashArray(numUids + 2);
+        crcs.put(KEY_HISTORY, crc(summary, 0, historyEnd));
+        crcs.put(KEY_HEADER, crc(summary, historyEnd, headerEnd - historyEnd));
+        for (int i = 0; i < numUids; i++) {
+            final int start = sections.get(i + 2);
+            crcs.put(readInt(summary, start), crc(summary, start, sections.get(i + 3) - start));
+        }
+
+        if (mPersistedCrcs == null
+                || mJournalSize * 100 > (long) summary.length * COMPACT_JOURNAL_PERCENT
+                || (mWritesSinceCompaction >= MAX_WRITES_WITHOUT_HISTORY
+                        && crcs.get(KEY_HISTORY) != mPersistedCrcs.get(KEY_HISTORY))) {
+            compact(summary, sections, crcs);
+            return;
+        }
+
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(records);
+        if (crcs.get(KEY_HEADER) != mPersistedCrcs.get(KEY_HEADER)) {
+            writeRecord(out, KEY_HEADER, summary, historyEnd, headerEnd - historyEnd);
+        }
+        for (int i = 0; i < numUids; i++) {
+            final int start = sections.get(i + 2);
+            final int uid = readInt(summary, start);
+            final int index = mPersistedCrcs.indexOfKey(uid);
+            if (index < 0 || mPersistedCrcs.valueAt(index) != crcs.get(uid)) {
+                writeRecord(out, uid, summary, start, sections.get(i + 3) - start);
+            }
+        }
+        for (int i = mPersistedCrcs.size() - 1; i >= 0; i--) {
+            final int key = mPersistedCrcs.keyAt(i);
+            if (crcs.indexOfKey(key) < 0) {
+                writeRecord(out, key, null, 0, LENGTH_REMOVED);
+            }
+        }
+        out.flush();
+        // The history on disk stays the one last compacted.
+        crcs.put(KEY_HISTORY, mPersistedCrcs.get(KEY_HISTORY));
+
+        mLastWriteCompacted = false;
+        mWritesSinceCompaction++;
+        mLastBytesWritten = records.size();
+        if (records.size() == 0) {
+            return;
+        }
+
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(mJournalFile.getBaseFile(), true);
+            records.writeTo(stream);
+            stream.flush();
+            FileUtils.sync(stream);
+        } catch (IOException e) {
+            // We don't know how much of the record made it out, so start over next time.
+            mPersistedCrcs = null;
+            throw e;
+        } finally {
+            if (stream != null) {
+                stream.close();
+            }
+        }
+        mPersistedCrcs = crcs;
+        mJournalSize += records.size();
+    }
+
+    /**
+     * Returns the latest persisted summary, reconstructed from the base file and any journal
+     * records that apply to it, or null if nothing has been written yet.
+     */
+    public byte[] read() throws IOException {
+        mPersistedCrcs = null;
+        mJournalSize = 0;
+        mWritesSinceCompaction = 0;
+
+        final File file = mBaseFile.chooseForRead();
+        if (!file.exists()) {
+            return null;
+        }
+        final byte[] base;
+        try (FileInputStream stream = new FileInputStream(file)) {
+            base = BatteryStatsHelper.readFully(stream);
+        }
+
+        final byte[] journal;
+        try {
+            journal = mJournalFile.readFully();
+        } catch (FileNotFoundException e) {
+            return base;
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(journal));
+        final SparseArray<byte[]> sections = new SparseArray<>();
+        int validLength;
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readInt() != base.length
+                    || in.readLong() != crc(base, 0, base.length)) {
+                // The journal belongs to an older base; the base is the newest state we have.
+                return base;
+            }
+            final int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                final int key = in.readInt();
+                final int offset = in.readInt();
+                final int length = in.readInt();
+                if (offset < 0 || length < 0 || offset + length > base.length) {
+                    Slog.w(TAG, "Bad section table, ignoring journal");
+                    return base;
+                }
+                final byte[] section = new byte[length];
+                System.arraycopy(base, offset, section, 0, length);
+                sections.put(key, section);
+            }
+            validLength = journal.length - in.available();
+        } catch (EOFException e) {
+            Slog.w(TAG, "Truncated journal header, ignoring journal");
+            return base;
+        }
+
+        boolean complete = true;
+        final CRC32 crc = new CRC32();
+        final ByteBuffer recordHeader = ByteBuffer.allocate(8);
+        while (in.available() > 0) {
+            try {
+                final int key = in.readInt();
+                final int length = in.readInt();
+                if (length != LENGTH_REMOVED && (length < 0 || length > in.available())) {
+                    complete = false;
+                    break;
+                }
+                final byte[] data = length == LENGTH_REMOVED ? null : new byte[length];
+                if (data != null) {
+                    in.readFully(data);
+                }
+                crc.reset();
+                recordHeader.clear();
+                crc.update(recordHeader.putInt(key).putInt(length).array());
+                if (data != null) {
+                    crc.update(data);
+                }
+                if (in.readInt() != (int) crc.getValue()) {
+                    complete = false;
+                    break;
+                }
+                if (data == null) {
+                    sections.remove(key);
+                } else {
+                    sections.put(key, data);
+                }
+                validLength = journal.length - in.available();
+            } catch (EOFException e) {
+                complete = false;
+                break;
+            }
+        }
+        if (!complete) {
+            Slog.w(TAG, "Dropping torn journal tail at " + validLength + " of " + journal.length);
+        }
+
+        final byte[] history = sections.get(KEY_HISTORY);
+        final byte[] header = sections.get(KEY_HEADER);
+        if (history == null || header == null) {
+            Slog.w(TAG, "Journal has no history or header section, ignoring journal");
+            return base;
+        }
+        final int numUids = sections.size() - 2;
+        final ByteArrayOutputStream summary = new ByteArrayOutputStream(base.length);
+        summary.write(history);
+        summary.write(header);
+        summary.write(ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(numUids)
+                .array());
+        final SparseLongHashArray crcs = new SparseLongHashArray(sections.size());
+        crcs.put(KEY_HISTORY, crc(history, 0, history.length));
+        crcs.put(KEY_HEADER, crc(header, 0, header.length));
+        for (int i = 0; i < sections.size(); i++) {
+            final int key = sections.keyAt(i);
+            if (key != KEY_HISTORY && key != KEY_HEADER) {
+                final byte[] section = sections.valueAt(i);
+                summary.write(section);
+                crcs.put(key, crc(section, 0, section.length));
+            }
+        }
+
+        // Only keep appending to a journal whose tail we could read back in full; otherwise
+        // the next write compacts and drops the torn records.
+        if (complete) {
+            mPersistedCrcs = crcs;
+            mJournalSize = validLength;
+        }
+        return summary.toByteArray();
+    }
+
+    /** Returns the number of bytes that the last {@link #write} put on disk. */
+    public long getLastBytesWritten() {
+        return mLastBytesWritten;
+    }
+
+    /** Returns whether the last {@link #write} rewrote the base file. */
+    public boolean wasLastWriteCompacted() {
+        return mLastWriteCompacted;
+    }
+
+    private void compact(byte[] summary, IntArray sections, SparseLongHashArray crcs)
+            throws IOException {
+        mPersistedCrcs = null;
+
+        FileOutputStream baseStream = null;
+        try {
+            baseStream = new FileOutputStream(mBaseFile.chooseForWrite());
+            baseStream.write(summary);
+            baseStream.flush();
+            FileUtils.sync(baseStream);
+            baseStream.close();
+            baseStream = null;
+            mBaseFile.commit();
+        } catch (IOException e) {
+            IoUtils.closeQuietly(baseStream);
+            mBaseFile.rollback();
+            throw e;
+        }
+
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(summary.length);
+        out.writeLong(crc(summary, 0, summary.length));
+        final int numUids = sections.size() - 3;
+        out.writeInt(numUids + 2);
+        out.writeInt(KEY_HISTORY);
+        out.writeInt(0);
+        out.writeInt(sections.get(0));
+        out.writeInt(KEY_HEADER);
+        out.writeInt(sections.get(0));
+        out.writeInt(sections.get(1) - sections.get(0));
+        for (int i = 0; i < numUids; i++) {
+            final int start = sections.get(i + 2);
+            out.writeInt(readInt(summary, start));
+            out.writeInt(start);
+            out.writeInt(sections.get(i + 3) - start);
+        }
+        out.flush();
+
+        FileOutputStream stream = null;
+        try {
+            stream = mJournalFile.startWrite();
+            bytes.writeTo(stream);
+            mJournalFile.finishWrite(stream);
+        } catch (IOException e) {
+            // The base is already committed, and a stale journal is ignored on read since it
+            // won't match it; just make sure nothing gets appended to the stale one.
+            mJournalFile.failWrite(stream);
+            throw e;
+        }
+
+        mPersistedCrcs = crcs;
+        mJournalSize = bytes.size();
+        mLastBytesWritten = summary.length + bytes.size();
+        mLastWriteCompacted = true;
+        mWritesSinceCompaction = 0;
+    }
+
+    private static void writeRecord(DataOutputStream out, int key, byte[] data, int offset,
+            int length) throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(8).putInt(key).putInt(length).array());
+        out.writeInt(key);
+        out.writeInt(length);
+        if (length != LENGTH_REMOVED) {
+            crc.update(data, offset, length);
+            out.write(data, offset, length);
+        }
+        out.writeInt((int) crc.getValue());
+    }
+
+    private static long crc(byte[] data, int offset, int length) {
+        final CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        return crc.getValue();
+    }
+
+    /** Reads an int the way {@link android.os.Parcel} marshalled it. */
+    private static int readInt(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).order(ByteOrder.nativeOrder()).getInt();
+    }
+}
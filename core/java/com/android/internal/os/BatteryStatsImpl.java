@@ -190,6 +190,7 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    private final BatteryStatsDeltaJournal mDeltaJournal;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -1051,6 +1052,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mDeltaJournal = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -10122,8 +10124,11 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mDeltaJournal = new BatteryStatsDeltaJournal(mFile,
+                    new File(systemDir, "batterystats-delta.bin"));
         } else {
             mFile = null;
+            mDeltaJournal = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -10225,6 +10230,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mDeltaJournal = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -13465,6 +13471,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     Parcel mPendingWrite = null;
+    IntArray mPendingWriteSections = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
     public void writeAsyncLocked() {
@@ -13486,13 +13493,15 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        IntArray sections = new IntArray();
+        writeSummaryToParcel(out, true, sections);
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
             mPendingWrite.recycle();
         }
         mPendingWrite = out;
+        mPendingWriteSections = sections;
 
         if (sync) {
             commitPendingDataToDisk();
@@ -13507,9 +13516,12 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void commitPendingDataToDisk() {
         final Parcel next;
+        final IntArray sections;
         synchronized (this) {
             next = mPendingWrite;
+            sections = mPendingWriteSections;
             mPendingWrite = null;
+            mPendingWriteSections = null;
             if (next == null) {
                 return;
             }
@@ -13518,17 +13530,18 @@ public class BatteryStatsImpl extends BatteryStats {
         mWriteLock.lock();
         try {
             final long startTime = SystemClock.uptimeMillis();
-            FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
-            stream.flush();
-            FileUtils.sync(stream);
-            stream.close();
-            mFile.commit();
+            // Only the global and uid sections that changed since the last checkpoint are
+            // appended to the delta journal; the whole summary, history included, is rewritten
+            // when the journal gets too big or the history has gone unwritten for too long.
+            mDeltaJournal.write(next.marshall(), sections);
             com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
                     "batterystats", SystemClock.uptimeMillis() - startTime);
+            if (DEBUG) {
+                Slog.d(TAG, "Wrote " + mDeltaJournal.getLastBytesWritten() + " bytes"
+                        + (mDeltaJournal.wasLastWriteCompacted() ? " (compacted)" : ""));
+            }
         } catch (IOException e) {
             Slog.w("BatteryStats", "Error writing battery statistics", e);
-            mFile.rollback();
         } finally {
             next.recycle();
             mWriteLock.unlock();
@@ -13548,17 +13561,13 @@ public class BatteryStatsImpl extends BatteryStats {
         mUidStats.clear();
 
         try {
-            File file = mFile.chooseForRead();
-            if (!file.exists()) {
+            byte[] raw = mDeltaJournal.read();
+            if (raw == null) {
                 return;
             }
-            FileInputStream stream = new FileInputStream(file);
-
-            byte[] raw = BatteryStatsHelper.readFully(stream);
             Parcel in = Parcel.obtain();
             in.unmarshall(raw, 0, raw.length);
             in.setDataPosition(0);
-            stream.close();
 
             readSummaryFromParcel(in);
         } catch(Exception e) {
@@ -14182,6 +14191,16 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, null);
+    }
+
+    /**
+     * Like {@link #writeSummaryToParcel(Parcel, boolean)}, additionally recording into
+     * {@code uidSections} (if non-null) the end of the history, the position of the uid count,
+     * the start of every uid's summary and the end of the last one, for
+     * {@link BatteryStatsDeltaJournal}.
+     */
+    void writeSummaryToParcel(Parcel out, boolean inclHistory, IntArray uidSections) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -14194,6 +14213,9 @@ public class BatteryStatsImpl extends BatteryStats {
         out.writeInt(VERSION);
 
         writeHistory(out, inclHistory, true);
+        if (uidSections != null) {
+            uidSections.add(out.dataPosition());
+        }
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -14358,8 +14380,14 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         final int NU = mUidStats.size();
+        if (uidSections != null) {
+            uidSections.add(out.dataPosition());
+        }
         out.writeInt(NU);
         for (int iu = 0; iu < NU; iu++) {
+            if (uidSections != null) {
+                uidSections.add(out.dataPosition());
+            }
             out.writeInt(mUidStats.keyAt(iu));
             Uid u = mUidStats.valueAt(iu);
 
@@ -14679,6 +14707,9 @@ public class BatteryStatsImpl extends BatteryStats {
                 }
             }
         }
+        if (uidSections != null) {
+            uidSections.add(out.dataPosition());
+        }
     }
 
     public void readFromParcel(Parcel in) {
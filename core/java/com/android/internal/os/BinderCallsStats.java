@@ -33,6 +33,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Collects statistics about CPU time spent per binder call across multiple dimensions, e.g.
@@ -43,18 +44,31 @@ public class BinderCallsStats {
     private static final BinderCallsStats sInstance = new BinderCallsStats();
 
     private volatile boolean mDetailedTracking = false;
-    @GuardedBy("mLock")
-    private final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    // Calls are accumulated into one of several independently locked stripes, chosen by the
+    // calling thread, so that concurrent binder threads rarely contend. Stripes are only merged
+    // when the stats are dumped.
+    private final Stripe[] mStripes;
+    private final int mStripeMask;
     private final Queue<CallSession> mCallSessionsPool = new ConcurrentLinkedQueue<>();
-    private final Object mLock = new Object();
-    private long mStartTime = System.currentTimeMillis();
+    // ConcurrentLinkedQueue.size() is O(n), so track the pool size separately.
+    private final AtomicInteger mCallSessionsPoolSize = new AtomicInteger();
+    private volatile long mStartTime = System.currentTimeMillis();
 
     private BinderCallsStats() {
+        this(false);
     }
 
     @VisibleForTesting
     public BinderCallsStats(boolean detailedTracking) {
         mDetailedTracking = detailedTracking;
+        // Twice the number of CPUs, rounded up to a power of two.
+        final int cpus = Math.max(1, Runtime.getRuntime().availableProcessors());
+        final int stripeCount = Integer.highestOneBit(cpus * 4 - 1);
+        mStripes = new Stripe[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            mStripes[i] = new Stripe();
+        }
+        mStripeMask = stripeCount - 1;
     }
 
     public CallSession callStarted(Binder binder, int code) {
@@ -65,6 +79,8 @@ public class BinderCallsStats {
         CallSession s = mCallSessionsPool.poll();
         if (s == null) {
             s = new CallSession();
+        } else {
+            mCallSessionsPoolSize.decrementAndGet();
         }
         s.mCallStat.className = className;
         s.mCallStat.msg = code;
@@ -78,11 +94,12 @@ public class BinderCallsStats {
         long duration = mDetailedTracking ? getThreadTimeMicro() - s.mStarted : 1;
         s.mCallingUId = Binder.getCallingUid();
 
-        synchronized (mLock) {
-            UidEntry uidEntry = mUidEntries.get(s.mCallingUId);
+        final Stripe stripe = mStripes[(int) Thread.currentThread().getId() & mStripeMask];
+        synchronized (stripe) {
+            UidEntry uidEntry = stripe.mUidEntries.get(s.mCallingUId);
             if (uidEntry == null) {
                 uidEntry = new UidEntry(s.mCallingUId);
-                mUidEntries.put(s.mCallingUId, uidEntry);
+                stripe.mUidEntries.put(s.mCallingUId, uidEntry);
             }
 
             if (mDetailedTracking) {
@@ -100,11 +117,45 @@ public class BinderCallsStats {
             uidEntry.time += duration;
             uidEntry.callCount++;
         }
-        if (mCallSessionsPool.size() < CALL_SESSIONS_POOL_SIZE) {
+        if (mCallSessionsPoolSize.get() < CALL_SESSIONS_POOL_SIZE) {
+            mCallSessionsPoolSize.incrementAndGet();
             mCallSessionsPool.add(s);
         }
     }
 
+    /**
+     * Merges the per-stripe accumulators into a single snapshot, taking each stripe's lock in
+     * turn rather than blocking all binder threads at once.
+     */
+    private SparseArray<UidEntry> collectUidEntries() {
+        final SparseArray<UidEntry> merged = new SparseArray<>();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                final int size = stripe.mUidEntries.size();
+                for (int i = 0; i < size; i++) {
+                    final UidEntry e = stripe.mUidEntries.valueAt(i);
+                    UidEntry m = merged.get(e.uid);
+                    if (m == null) {
+                        m = new UidEntry(e.uid);
+                        merged.put(e.uid, m);
+                    }
+                    m.time += e.time;
+                    m.callCount += e.callCount;
+                    for (CallStat callStat : e.mCallStats.values()) {
+                        CallStat mergedStat = m.mCallStats.get(callStat);
+                        if (mergedStat == null) {
+                            mergedStat = new CallStat(callStat.className, callStat.msg);
+                            m.mCallStats.put(mergedStat, mergedStat);
+                        }
+                        mergedStat.time += callStat.time;
+                        mergedStat.callCount += callStat.callCount;
+                    }
+                }
+            }
+        }
+        return merged;
+    }
+
     public void dump(PrintWriter pw) {
         Map<Integer, Long> uidTimeMap = new HashMap<>();
         Map<Integer, Long> uidCallCountMap = new HashMap<>();
@@ -112,22 +163,21 @@ public class BinderCallsStats {
         long totalCallsTime = 0;
         pw.print("Start time: ");
         pw.println(DateFormat.format("yyyy-MM-dd HH:mm:ss", mStartTime));
-        int uidEntriesSize = mUidEntries.size();
+        final SparseArray<UidEntry> uidEntries = collectUidEntries();
+        int uidEntriesSize = uidEntries.size();
         List<UidEntry> entries = new ArrayList<>();
-        synchronized (mLock) {
-            for (int i = 0; i < uidEntriesSize; i++) {
-                UidEntry e = mUidEntries.valueAt(i);
-                entries.add(e);
-                totalCallsTime += e.time;
-                // Update per-uid totals
-                Long totalTimePerUid = uidTimeMap.get(e.uid);
-                uidTimeMap.put(e.uid,
-                        totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
-                Long totalCallsPerUid = uidCallCountMap.get(e.uid);
-                uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
-                        : totalCallsPerUid + e.callCount);
-                totalCallsCount += e.callCount;
-            }
+        for (int i = 0; i < uidEntriesSize; i++) {
+            UidEntry e = uidEntries.valueAt(i);
+            entries.add(e);
+            totalCallsTime += e.time;
+            // Update per-uid totals
+            Long totalTimePerUid = uidTimeMap.get(e.uid);
+            uidTimeMap.put(e.uid,
+                    totalTimePerUid == null ? e.time : totalTimePerUid + e.time);
+            Long totalCallsPerUid = uidCallCountMap.get(e.uid);
+            uidCallCountMap.put(e.uid, totalCallsPerUid == null ? e.callCount
+                    : totalCallsPerUid + e.callCount);
+            totalCallsCount += e.callCount;
         }
         if (mDetailedTracking) {
             pw.println("Raw data (uid,call_desc,time):");
@@ -202,10 +252,12 @@ public class BinderCallsStats {
     }
 
     public void reset() {
-        synchronized (mLock) {
-            mUidEntries.clear();
-            mStartTime = System.currentTimeMillis();
+        for (Stripe stripe : mStripes) {
+            synchronized (stripe) {
+                stripe.mUidEntries.clear();
+            }
         }
+        mStartTime = System.currentTimeMillis();
     }
 
     private static class CallStat {
@@ -252,6 +304,11 @@ public class BinderCallsStats {
         CallStat mCallStat = new CallStat();
     }
 
+    private static class Stripe {
+        @GuardedBy("this")
+        final SparseArray<UidEntry> mUidEntries = new SparseArray<>();
+    }
+
     private static class UidEntry {
         int uid;
         long time;
@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.INLINE;
+import static com.android.internal.util.BinaryXmlSerializer.MAX_INTERNED;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_FALSE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_BOOLEAN_TRUE;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_INT;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_LONG;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import android.util.Xml;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Reads documents written by {@link BinaryXmlSerializer} through the {@link XmlPullParser}
+ * interface, so code reading the textual form can read the binary one unchanged.
+ *
+ * <p>Only the parts of the interface used for reading system files are supported; in
+ * particular namespaces, entity references and positions in the input are not.
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private DataInputStream mIn;
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    private int mEventType = START_DOCUMENT;
+    private int mDepth;
+    private String mName;
+    private String mText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /** Token read ahead while collecting the attributes of a start tag, or -1. */
+    private int mPeekedToken = -1;
+
+    /**
+     * Returns a parser for {@code in}: a {@link BinaryXmlPullParser} when it holds a binary
+     * document, or the platform's text parser otherwise. Either way, the parser is ready to read.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in)
+            throws IOException, XmlPullParserException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        in.mark(PROTOCOL_MAGIC.length);
+        final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        int read = 0;
+        while (read < magic.length) {
+            final int count = in.read(magic, read, magic.length - read);
+            if (count < 0) {
+                break;
+            }
+            read += count;
+        }
+        in.reset();
+
+        final XmlPullParser parser;
+        if (Arrays.equals(magic, PROTOCOL_MAGIC)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    @Override
+    public void setInput(InputStream is, String inputEncoding) throws XmlPullParserException {
+        mIn = new DataInputStream(is);
+        mInterned.clear();
+        mEventType = START_DOCUMENT;
+        mDepth = 0;
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+        mPeekedToken = -1;
+
+        final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+        try {
+            mIn.readFully(magic);
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read header: " + e);
+        }
+        if (!Arrays.equals(magic, PROTOCOL_MAGIC)) {
+            throw new XmlPullParserException("Not a binary XML document");
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mEventType == END_TAG) {
+            mDepth--;
+        } else if (mEventType == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mName = null;
+        mText = null;
+        mAttributeCount = 0;
+
+        while (true) {
+            final int token = readToken();
+            switch (token & 0x0f) {
+                case BinaryXmlSerializer.START_DOCUMENT:
+                    break;
+                case BinaryXmlSerializer.END_DOCUMENT:
+                    return mEventType = END_DOCUMENT;
+                case BinaryXmlSerializer.START_TAG:
+                    mName = readInternedString();
+                    mDepth++;
+                    readAttributes();
+                    return mEventType = START_TAG;
+                case BinaryXmlSerializer.END_TAG:
+                    mName = readInternedString();
+                    return mEventType = END_TAG;
+                case BinaryXmlSerializer.TEXT:
+                    mText = readString();
+                    return mEventType = TEXT;
+                default:
+                    throw new XmlPullParserException("Unexpected token " + token
+                            + " at depth " + mDepth);
+            }
+        }
+    }
+
+    private int readToken() throws IOException {
+        if (mPeekedToken != -1) {
+            final int token = mPeekedToken;
+            mPeekedToken = -1;
+            return token;
+        }
+        // A truncated document fails with EOFException, like a truncated text one would.
+        return mIn.readUnsignedByte();
+    }
+
+    private void readAttributes() throws IOException, XmlPullParserException {
+        while (true) {
+            final int token = readToken();
+            if ((token & 0x0f) != ATTRIBUTE) {
+                mPeekedToken = token;
+                return;
+            }
+            if (mAttributeCount == mAttributeNames.length) {
+                mAttributeNames = Arrays.copyOf(mAttributeNames, mAttributeCount * 2);
+                mAttributeValues = Arrays.copyOf(mAttributeValues, mAttributeCount * 2);
+            }
+            mAttributeNames[mAttributeCount] = readInternedString();
+            final String value;
+            switch (token & 0xf0) {
+                case TYPE_NULL:
+                    value = null;
+                    break;
+                case TYPE_BOOLEAN_TRUE:
+                    value = "true";
+                    break;
+                case TYPE_BOOLEAN_FALSE:
+                    value = "false";
+                    break;
+                case TYPE_INT:
+                    value = Integer.toString(mIn.readInt());
+                    break;
+                case TYPE_LONG:
+                    value = Long.toString(mIn.readLong());
+                    break;
+                case TYPE_STRING:
+                    value = readString();
+                    break;
+                case TYPE_STRING_INTERNED:
+                    value = readInternedString();
+                    break;
+                default:
+                    throw new XmlPullParserException("Unexpected attribute type " + token
+                            + " at depth " + mDepth);
+            }
+            mAttributeValues[mAttributeCount] = value;
+            mAttributeCount++;
+        }
+    }
+
+    private String readInternedString() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index != INLINE) {
+            return mInterned.get(index);
+        }
+        final String s = readString();
+        if (mInterned.size() < MAX_INTERNED) {
+            mInterned.add(s);
+        }
+        return s;
+    }
+
+    private String readString() throws IOException {
+        int length = mIn.readUnsignedShort();
+        if (length == INLINE) {
+            length = mIn.readInt();
+        }
+        final byte[] bytes = new byte[length];
+        mIn.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int eventType = next();
+        if (eventType == TEXT && isWhitespace()) {
+            eventType = next();
+        }
+        if (eventType != START_TAG && eventType != END_TAG) {
+            throw new XmlPullParserException("Expected start or end tag at depth " + mDepth);
+        }
+        return eventType;
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Precondition for nextText() not met");
+        }
+        int eventType = next();
+        if (eventType == TEXT) {
+            final String result = mText;
+            eventType = next();
+            if (eventType != END_TAG) {
+                throw new XmlPullParserException("Expected end tag after text of " + mName);
+            }
+            return result;
+        } else if (eventType == END_TAG) {
+            return "";
+        }
+        throw new XmlPullParserException("Unexpected element inside text-only element");
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException {
+        if (type != mEventType
+                || (namespace != null && !namespace.isEmpty())
+                || (name != null && !name.equals(mName))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " " + name
+                    + " but found " + TYPES[mEventType] + " " + mName);
+        }
+    }
+
+    @Override
+    public int getEventType() {
+        return mEventType;
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public String getText() {
+        return mText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        if (mText == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = mText.length();
+        return mText.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mEventType != TEXT) {
+            throw new XmlPullParserException("Not at text");
+        }
+        return mText.trim().isEmpty();
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mEventType != START_TAG) {
+            throw new XmlPullParserException("Not at start tag");
+        }
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mEventType == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (mAttributeNames[i].equals(name)) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return "Binary XML file " + TYPES[mEventType] + " " + mName + " at depth " + mDepth;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Binary documents have no namespaces, declarations or validation to configure.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new XmlPullParserException("Unsupported property " + name);
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * An {@link XmlSerializer} that writes a compact binary encoding of the document instead of
+ * text, for system files that are written often and only ever read by
+ * {@link BinaryXmlPullParser}.
+ *
+ * <p>The document is a sequence of one-byte tokens, each holding an event in its low nibble
+ * and the type of its payload in its high nibble. Tag and attribute names, and attribute
+ * values that aren't numbers or booleans, go through a string table: the first occurrence is
+ * written inline and later ones as a two-byte index. Attribute values that are the canonical
+ * text of an {@code int}, a {@code long} or a boolean are stored in binary, and are turned back
+ * into exactly the same text when read. Whitespace, comments and other constructs that carry
+ * no data are dropped.
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /** Written at the start of every document: "ABX" followed by the format version. */
+    static final byte[] PROTOCOL_MAGIC = new byte[] { 0x41, 0x42, 0x58, 0x01 };
+
+    static final int START_DOCUMENT = 0;
+    static final int END_DOCUMENT = 1;
+    static final int START_TAG = 2;
+    static final int END_TAG = 3;
+    static final int TEXT = 4;
+    static final int ATTRIBUTE = 15;
+
+    static final int TYPE_NULL = 1 << 4;
+    static final int TYPE_STRING = 2 << 4;
+    static final int TYPE_STRING_INTERNED = 3 << 4;
+    static final int TYPE_INT = 4 << 4;
+    static final int TYPE_LONG = 5 << 4;
+    static final int TYPE_BOOLEAN_TRUE = 6 << 4;
+    static final int TYPE_BOOLEAN_FALSE = 7 << 4;
+
+    /** Marks a string written inline, either interned or longer than a short length. */
+    static final int INLINE = 0xFFFF;
+    /** Interning stops once the string table holds this many entries. */
+    static final int MAX_INTERNED = 0xFFFE;
+
+    private DataOutputStream mOut;
+    // A HashMap rather than an ArrayMap: the table can hold tens of thousands of strings, and
+    // ArrayMap inserts cost time linear in its size.
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+
+    private int mDepth;
+    private String mName;
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException();
+        }
+        mOut = new DataOutputStream(os);
+        mInterned.clear();
+        mDepth = 0;
+        mName = null;
+    }
+
+    @Override
+    public void setOutput(Writer writer) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.write(PROTOCOL_MAGIC);
+        mOut.writeByte(START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        mOut.writeByte(START_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        mDepth++;
+        mName = name;
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        mOut.writeByte(END_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        mDepth--;
+        mName = null;
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        if (value == null) {
+            mOut.writeByte(ATTRIBUTE | TYPE_NULL);
+            writeInternedString(name);
+        } else if ("true".equals(value)) {
+            mOut.writeByte(ATTRIBUTE | TYPE_BOOLEAN_TRUE);
+            writeInternedString(name);
+        } else if ("false".equals(value)) {
+            mOut.writeByte(ATTRIBUTE | TYPE_BOOLEAN_FALSE);
+            writeInternedString(name);
+        } else if (isCanonicalLong(value)) {
+            final long number = Long.parseLong(value);
+            if (number == (int) number) {
+                mOut.writeByte(ATTRIBUTE | TYPE_INT);
+                writeInternedString(name);
+                mOut.writeInt((int) number);
+            } else {
+                mOut.writeByte(ATTRIBUTE | TYPE_LONG);
+                writeInternedString(name);
+                mOut.writeLong(number);
+            }
+        } else {
+            mOut.writeByte(ATTRIBUTE | TYPE_STRING_INTERNED);
+            writeInternedString(name);
+            writeInternedString(value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(TEXT | TYPE_STRING);
+        writeString(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void entityRef(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processingInstruction(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void docdecl(String text) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void comment(String text) {
+        // Carries no data.
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) {
+        // Carries no data.
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Features only affect the textual form, such as indent-output.
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getNamespace() {
+        return null;
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    private void writeInternedString(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+            return;
+        }
+        mOut.writeShort(INLINE);
+        writeString(s);
+        if (mInterned.size() < MAX_INTERNED) {
+            mInterned.put(s, mInterned.size());
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length < INLINE) {
+            mOut.writeShort(bytes.length);
+        } else {
+            mOut.writeShort(INLINE);
+            mOut.writeInt(bytes.length);
+        }
+        mOut.write(bytes);
+    }
+
+    /**
+     * Returns whether {@code value} is exactly what {@link Long#toString(long)} returns for
+     * some {@code long}, so it can be stored as one and read back unchanged.
+     */
+    private static boolean isCanonicalLong(String value) {
+        final int length = value.length();
+        final int first = (length > 1 && value.charAt(0) == '-') ? 1 : 0;
+        // Anything longer might not fit; leave it as a string.
+        if (length == 0 || length - first > 18) {
+            return false;
+        }
+        // No leading zeros, and no "-0".
+        if (value.charAt(first) == '0' && length != 1) {
+            return false;
+        }
+        for (int i = first; i < length; i++) {
+            final char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -85,6 +85,14 @@ public class FileRotator {
         public boolean shouldWrite();
     }
 
+    /**
+     * External class that reads existing data directly from a given {@link File},
+     * for readers that want random access instead of streaming the whole file.
+     */
+    public interface FileReader {
+        public void read(File file) throws IOException;
+    }
+
     /**
      * Create a file rotator.
      *
@@ -298,6 +306,25 @@ public class FileRotator {
         }
     }
 
+    /**
+     * Hand any rotated files that overlap the requested time range to the given
+     * {@link FileReader}.
+     */
+    public void readMatchingFiles(FileReader reader, long matchStartMillis, long matchEndMillis)
+            throws IOException {
+        final FileInfo info = new FileInfo(mPrefix);
+        for (String name : mBasePath.list()) {
+            if (!info.parse(name)) continue;
+
+            // read file when it overlaps
+            if (info.startMillis <= matchEndMillis && matchStartMillis <= info.endMillis) {
+                if (LOGD) Slog.d(TAG, "reading matching file " + name);
+
+                reader.read(new File(mBasePath, name));
+            }
+        }
+    }
+
     /**
      * Return the currently active file, which may not exist yet.
      */
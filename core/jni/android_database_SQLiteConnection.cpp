@@ -777,6 +777,114 @@ static jlong nativeExecuteForCursorWindow(JNIEnv* env, jclass clazz,
     return result;
 }
 
+static jlong nativeStepIntoCursorWindow(JNIEnv* env, jclass clazz,
+        jlong connectionPtr, jlong statementPtr, jlong windowPtr, jboolean hasPendingRow,
+        jint skipRows) {
+    SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
+    sqlite3_stmt* statement = reinterpret_cast<sqlite3_stmt*>(statementPtr);
+    CursorWindow* window = reinterpret_cast<CursorWindow*>(windowPtr);
+
+    status_t status = window->clear();
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to clear the cursor window, status=%d", status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    int numColumns = sqlite3_column_count(statement);
+    status = window->setNumColumns(numColumns);
+    if (status) {
+        String8 msg;
+        msg.appendFormat("Failed to set the cursor window column count to %d, status=%d",
+                numColumns, status);
+        throw_sqlite3_exception(env, connection->db, msg.string());
+        return 0;
+    }
+
+    // Unlike nativeExecuteForCursorWindow, the statement is not reset afterwards, so the
+    // next call carries on from the row it stopped at.  A row that did not fit in the
+    // window is still the current row of the statement; copy it first.  A statement that
+    // was started over first steps past the rows that were already read.
+    int retryCount = 0;
+    int addedRows = 0;
+    bool done = false;
+    bool gotException = false;
+    bool windowFull = false;
+    while (skipRows > 0 && !gotException && !done) {
+        int err = sqlite3_step(statement);
+        if (err == SQLITE_ROW) {
+            retryCount = 0;
+            skipRows -= 1;
+        } else if (err == SQLITE_DONE) {
+            done = true;
+        } else if (err == SQLITE_LOCKED || err == SQLITE_BUSY) {
+            LOG_WINDOW("Database locked, retrying");
+            if (retryCount > 50) {
+                ALOGE("Bailing on database busy retry");
+                throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
+                gotException = true;
+            } else {
+                usleep(1000);
+                retryCount++;
+            }
+        } else {
+            throw_sqlite3_exception(env, connection->db);
+            gotException = true;
+        }
+    }
+    if (hasPendingRow) {
+        CopyRowResult cpr = copyRow(env, window, statement, numColumns, 0, addedRows);
+        if (cpr == CPR_OK) {
+            addedRows += 1;
+        } else if (cpr == CPR_FULL) {
+            windowFull = true;
+        } else {
+            gotException = true;
+        }
+    }
+    while (!gotException && !windowFull && !done) {
+        int err = sqlite3_step(statement);
+        if (err == SQLITE_ROW) {
+            LOG_WINDOW("Stepped statement %p to a row", statement);
+            retryCount = 0;
+            CopyRowResult cpr = copyRow(env, window, statement, numColumns, 0, addedRows);
+            if (cpr == CPR_OK) {
+                addedRows += 1;
+            } else if (cpr == CPR_FULL) {
+                windowFull = true;
+            } else {
+                gotException = true;
+            }
+        } else if (err == SQLITE_DONE) {
+            LOG_WINDOW("Processed all rows");
+            done = true;
+            break;
+        } else if (err == SQLITE_LOCKED || err == SQLITE_BUSY) {
+            LOG_WINDOW("Database locked, retrying");
+            if (retryCount > 50) {
+                ALOGE("Bailing on database busy retry");
+                throw_sqlite3_exception(env, connection->db, "retrycount exceeded");
+                gotException = true;
+            } else {
+                usleep(1000);
+                retryCount++;
+            }
+        } else {
+            throw_sqlite3_exception(env, connection->db);
+            gotException = true;
+        }
+    }
+    if (gotException) {
+        return 0;
+    }
+
+    // Report whether all rows have been read, and the number of rows added.  If the window
+    // filled up before any row was added, the pending row is too big for it; the caller may
+    // retry with a bigger window.
+    return jlong(done ? 1 : 0) << 32 | jlong(addedRows);
+}
+
 static jint nativeGetDbLookaside(JNIEnv* env, jobject clazz, jlong connectionPtr) {
     SQLiteConnection* connection = reinterpret_cast<SQLiteConnection*>(connectionPtr);
 
@@ -854,6 +962,8 @@ static const JNINativeMethod sMethods[] =
             (void*)nativeExecuteForLastInsertedRowId },
     { "nativeExecuteForCursorWindow", "(JJJIIZ)J",
             (void*)nativeExecuteForCursorWindow },
+    { "nativeStepIntoCursorWindow", "(JJJZI)J",
+            (void*)nativeStepIntoCursorWindow },
     { "nativeGetDbLookaside", "(J)I",
             (void*)nativeGetDbLookaside },
     { "nativeCancel", "(J)V",
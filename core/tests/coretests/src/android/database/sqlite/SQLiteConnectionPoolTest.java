@@ -17,10 +17,15 @@
 package android.database.sqlite;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
 import android.content.Context;
+import android.os.CancellationSignal;
 import android.os.HandlerThread;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
@@ -32,6 +37,10 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Tests for {@link SQLiteConnectionPool}
@@ -43,6 +52,8 @@ import java.io.File;
 public class SQLiteConnectionPoolTest {
     private static final String TAG = "SQLiteConnectionPoolTest";
 
+    private static final int READ_ONLY = SQLiteConnectionPool.CONNECTION_FLAG_READ_ONLY;
+
     private Context mContext;
     private File mTestDatabase;
     private SQLiteDatabaseConfiguration mTestConf;
@@ -88,4 +99,93 @@ public class SQLiteConnectionPoolTest {
         pool.close();
         thread.quit();
     }
+
+    @Test
+    public void testReaderHoldTimesClassifyLongScans() throws InterruptedException {
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(newAdaptiveConfiguration());
+        SQLiteConnection c1 = pool.acquireConnection("select 1", READ_ONLY, null);
+        Thread.sleep(100);
+        pool.releaseConnection(c1);
+        SQLiteConnection c2 = pool.acquireConnection("select 2", READ_ONLY, null);
+        pool.releaseConnection(c2);
+        SQLiteConnection c3 = pool.acquireConnection("select 3", 0, null);
+        Thread.sleep(100);
+        pool.releaseConnection(c3);
+
+        assertTrue("Reader held its connection for 100ms", pool.isLongScan("select 1"));
+        assertFalse("Reader released its connection right away", pool.isLongScan("select 2"));
+        assertFalse("Only readers are timed", pool.isLongScan("select 3"));
+        pool.close();
+    }
+
+    @Test
+    public void testShortReadersBypassLongScansALimitedNumberOfTimes() throws Exception {
+        SQLiteConnectionPool pool = SQLiteConnectionPool.open(newAdaptiveConfiguration());
+        SQLiteConnection scan = pool.acquireConnection("select 1", READ_ONLY, null);
+        Thread.sleep(100);
+        pool.releaseConnection(scan);
+        assertTrue(pool.isLongScan("select 1"));
+
+        // Hold every connection the pool may open, up to the point where readers wait.
+        ArrayList<SQLiteConnection> held = new ArrayList<>();
+        LinkedBlockingQueue<SQLiteConnection> acquired = new LinkedBlockingQueue<>();
+        while (true) {
+            CancellationSignal signal = new CancellationSignal();
+            startAcquire(pool, "select 0", signal, acquired);
+            SQLiteConnection connection = acquired.poll(500, TimeUnit.MILLISECONDS);
+            if (connection == null) {
+                awaitWaiterCount(pool, 1);
+                signal.cancel();
+                awaitWaiterCount(pool, 0);
+                break;
+            }
+            held.add(connection);
+        }
+
+        startAcquire(pool, "select 1", null, acquired);
+        awaitWaiterCount(pool, 1);
+        for (int i = 2; i <= 6; i++) {
+            startAcquire(pool, "select " + i, null, acquired);
+            awaitWaiterCount(pool, i);
+        }
+        assertEquals(Arrays.asList("select 2:0", "select 3:0", "select 4:0", "select 5:0",
+                "select 1:4", "select 6:0"), pool.getConnectionWaiters());
+
+        for (SQLiteConnection connection : held) {
+            pool.releaseConnection(connection);
+        }
+        for (int i = 0; i < 6; i++) {
+            SQLiteConnection connection = acquired.poll(5, TimeUnit.SECONDS);
+            assertNotNull("Waiter " + i + " was given a connection", connection);
+            pool.releaseConnection(connection);
+        }
+        pool.close();
+    }
+
+    private SQLiteDatabaseConfiguration newAdaptiveConfiguration() {
+        return new SQLiteDatabaseConfiguration(mTestDatabase.getPath(),
+                SQLiteDatabase.ENABLE_WRITE_AHEAD_LOGGING
+                        | SQLiteDatabase.ENABLE_ADAPTIVE_CONNECTION_POOL);
+    }
+
+    private static void startAcquire(SQLiteConnectionPool pool, String sql,
+            CancellationSignal signal, LinkedBlockingQueue<SQLiteConnection> acquired) {
+        new Thread(() -> {
+            try {
+                acquired.add(pool.acquireConnection(sql, READ_ONLY, signal));
+            } catch (OperationCanceledException e) {
+                // The pool was full.
+            }
+        }).start();
+    }
+
+    private static void awaitWaiterCount(SQLiteConnectionPool pool, int count)
+            throws InterruptedException {
+        final long deadline = SystemClock.uptimeMillis() + 5000;
+        while (pool.getConnectionWaiters().size() != count) {
+            assertTrue("Timed out waiting for " + count + " connection waiters",
+                    SystemClock.uptimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
 }
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.database.sqlite;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.test.AndroidTestCase;
+import android.test.suitebuilder.annotation.LargeTest;
+
+import java.io.File;
+
+@LargeTest
+public class SQLiteStreamingCursorTest extends AndroidTestCase {
+    private static final String TABLE_NAME = "testStreamingCursor";
+    // Rows of about 500 bytes, so that they don't line up with the ends of the windows.
+    private static final int ROW_COUNT = 1000;
+
+    private SQLiteDatabase mDatabase;
+    private File mDatabaseFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        File dbDir = getContext().getDir(this.getClass().getName(), Context.MODE_PRIVATE);
+        mDatabaseFile = new File(dbDir, "sqlitestreamingcursor_test.db");
+        if (mDatabaseFile.exists()) {
+            mDatabaseFile.delete();
+        }
+        mDatabase = SQLiteDatabase.openOrCreateDatabase(mDatabaseFile.getPath(), null);
+        assertNotNull(mDatabase);
+        mDatabase.execSQL("CREATE TABLE " + TABLE_NAME + " (i int, s text not null);");
+
+        StringBuilder buff = new StringBuilder();
+        for (int i = 0; i < 500; i++) {
+            buff.append(i % 10);
+        }
+        ContentValues values = new ContentValues();
+        values.put("s", buff.toString());
+        mDatabase.beginTransaction();
+        try {
+            for (int i = 0; i < ROW_COUNT; i++) {
+                values.put("i", i);
+                mDatabase.insert(TABLE_NAME, null, values);
+            }
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDatabase.close();
+        SQLiteDatabase.deleteDatabase(mDatabaseFile);
+        super.tearDown();
+    }
+
+    private Cursor query(boolean adaptiveWindowSize) {
+        return mDatabase.rawQueryWithFactory(
+                new SQLiteStreamingCursor.Factory(adaptiveWindowSize),
+                "SELECT i, s FROM " + TABLE_NAME + " ORDER BY i", null, null);
+    }
+
+    private void checkReadsAllRows(boolean adaptiveWindowSize) {
+        try (Cursor c = query(adaptiveWindowSize)) {
+            int expected = 0;
+            while (c.moveToNext()) {
+                assertEquals(expected, c.getPosition());
+                assertEquals(expected, c.getInt(0));
+                assertEquals(500, c.getString(1).length());
+                expected++;
+            }
+            assertEquals(ROW_COUNT, expected);
+        }
+    }
+
+    public void testReadsRowsAcrossWindows() {
+        checkReadsAllRows(false);
+    }
+
+    public void testReadsRowsAcrossAdaptiveWindows() {
+        checkReadsAllRows(true);
+    }
+
+    public void testReadsRowsAcrossWindowsWithWal() {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        checkReadsAllRows(false);
+    }
+
+    public void testMoveBack() {
+        try (Cursor c = query(false)) {
+            assertTrue(c.moveToPosition(ROW_COUNT - 1));
+            assertEquals(ROW_COUNT - 1, c.getInt(0));
+            // Before the window: the query runs again.
+            assertTrue(c.moveToPosition(0));
+            assertEquals(0, c.getInt(0));
+            assertTrue(c.moveToPosition(ROW_COUNT / 2));
+            assertEquals(ROW_COUNT / 2, c.getInt(0));
+            assertTrue(c.moveToPrevious());
+            assertEquals(ROW_COUNT / 2 - 1, c.getInt(0));
+        }
+    }
+
+    public void testGetCountIsLowerBoundUntilLastRowIsRead() {
+        try (Cursor c = query(false)) {
+            final int count = c.getCount();
+            assertTrue("count " + count, count > 0 && count <= ROW_COUNT);
+            while (c.moveToNext()) {
+                assertTrue(c.getCount() > c.getPosition());
+            }
+            assertEquals(ROW_COUNT, c.getCount());
+        }
+    }
+
+    public void testGetCountOfEmptyResult() {
+        mDatabase.delete(TABLE_NAME, null, null);
+        try (Cursor c = query(true)) {
+            assertEquals(0, c.getCount());
+            assertFalse(c.moveToFirst());
+            assertTrue(c.isAfterLast());
+        }
+    }
+
+    public void testIsAfterLastAfterTheEnd() {
+        try (Cursor c = query(true)) {
+            while (c.moveToNext()) {
+                assertFalse(c.isAfterLast());
+            }
+            assertTrue(c.isAfterLast());
+            assertFalse(c.moveToNext());
+            assertTrue(c.isAfterLast());
+            assertEquals(ROW_COUNT, c.getPosition());
+        }
+    }
+
+    public void testRowBiggerThanWindow() {
+        // Bigger than the default window, and than the first adaptive windows.
+        mDatabase.execSQL("UPDATE " + TABLE_NAME + " SET s = ? WHERE i = 3",
+                new Object[] { new String(new char[100 * 1024]).replace('\0', 'x') });
+        try (Cursor c = query(true)) {
+            assertTrue(c.moveToPosition(3));
+            assertEquals(100 * 1024, c.getString(1).length());
+            assertTrue(c.moveToLast());
+        }
+        try (Cursor c = query(false)) {
+            int rows = 0;
+            while (c.moveToNext()) {
+                rows++;
+            }
+            assertEquals(ROW_COUNT, rows);
+        }
+    }
+
+    public void testRowBiggerThanMaxWindow() {
+        mDatabase.execSQL("UPDATE " + TABLE_NAME + " SET s = ? WHERE i = 3",
+                new Object[] { new String(new char[3 * 1024 * 1024]).replace('\0', 'x') });
+        try (Cursor c = query(true)) {
+            try {
+                c.moveToPosition(3);
+                fail("Row bigger than 2MB was read");
+            } catch (SQLiteBlobTooBigException expected) {
+            }
+        }
+    }
+
+    public void testDeactivateAndRequery() {
+        final Cursor c = query(false);
+        try {
+            assertTrue(c.moveToPosition(10));
+            c.deactivate();
+            assertTrue(c.requery());
+            int rows = 0;
+            while (c.moveToNext()) {
+                rows++;
+            }
+            assertEquals(ROW_COUNT, rows);
+        } finally {
+            c.close();
+        }
+        assertTrue(c.isClosed());
+    }
+
+    public void testUpdateWhileReading() {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        try (Cursor c = query(false)) {
+            int rows = 0;
+            while (c.moveToNext()) {
+                ContentValues values = new ContentValues();
+                values.put("s", "updated");
+                mDatabase.update(TABLE_NAME, values, "i = ?",
+                        new String[] { Integer.toString(c.getInt(0)) });
+                rows++;
+            }
+            assertEquals(ROW_COUNT, rows);
+        }
+        assertEquals(ROW_COUNT, DatabaseUtils.longForQuery(mDatabase,
+                "SELECT COUNT(*) FROM " + TABLE_NAME + " WHERE s = 'updated'", null));
+    }
+
+    public void testCloseOnAnotherThread() throws Exception {
+        assertTrue(mDatabase.enableWriteAheadLogging());
+        final Cursor c = query(false);
+        assertTrue(c.moveToFirst());
+        final Throwable[] failure = new Throwable[1];
+        final Thread thread = new Thread(() -> {
+            try {
+                c.close();
+            } catch (Throwable t) {
+                failure[0] = t;
+            }
+        });
+        thread.start();
+        thread.join();
+        assertNull(failure[0]);
+        assertTrue(c.isClosed());
+
+        // The cursor no longer holds a connection for this thread.
+        mDatabase.beginTransaction();
+        try {
+            mDatabase.delete(TABLE_NAME, "i = 0", null);
+            mDatabase.setTransactionSuccessful();
+        } finally {
+            mDatabase.endTransaction();
+        }
+        assertEquals(ROW_COUNT - 1,
+                DatabaseUtils.queryNumEntries(mDatabase, TABLE_NAME));
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.SharedMemory;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests that a {@link SettingsSnapshot} written by the settings provider reads back the same
+ * settings in client processes.
+ */
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+    private static final int GENERATION = 42;
+
+    private static SettingsSnapshot writeAndMap(List<String> names, List<String> values,
+            List<String> askProviderNames) throws Exception {
+        final SharedMemory memory = SettingsSnapshot.write(GENERATION, names, values,
+                askProviderNames);
+        try {
+            return SettingsSnapshot.map(memory);
+        } finally {
+            // The mapping outlives the memory it came from.
+            memory.close();
+        }
+    }
+
+    @Test
+    public void testLookups() throws Exception {
+        // Unsorted; the last two sort differently as UTF-8 bytes than as UTF-16 chars.
+        final List<String> names = Arrays.asList("screen_brightness", "adb_enabled",
+                "z\u00e9ro", "zz", "a", "null_setting", "\ud83d\ude00", "\uff5e");
+        final List<String> values = Arrays.asList("102", "1", "accent", "", "b", null,
+                "emoji", "tilde");
+        final SettingsSnapshot snapshot = writeAndMap(names, values, Collections.emptyList());
+        assertEquals(GENERATION, snapshot.getGeneration());
+        for (int i = 0; i < names.size(); i++) {
+            assertEquals(names.get(i), values.get(i), snapshot.getValue(names.get(i)));
+        }
+        snapshot.close();
+    }
+
+    @Test
+    public void testMissingNames() throws Exception {
+        final SettingsSnapshot snapshot = writeAndMap(Arrays.asList("b", "d", "f"),
+                Arrays.asList("1", "2", "3"), Collections.emptyList());
+        // Before, between and after the names, and prefixes and extensions of them.
+        for (String name : new String[] { "", "a", "c", "e", "g", "bb", "dd", "F" }) {
+            assertNull(name, snapshot.getValue(name));
+            assertFalse(name, snapshot.mustAskProvider(name));
+        }
+        snapshot.close();
+
+        final SettingsSnapshot empty = writeAndMap(Collections.emptyList(),
+                Collections.emptyList(), Collections.emptyList());
+        assertNull(empty.getValue("a"));
+        empty.close();
+    }
+
+    @Test
+    public void testAskProviderNames() throws Exception {
+        final SettingsSnapshot snapshot = writeAndMap(Arrays.asList("a", "b"),
+                Arrays.asList("1", "2"), Arrays.asList("b", "per_caller"));
+        assertTrue(snapshot.mustAskProvider("b"));
+        assertTrue(snapshot.mustAskProvider("per_caller"));
+        assertFalse(snapshot.mustAskProvider("a"));
+        assertFalse(snapshot.mustAskProvider("c"));
+        assertNull(snapshot.getValue("per_caller"));
+        snapshot.close();
+    }
+
+    @Test
+    public void testMapRejectsOtherData() throws Exception {
+        final SharedMemory memory = SharedMemory.create("not_a_snapshot", 64);
+        try {
+            SettingsSnapshot.map(memory);
+            fail("Mapped memory that isn't a snapshot");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            memory.close();
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Internal tests for {@link SparseIntHashArray}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SparseIntHashArrayTest {
+
+    private static final int TEST_SIZE = 1000;
+
+    private SparseIntHashArray mArray;
+    private TreeMap<Integer, Integer> mExpected;
+    private Random mRandom;
+
+    @Before
+    public void setUp() {
+        mArray = new SparseIntHashArray();
+        mExpected = new TreeMap<>();
+        mRandom = new Random(12345);
+    }
+
+    private void assertMatchesExpected() {
+        assertEquals(mExpected.size(), mArray.size());
+        final int[] indices = mArray.orderedIndices();
+        int i = 0;
+        for (Map.Entry<Integer, Integer> entry : mExpected.entrySet()) {
+            assertEquals((int) entry.getKey(), mArray.keyAt(indices[i]));
+            assertEquals((int) entry.getValue(), mArray.valueAt(indices[i]));
+            assertEquals((int) entry.getValue(), mArray.get(entry.getKey(), -1));
+            i++;
+        }
+    }
+
+    @Test
+    public void testPutAndGet() {
+        for (int i = 0; i < TEST_SIZE; i++) {
+            final int key = mRandom.nextInt();
+            mArray.put(key, i);
+            mExpected.put(key, i);
+        }
+        assertMatchesExpected();
+
+        int missing = mRandom.nextInt();
+        while (mExpected.containsKey(missing)) {
+            missing++;
+        }
+        assertEquals(Integer.MIN_VALUE, mArray.get(missing, Integer.MIN_VALUE));
+        assertTrue(mArray.indexOfKey(missing) < 0);
+    }
+
+    @Test
+    public void testRandomPutAndDelete() {
+        for (int i = 0; i < TEST_SIZE * 10; i++) {
+            final int key = mRandom.nextInt(TEST_SIZE) - TEST_SIZE / 2;
+            if (mRandom.nextBoolean()) {
+                mArray.put(key, i);
+                mExpected.put(key, i);
+            } else {
+                mArray.delete(key);
+                mExpected.remove(key);
+            }
+        }
+        assertMatchesExpected();
+        for (int key = -TEST_SIZE; key < TEST_SIZE; key++) {
+            assertEquals(mExpected.containsKey(key), mArray.indexOfKey(key) >= 0);
+        }
+    }
+
+    @Test
+    public void testRemoveAtKeepsRemainingMappings() {
+        for (int i = 0; i < TEST_SIZE; i++) {
+            mArray.put(i * 31, i);
+            mExpected.put(i * 31, i);
+        }
+        for (int i = mArray.size() - 1; i >= 0; i -= 3) {
+            mExpected.remove(mArray.keyAt(i));
+            mArray.removeAt(i);
+        }
+        assertMatchesExpected();
+    }
+
+    @Test
+    public void testClearAndClone() {
+        for (int i = 0; i < TEST_SIZE; i++) {
+            mArray.put(i, i);
+        }
+        final SparseIntHashArray clone = mArray.clone();
+        mArray.clear();
+        assertEquals(0, mArray.size());
+        assertEquals(-1, mArray.get(5, -1));
+        assertEquals(TEST_SIZE, clone.size());
+        assertEquals(5, clone.get(5, -1));
+        assertTrue(clone.toString().startsWith("{0=0, 1=1"));
+    }
+}
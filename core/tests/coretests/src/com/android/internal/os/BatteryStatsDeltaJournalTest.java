@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.Context;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.IntArray;
+
+import com.android.internal.util.JournaledFile;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Test class for {@link BatteryStatsDeltaJournal}.
+ *
+ * $ atest FrameworksCoreTests:com.android.internal.os.BatteryStatsDeltaJournalTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BatteryStatsDeltaJournalTest {
+    private File mTestDir;
+    private JournaledFile mBaseFile;
+    private File mJournalFile;
+    private Random mRand = new Random(42);
+
+    private final TreeMap<Integer, byte[]> mUids = new TreeMap<>();
+    private final byte[] mHistory = new byte[4096];
+    private final byte[] mHeader = new byte[512];
+    private IntArray mSections;
+
+    @Before
+    public void setUp() {
+        mTestDir = InstrumentationRegistry.getContext().getDir("test", Context.MODE_PRIVATE);
+        mBaseFile = new JournaledFile(new File(mTestDir, "batterystats.bin"),
+                new File(mTestDir, "batterystats.bin.tmp"));
+        mJournalFile = new File(mTestDir, "batterystats-delta.bin");
+        for (int i = 0; i < 200; i++) {
+            final byte[] section = new byte[200];
+            mRand.nextBytes(section);
+            mUids.put(10000 + i, section);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteContents(mTestDir);
+    }
+
+    /** Lays the sections out the way BatteryStatsImpl.writeSummaryToParcel does. */
+    private byte[] buildSummary() {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        mSections = new IntArray();
+        out.write(mHistory, 0, mHistory.length);
+        mSections.add(out.size());
+        out.write(mHeader, 0, mHeader.length);
+        mSections.add(out.size());
+        out.write(toBytes(mUids.size()), 0, 4);
+        for (Map.Entry<Integer, byte[]> entry : mUids.entrySet()) {
+            mSections.add(out.size());
+            out.write(toBytes(entry.getKey()), 0, 4);
+            out.write(entry.getValue(), 0, entry.getValue().length);
+        }
+        mSections.add(out.size());
+        return out.toByteArray();
+    }
+
+    private static byte[] toBytes(int value) {
+        return ByteBuffer.allocate(4).order(ByteOrder.nativeOrder()).putInt(value).array();
+    }
+
+    private BatteryStatsDeltaJournal newJournal() {
+        return new BatteryStatsDeltaJournal(mBaseFile, mJournalFile);
+    }
+
+    @Test
+    public void testReadWithoutData() throws Exception {
+        assertNull(newJournal().read());
+    }
+
+    @Test
+    public void testFirstWriteCompacts() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        final byte[] summary = buildSummary();
+        journal.write(summary, mSections);
+        assertTrue(journal.wasLastWriteCompacted());
+        assertArrayEquals(summary, newJournal().read());
+    }
+
+    @Test
+    public void testDeltaWritesOnlyChangedSections() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        final byte[] first = buildSummary();
+        journal.write(first, mSections);
+
+        mRand.nextBytes(mUids.get(10005));
+        mUids.remove(10010);
+        mUids.put(20000, new byte[16]);
+        final byte[] second = buildSummary();
+        journal.write(second, mSections);
+
+        assertFalse(journal.wasLastWriteCompacted());
+        assertTrue(journal.getLastBytesWritten() < second.length / 10);
+        assertArrayEquals(second, newJournal().read());
+    }
+
+    @Test
+    public void testHistoryIsOnlyWrittenWhenCompacting() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        final byte[] first = buildSummary();
+        journal.write(first, mSections);
+
+        mRand.nextBytes(mHistory);
+        mRand.nextBytes(mHeader);
+        mRand.nextBytes(mUids.get(10005));
+        journal.write(buildSummary(), mSections);
+        assertFalse(journal.wasLastWriteCompacted());
+        assertTrue(journal.getLastBytesWritten() < mHistory.length);
+
+        // The journaled header and uid go with the history of the last compaction.
+        final byte[] expected = buildSummary();
+        System.arraycopy(first, 0, expected, 0, mHistory.length);
+        assertArrayEquals(expected, newJournal().read());
+    }
+
+    @Test
+    public void testChangedHistoryIsEventuallyCompacted() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        journal.write(buildSummary(), mSections);
+        for (int i = 0; i < BatteryStatsDeltaJournal.MAX_WRITES_WITHOUT_HISTORY; i++) {
+            mHistory[i]++;
+            journal.write(buildSummary(), mSections);
+            assertFalse(journal.wasLastWriteCompacted());
+        }
+        mHistory[0]++;
+        final byte[] summary = buildSummary();
+        journal.write(summary, mSections);
+        assertTrue(journal.wasLastWriteCompacted());
+        assertArrayEquals(summary, newJournal().read());
+    }
+
+    @Test
+    public void testUnchangedSummaryWritesNothing() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        journal.write(buildSummary(), mSections);
+        journal.write(buildSummary(), mSections);
+        assertFalse(journal.wasLastWriteCompacted());
+        assertTrue(journal.getLastBytesWritten() == 0);
+    }
+
+    @Test
+    public void testJournalIsCompactedWhenLarge() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        boolean compacted = false;
+        for (int i = 0; i < 50 && !compacted; i++) {
+            for (byte[] section : mUids.values()) {
+                mRand.nextBytes(section);
+            }
+            journal.write(buildSummary(), mSections);
+            compacted = i > 0 && journal.wasLastWriteCompacted();
+        }
+        assertTrue(compacted);
+    }
+
+    @Test
+    public void testTornTailIsDropped() throws Exception {
+        final BatteryStatsDeltaJournal journal = newJournal();
+        journal.write(buildSummary(), mSections);
+        mRand.nextBytes(mUids.get(10001));
+        final byte[] second = buildSummary();
+        journal.write(second, mSections);
+        mRand.nextBytes(mUids.get(10002));
+        journal.write(buildSummary(), mSections);
+
+        // Chop off part of the last record, as if we crashed while appending it.
+        try (RandomAccessFile file = new RandomAccessFile(mJournalFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        final BatteryStatsDeltaJournal reread = newJournal();
+        assertArrayEquals(second, reread.read());
+        final byte[] third = buildSummary();
+        reread.write(third, mSections);
+        assertTrue(reread.wasLastWriteCompacted());
+        assertArrayEquals(third, newJournal().read());
+    }
+}
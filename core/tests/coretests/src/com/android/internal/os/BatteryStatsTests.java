@@ -23,6 +23,7 @@ import org.junit.runners.Suite;
         BatteryStatsCpuTimesTest.class,
         BatteryStatsBackgroundStatsTest.class,
         BatteryStatsCounterTest.class,
+        BatteryStatsDeltaJournalTest.class,
         BatteryStatsDualTimerTest.class,
         BatteryStatsDurationTimerTest.class,
         BatteryStatsHelperTest.class,
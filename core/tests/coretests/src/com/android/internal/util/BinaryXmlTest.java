@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Run with:
+ atest FrameworksCoreTests:com.android.internal.util.BinaryXmlTest
+ */
+public class BinaryXmlTest extends TestCase {
+    private static final String[] VALUES = {
+            "0", "7", "-7", "007", "-0", "+5", "2147483648", "-9223372036854775807",
+            "99999999999999999999", "true", "false", "True", "", "-", "com.example",
+            "über ☃" };
+
+    private static void writeDocument(XmlSerializer serializer) throws Exception {
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            serializer.startTag(null, "package");
+            for (int j = 0; j < VALUES.length; j++) {
+                serializer.attribute(null, "attr" + j, VALUES[j]);
+            }
+            serializer.startTag(null, "empty");
+            serializer.endTag(null, "empty");
+            serializer.startTag(null, "string");
+            serializer.text("text " + i);
+            serializer.endTag(null, "string");
+            serializer.endTag(null, "package");
+        }
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+    }
+
+    private static byte[] write(XmlSerializer serializer) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        writeDocument(serializer);
+        return out.toByteArray();
+    }
+
+    /** Returns the events of a document, skipping whitespace only text. */
+    private static String readEvents(byte[] document) throws Exception {
+        final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                new ByteArrayInputStream(document));
+        final StringBuilder events = new StringBuilder();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type == XmlPullParser.TEXT && parser.isWhitespace()) {
+                continue;
+            }
+            events.append(type).append(' ').append(parser.getDepth()).append(' ')
+                    .append(parser.getName()).append(' ').append(parser.getText());
+            if (type == XmlPullParser.START_TAG) {
+                for (int i = 0; i < parser.getAttributeCount(); i++) {
+                    events.append(' ').append(parser.getAttributeName(i))
+                            .append('=').append(parser.getAttributeValue(i));
+                }
+            }
+            events.append('\n');
+        }
+        return events.toString();
+    }
+
+    public void testBinaryMatchesText() throws Exception {
+        final byte[] text = write(new FastXmlSerializer());
+        final byte[] binary = write(new BinaryXmlSerializer());
+        assertEquals(readEvents(text), readEvents(binary));
+        assertTrue(binary.length < text.length);
+    }
+
+    public void testAttributeValuesRoundTrip() throws Exception {
+        final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                new ByteArrayInputStream(write(new BinaryXmlSerializer())));
+        assertTrue(parser instanceof BinaryXmlPullParser);
+        assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+        assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+        assertEquals("package", parser.getName());
+        for (int j = 0; j < VALUES.length; j++) {
+            assertEquals(VALUES[j], parser.getAttributeValue(null, "attr" + j));
+        }
+        XmlUtils.skipCurrentTag(parser);
+        assertEquals(XmlPullParser.START_TAG, parser.nextTag());
+        assertEquals(2, parser.getDepth());
+    }
+
+    public void testTruncatedDocumentFails() throws Exception {
+        final byte[] binary = write(new BinaryXmlSerializer());
+        final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                new ByteArrayInputStream(Arrays.copyOf(binary, binary.length / 2)));
+        try {
+            while (parser.next() != XmlPullParser.END_DOCUMENT) {
+            }
+            fail("Expected truncated document to fail");
+        } catch (EOFException expected) {
+        }
+    }
+}
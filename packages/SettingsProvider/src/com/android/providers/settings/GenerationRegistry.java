@@ -91,6 +91,28 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Returns the current generation of the table with {@code key}, or -1 if clients can't
+     * track it.
+     */
+    public int getGeneration(int key) {
+        synchronized (mLock) {
+            MemoryIntArray backingStore = getBackingStoreLocked();
+            try {
+                if (backingStore != null) {
+                    final int index = getKeyIndexLocked(key, mKeyToIndexMap, backingStore);
+                    if (index >= 0) {
+                        return backingStore.get(index);
+                    }
+                }
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error reading generation", e);
+                destroyBackingStore();
+            }
+            return -1;
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
@@ -94,6 +94,7 @@ import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
@@ -240,6 +241,14 @@ public class SettingsProvider extends ContentProvider {
         Settings.Global.getMovedToSecureSettings(sGlobalMovedToSecureSettings);
     }
 
+    // Secure settings whose value depends on the caller, so snapshots leave them out.
+    private static final Set<String> SECURE_SETTINGS_NOT_IN_SNAPSHOT = new ArraySet<>();
+    static {
+        SECURE_SETTINGS_NOT_IN_SNAPSHOT.add(Settings.Secure.ANDROID_ID);
+        SECURE_SETTINGS_NOT_IN_SNAPSHOT.add(Settings.Secure.LOCATION_PROVIDERS_ALLOWED);
+        SECURE_SETTINGS_NOT_IN_SNAPSHOT.add("bluetooth_address");
+    }
+
     // Per user secure settings that are cloned for the managed profiles of the user.
     private static final Set<String> sSecureCloneToManagedSettings = new ArraySet<>();
     static {
@@ -382,18 +391,18 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_GLOBAL, setting, args);
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId,
                         /*enableOverride=*/ true);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_SECURE, setting, args);
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(SETTINGS_TYPE_SYSTEM, setting, args);
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -1881,22 +1890,66 @@ public class SettingsProvider extends ContentProvider {
                 "get/set setting for user", null);
     }
 
-    private Bundle packageValueForCallResult(Setting setting,
-            boolean trackingGeneration) {
-        if (!trackingGeneration) {
+    private Bundle packageValueForCallResult(int type, Setting setting, Bundle args) {
+        final boolean trackingGeneration = isTrackingGeneration(args);
+        final boolean wantsSnapshot = isRequestingSnapshot(args);
+        if (!trackingGeneration && !wantsSnapshot) {
             if (setting == null || setting.isNull()) {
                 return NULL_SETTING_BUNDLE;
             }
             return Bundle.forPair(Settings.NameValueTable.VALUE, setting.getValue());
         }
+        if (setting == null) {
+            return NULL_SETTING_BUNDLE;
+        }
         Bundle result = new Bundle();
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        if (trackingGeneration) {
+            mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        }
+        if (wantsSnapshot) {
+            addSnapshotIfShareable(result, type, setting, getRequestingUserId(args));
+        }
         return result;
     }
 
+    /**
+     * Adds a snapshot of the table {@code setting} was read from if every caller like this one
+     * would read the same values from it as from {@link #call}.
+     */
+    private void addSnapshotIfShareable(Bundle result, int type, Setting setting,
+            int requestingUserId) {
+        final int callingUserId = UserHandle.getCallingUserId();
+        final int userId = type == SETTINGS_TYPE_GLOBAL ? UserHandle.USER_SYSTEM : callingUserId;
+        // Reads for other users check permissions for every read.
+        if (requestingUserId != callingUserId || setting.getKey() != makeKey(type, userId)) {
+            return;
+        }
+        // Instant apps may be restricted to fewer settings.
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return;
+        }
+        synchronized (mLock) {
+            // Profiles read some settings from their parent.
+            if (type != SETTINGS_TYPE_GLOBAL && getGroupParentLocked(userId) != userId) {
+                return;
+            }
+            // Without a generation clients can't tell when a snapshot goes stale.
+            final int generation = mSettingsRegistry.mGenerationRegistry.getGeneration(
+                    setting.getKey());
+            SettingsState settingsState = mSettingsRegistry.getSettingsLocked(type, userId);
+            if (generation > 0 && settingsState != null) {
+                mSettingsRegistry.mSnapshotRegistry.addSnapshot(result, setting.getKey(),
+                        generation, settingsState,
+                        type == SETTINGS_TYPE_SECURE ? SECURE_SETTINGS_NOT_IN_SNAPSHOT
+                                : Collections.emptySet());
+            }
+        }
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -1907,6 +1960,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isRequestingSnapshot(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2128,6 +2185,8 @@ public class SettingsProvider extends ContentProvider {
 
         private GenerationRegistry mGenerationRegistry;
 
+        private SnapshotRegistry mSnapshotRegistry;
+
         private final Handler mHandler;
 
         private final BackupManager mBackupManager;
@@ -2137,6 +2196,7 @@ public class SettingsProvider extends ContentProvider {
         public SettingsRegistry() {
             mHandler = new MyHandler(getContext().getMainLooper());
             mGenerationRegistry = new GenerationRegistry(mLock);
+            mSnapshotRegistry = new SnapshotRegistry(mLock);
             mBackupManager = new BackupManager(getContext());
             migrateAllLegacySettingsIfNeeded();
             syncSsaidTableOnStart();
@@ -2385,6 +2445,7 @@ public class SettingsProvider extends ContentProvider {
 
             // Nuke generation tracking data
             mGenerationRegistry.onUserRemoved(userId);
+            mSnapshotRegistry.onUserRemoved(userId);
         }
 
         public boolean insertSettingLocked(int type, int userId, String name, String value,
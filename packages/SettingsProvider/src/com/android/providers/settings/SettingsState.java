@@ -30,12 +30,15 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
+import android.os.SharedMemory;
 import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
+import android.provider.SettingsSnapshot;
 import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.AtomicFile;
@@ -327,6 +330,26 @@ final class SettingsState {
         return names;
     }
 
+    /**
+     * Writes a {@link SettingsSnapshot} of the settings to shared memory, leaving out
+     * {@code askProviderNames}. The settings provider must hold its lock when calling here.
+     */
+    public SharedMemory createSnapshotLocked(int generation, Set<String> askProviderNames)
+            throws ErrnoException {
+        final int settingsCount = mSettings.size();
+        final ArrayList<String> names = new ArrayList<>(settingsCount);
+        final ArrayList<String> values = new ArrayList<>(settingsCount);
+        for (int i = 0; i < settingsCount; i++) {
+            final String name = mSettings.keyAt(i);
+            if (askProviderNames.contains(name)) {
+                continue;
+            }
+            names.add(name);
+            values.add(mSettings.valueAt(i).getValue());
+        }
+        return SettingsSnapshot.write(generation, names, values, askProviderNames);
+    }
+
     // The settings provider must hold its lock when calling here.
     public Setting getSettingLocked(String name) {
         if (TextUtils.isEmpty(name)) {
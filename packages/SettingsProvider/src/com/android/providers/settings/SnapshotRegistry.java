@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.providers.settings;
+
+import android.os.Bundle;
+import android.os.SharedMemory;
+import android.provider.Settings;
+import android.system.ErrnoException;
+import android.util.Slog;
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+import com.android.internal.annotations.GuardedBy;
+
+import java.util.Set;
+
+/**
+ * This class keeps a read-only shared memory snapshot of the
+ * global/secure/system tables on a per user basis, at the generation
+ * they had when a client last asked for one, so client processes can
+ * read settings without calling the provider until the table changes.
+ */
+final class SnapshotRegistry {
+    private static final String LOG_TAG = "SnapshotRegistry";
+
+    private static final boolean DEBUG = false;
+
+    private final Object mLock;
+
+    // Snapshots that went stale aren't closed here as they may still be on their way to a
+    // client; each closes once nothing references it.
+    @GuardedBy("mLock")
+    private final SparseArray<SharedMemory> mSnapshots = new SparseArray<>();
+
+    @GuardedBy("mLock")
+    private final SparseIntArray mGenerations = new SparseIntArray();
+
+    public SnapshotRegistry(Object lock) {
+        mLock = lock;
+    }
+
+    public void addSnapshot(Bundle bundle, int key, int generation, SettingsState settingsState,
+            Set<String> askProviderNames) {
+        synchronized (mLock) {
+            SharedMemory snapshot = mSnapshots.get(key);
+            if (snapshot == null || mGenerations.get(key) != generation) {
+                try {
+                    snapshot = settingsState.createSnapshotLocked(generation, askProviderNames);
+                } catch (ErrnoException e) {
+                    Slog.e(LOG_TAG, "Error creating snapshot", e);
+                    return;
+                }
+                mSnapshots.put(key, snapshot);
+                mGenerations.put(key, generation);
+                if (DEBUG) {
+                    Slog.i(LOG_TAG, "Created snapshot at generation:" + generation
+                            + " for key:" + SettingsProvider.keyToString(key));
+                }
+            }
+            bundle.putParcelable(Settings.CALL_METHOD_SNAPSHOT_KEY, snapshot);
+        }
+    }
+
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            final int secureKey = SettingsProvider.makeKey(
+                    SettingsProvider.SETTINGS_TYPE_SECURE, userId);
+            mSnapshots.remove(secureKey);
+            mGenerations.delete(secureKey);
+
+            final int systemKey = SettingsProvider.makeKey(
+                    SettingsProvider.SETTINGS_TYPE_SYSTEM, userId);
+            mSnapshots.remove(systemKey);
+            mGenerations.delete(systemKey);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+/**
+ * Alarm batches ordered by start time, as an interval tree: a randomized balanced tree in which
+ * every node also knows how many batches its subtree holds and the latest end of the batches
+ * in it that can take more alarms. Adding or removing a batch, looking up the n-th one and
+ * finding the first batch whose window overlaps a new alarm's all take O(log n).
+ *
+ * <p>The tree keeps the start and end each batch had when it was added. A batch whose window
+ * changes has to be {@link #update updated} to be put back in its place.
+ */
+final class AlarmBatchTree<B extends AlarmBatchTree.Interval> implements Iterable<B> {
+    /** A batch of alarms to be delivered together, somewhere between its start and end. */
+    interface Interval {
+        long getStart();
+
+        long getEnd();
+
+        /** Whether the batch can't take any other alarm. */
+        boolean isStandalone();
+    }
+
+    private static final class Node<B> {
+        final B batch;
+        final long start;
+        final long end;
+        final boolean standalone;
+        final long seq;
+        final int priority;
+
+        Node<B> left;
+        Node<B> right;
+        int size;
+        /** Latest end of the batches in this subtree that can take more alarms. */
+        long maxEnd;
+
+        Node(B batch, long start, long end, boolean standalone, long seq, int priority) {
+            this.batch = batch;
+            this.start = start;
+            this.end = end;
+            this.standalone = standalone;
+            this.seq = seq;
+            this.priority = priority;
+            size = 1;
+            maxEnd = standalone ? Long.MIN_VALUE : end;
+        }
+    }
+
+    private final HashMap<B, Node<B>> mNodes = new HashMap<>();
+    private final Random mRandom = new Random();
+    private Node<B> mRoot;
+    /** Orders batches with the same start by when they were added. */
+    private long mNextSeq;
+
+    int size() {
+        return mRoot != null ? mRoot.size : 0;
+    }
+
+    boolean contains(B batch) {
+        return mNodes.containsKey(batch);
+    }
+
+    /** Returns the batch at {@code index} in start time order. */
+    B get(int index) {
+        if (index < 0 || index >= size()) {
+            throw new IndexOutOfBoundsException("index=" + index + " size=" + size());
+        }
+        Node<B> n = mRoot;
+        while (true) {
+            final int leftSize = size(n.left);
+            if (index < leftSize) {
+                n = n.left;
+            } else if (index == leftSize) {
+                return n.batch;
+            } else {
+                index -= leftSize + 1;
+                n = n.right;
+            }
+        }
+    }
+
+    /**
+     * Adds {@code batch}, after the batches that start at the same time.
+     *
+     * @return whether the batch is now the first one.
+     */
+    boolean add(B batch) {
+        final Node<B> node = new Node<>(batch, batch.getStart(), batch.getEnd(),
+                batch.isStandalone(), mNextSeq++, mRandom.nextInt());
+        final Node<B> old = mNodes.put(batch, node);
+        if (old != null) {
+            mRoot = delete(mRoot, old);
+        }
+        mRoot = insert(mRoot, node);
+        return first(mRoot) == node;
+    }
+
+    boolean remove(B batch) {
+        final Node<B> node = mNodes.remove(batch);
+        if (node == null) {
+            return false;
+        }
+        mRoot = delete(mRoot, node);
+        return true;
+    }
+
+    B removeAt(int index) {
+        final B batch = get(index);
+        remove(batch);
+        return batch;
+    }
+
+    /** Moves {@code batch} to where its current window puts it. */
+    void update(B batch) {
+        final Node<B> node = mNodes.get(batch);
+        if (node != null && (node.start != batch.getStart() || node.end != batch.getEnd()
+                || node.standalone != batch.isStandalone())) {
+            add(batch);
+        }
+    }
+
+    void clear() {
+        mNodes.clear();
+        mRoot = null;
+    }
+
+    /**
+     * Returns the first batch, in start time order, that can take an alarm to be delivered
+     * between {@code whenElapsed} and {@code maxWhen}, or null if there is none.
+     */
+    B findFirstOverlapping(long whenElapsed, long maxWhen) {
+        // The first batch ending no earlier than whenElapsed has the earliest start of all
+        // batches that do; the alarm fits in it if it starts no later than maxWhen.
+        Node<B> n = mRoot;
+        while (n != null && n.maxEnd >= whenElapsed) {
+            if (n.left != null && n.left.maxEnd >= whenElapsed) {
+                n = n.left;
+            } else if (!n.standalone && n.end >= whenElapsed) {
+                return n.start <= maxWhen ? n.batch : null;
+            } else {
+                n = n.right;
+            }
+        }
+        return null;
+    }
+
+    /** Returns the batches in start time order. */
+    ArrayList<B> toList() {
+        final ArrayList<B> list = new ArrayList<>(size());
+        for (B batch : this) {
+            list.add(batch);
+        }
+        return list;
+    }
+
+    @Override
+    public Iterator<B> iterator() {
+        return new Iterator<B>() {
+            private final ArrayDeque<Node<B>> mStack = new ArrayDeque<>();
+
+            {
+                pushLeft(mRoot);
+            }
+
+            private void pushLeft(Node<B> n) {
+                for (; n != null; n = n.left) {
+                    mStack.push(n);
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                return !mStack.isEmpty();
+            }
+
+            @Override
+            public B next() {
+                if (mStack.isEmpty()) {
+                    throw new NoSuchElementException();
+                }
+                final Node<B> n = mStack.pop();
+                pushLeft(n.right);
+                return n.batch;
+            }
+        };
+    }
+
+    private static int size(Node<?> n) {
+        return n != null ? n.size : 0;
+    }
+
+    private static <B> Node<B> first(Node<B> n) {
+        while (n != null && n.left != null) {
+            n = n.left;
+        }
+        return n;
+    }
+
+    private static boolean isBefore(Node<?> a, Node<?> b) {
+        return a.start < b.start || (a.start == b.start && a.seq < b.seq);
+    }
+
+    private static void refresh(Node<?> n) {
+        n.size = 1 + size(n.left) + size(n.right);
+        long maxEnd = n.standalone ? Long.MIN_VALUE : n.end;
+        if (n.left != null && n.left.maxEnd > maxEnd) {
+            maxEnd = n.left.maxEnd;
+        }
+        if (n.right != null && n.right.maxEnd > maxEnd) {
+            maxEnd = n.right.maxEnd;
+        }
+        n.maxEnd = maxEnd;
+    }
+
+    private static <B> Node<B> insert(Node<B> n, Node<B> node) {
+        if (n == null) {
+            return node;
+        }
+        if (isBefore(node, n)) {
+            n.left = insert(n.left, node);
+            if (n.left.priority > n.priority) {
+                return rotateRight(n);
+            }
+        } else {
+            n.right = insert(n.right, node);
+            if (n.right.priority > n.priority) {
+                return rotateLeft(n);
+            }
+        }
+        refresh(n);
+        return n;
+    }
+
+    private static <B> Node<B> delete(Node<B> n, Node<B> node) {
+        if (n == null) {
+            return null;
+        }
+        if (n == node) {
+            return merge(n.left, n.right);
+        }
+        if (isBefore(node, n)) {
+            n.left = delete(n.left, node);
+        } else {
+            n.right = delete(n.right, node);
+        }
+        refresh(n);
+        return n;
+    }
+
+    /** Joins two subtrees, all of {@code a} ordered before all of {@code b}. */
+    private static <B> Node<B> merge(Node<B> a, Node<B> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            a.right = merge(a.right, b);
+            refresh(a);
+            return a;
+        } else {
+            b.left = merge(a, b.left);
+            refresh(b);
+            return b;
+        }
+    }
+
+    private static <B> Node<B> rotateRight(Node<B> n) {
+        final Node<B> l = n.left;
+        n.left = l.right;
+        l.right = n;
+        refresh(n);
+        refresh(l);
+        return l;
+    }
+
+    private static <B> Node<B> rotateLeft(Node<B> n) {
+        final Node<B> r = n.right;
+        n.right = r.left;
+        r.left = n;
+        refresh(n);
+        refresh(r);
+        return r;
+    }
+}
@@ -492,7 +492,7 @@ class AlarmManagerService extends SystemService {
     final LinkedList<WakeupEvent> mRecentWakeups = new LinkedList<WakeupEvent>();
     final long RECENT_WAKEUP_PERIOD = 1000L * 60 * 60 * 24; // one day
 
-    final class Batch {
+    final class Batch implements AlarmBatchTree.Interval {
         long start;     // These endpoints are always in ELAPSED
         long end;
         int flags;      // Flags for alarms, such as FLAG_STANDALONE.
@@ -510,6 +510,7 @@ class AlarmManagerService extends SystemService {
             end = clampPositive(seed.maxWhenElapsed);
             flags = seed.flags;
             alarms.add(seed);
+            indexBatchedAlarmLocked(seed, this);
             if (seed.operation == mTimeTickSender) {
                 mLastTickAdded = System.currentTimeMillis();
             }
@@ -523,6 +524,21 @@ class AlarmManagerService extends SystemService {
             return alarms.get(index);
         }
 
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isStandalone() {
+            return (flags & AlarmManager.FLAG_STANDALONE) != 0;
+        }
+
         boolean canHold(long whenElapsed, long maxWhen) {
             return (end >= whenElapsed) && (start <= maxWhen);
         }
@@ -535,6 +551,7 @@ class AlarmManagerService extends SystemService {
                 index = 0 - index - 1;
             }
             alarms.add(index, alarm);
+            indexBatchedAlarmLocked(alarm, this);
             if (alarm.operation == mTimeTickSender) {
                 mLastTickAdded = System.currentTimeMillis();
             }
@@ -569,6 +586,7 @@ class AlarmManagerService extends SystemService {
                 Alarm alarm = alarms.get(i);
                 if (predicate.test(alarm)) {
                     alarms.remove(i);
+                    unindexBatchedAlarmLocked(alarm, this);
                     didRemove = true;
                     if (alarm.alarmClock != null) {
                         mNextAlarmClockMayChange = true;
@@ -649,20 +667,6 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    static class BatchTimeOrder implements Comparator<Batch> {
-        public int compare(Batch b1, Batch b2) {
-            long when1 = b1.start;
-            long when2 = b2.start;
-            if (when1 > when2) {
-                return 1;
-            }
-            if (when1 < when2) {
-                return -1;
-            }
-            return 0;
-        }
-    }
-
     final Comparator<Alarm> mAlarmDispatchComparator = new Comparator<Alarm>() {
         @Override
         public int compare(Alarm lhs, Alarm rhs) {
@@ -726,8 +730,15 @@ class AlarmManagerService extends SystemService {
 
     // minimum recurrence period or alarm futurity for us to be able to fuzz it
     static final long MIN_FUZZABLE_INTERVAL = 10000;
-    static final BatchTimeOrder sBatchOrder = new BatchTimeOrder();
-    final ArrayList<Batch> mAlarmBatches = new ArrayList<>();
+    final AlarmBatchTree<Batch> mAlarmBatches = new AlarmBatchTree<>();
+
+    /**
+     * The batches holding each alarm in {@link #mAlarmBatches}, by the alarm's PendingIntent or
+     * the binder of its listener, so that an alarm can be removed without looking through all
+     * of them.
+     */
+    final HashMap<Object, ArrayList<Batch>> mBatchesByAlarmKey = new HashMap<>();
+    private final ArraySet<Batch> mTmpBatchSet = new ArraySet<>();
 
     // set to non-null if in idle mode; while in this mode, any alarms we don't want
     // to run during this time are placed in mPendingWhileIdleAlarms
@@ -766,51 +777,75 @@ class AlarmManagerService extends SystemService {
         return clampPositive(triggerAtTime + (long)(.75 * futurity));
     }
 
-    // returns true if the batch was added at the head
-    static boolean addBatchLocked(ArrayList<Batch> list, Batch newBatch) {
-        int index = Collections.binarySearch(list, newBatch, sBatchOrder);
-        if (index < 0) {
-            index = 0 - index - 1;
-        }
-        list.add(index, newBatch);
-        return (index == 0);
-    }
-
     private void insertAndBatchAlarmLocked(Alarm alarm) {
-        final int whichBatch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? -1
+        final Batch batch = ((alarm.flags & AlarmManager.FLAG_STANDALONE) != 0) ? null
                 : attemptCoalesceLocked(alarm.whenElapsed, alarm.maxWhenElapsed);
 
-        if (whichBatch < 0) {
-            addBatchLocked(mAlarmBatches, new Batch(alarm));
+        if (batch == null) {
+            mAlarmBatches.add(new Batch(alarm));
         } else {
-            final Batch batch = mAlarmBatches.get(whichBatch);
-            if (batch.add(alarm)) {
-                // The start time of this batch advanced, so batch ordering may
-                // have just been broken.  Move it to where it now belongs.
-                mAlarmBatches.remove(whichBatch);
-                addBatchLocked(mAlarmBatches, batch);
-            }
+            batch.add(alarm);
+            // The window of this batch may have narrowed, so batch ordering may
+            // have just been broken.  Move it to where it now belongs.
+            mAlarmBatches.update(batch);
         }
     }
 
-    // Return the index of the matching batch, or -1 if none found.
-    int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
-            if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
-                return i;
-            }
+    // Return the first batch that can hold the alarm, or null if none found.
+    Batch attemptCoalesceLocked(long whenElapsed, long maxWhen) {
+        return mAlarmBatches.findFirstOverlapping(whenElapsed, maxWhen);
+    }
+
+    private void indexBatchedAlarmLocked(Alarm alarm, Batch batch) {
+        final Object key = alarm.operation != null ? alarm.operation
+                : alarm.listener != null ? alarm.listener.asBinder() : null;
+        if (key == null) {
+            return;
         }
-        return -1;
+        ArrayList<Batch> batches = mBatchesByAlarmKey.get(key);
+        if (batches == null) {
+            batches = new ArrayList<>(1);
+            mBatchesByAlarmKey.put(key, batches);
+        }
+        batches.add(batch);
     }
+
+    private void unindexBatchedAlarmLocked(Alarm alarm, Batch batch) {
+        final Object key = alarm.operation != null ? alarm.operation
+                : alarm.listener != null ? alarm.listener.asBinder() : null;
+        final ArrayList<Batch> batches = key != null ? mBatchesByAlarmKey.get(key) : null;
+        if (batches != null && batches.remove(batch) && batches.isEmpty()) {
+            mBatchesByAlarmKey.remove(key);
+        }
+    }
+
+    /** Removes all batches, and the alarms in them, from {@link #mAlarmBatches}. */
+    private void clearBatchesLocked() {
+        mAlarmBatches.clear();
+        mBatchesByAlarmKey.clear();
+    }
+
+    /** Adds the alarms left in {@code batch}, no longer in {@link #mAlarmBatches}, again. */
+    private void rebatchAlarmsLocked(Batch batch) {
+        for (int i = 0; i < batch.size(); i++) {
+            unindexBatchedAlarmLocked(batch.get(i), batch);
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            insertAndBatchAlarmLocked(batch.get(i));
+        }
+    }
+
+    private static <T> void addAllIfNotNull(ArraySet<T> set, ArrayList<T> items) {
+        if (items != null) {
+            set.addAll(items);
+        }
+    }
+
     /** @return total count of the alarms in a set of alarm batches. */
-    static int getAlarmCount(ArrayList<Batch> batches) {
+    static int getAlarmCount(Iterable<Batch> batches) {
         int ret = 0;
-
-        final int size = batches.size();
-        for (int i = 0; i < size; i++) {
-            ret += batches.get(i).size();
+        for (Batch b : batches) {
+            ret += b.size();
         }
         return ret;
     }
@@ -828,10 +863,9 @@ class AlarmManagerService extends SystemService {
         return false;
     }
 
-    boolean haveBatchesTimeTickAlarm(ArrayList<Batch> batches) {
-        final int numBatches = batches.size();
-        for (int i = 0; i < numBatches; i++) {
-            if (haveAlarmsTimeTickAlarm(batches.get(i).alarms)) {
+    boolean haveBatchesTimeTickAlarm(Iterable<Batch> batches) {
+        for (Batch b : batches) {
+            if (haveAlarmsTimeTickAlarm(b.alarms)) {
                 return true;
             }
         }
@@ -852,8 +886,8 @@ class AlarmManagerService extends SystemService {
         final boolean oldHasTick = haveBatchesTimeTickAlarm(mAlarmBatches)
                 || haveAlarmsTimeTickAlarm(mPendingWhileIdleAlarms);
 
-        ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
-        mAlarmBatches.clear();
+        ArrayList<Batch> oldSet = mAlarmBatches.toList();
+        clearBatchesLocked();
         Alarm oldPendingIdleUntil = mPendingIdleUntil;
         final long nowElapsed = SystemClock.elapsedRealtime();
         final int oldBatches = oldSet.size();
@@ -900,8 +934,10 @@ class AlarmManagerService extends SystemService {
         final long start = mStatLogger.getTime();
         final ArrayList<Alarm> rescheduledAlarms = new ArrayList<>();
 
-        for (int batchIndex = mAlarmBatches.size() - 1; batchIndex >= 0; batchIndex--) {
-            final Batch batch = mAlarmBatches.get(batchIndex);
+        final ArrayList<Batch> batches = mAlarmBatches.toList();
+        for (int batchIndex = batches.size() - 1; batchIndex >= 0; batchIndex--) {
+            final Batch batch = batches.get(batchIndex);
+            boolean changed = false;
             for (int alarmIndex = batch.size() - 1; alarmIndex >= 0; alarmIndex--) {
                 final Alarm alarm = batch.get(alarmIndex);
                 final Pair<String, Integer> packageUser =
@@ -912,10 +948,13 @@ class AlarmManagerService extends SystemService {
                 if (adjustDeliveryTimeBasedOnStandbyBucketLocked(alarm)) {
                     batch.remove(alarm);
                     rescheduledAlarms.add(alarm);
+                    changed = true;
                 }
             }
             if (batch.size() == 0) {
-                mAlarmBatches.remove(batchIndex);
+                mAlarmBatches.remove(batch);
+            } else if (changed) {
+                mAlarmBatches.update(batch);
             }
         }
         for (int i = 0; i < rescheduledAlarms.size(); i++) {
@@ -2489,10 +2528,9 @@ class AlarmManagerService extends SystemService {
         PrintWriter pw = new PrintWriter(bs);
         final long nowRTC = System.currentTimeMillis();
         final long nowELAPSED = SystemClock.elapsedRealtime();
-        final int NZ = mAlarmBatches.size();
-        for (int iz = 0; iz < NZ; iz++) {
-            Batch bz = mAlarmBatches.get(iz);
-            pw.append("Batch "); pw.print(iz); pw.append(": "); pw.println(bz);
+        int iz = 0;
+        for (Batch bz : mAlarmBatches) {
+            pw.append("Batch "); pw.print(iz++); pw.append(": "); pw.println(bz);
             dumpAlarmList(pw, bz.alarms, "  ", nowELAPSED, nowRTC, sdf);
             pw.flush();
             Slog.v(TAG, bs.toString());
@@ -2503,9 +2541,8 @@ class AlarmManagerService extends SystemService {
     private boolean validateConsistencyLocked() {
         if (DEBUG_VALIDATE) {
             long lastTime = Long.MIN_VALUE;
-            final int N = mAlarmBatches.size();
-            for (int i = 0; i < N; i++) {
-                Batch b = mAlarmBatches.get(i);
+            int i = 0;
+            for (Batch b : mAlarmBatches) {
                 if (b.start >= lastTime) {
                     // duplicate start times are okay because of standalone batches
                     lastTime = b.start;
@@ -2515,15 +2552,14 @@ class AlarmManagerService extends SystemService {
                     logBatchesLocked(sdf);
                     return false;
                 }
+                i++;
             }
         }
         return true;
     }
 
     private Batch findFirstWakeupBatchLocked() {
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            Batch b = mAlarmBatches.get(i);
+        for (Batch b : mAlarmBatches) {
             if (b.hasWakeups()) {
                 return b;
             }
@@ -2555,9 +2591,8 @@ class AlarmManagerService extends SystemService {
         SparseArray<AlarmManager.AlarmClockInfo> nextForUser = mTmpSparseAlarmClockArray;
         nextForUser.clear();
 
-        final int N = mAlarmBatches.size();
-        for (int i = 0; i < N; i++) {
-            ArrayList<Alarm> alarms = mAlarmBatches.get(i).alarms;
+        for (Batch b : mAlarmBatches) {
+            ArrayList<Alarm> alarms = b.alarms;
             final int M = alarms.size();
 
             for (int j = 0; j < M; j++) {
@@ -2709,13 +2744,26 @@ class AlarmManagerService extends SystemService {
 
         boolean didRemove = false;
         final Predicate<Alarm> whichAlarms = (Alarm a) -> a.matches(operation, directReceiver);
-        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
-            Batch b = mAlarmBatches.get(i);
-            didRemove |= b.remove(whichAlarms);
-            if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+        // Only the batches holding these alarms need to be looked at.
+        final ArraySet<Batch> batches = mTmpBatchSet;
+        if (operation != null) {
+            addAllIfNotNull(batches, mBatchesByAlarmKey.get(operation));
+        }
+        if (directReceiver != null) {
+            addAllIfNotNull(batches, mBatchesByAlarmKey.get(directReceiver.asBinder()));
+        }
+        final ArrayList<Batch> changedBatches = new ArrayList<>();
+        for (int i = 0; i < batches.size(); i++) {
+            final Batch b = batches.valueAt(i);
+            if (b.remove(whichAlarms)) {
+                didRemove = true;
+                mAlarmBatches.remove(b);
+                if (b.size() > 0) {
+                    changedBatches.add(b);
+                }
             }
         }
+        batches.clear();
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
             if (mPendingWhileIdleAlarms.get(i).matches(operation, directReceiver)) {
                 // Don't set didRemove, since this doesn't impact the scheduled alarms.
@@ -2739,14 +2787,30 @@ class AlarmManagerService extends SystemService {
                 Slog.v(TAG, "remove(operation) changed bounds; rebatching");
             }
             boolean restorePending = false;
+            boolean rebatchAll = false;
             if (mPendingIdleUntil != null && mPendingIdleUntil.matches(operation, directReceiver)) {
                 mPendingIdleUntil = null;
                 restorePending = true;
+                rebatchAll = true;
             }
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
+                rebatchAll = true;
+            }
+            if (rebatchAll) {
+                // The idle until alarm may need to move.
+                for (int i = 0; i < changedBatches.size(); i++) {
+                    mAlarmBatches.add(changedBatches.get(i));
+                }
+                rebatchAllAlarmsLocked(true);
+            } else {
+                // Only the batches that lost alarms changed bounds; let the alarms left in
+                // them join whichever batches suit them now.
+                for (int i = 0; i < changedBatches.size(); i++) {
+                    rebatchAlarmsLocked(changedBatches.get(i));
+                }
+                rescheduleKernelAlarmsLocked();
             }
-            rebatchAllAlarmsLocked(true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2765,7 +2829,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2812,7 +2876,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         final boolean newHasTick = haveBatchesTimeTickAlarm(mAlarmBatches);
@@ -2867,7 +2931,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2904,7 +2968,7 @@ class AlarmManagerService extends SystemService {
             Batch b = mAlarmBatches.get(i);
             didRemove |= b.remove(whichAlarms);
             if (b.size() == 0) {
-                mAlarmBatches.remove(i);
+                mAlarmBatches.removeAt(i);
             }
         }
         for (int i = mPendingWhileIdleAlarms.size() - 1; i >= 0; i--) {
@@ -2962,8 +3026,7 @@ class AlarmManagerService extends SystemService {
     }
 
     boolean lookForPackageLocked(String packageName) {
-        for (int i = 0; i < mAlarmBatches.size(); i++) {
-            Batch b = mAlarmBatches.get(i);
+        for (Batch b : mAlarmBatches) {
             if (b.hasPackage(packageName)) {
                 return true;
             }
@@ -3101,9 +3164,12 @@ class AlarmManagerService extends SystemService {
 
             // We will (re)schedule some alarms now; don't let that interfere
             // with delivery of this current batch
-            mAlarmBatches.remove(0);
+            mAlarmBatches.removeAt(0);
 
             final int N = batch.size();
+            for (int i = 0; i < N; i++) {
+                unindexBatchedAlarmLocked(batch.get(i), batch);
+            }
             for (int i = 0; i < N; i++) {
                 Alarm alarm = batch.get(i);
 
@@ -3378,10 +3444,8 @@ class AlarmManagerService extends SystemService {
         }
     }
 
-    void recordWakeupAlarms(ArrayList<Batch> batches, long nowELAPSED, long nowRTC) {
-        final int numBatches = batches.size();
-        for (int nextBatch = 0; nextBatch < numBatches; nextBatch++) {
-            Batch b = batches.get(nextBatch);
+    void recordWakeupAlarms(Iterable<Batch> batches, long nowELAPSED, long nowRTC) {
+        for (Batch b : batches) {
             if (b.start > nowELAPSED) {
                 break;
             }
@@ -434,6 +434,62 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    /**
+     * Results of {@link #checkOperation} that can be read without holding the service lock.
+     * Decisions are only added while holding the lock, and the entries of a uid are replaced
+     * rather than modified whenever state that went into them changes, so a reader sees
+     * either a current decision or none at all.
+     */
+    @VisibleForTesting
+    static final class CheckModeCache {
+        static final int MODE_UNKNOWN = -1;
+
+        // uid -> package name -> mode by op code; copy-on-write apart from filling in modes.
+        private volatile SparseArray<ArrayMap<String, int[]>> mModes = new SparseArray<>();
+
+        int get(int uid, String packageName, int code) {
+            final ArrayMap<String, int[]> packages = mModes.get(uid);
+            if (packages == null) {
+                return MODE_UNKNOWN;
+            }
+            final int[] modes = packages.get(packageName);
+            return modes != null ? modes[code] : MODE_UNKNOWN;
+        }
+
+        void putLocked(int uid, String packageName, int code, int mode) {
+            final ArrayMap<String, int[]> packages = mModes.get(uid);
+            int[] modes = packages != null ? packages.get(packageName) : null;
+            if (modes == null) {
+                modes = new int[AppOpsManager._NUM_OP];
+                Arrays.fill(modes, MODE_UNKNOWN);
+                final ArrayMap<String, int[]> newPackages = packages != null
+                        ? new ArrayMap<>(packages) : new ArrayMap<>(1);
+                newPackages.put(packageName, modes);
+                final SparseArray<ArrayMap<String, int[]>> newModes = mModes.clone();
+                newModes.put(uid, newPackages);
+                mModes = newModes;
+            }
+            modes[code] = mode;
+        }
+
+        // Only get() and clone() are used on a published array, since the other accessors
+        // may compact it in place.
+        void invalidateLocked(int uid) {
+            if (mModes.get(uid) != null) {
+                final SparseArray<ArrayMap<String, int[]>> newModes = mModes.clone();
+                newModes.delete(uid);
+                mModes = newModes;
+            }
+        }
+
+        void invalidateAllLocked() {
+            mModes = new SparseArray<>();
+        }
+    }
+
+    @VisibleForTesting
+    final CheckModeCache mCheckModeCache = new CheckModeCache();
+
     final SparseArray<ArraySet<ModeCallback>> mOpModeWatchers = new SparseArray<>();
     final ArrayMap<String, ArraySet<ModeCallback>> mPackageModeWatchers = new ArrayMap<>();
     final ArrayMap<IBinder, ModeCallback> mModeWatchers = new ArrayMap<>();
@@ -637,6 +693,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                     mUidStates.removeAt(i);
                 }
             }
+            mCheckModeCache.invalidateAllLocked();
             if (changed) {
                 scheduleFastWriteLocked();
             }
@@ -703,6 +760,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (uidState.pkgOps != null) {
                 ops = uidState.pkgOps.remove(packageName);
             }
+            mCheckModeCache.invalidateLocked(uid);
 
             // If we just nuked the last package state check if the UID is valid.
             if (ops != null && uidState.pkgOps.isEmpty()
@@ -750,6 +808,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                mCheckModeCache.invalidateLocked(uid);
                 scheduleFastWriteLocked();
             }
         }
@@ -778,6 +837,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                         settleTime = mConstants.BG_STATE_SETTLE_TIME;
                     }
                     uidState.pendingStateCommitTime = SystemClock.uptimeMillis() + settleTime;
+                    // Checks need to go through getUidStateLocked() to commit it when due.
+                    mCheckModeCache.invalidateLocked(uid);
                 }
                 if (uidState.startNesting != 0) {
                     // There is some actively running operation...  need to find it
@@ -998,6 +1059,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         synchronized (this) {
             final int defaultMode = AppOpsManager.opToDefaultMode(code);
+            mCheckModeCache.invalidateLocked(uid);
 
             UidState uidState = getUidStateLocked(uid, false);
             if (uidState == null) {
@@ -1105,6 +1167,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
+                    mCheckModeCache.invalidateLocked(uid);
                     if (uidState != null) {
                         uidState.evalForegroundOps(mOpModeWatchers);
                     }
@@ -1231,6 +1294,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
         HashMap<ModeCallback, ArrayList<ChangeRec>> callbacks = null;
         synchronized (this) {
+            mCheckModeCache.invalidateAllLocked();
             boolean changed = false;
             for (int i = mUidStates.size() - 1; i >= 0; i--) {
                 UidState uidState = mUidStates.valueAt(i);
@@ -1426,22 +1490,40 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final int cachedMode = mCheckModeCache.get(uid, resolvedPackageName, code);
+        if (cachedMode != CheckModeCache.MODE_UNKNOWN) {
+            return cachedMode;
+        }
         synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            // Only remember decisions for packages already validated for the uid, so that
+            // callers can't grow the cache with made up names, and not while a uid state
+            // change is waiting to be committed by the next locked access.
+            final UidState uidState = mUidStates.get(uid);
+            if (uidState != null && uidState.pendingStateCommitTime == 0
+                    && uidState.pkgOps != null
+                    && uidState.pkgOps.containsKey(resolvedPackageName)) {
+                mCheckModeCache.putLocked(uid, resolvedPackageName, code, mode);
             }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
-            }
-            return op.mode;
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String packageName) {
+        if (isOpRestrictedLocked(uid, code, packageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, packageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
         }
+        return op.mode;
     }
 
     @Override
@@ -2145,6 +2227,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
         }
         synchronized (this) {
+            mCheckModeCache.invalidateAllLocked();
             upgradeLocked(oldVersion);
         }
     }
@@ -3495,6 +3578,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (restrictionState.setRestriction(code, restricted, exceptionPackages, userHandle)) {
+                mCheckModeCache.invalidateAllLocked();
                 mHandler.sendMessage(PooledLambda.obtainMessage(
                         AppOpsService::notifyWatchersOfChange, this, code, UID_ANY));
             }
@@ -3529,6 +3613,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 opRestrictions.removeUser(userHandle);
             }
             removeUidsForUserLocked(userHandle);
+            mCheckModeCache.invalidateAllLocked();
         }
     }
 
@@ -3741,6 +3826,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                mCheckModeCache.invalidateAllLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
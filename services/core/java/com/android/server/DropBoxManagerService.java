@@ -49,6 +49,7 @@ import com.android.internal.util.DumpUtils;
 import com.android.internal.util.ObjectUtils;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileOutputStream;
@@ -76,6 +77,8 @@ public final class DropBoxManagerService extends SystemService {
     private static final int DEFAULT_QUOTA_PERCENT = 10;
     private static final int DEFAULT_RESERVE_PERCENT = 10;
     private static final int QUOTA_RESCAN_MILLIS = 5000;
+    /** Entries that take up to this much space, once compressed, go to the ring store. */
+    private static final int MAX_PACKED_BYTES = 16 * 1024;
 
     // mHandler 'what' value.
     private static final int MSG_SEND_BROADCAST = 1;
@@ -95,6 +98,9 @@ public final class DropBoxManagerService extends SystemService {
 
     private FileList mAllFiles = null;
     private ArrayMap<String, FileList> mFilesByTag = null;
+    /** Holds small entries and tombstones, rather than a file for each. */
+    private DropBoxRingStore mRingStore = null;
+    private volatile boolean mRingStoreEnabled = true;
 
     // Various bits of disk information
 
@@ -229,6 +235,7 @@ public final class DropBoxManagerService extends SystemService {
         File temp = null;
         InputStream input = null;
         OutputStream output = null;
+        SpillingOutputStream spill = null;
         final String tag = entry.getTag();
         try {
             int flags = entry.getFlags();
@@ -253,14 +260,17 @@ public final class DropBoxManagerService extends SystemService {
             }
 
             // If we have at least one block, compress it -- otherwise, just write
-            // the data in uncompressed form.
+            // the data in uncompressed form.  Small entries are kept in memory and go
+            // to the ring store; the others are written to a temporary file.
 
             temp = new File(mDropBoxDir, "drop" + Thread.currentThread().getId() + ".tmp");
             int bufferSize = mBlockSize;
             if (bufferSize > 4096) bufferSize = 4096;
             if (bufferSize < 512) bufferSize = 512;
-            FileOutputStream foutput = new FileOutputStream(temp);
-            output = new BufferedOutputStream(foutput, bufferSize);
+            // A limit of -1 writes even an empty entry to the file.
+            spill = new SpillingOutputStream(temp, bufferSize,
+                    mRingStoreEnabled ? MAX_PACKED_BYTES : -1);
+            output = spill;
             if (read == buffer.length && ((flags & DropBoxManager.IS_GZIPPED) == 0)) {
                 output = new GZIPOutputStream(output);
                 flags = flags | DropBoxManager.IS_GZIPPED;
@@ -277,23 +287,28 @@ public final class DropBoxManagerService extends SystemService {
 
                 read = input.read(buffer);
                 if (read <= 0) {
-                    FileUtils.sync(foutput);
-                    output.close();  // Get a final size measurement
+                    output.close();  // Get a final size measurement; syncs a spilled file
                     output = null;
                 } else {
                     output.flush();  // So the size measurement is pseudo-reasonable
                 }
 
-                long len = temp.length();
+                long len = spill.length();
                 if (len > max) {
-                    Slog.w(TAG, "Dropping: " + tag + " (" + temp.length() + " > " + max + " bytes)");
+                    Slog.w(TAG, "Dropping: " + tag + " (" + len + " > " + max + " bytes)");
                     temp.delete();
                     temp = null;  // Pass temp = null to createEntry() to leave a tombstone
+                    spill = null;
                     break;
                 }
             } while (read > 0);
 
-            long time = createEntry(temp, tag, flags);
+            byte[] data = null;
+            if (spill != null && spill.isInMemory()) {
+                data = spill.toByteArray();
+                temp = null;
+            }
+            long time = createEntry(temp, data, tag, flags);
             temp = null;
 
             final Intent dropboxIntent = new Intent(DropBoxManager.ACTION_DROPBOX_ENTRY_ADDED);
@@ -348,6 +363,15 @@ public final class DropBoxManagerService extends SystemService {
             if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
                 return new DropBoxManager.Entry(entry.tag, entry.timestampMillis);
             }
+            if (entry.record != null) {
+                try {
+                    return new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                            mRingStore.read(entry.record), entry.flags);
+                } catch (IOException e) {
+                    Slog.wtf(TAG, "Can't read: " + entry.tag + "@" + entry.timestampMillis, e);
+                    continue;
+                }
+            }
             final File file = entry.getFile(mDropBoxDir);
             try {
                 return new DropBoxManager.Entry(
@@ -399,6 +423,9 @@ public final class DropBoxManagerService extends SystemService {
 
         out.append("Drop box contents: ").append(mAllFiles.contents.size()).append(" entries\n");
         out.append("Max entries: ").append(mMaxFiles).append("\n");
+        out.append("Ring store: ").append(mRingStore.getSegmentCount()).append(" segments, ")
+                .append(mRingStore.getTotalBytes()).append(" bytes, ")
+                .append(mRingStore.getLiveBytes()).append(" live\n");
 
         if (!searchArgs.isEmpty()) {
             out.append("Searching for:");
@@ -424,7 +451,7 @@ public final class DropBoxManagerService extends SystemService {
             out.append(date).append(" ").append(entry.tag == null ? "(no tag)" : entry.tag);
 
             final File file = entry.getFile(mDropBoxDir);
-            if (file == null) {
+            if (file == null && entry.record == null) {
                 out.append(" (no file)\n");
                 continue;
             } else if ((entry.flags & DropBoxManager.IS_EMPTY) != 0) {
@@ -434,20 +461,29 @@ public final class DropBoxManagerService extends SystemService {
                 out.append(" (");
                 if ((entry.flags & DropBoxManager.IS_GZIPPED) != 0) out.append("compressed ");
                 out.append((entry.flags & DropBoxManager.IS_TEXT) != 0 ? "text" : "data");
-                out.append(", ").append(file.length()).append(" bytes)\n");
+                out.append(", ").append(file != null ? file.length() : entry.record.length)
+                        .append(" bytes)\n");
             }
 
             if (doFile || (doPrint && (entry.flags & DropBoxManager.IS_TEXT) == 0)) {
                 if (!doPrint) out.append("    ");
-                out.append(file.getPath()).append("\n");
+                if (file != null) {
+                    out.append(file.getPath()).append("\n");
+                } else {
+                    out.append(entry.record.segment.file.getPath()).append(" at ")
+                            .append(entry.record.offset).append("\n");
+                }
             }
 
             if ((entry.flags & DropBoxManager.IS_TEXT) != 0 && (doPrint || !doFile)) {
                 DropBoxManager.Entry dbe = null;
                 InputStreamReader isr = null;
                 try {
-                    dbe = new DropBoxManager.Entry(
-                             entry.tag, entry.timestampMillis, file, entry.flags);
+                    dbe = file != null
+                            ? new DropBoxManager.Entry(
+                                    entry.tag, entry.timestampMillis, file, entry.flags)
+                            : new DropBoxManager.Entry(entry.tag, entry.timestampMillis,
+                                    mRingStore.read(entry.record), entry.flags);
 
                     if (doPrint) {
                         isr = new InputStreamReader(dbe.getInputStream());
@@ -480,7 +516,7 @@ public final class DropBoxManagerService extends SystemService {
                     }
                 } catch (IOException e) {
                     out.append("*** ").append(e.toString()).append("\n");
-                    Slog.e(TAG, "Can't read: " + file, e);
+                    Slog.e(TAG, "Can't read: " + entry.tag + "@" + entry.timestampMillis, e);
                 } finally {
                     if (dbe != null) dbe.close();
                     if (isr != null) {
@@ -508,6 +544,72 @@ public final class DropBoxManagerService extends SystemService {
 
     ///////////////////////////////////////////////////////////////////////////
 
+    /**
+     * Keeps what is written to it in memory, up to a limit, then moves it to a file and writes
+     * the rest there.
+     */
+    private static final class SpillingOutputStream extends OutputStream {
+        private final File mFile;
+        private final int mBufferSize;
+        private final int mLimit;
+        private ByteArrayOutputStream mMemory = new ByteArrayOutputStream();
+        private FileOutputStream mFileOutput;
+        private OutputStream mOutput;
+
+        SpillingOutputStream(File file, int bufferSize, int limit) {
+            mFile = file;
+            mBufferSize = bufferSize;
+            mLimit = limit;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (mMemory != null && mMemory.size() + len > mLimit) {
+                mFileOutput = new FileOutputStream(mFile);
+                mOutput = new BufferedOutputStream(mFileOutput, mBufferSize);
+                mMemory.writeTo(mOutput);
+                mMemory = null;
+            }
+            if (mMemory != null) {
+                mMemory.write(b, off, len);
+            } else {
+                mOutput.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (mOutput != null) mOutput.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (mOutput != null) {
+                mOutput.flush();
+                FileUtils.sync(mFileOutput);
+                mOutput.close();
+            }
+        }
+
+        boolean isInMemory() {
+            return mMemory != null;
+        }
+
+        byte[] toByteArray() {
+            return mMemory.toByteArray();
+        }
+
+        /** Returns the number of bytes written so far, once flushed. */
+        long length() {
+            return mMemory != null ? mMemory.size() : mFile.length();
+        }
+    }
+
     /** Chronologically sorted list of {@link EntryFile} */
     private static final class FileList implements Comparable<FileList> {
         public int blocks = 0;
@@ -536,6 +638,8 @@ public final class DropBoxManagerService extends SystemService {
         public final long timestampMillis;
         public final int flags;
         public final int blocks;
+        /** Where the ring store keeps the entry, or null if it has a file of its own. */
+        public final DropBoxRingStore.Record record;
 
         /** Sorts earlier EntryFile instances before later ones. */
         public final int compareTo(EntryFile o) {
@@ -569,6 +673,7 @@ public final class DropBoxManagerService extends SystemService {
             this.tag = TextUtils.safeIntern(tag);
             this.timestampMillis = timestampMillis;
             this.flags = flags;
+            this.record = null;
 
             final File file = this.getFile(dir);
             if (!temp.renameTo(file)) {
@@ -590,9 +695,24 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = timestampMillis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.record = null;
             new FileOutputStream(getFile(dir)).close();
         }
 
+        /**
+         * Creates an entry, or a tombstone, kept in the ring store.
+         *
+         * @param record where the ring store keeps it
+         * @param blockSize to use for space accounting
+         */
+        public EntryFile(DropBoxRingStore.Record record, int blockSize) {
+            this.tag = TextUtils.safeIntern(record.tag);
+            this.timestampMillis = record.timestampMillis;
+            this.flags = record.flags;
+            this.blocks = (record.length + blockSize - 1) / blockSize;
+            this.record = record;
+        }
+
         /**
          * Extracts metadata from an existing on-disk log filename.
          *
@@ -606,6 +726,7 @@ public final class DropBoxManagerService extends SystemService {
 
             boolean parseFailure = false;
 
+            this.record = null;
             String name = file.getName();
             int flags = 0;
             String tag = null;
@@ -666,14 +787,15 @@ public final class DropBoxManagerService extends SystemService {
             this.timestampMillis = millis;
             this.flags = DropBoxManager.IS_EMPTY;
             this.blocks = 0;
+            this.record = null;
         }
 
         /**
          * @return whether an entry actually has a backing file, or it's an empty "tombstone"
-         * entry.
+         * entry or kept in the ring store.
          */
         public boolean hasFile() {
-            return tag != null;
+            return tag != null && record == null;
         }
 
         /** @return File extension for the flags. */
@@ -733,6 +855,7 @@ public final class DropBoxManagerService extends SystemService {
 
             mAllFiles = new FileList();
             mFilesByTag = new ArrayMap<>();
+            mRingStore = new DropBoxRingStore(mDropBoxDir);
 
             // Scan pre-existing files.
             for (File file : files) {
@@ -741,6 +864,9 @@ public final class DropBoxManagerService extends SystemService {
                     file.delete();
                     continue;
                 }
+                if (DropBoxRingStore.isSegment(file)) {
+                    continue;
+                }
 
                 EntryFile entry = new EntryFile(file, mBlockSize);
 
@@ -750,6 +876,9 @@ public final class DropBoxManagerService extends SystemService {
                     enrollEntry(entry);
                 }
             }
+            for (DropBoxRingStore.Record record : mRingStore.open()) {
+                enrollEntry(new EntryFile(record, mBlockSize));
+            }
         }
     }
 
@@ -761,7 +890,7 @@ public final class DropBoxManagerService extends SystemService {
         // mFilesByTag is used for trimming, so don't list empty files.
         // (Zero-length/lost files are trimmed by date from mAllFiles.)
 
-        if (entry.hasFile() && entry.blocks > 0) {
+        if (entry.tag != null && entry.blocks > 0) {
             FileList tagFiles = mFilesByTag.get(entry.tag);
             if (tagFiles == null) {
                 tagFiles = new FileList();
@@ -772,8 +901,12 @@ public final class DropBoxManagerService extends SystemService {
         }
     }
 
-    /** Moves a temporary file to a final log filename and enrolls it. */
-    private synchronized long createEntry(File temp, String tag, int flags) throws IOException {
+    /**
+     * Moves a temporary file to a final log filename, or adds {@code data} to the ring store,
+     * and enrolls it. Leaves a tombstone when there is neither.
+     */
+    private synchronized long createEntry(File temp, byte[] data, String tag, int flags)
+            throws IOException {
         long t = System.currentTimeMillis();
 
         // Require each entry to have a unique timestamp; if there are entries
@@ -798,23 +931,58 @@ public final class DropBoxManagerService extends SystemService {
                 if (tagFiles != null && tagFiles.contents.remove(late)) {
                     tagFiles.blocks -= late.blocks;
                 }
-                if ((late.flags & DropBoxManager.IS_EMPTY) == 0) {
+                if ((late.flags & DropBoxManager.IS_EMPTY) != 0) {
+                    enrollEntry(createTombstone(late.tag, t++));
+                    deleteEntry(late);
+                } else if (late.record != null) {
+                    final byte[] lateData = mRingStore.read(late.record);
+                    enrollEntry(new EntryFile(mRingStore.append(late.tag, t++, late.flags,
+                            lateData), mBlockSize));
+                    deleteEntry(late);
+                } else {
                     enrollEntry(new EntryFile(late.getFile(mDropBoxDir), mDropBoxDir,
                             late.tag, t++, late.flags, mBlockSize));
-                } else {
-                    enrollEntry(new EntryFile(mDropBoxDir, late.tag, t++));
                 }
             }
         }
 
-        if (temp == null) {
-            enrollEntry(new EntryFile(mDropBoxDir, tag, t));
+        if (data != null) {
+            enrollEntry(new EntryFile(mRingStore.append(tag, t, flags, data), mBlockSize));
+        } else if (temp == null) {
+            enrollEntry(createTombstone(tag, t));
         } else {
             enrollEntry(new EntryFile(temp, mDropBoxDir, tag, t, flags, mBlockSize));
         }
         return t;
     }
 
+    /** Creates a tombstone for an entry whose contents were lost. */
+    private EntryFile createTombstone(String tag, long timestampMillis) throws IOException {
+        if (!mRingStoreEnabled) {
+            return new EntryFile(mDropBoxDir, tag, timestampMillis);
+        }
+        return new EntryFile(mRingStore.appendLost(tag, timestampMillis), mBlockSize);
+    }
+
+    /** Deletes an entry that is no longer enrolled, wherever it is kept. */
+    private void deleteEntry(EntryFile entry) {
+        if (entry.record == null) {
+            entry.deleteFile(mDropBoxDir);
+            return;
+        }
+        try {
+            mRingStore.remove(entry.record);
+        } catch (IOException e) {
+            Slog.e(TAG, "Can't remove " + entry.tag + "@" + entry.timestampMillis, e);
+        }
+    }
+
+    /** Set whether small entries and tombstones are kept in the ring store. */
+    @VisibleForTesting
+    void setRingStoreEnabled(boolean enabled) {
+        mRingStoreEnabled = enabled;
+    }
+
     /**
      * Trims the files on disk to make sure they aren't using too much space.
      * @return the overall quota for storage (in bytes)
@@ -838,7 +1006,7 @@ public final class DropBoxManagerService extends SystemService {
             FileList tag = mFilesByTag.get(entry.tag);
             if (tag != null && tag.contents.remove(entry)) tag.blocks -= entry.blocks;
             if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
-            entry.deleteFile(mDropBoxDir);
+            deleteEntry(entry);
         }
 
         // Compute overall quota (a fraction of available free space) in blocks.
@@ -904,8 +1072,13 @@ public final class DropBoxManagerService extends SystemService {
                     if (mAllFiles.contents.remove(entry)) mAllFiles.blocks -= entry.blocks;
 
                     try {
-                        entry.deleteFile(mDropBoxDir);
-                        enrollEntry(new EntryFile(mDropBoxDir, entry.tag, entry.timestampMillis));
+                        if (entry.record != null && mRingStoreEnabled) {
+                            // The tombstone's record replaces the entry's.
+                            mRingStore.release(entry.record);
+                        } else {
+                            deleteEntry(entry);
+                        }
+                        enrollEntry(createTombstone(entry.tag, entry.timestampMillis));
                     } catch (IOException e) {
                         Slog.e(TAG, "Can't write tombstone file", e);
                     }
@@ -0,0 +1,414 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.os.DropBoxManager;
+import android.os.FileUtils;
+import android.util.ArraySet;
+import android.util.LongSparseArray;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Drop box entries too small to be worth a file of their own, and the tombstones of entries
+ * whose contents were lost, appended to a ring of segment files in the drop box directory.
+ * Adding one is an append to the newest segment rather than creating, syncing and renaming a
+ * file, which is what a crash loop filling the drop box mostly does.
+ *
+ * <p>Each segment is a magic number followed by records: the length of the rest of the record,
+ * its type, the timestamp, flags and tag of the entry, then its contents. A later record for
+ * the same timestamp replaces an earlier one, so an entry whose contents were lost is just
+ * recorded again as a tombstone, and a removed record takes an entry out. Segments are
+ * reclaimed oldest first: once nothing in the oldest is live it is deleted, and once more than
+ * half of what is on disk is dead its live records are copied forward, so disk use stays
+ * within about twice what is live.
+ *
+ * <p>Not thread safe; {@link DropBoxManagerService} calls it with its lock held.
+ */
+final class DropBoxRingStore {
+    private static final String TAG = "DropBoxRingStore";
+
+    static final String SEGMENT_SUFFIX = ".seg";
+
+    private static final int MAGIC = 0x44425231; // "DBR1"
+    /** Once the newest segment is this long, the next record starts a new one. */
+    private static final int SEGMENT_BYTES = 64 * 1024;
+
+    /** Type, timestamp, flags and an empty tag. */
+    private static final int MIN_RECORD_LENGTH = 1 + 8 + 4 + 2;
+
+    private static final byte TYPE_ENTRY = 0;
+    private static final byte TYPE_REMOVED = 1;
+
+    /** An entry, or a tombstone, held in a segment. */
+    static final class Record {
+        final String tag;
+        final long timestampMillis;
+        final int flags;
+        /** Length of the contents. */
+        final int length;
+        /** Length of the whole record on disk. */
+        final int recordLength;
+
+        Segment segment;
+        /** Offset of the contents in the segment. */
+        long offset;
+
+        Record(String tag, long timestampMillis, int flags, int length, int recordLength) {
+            this.tag = tag;
+            this.timestampMillis = timestampMillis;
+            this.flags = flags;
+            this.length = length;
+            this.recordLength = recordLength;
+        }
+    }
+
+    static final class Segment {
+        final File file;
+        final ArraySet<Record> live = new ArraySet<>();
+        long length;
+
+        Segment(File file) {
+            this.file = file;
+        }
+    }
+
+    private final File mDir;
+    /** Oldest first; the last one is appended to. */
+    private final ArrayList<Segment> mSegments = new ArrayList<>();
+    private FileOutputStream mOutput;
+    private long mNextSequence;
+    private long mTotalBytes;
+    private long mLiveBytes;
+
+    DropBoxRingStore(File dir) {
+        mDir = dir;
+    }
+
+    /** Whether {@code file} is one of the segments, rather than an entry of its own. */
+    static boolean isSegment(File file) {
+        return file.getName().endsWith(SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Reads the segments in the directory back.
+     *
+     * @return the live records, oldest first.
+     */
+    List<Record> open() {
+        final File[] files = mDir.listFiles((dir, name) -> name.endsWith(SEGMENT_SUFFIX));
+        final ArrayList<File> segmentFiles = new ArrayList<>();
+        if (files != null) {
+            for (File file : files) {
+                if (parseSequence(file) >= 0) {
+                    segmentFiles.add(file);
+                } else {
+                    Slog.w(TAG, "Invalid segment name: " + file);
+                    file.delete();
+                }
+            }
+        }
+        segmentFiles.sort((a, b) -> Long.compare(parseSequence(a), parseSequence(b)));
+
+        final LongSparseArray<Record> records = new LongSparseArray<>();
+        for (int i = 0; i < segmentFiles.size(); i++) {
+            final Segment segment = new Segment(segmentFiles.get(i));
+            readSegment(segment, records);
+            mSegments.add(segment);
+            mTotalBytes += segment.length;
+            mNextSequence = parseSequence(segment.file) + 1;
+        }
+
+        final ArrayList<Record> live = new ArrayList<>(records.size());
+        for (int i = 0; i < records.size(); i++) {
+            final Record record = records.valueAt(i);
+            record.segment.live.add(record);
+            mLiveBytes += record.recordLength;
+            live.add(record);
+        }
+        try {
+            reclaim();
+        } catch (IOException e) {
+            Slog.w(TAG, "Can't reclaim segments", e);
+        }
+        return live;
+    }
+
+    private static long parseSequence(File file) {
+        final String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Adds the records of {@code segment} to {@code records}, by timestamp. Stops at the first
+     * record that can't be read, as when the device went down while it was appended.
+     */
+    private static void readSegment(Segment segment, LongSparseArray<Record> records) {
+        DataInputStream in = null;
+        long position = 0;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            if (in.readInt() != MAGIC) {
+                Slog.w(TAG, "Not a segment: " + segment.file);
+                return;
+            }
+            position = 4;
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < MIN_RECORD_LENGTH || position + 4 + length > segment.file.length()) {
+                    Slog.w(TAG, "Truncated record in " + segment.file);
+                    break;
+                }
+                final byte[] body = new byte[length];
+                in.readFully(body);
+                final DataInputStream header = new DataInputStream(
+                        new ByteArrayInputStream(body));
+                final byte type = header.readByte();
+                final long timestampMillis = header.readLong();
+                final int flags = header.readInt();
+                final String tag = header.readUTF();
+                final int dataLength = header.available();
+                if (type == TYPE_REMOVED) {
+                    records.remove(timestampMillis);
+                } else {
+                    final Record record = new Record(tag, timestampMillis, flags, dataLength,
+                            4 + length);
+                    record.segment = segment;
+                    record.offset = position + 4 + length - dataLength;
+                    records.put(timestampMillis, record);
+                }
+                position += 4 + length;
+            }
+        } catch (IOException e) {
+            Slog.w(TAG, "Can't read all of " + segment.file, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+            segment.length = Math.max(position, segment.file.length());
+        }
+    }
+
+    /** Appends an entry holding {@code data}, and syncs it to disk. */
+    Record append(String tag, long timestampMillis, int flags, byte[] data) throws IOException {
+        final Record record = write(TYPE_ENTRY, tag, timestampMillis, flags, data);
+        FileUtils.sync(mOutput);
+        reclaim();
+        return record;
+    }
+
+    /** Appends a tombstone for an entry whose contents were lost. */
+    Record appendLost(String tag, long timestampMillis) throws IOException {
+        final Record record = write(TYPE_ENTRY, tag, timestampMillis, DropBoxManager.IS_EMPTY,
+                null);
+        reclaim();
+        return record;
+    }
+
+    /**
+     * Takes {@code record} out, so that it is not read back when the segments are next
+     * opened.
+     */
+    void remove(Record record) throws IOException {
+        release(record);
+        write(TYPE_REMOVED, record.tag, record.timestampMillis, 0, null);
+        reclaim();
+    }
+
+    /**
+     * Stops keeping {@code record}, for when a later record with the same timestamp already
+     * replaces it.
+     */
+    void release(Record record) {
+        if (record.segment.live.remove(record)) {
+            mLiveBytes -= record.recordLength;
+        }
+    }
+
+    /** Returns the contents of {@code record}. */
+    byte[] read(Record record) throws IOException {
+        final byte[] data = new byte[record.length];
+        try (RandomAccessFile file = new RandomAccessFile(record.segment.file, "r")) {
+            file.seek(record.offset);
+            file.readFully(data);
+        }
+        return data;
+    }
+
+    private Record write(byte type, String tag, long timestampMillis, int flags, byte[] data)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                64 + (data != null ? data.length : 0));
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0); // Length, filled in below.
+        out.writeByte(type);
+        out.writeLong(timestampMillis);
+        out.writeInt(flags);
+        out.writeUTF(tag);
+        final int headerLength = out.size();
+        if (data != null) {
+            out.write(data);
+        }
+        final byte[] record = bytes.toByteArray();
+        final int length = record.length - 4;
+        record[0] = (byte) (length >>> 24);
+        record[1] = (byte) (length >>> 16);
+        record[2] = (byte) (length >>> 8);
+        record[3] = (byte) length;
+
+        final Segment segment = getOutputSegment();
+        final long offset = segment.length + headerLength;
+        mOutput.write(record);
+        segment.length += record.length;
+        mTotalBytes += record.length;
+        if (type == TYPE_REMOVED) {
+            return null;
+        }
+        final Record result = new Record(tag, timestampMillis, flags,
+                data != null ? data.length : 0, record.length);
+        result.segment = segment;
+        result.offset = offset;
+        segment.live.add(result);
+        mLiveBytes += record.length;
+        return result;
+    }
+
+    /**
+     * Returns the segment to append to, starting a new one when there is none yet or the
+     * newest is full. The segments found by {@link #open} are never appended to, as the last
+     * one may end with part of a record.
+     */
+    private Segment getOutputSegment() throws IOException {
+        if (mOutput != null) {
+            final Segment newest = mSegments.get(mSegments.size() - 1);
+            if (newest.length < SEGMENT_BYTES) {
+                return newest;
+            }
+            // Records copied here by compactOldest() may have no other durable copy once the
+            // segment they came from is deleted.
+            FileUtils.sync(mOutput);
+            mOutput.close();
+            mOutput = null;
+        }
+        final Segment segment = new Segment(new File(mDir, mNextSequence++ + SEGMENT_SUFFIX));
+        final FileOutputStream output = new FileOutputStream(segment.file);
+        try {
+            new DataOutputStream(output).writeInt(MAGIC);
+        } catch (IOException e) {
+            IoUtils.closeQuietly(output);
+            segment.file.delete();
+            throw e;
+        }
+        mOutput = output;
+        segment.length = 4;
+        mSegments.add(segment);
+        mTotalBytes += 4;
+        return segment;
+    }
+
+    /**
+     * Deletes the oldest segments once nothing in them is live, and copies the live records
+     * out of the oldest ones while more than half of what is on disk is dead.
+     */
+    private void reclaim() throws IOException {
+        for (int i = mSegments.size(); i > 1; i--) {
+            final Segment oldest = mSegments.get(0);
+            if (oldest.live.isEmpty()) {
+                deleteOldest();
+            } else if (mTotalBytes > 2 * mLiveBytes + SEGMENT_BYTES) {
+                compactOldest();
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void compactOldest() throws IOException {
+        final Segment oldest = mSegments.get(0);
+        final Record[] records = oldest.live.toArray(new Record[oldest.live.size()]);
+        // Keeps the records in the order they were appended, so that a copy never gets ahead
+        // of a later record for the same timestamp.
+        Arrays.sort(records, (a, b) -> Long.compare(a.offset, b.offset));
+        try (RandomAccessFile file = new RandomAccessFile(oldest.file, "r")) {
+            for (Record record : records) {
+                byte[] data = null;
+                if ((record.flags & DropBoxManager.IS_EMPTY) == 0) {
+                    data = new byte[record.length];
+                    file.seek(record.offset);
+                    file.readFully(data);
+                }
+                final Record copy = write(TYPE_ENTRY, record.tag, record.timestampMillis,
+                        record.flags, data);
+                // The entry keeps its record; only where it is changes.
+                copy.segment.live.remove(copy);
+                copy.segment.live.add(record);
+                oldest.live.remove(record);
+                mLiveBytes -= record.recordLength;
+                record.segment = copy.segment;
+                record.offset = copy.offset;
+            }
+        }
+        FileUtils.sync(mOutput);
+        deleteOldest();
+    }
+
+    private void deleteOldest() {
+        final Segment oldest = mSegments.remove(0);
+        mTotalBytes -= oldest.length;
+        if (!oldest.file.delete()) {
+            Slog.w(TAG, "Can't delete " + oldest.file);
+        }
+    }
+
+    /** Returns the number of segment files. */
+    int getSegmentCount() {
+        return mSegments.size();
+    }
+
+    /** Returns the bytes taken by all the segments. */
+    long getTotalBytes() {
+        return mTotalBytes;
+    }
+
+    /** Returns the bytes taken by the live records. */
+    long getLiveBytes() {
+        return mLiveBytes;
+    }
+}
@@ -21,8 +21,11 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 import android.net.Uri;
@@ -70,6 +73,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             register_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        register_index(f);
     }
 
     public static boolean filterEquals(IntentFilter f1, IntentFilter f2) {
@@ -213,6 +217,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        unregister_index(f);
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -399,6 +404,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     public List<R> queryIntent(Intent intent, String resolvedType, boolean defaultOnly,
             int userId) {
         String scheme = intent.getScheme();
+        final String action = intent.getAction();
 
         ArrayList<R> finalList = new ArrayList<R>();
 
@@ -425,28 +431,31 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
                             || resolvedType.charAt(slashpos+1) != '*') {
                         // Not a wild card, so we can just look for all filters that
                         // completely match or wildcards whose base type matches.
-                        firstTypeCut = mTypeToFilter.get(resolvedType);
+                        firstTypeCut = getCut(mTypeToFilter, INDEX_TYPE, resolvedType, action);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
-                        secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeCut = getCut(mWildTypeToFilter, INDEX_WILD_TYPE, baseType,
+                                action);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     } else {
                         // We can match anything with our base type.
-                        firstTypeCut = mBaseTypeToFilter.get(baseType);
+                        firstTypeCut = getCut(mBaseTypeToFilter, INDEX_BASE_TYPE, baseType,
+                                action);
                         if (debug) Slog.v(TAG, "First type cut: " + Arrays.toString(firstTypeCut));
-                        secondTypeCut = mWildTypeToFilter.get(baseType);
+                        secondTypeCut = getCut(mWildTypeToFilter, INDEX_WILD_TYPE, baseType,
+                                action);
                         if (debug) Slog.v(TAG, "Second type cut: "
                                 + Arrays.toString(secondTypeCut));
                     }
                     // Any */* types always apply, but we only need to do this
                     // if the intent type was not already */*.
-                    thirdTypeCut = mWildTypeToFilter.get("*");
+                    thirdTypeCut = getCut(mWildTypeToFilter, INDEX_WILD_TYPE, "*", action);
                     if (debug) Slog.v(TAG, "Third type cut: " + Arrays.toString(thirdTypeCut));
-                } else if (intent.getAction() != null) {
+                } else if (action != null) {
                     // The intent specified any type ({@literal *}/*).  This
                     // can be a whole heck of a lot of things, so as a first
                     // cut let's use the action instead.
-                    firstTypeCut = mTypedActionToFilter.get(intent.getAction());
+                    firstTypeCut = mTypedActionToFilter.get(action);
                     if (debug) Slog.v(TAG, "Typed Action list: " + Arrays.toString(firstTypeCut));
                 }
             }
@@ -456,15 +465,15 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         // the filters that match its scheme (we will further refine matches
         // on the authority and path by directly matching each resulting filter).
         if (scheme != null) {
-            schemeCut = mSchemeToFilter.get(scheme);
+            schemeCut = getSchemeCut(scheme, action, intent.getData());
             if (debug) Slog.v(TAG, "Scheme list: " + Arrays.toString(schemeCut));
         }
 
         // If the intent does not specify any data -- either a MIME type or
         // a URI -- then we will only be looking for matches against empty
         // data.
-        if (resolvedType == null && scheme == null && intent.getAction() != null) {
-            firstTypeCut = mActionToFilter.get(intent.getAction());
+        if (resolvedType == null && scheme == null && action != null) {
+            firstTypeCut = mActionToFilter.get(action);
             if (debug) Slog.v(TAG, "Action list: " + Arrays.toString(firstTypeCut));
         }
 
@@ -497,6 +506,60 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return finalList;
     }
 
+    /**
+     * Returns the filters registered in {@code map} under {@code name}, narrowed down to those
+     * that declare {@code action} when there is one.
+     */
+    private F[] getCut(ArrayMap<String, F[]> map, char table, String name, String action) {
+        if (action == null) {
+            return map.get(name);
+        }
+        return mIndexToFilter.get(indexKey(table, name, action));
+    }
+
+    /**
+     * Returns the filters registered for {@code scheme}, narrowed down to those that declare
+     * {@code action} and, when the data has a host that can be looked up, to those that either
+     * name that host or may match any host.
+     */
+    private F[] getSchemeCut(String scheme, String action, Uri data) {
+        if (action == null) {
+            return mSchemeToFilter.get(scheme);
+        }
+        final String host = getIndexHost(data != null ? data.getHost() : null);
+        if (host == null) {
+            return mIndexToFilter.get(indexKey(INDEX_SCHEME, scheme, action));
+        }
+
+        final F[] hostCut = mIndexToFilter.get(indexKey(INDEX_SCHEME_HOST, scheme, action, host));
+        final F[] anyHostCut = mIndexToFilter.get(indexKey(INDEX_SCHEME_ANY_HOST, scheme, action));
+        if (hostCut == null) {
+            return anyHostCut;
+        } else if (anyHostCut == null) {
+            return hostCut;
+        }
+
+        // A filter is in exactly one of the two, and both are in registration order; merge
+        // them so that results come out in the same order as the full scheme list would give.
+        final F[] merged = newArray(hostCut.length + anyHostCut.length);
+        int i = 0, j = 0, n = 0;
+        while (i < hostCut.length && hostCut[i] != null
+                && j < anyHostCut.length && anyHostCut[j] != null) {
+            if (mFilterOrder.get(hostCut[i]) < mFilterOrder.get(anyHostCut[j])) {
+                merged[n++] = hostCut[i++];
+            } else {
+                merged[n++] = anyHostCut[j++];
+            }
+        }
+        while (i < hostCut.length && hostCut[i] != null) {
+            merged[n++] = hostCut[i++];
+        }
+        while (j < anyHostCut.length && anyHostCut[j] != null) {
+            merged[n++] = anyHostCut[j++];
+        }
+        return merged;
+    }
+
     /**
      * Control whether the given filter is allowed to go into the result
      * list.  Mainly intended to prevent adding multiple filters for the
@@ -568,7 +631,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         out.print(prefix); out.print(label); out.print(": "); out.println(count);
     }
 
-    private final void addFilter(ArrayMap<String, F[]> map, String name, F filter) {
+    private final void addFilter(Map<String, F[]> map, String name, F filter) {
         F[] array = map.get(name);
         if (array == null) {
             array = newArray(2);
@@ -684,7 +747,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         return num;
     }
 
-    private final void remove_all_objects(ArrayMap<String, F[]> map, String name,
+    private final void remove_all_objects(Map<String, F[]> map, String name,
             Object object) {
         F[] array = map.get(name);
         if (array != null) {
@@ -712,6 +775,120 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    /**
+     * Adds {@code filter} to {@link #mIndexToFilter} under every action it declares.  Filters
+     * without actions can never match an intent that has one, so they are only reachable
+     * through the main tables.
+     */
+    private final void register_index(F filter) {
+        update_index(filter, true);
+    }
+
+    private final void unregister_index(F filter) {
+        update_index(filter, false);
+    }
+
+    private final void update_index(F filter, boolean add) {
+        final Iterator<String> actions = filter.actionsIterator();
+        if (actions == null) {
+            return;
+        }
+        if (add) {
+            mFilterOrder.put(filter, mNextFilterOrder++);
+        }
+
+        final ArraySet<String> hosts = getIndexHosts(filter);
+        while (actions.hasNext()) {
+            final String action = actions.next();
+
+            final Iterator<String> types = filter.typesIterator();
+            while (types != null && types.hasNext()) {
+                String name = types.next();
+                final int slashpos = name.indexOf('/');
+                final String baseName = slashpos > 0 ? name.substring(0, slashpos) : name;
+                if (slashpos <= 0) {
+                    name = name + "/*";
+                }
+                update_index(indexKey(INDEX_TYPE, name, action), filter, add);
+                update_index(indexKey(slashpos > 0 ? INDEX_BASE_TYPE : INDEX_WILD_TYPE,
+                        baseName, action), filter, add);
+            }
+
+            final Iterator<String> schemes = filter.schemesIterator();
+            while (schemes != null && schemes.hasNext()) {
+                final String scheme = schemes.next();
+                update_index(indexKey(INDEX_SCHEME, scheme, action), filter, add);
+                if (hosts == null) {
+                    update_index(indexKey(INDEX_SCHEME_ANY_HOST, scheme, action), filter, add);
+                } else {
+                    for (int i = hosts.size() - 1; i >= 0; i--) {
+                        update_index(indexKey(INDEX_SCHEME_HOST, scheme, action,
+                                hosts.valueAt(i)), filter, add);
+                    }
+                }
+            }
+        }
+
+        if (!add) {
+            mFilterOrder.remove(filter);
+        }
+    }
+
+    private final void update_index(String key, F filter, boolean add) {
+        if (add) {
+            addFilter(mIndexToFilter, key, filter);
+        } else {
+            remove_all_objects(mIndexToFilter, key, filter);
+        }
+    }
+
+    private static String indexKey(char table, String name, String action) {
+        return new StringBuilder(name.length() + action.length() + 2)
+                .append(table).append(name).append('\0').append(action).toString();
+    }
+
+    private static String indexKey(char table, String name, String action, String host) {
+        return new StringBuilder(name.length() + action.length() + host.length() + 3)
+                .append(table).append(name).append('\0').append(action).append('\0')
+                .append(host).toString();
+    }
+
+    /**
+     * Returns the hosts that {@code filter} is restricted to for its schemes, or null if it may
+     * match data with any host: it has no authorities, matches on scheme specific parts, or
+     * uses a host that can't be used as an index key.
+     */
+    private static ArraySet<String> getIndexHosts(IntentFilter filter) {
+        if (filter.countDataAuthorities() == 0 || filter.countDataSchemeSpecificParts() > 0) {
+            return null;
+        }
+        final ArraySet<String> hosts = new ArraySet<>();
+        for (int i = filter.countDataAuthorities() - 1; i >= 0; i--) {
+            final String host = getIndexHost(filter.getDataAuthority(i).getHost());
+            if (host == null || host.startsWith("*")) {
+                return null;
+            }
+            hosts.add(host);
+        }
+        return hosts;
+    }
+
+    /**
+     * Returns {@code host} in the form it is indexed under, or null if it can't be.  Authority
+     * matching ignores case, which only maps one-to-one onto lower case for ASCII.
+     */
+    private static String getIndexHost(String host) {
+        if (host == null) {
+            return null;
+        }
+        for (int i = host.length() - 1; i >= 0; i--) {
+            if (host.charAt(i) >= 0x80) {
+                return null;
+            }
+        }
+        return host.toLowerCase(Locale.ROOT);
+    }
+
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
@@ -875,4 +1052,29 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    private static final char INDEX_TYPE = 'T';
+    private static final char INDEX_BASE_TYPE = 'B';
+    private static final char INDEX_WILD_TYPE = 'W';
+    private static final char INDEX_SCHEME = 'S';
+    private static final char INDEX_SCHEME_HOST = 'H';
+    private static final char INDEX_SCHEME_ANY_HOST = 'A';
+
+    /**
+     * Filters from {@link #mTypeToFilter}, {@link #mBaseTypeToFilter},
+     * {@link #mWildTypeToFilter} and {@link #mSchemeToFilter}, further keyed by each action
+     * they declare and, for schemes, by the host they are restricted to (if any).  Each array
+     * keeps the order of the table it narrows, so queries that carry an action only have to
+     * run {@link IntentFilter#match} on filters that can actually match it.  This holds an
+     * entry for nearly every registered filter, so it is a HashMap: ArrayMap's linear time
+     * inserts and removals would make registering all filters at boot quadratic.
+     */
+    private final HashMap<String, F[]> mIndexToFilter = new HashMap<String, F[]>();
+
+    /**
+     * Registration order of every indexed filter, used to merge host buckets back into the
+     * order of {@link #mSchemeToFilter}.
+     */
+    private final HashMap<F, Integer> mFilterOrder = new HashMap<F, Integer>();
+    private int mNextFilterOrder;
 }
@@ -1658,7 +1658,7 @@ public final class ActiveServices {
                 // This could have made the service more important.
                 mAm.updateLruProcessLocked(s.app, s.app.hasClientActivities
                         || s.app.treatLikeActivity, b.client);
-                mAm.updateOomAdjLocked(s.app, true);
+                mAm.updateOomAdjAndDependentsLocked(s.app);
             }
 
             if (DEBUG_SERVICE) Slog.v(TAG_SERVICE, "Bind " + s + " with " + b
@@ -1773,11 +1773,19 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    if (mAm.mConstants.FLAG_INCREMENTAL_OOM_ADJ) {
+                        // Also updates the processes the service's process depends on, or
+                        // all of them if it becomes cached.
+                        mAm.updateOomAdjAndDependentsLocked(r.binding.service.app);
+                    } else {
+                        mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    }
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            if (!mAm.mConstants.FLAG_INCREMENTAL_OOM_ADJ) {
+                mAm.updateOomAdjLocked();
+            }
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -2886,7 +2894,7 @@ public final class ActiveServices {
                         // it to go down there and we want it to start out near the top.
                         mAm.updateLruProcessLocked(s.app, false, null);
                     }
-                    mAm.updateOomAdjLocked(s.app, true);
+                    mAm.updateOomAdjAndDependentsLocked(s.app);
                     b.intent.hasBound = false;
                     // Assume the client doesn't want to know about a rebind;
                     // we will deal with that later if it asks for one.
@@ -68,6 +68,8 @@ final class ActivityManagerConstants extends ContentObserver {
     static final String KEY_BOUND_SERVICE_CRASH_MAX_RETRY = "service_crash_max_retry";
     static final String KEY_PROCESS_START_ASYNC = "process_start_async";
     static final String KEY_TOP_TO_FGS_GRACE_DURATION = "top_to_fgs_grace_duration";
+    static final String KEY_INCREMENTAL_OOM_ADJ = "incremental_oom_adj";
+    static final String KEY_COALESCE_STICKY_BROADCASTS = "coalesce_sticky_broadcasts";
 
     private static final int DEFAULT_MAX_CACHED_PROCESSES = 32;
     private static final long DEFAULT_BACKGROUND_SETTLE_TIME = 60*1000;
@@ -97,6 +99,8 @@ final class ActivityManagerConstants extends ContentObserver {
     private static final int DEFAULT_BOUND_SERVICE_CRASH_MAX_RETRY = 16;
     private static final boolean DEFAULT_PROCESS_START_ASYNC = true;
     private static final long DEFAULT_TOP_TO_FGS_GRACE_DURATION = 15 * 1000;
+    private static final boolean DEFAULT_INCREMENTAL_OOM_ADJ = true;
+    private static final boolean DEFAULT_COALESCE_STICKY_BROADCASTS = false;
 
     // Maximum number of cached processes we will allow.
     public int MAX_CACHED_PROCESSES = DEFAULT_MAX_CACHED_PROCESSES;
@@ -212,6 +216,15 @@ final class ActivityManagerConstants extends ContentObserver {
     // this long.
     public long TOP_TO_FGS_GRACE_DURATION = DEFAULT_TOP_TO_FGS_GRACE_DURATION;
 
+    // Indicates whether a change to the bindings or provider connections of a process only
+    // updates the oom adj of the processes it depends on, rather than of all processes.
+    public boolean FLAG_INCREMENTAL_OOM_ADJ = DEFAULT_INCREMENTAL_OOM_ADJ;
+
+    // Indicates whether a sticky broadcast replaces a queued, not yet delivered instance of
+    // the same intent going to the same receivers, as if it had been sent with
+    // Intent.FLAG_RECEIVER_REPLACE_PENDING.
+    public boolean FLAG_COALESCE_STICKY_BROADCASTS = DEFAULT_COALESCE_STICKY_BROADCASTS;
+
     // Indicates whether the activity starts logging is enabled.
     // Controlled by Settings.Global.ACTIVITY_STARTS_LOGGING_ENABLED
     boolean mFlagActivityStartsLoggingEnabled;
@@ -355,6 +368,10 @@ final class ActivityManagerConstants extends ContentObserver {
                     DEFAULT_PROCESS_START_ASYNC);
             TOP_TO_FGS_GRACE_DURATION = mParser.getDurationMillis(KEY_TOP_TO_FGS_GRACE_DURATION,
                     DEFAULT_TOP_TO_FGS_GRACE_DURATION);
+            FLAG_INCREMENTAL_OOM_ADJ = mParser.getBoolean(KEY_INCREMENTAL_OOM_ADJ,
+                    DEFAULT_INCREMENTAL_OOM_ADJ);
+            FLAG_COALESCE_STICKY_BROADCASTS = mParser.getBoolean(KEY_COALESCE_STICKY_BROADCASTS,
+                    DEFAULT_COALESCE_STICKY_BROADCASTS);
 
             updateMaxCachedProcesses();
         }
@@ -432,6 +449,10 @@ final class ActivityManagerConstants extends ContentObserver {
         pw.println(BG_START_TIMEOUT);
         pw.print("  "); pw.print(KEY_TOP_TO_FGS_GRACE_DURATION); pw.print("=");
         pw.println(TOP_TO_FGS_GRACE_DURATION);
+        pw.print("  "); pw.print(KEY_INCREMENTAL_OOM_ADJ); pw.print("=");
+        pw.println(FLAG_INCREMENTAL_OOM_ADJ);
+        pw.print("  "); pw.print(KEY_COALESCE_STICKY_BROADCASTS); pw.print("=");
+        pw.println(FLAG_COALESCE_STICKY_BROADCASTS);
 
         pw.println();
         if (mOverrideMaxCachedProcesses >= 0) {
@@ -597,6 +597,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     static final int BROADCAST_FG_TIMEOUT = 10*1000;
     static final int BROADCAST_BG_TIMEOUT = 60*1000;
 
+    // Number of extra queues per broadcast scheduling class that ordered broadcasts to a
+    // single process are spread over, so that one slow receiver does not hold up ordered
+    // broadcasts to other processes.  Zero keeps one queue per class.
+    static final String PROP_BROADCAST_LANES = "persist.sys.am.broadcast_lanes";
+    static final int MAX_BROADCAST_LANES = 8;
+
     // How long we wait until we timeout on key dispatching.
     static final int KEY_DISPATCHING_TIMEOUT = 5*1000;
 
@@ -730,8 +736,9 @@ public class ActivityManagerService extends IActivityManager.Stub
     BroadcastQueue mFgBroadcastQueue;
     BroadcastQueue mBgBroadcastQueue;
     // Convenient for easy iteration over the queues. Foreground is first
-    // so that dispatch of foreground broadcasts gets precedence.
-    final BroadcastQueue[] mBroadcastQueues = new BroadcastQueue[2];
+    // so that dispatch of foreground broadcasts gets precedence. Lanes, if
+    // any, follow the main queue of their class.
+    final BroadcastQueue[] mBroadcastQueues;
 
     BroadcastStats mLastBroadcastStats;
     BroadcastStats mCurBroadcastStats;
@@ -744,6 +751,14 @@ public class ActivityManagerService extends IActivityManager.Stub
         return (isFg) ? mFgBroadcastQueue : mBgBroadcastQueue;
     }
 
+    /**
+     * Returns the queue for a serialized broadcast: the lane of its receivers' process when
+     * lanes are enabled, otherwise the main queue of its scheduling class.
+     */
+    BroadcastQueue broadcastQueueForReceiversLocked(Intent intent, List receivers) {
+        return broadcastQueueForIntent(intent).getQueueForReceiversLocked(receivers);
+    }
+
     /**
      * The last resumed activity. This is identical to the current resumed activity most
      * of the time but could be different when we're pausing one activity before we resume
@@ -1005,6 +1020,12 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     final ArrayList<ProcessRecord> mLruProcesses = new ArrayList<ProcessRecord>();
 
+    /**
+     * Temporary storage for the processes updated by an incremental oom adj update.
+     */
+    private final ArrayList<ProcessRecord> mTmpOomAdjDependents = new ArrayList<>();
+    private final ArraySet<ProcessRecord> mTmpOomAdjVisited = new ArraySet<>();
+
     /**
      * Where in mLruProcesses that the processes hosting activities start.
      */
@@ -3021,6 +3042,7 @@ public class ActivityManagerService extends IActivityManager.Stub
         mInjector = injector;
         mContext = mInjector.getContext();
         mUiContext = null;
+        mBroadcastQueues = new BroadcastQueue[2];
         GL_ES_VERSION = 0;
         mActivityStartController = null;
         mAppErrors = null;
@@ -3094,8 +3116,17 @@ public class ActivityManagerService extends IActivityManager.Stub
                 "foreground", BROADCAST_FG_TIMEOUT, false);
         mBgBroadcastQueue = new BroadcastQueue(this, mHandler,
                 "background", BROADCAST_BG_TIMEOUT, true);
-        mBroadcastQueues[0] = mFgBroadcastQueue;
-        mBroadcastQueues[1] = mBgBroadcastQueue;
+        final int laneCount = Math.min(MAX_BROADCAST_LANES,
+                Math.max(0, SystemProperties.getInt(PROP_BROADCAST_LANES, 0)));
+        if (laneCount > 0) {
+            final BroadcastQueue[] fgLanes = mFgBroadcastQueue.createLanes(laneCount);
+            final BroadcastQueue[] bgLanes = mBgBroadcastQueue.createLanes(laneCount);
+            mBroadcastQueues = new BroadcastQueue[fgLanes.length + bgLanes.length];
+            System.arraycopy(fgLanes, 0, mBroadcastQueues, 0, fgLanes.length);
+            System.arraycopy(bgLanes, 0, mBroadcastQueues, fgLanes.length, bgLanes.length);
+        } else {
+            mBroadcastQueues = new BroadcastQueue[] { mFgBroadcastQueue, mBgBroadcastQueue };
+        }
 
         mServices = new ActiveServices(this);
         mProviderMap = new ProviderMap(this);
@@ -12296,7 +12327,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
                 checkTime(startTime, "getContentProviderImpl: before updateOomAdj");
                 final int verifiedAdj = cpr.proc.verifiedAdj;
-                boolean success = updateOomAdjLocked(cpr.proc, true);
+                boolean success = updateOomAdjAndDependentsLocked(cpr.proc);
                 // XXX things have changed so updateOomAdjLocked doesn't actually tell us
                 // if the process has been successfully adjusted.  So to reduce races with
                 // it, we will check whether the process still exists.  Note that this doesn't
@@ -12696,7 +12727,13 @@ public class ActivityManagerService extends IActivityManager.Stub
                     throw new NullPointerException("connection is null");
                 }
                 if (decProviderCountLocked(conn, null, null, stable)) {
-                    updateOomAdjLocked();
+                    if (mConstants.FLAG_INCREMENTAL_OOM_ADJ && conn.provider.proc != null) {
+                        // Only the provider's process and the ones it depends on lost a
+                        // client; a full update still happens if they become cached.
+                        updateOomAdjAndDependentsLocked(conn.provider.proc);
+                    } else {
+                        updateOomAdjLocked();
+                    }
                 }
             }
         } finally {
@@ -20857,8 +20894,12 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     boolean isPendingBroadcastProcessLocked(int pid) {
-        return mFgBroadcastQueue.isPendingBroadcastProcessLocked(pid)
-                || mBgBroadcastQueue.isPendingBroadcastProcessLocked(pid);
+        for (BroadcastQueue queue : mBroadcastQueues) {
+            if (queue.isPendingBroadcastProcessLocked(pid)) {
+                return true;
+            }
+        }
+        return false;
     }
 
     void skipPendingBroadcastLocked(int pid) {
@@ -21773,9 +21814,13 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         final boolean replacePending =
                 (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
+        // Receivers of a sticky broadcast only care about the latest state, so a queued
+        // instance that has not been delivered yet can be dropped for the new one.
+        final boolean coalescePending = !replacePending && sticky
+                && mConstants.FLAG_COALESCE_STICKY_BROADCASTS;
 
         if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing broadcast: " + intent.getAction()
-                + " replacePending=" + replacePending);
+                + " replacePending=" + replacePending + " coalescePending=" + coalescePending);
 
         int NR = registeredReceivers != null ? registeredReceivers.size() : 0;
         if (!ordered && NR > 0) {
@@ -21792,8 +21837,9 @@ public class ActivityManagerService extends IActivityManager.Stub
                     requiredPermissions, appOp, brOptions, registeredReceivers, resultTo,
                     resultCode, resultData, resultExtras, ordered, sticky, false, userId);
             if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing parallel broadcast " + r);
-            final boolean replaced = replacePending
-                    && (queue.replaceParallelBroadcastLocked(r) != null);
+            final boolean replaced = (replacePending
+                    && (queue.replaceParallelBroadcastLocked(r) != null))
+                    || (coalescePending && (queue.coalesceParallelBroadcastLocked(r) != null));
             // Note: We assume resultTo is null for non-ordered broadcasts.
             if (!replaced) {
                 queue.enqueueParallelBroadcastLocked(r);
@@ -21882,7 +21928,7 @@ public class ActivityManagerService extends IActivityManager.Stub
 
         if ((receivers != null && receivers.size() > 0)
                 || resultTo != null) {
-            BroadcastQueue queue = broadcastQueueForIntent(intent);
+            BroadcastQueue queue = broadcastQueueForReceiversLocked(intent, receivers);
             BroadcastRecord r = new BroadcastRecord(queue, intent, callerApp,
                     callerPackage, callingPid, callingUid, callerInstantApp, resolvedType,
                     requiredPermissions, appOp, brOptions, receivers, resultTo, resultCode,
@@ -21893,8 +21939,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             if (DEBUG_BROADCAST) Slog.i(TAG_BROADCAST,
                     "Enqueueing broadcast " + r.intent.getAction());
 
-            final BroadcastRecord oldRecord =
-                    replacePending ? queue.replaceOrderedBroadcastLocked(r) : null;
+            final BroadcastRecord oldRecord = replacePending
+                    ? queue.replaceOrderedBroadcastLocked(r)
+                    : coalescePending ? queue.coalesceOrderedBroadcastLocked(r) : null;
             if (oldRecord != null) {
                 // Replaced, fire the result-to receiver.
                 if (oldRecord.resultTo != null) {
@@ -22115,6 +22162,16 @@ public class ActivityManagerService extends IActivityManager.Stub
                 BroadcastQueue queue = (flags & Intent.FLAG_RECEIVER_FOREGROUND) != 0
                         ? mFgBroadcastQueue : mBgBroadcastQueue;
                 r = queue.getMatchingOrderedReceiver(who);
+                if (r == null && queue.mLanes != null) {
+                    // Only one queue of a class delivers to a process at a time, so the
+                    // binder identifies the broadcast within the class.
+                    for (BroadcastQueue lane : queue.mLanes) {
+                        r = lane.getMatchingOrderedReceiver(who);
+                        if (r != null) {
+                            break;
+                        }
+                    }
+                }
                 if (r != null) {
                     doNext = r.queue.finishReceiverLocked(r, resultCode,
                         resultData, resultExtras, resultAbort, true);
@@ -22986,6 +23043,18 @@ public class ActivityManagerService extends IActivityManager.Stub
     // LIFETIME MANAGEMENT
     // =========================================================
 
+    // Returns whether any of the queues belongs to the foreground scheduling class.
+    private boolean isReceivingForegroundBroadcastLocked(ArraySet<BroadcastQueue> queues) {
+        for (int i = queues.size() - 1; i >= 0; i--) {
+            final BroadcastQueue queue = queues.valueAt(i);
+            if (queue == mFgBroadcastQueue
+                    || (queue.mLanes != null && queue.mLanes[0] == mFgBroadcastQueue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Returns whether the app is receiving broadcast.
     // If receiving, fetch all broadcast queues which the app is
     // the current [or imminent] receiver on.
@@ -23241,7 +23310,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             // It's placed in a sched group based on the nature of the
             // broadcast as reflected by which queue it's active in.
             adj = ProcessList.FOREGROUND_APP_ADJ;
-            schedGroup = (mTmpBroadcastQueue.contains(mFgBroadcastQueue))
+            schedGroup = isReceivingForegroundBroadcastLocked(mTmpBroadcastQueue)
                     ? ProcessList.SCHED_GROUP_DEFAULT : ProcessList.SCHED_GROUP_BACKGROUND;
             app.adjType = "broadcast";
             procState = ActivityManager.PROCESS_STATE_RECEIVER;
@@ -25018,9 +25087,27 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     @GuardedBy("this")
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
+        return updateOomAdjLocked(app, oomAdjAll, false);
+    }
+
+    /**
+     * Update OomAdj for a process whose service bindings or provider connections changed
+     * and, with incremental oom adj enabled, for the processes whose oom adj may depend on
+     * that of app. Falls back to a full update where updateOomAdjLocked(app, true) would.
+     * @return whether updateOomAdjLocked(app) was successful.
+     */
+    @GuardedBy("this")
+    final boolean updateOomAdjAndDependentsLocked(ProcessRecord app) {
+        return updateOomAdjLocked(app, true, mConstants.FLAG_INCREMENTAL_OOM_ADJ);
+    }
+
+    @GuardedBy("this")
+    private boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll,
+            boolean updateDependents) {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final boolean wasCached = app.cached;
+        final long now = SystemClock.uptimeMillis();
 
         mAdjSeq++;
 
@@ -25030,17 +25117,98 @@ public class ActivityManagerService extends IActivityManager.Stub
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
+        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
         if (oomAdjAll
                 && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
             // Changed to/from cached state, so apps after it in the LRU
             // list may also be changed.
             updateOomAdjLocked();
+        } else if (oomAdjAll && updateDependents) {
+            updateOomAdjOfDependentsLocked(app, TOP_APP, now);
         }
         return success;
     }
 
+    /**
+     * Update OomAdj for the processes hosting services that {@code app} is bound to or
+     * providers it is connected to, and in turn for the processes those depend on, after
+     * {@code app} itself was updated in the current adj sequence. Falls back to a full
+     * update when one of them moves into or out of the cached range, since that shifts the
+     * cached adjustments of the rest of the LRU list, when a cycle is found, or when most
+     * processes would be updated anyway.
+     */
+    @GuardedBy("this")
+    private void updateOomAdjOfDependentsLocked(ProcessRecord app, ProcessRecord TOP_APP,
+            long now) {
+        final ArrayList<ProcessRecord> dependents = mTmpOomAdjDependents;
+        dependents.clear();
+        collectOomAdjDependents(app, dependents, mTmpOomAdjVisited);
+        mTmpOomAdjVisited.clear();
+        // The first entry is app itself.
+        if (dependents.size() <= 1) {
+            dependents.clear();
+            return;
+        }
+        if (dependents.size() > mLruProcesses.size() / 2) {
+            dependents.clear();
+            updateOomAdjLocked();
+            return;
+        }
+
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        boolean needFullUpdate = false;
+        for (int i = 1; i < dependents.size(); i++) {
+            final ProcessRecord dependent = dependents.get(i);
+            if (dependent.killedByAm || dependent.thread == null) {
+                continue;
+            }
+            final boolean wasCached = dependent.cached;
+            final int cachedAdj = dependent.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                    ? dependent.curRawAdj : ProcessList.UNKNOWN_ADJ;
+            dependent.containsCycle = false;
+            computeOomAdjLocked(dependent, cachedAdj, TOP_APP, false, now);
+            applyOomAdjLocked(dependent, false, now, nowElapsed);
+            if (dependent.containsCycle || wasCached != dependent.cached
+                    || dependent.curRawAdj == ProcessList.UNKNOWN_ADJ) {
+                needFullUpdate = true;
+                break;
+            }
+        }
+        dependents.clear();
+        if (needFullUpdate) {
+            updateOomAdjLocked();
+        }
+    }
+
+    /**
+     * Adds {@code app} to {@code out}, followed in breadth first order by the processes whose
+     * oom adj is derived from it: those hosting services it is bound to or providers it is
+     * connected to, directly or through other such processes.
+     */
+    @VisibleForTesting
+    static void collectOomAdjDependents(ProcessRecord app, ArrayList<ProcessRecord> out,
+            ArraySet<ProcessRecord> visited) {
+        final int start = out.size();
+        if (visited.add(app)) {
+            out.add(app);
+        }
+        for (int i = start; i < out.size(); i++) {
+            final ProcessRecord proc = out.get(i);
+            for (int j = proc.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.connections.valueAt(j).binding.service.app;
+                if (host != null && visited.add(host)) {
+                    out.add(host);
+                }
+            }
+            for (int j = proc.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord host = proc.conProviders.get(j).provider.proc;
+                if (host != null && visited.add(host)) {
+                    out.add(host);
+                }
+            }
+        }
+    }
+
     @GuardedBy("this")
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -53,6 +54,8 @@ import android.util.Slog;
 import android.util.TimeUtils;
 import android.util.proto.ProtoOutputStream;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import static com.android.server.am.ActivityManagerDebugConfig.*;
 
 /**
@@ -153,6 +156,35 @@ public final class BroadcastQueue {
      */
     int mPendingBroadcastRecvIndex;
 
+    /**
+     * The queues of this queue's scheduling class when ordered broadcasts to a single process
+     * are dispatched in per-process lanes, with the class's main queue first; null otherwise.
+     * At most one queue of the class delivers an ordered broadcast to a given process at a
+     * time, since the process reports back by binder without saying which queue it came from.
+     */
+    BroadcastQueue[] mLanes;
+
+    /**
+     * True while the next ordered receiver is held back because another queue of this class
+     * is delivering to its process.  That queue schedules us again when it moves on.
+     */
+    boolean mWaitingForLane;
+
+    /**
+     * Broadcasts dispatched from this queue, with the total and worst time they spent
+     * queued before their first receiver was called, for dumpsys.
+     */
+    long mDispatchCount;
+    long mTotalDispatchLatency;
+    long mMaxDispatchLatency;
+
+    /**
+     * Queued broadcasts that were replaced by a newer instance before being dispatched, and
+     * the receiver deliveries that saved, for dumpsys.
+     */
+    long mReplacedCount;
+    long mReplacedDeliveries;
+
     static final int BROADCAST_INTENT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG;
     static final int BROADCAST_TIMEOUT_MSG = ActivityManagerService.FIRST_BROADCAST_QUEUE_MSG + 1;
 
@@ -242,7 +274,7 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceParallelBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL");
+        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL", false);
     }
 
     /**
@@ -250,26 +282,76 @@ public final class BroadcastQueue {
      * the old one.
      */
     public final BroadcastRecord replaceOrderedBroadcastLocked(BroadcastRecord r) {
-        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED");
+        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED", false);
+    }
+
+    /**
+     * Find the same intent going to the same receivers without a result receiver in the
+     * queued parallel broadcasts, replace it with a new one and return the old one.
+     */
+    public final BroadcastRecord coalesceParallelBroadcastLocked(BroadcastRecord r) {
+        return replaceBroadcastLocked(mParallelBroadcasts, r, "PARALLEL", true);
+    }
+
+    /**
+     * Find the same intent going to the same receivers without a result receiver in the
+     * queued ordered broadcasts, replace it with a new one and return the old one.
+     */
+    public final BroadcastRecord coalesceOrderedBroadcastLocked(BroadcastRecord r) {
+        return replaceBroadcastLocked(mOrderedBroadcasts, r, "ORDERED", true);
     }
 
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
-            BroadcastRecord r, String typeForLogging) {
+            BroadcastRecord r, String typeForLogging, boolean sameReceiversOnly) {
         final Intent intent = r.intent;
         for (int i = queue.size() - 1; i > 0; i--) {
             final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
+            if (old.userId == r.userId && intent.filterEquals(old.intent)
+                    && (!sameReceiversOnly || (old.resultTo == null && r.resultTo == null
+                            && isSameReceivers(old.receivers, r.receivers)))) {
                 if (DEBUG_BROADCAST) {
                     Slog.v(TAG_BROADCAST, "***** DROPPING "
                             + typeForLogging + " [" + mQueueName + "]: " + intent);
                 }
                 queue.set(i, r);
+                r.enqueueClockTime = System.currentTimeMillis();
+                // Remember when the oldest replaced broadcast was enqueued so that dispatch
+                // latency includes the time its receivers have been waiting.
+                r.coalescedEnqueueClockTime = old.coalescedEnqueueClockTime != 0
+                        ? old.coalescedEnqueueClockTime : old.enqueueClockTime;
+                mReplacedCount++;
+                mReplacedDeliveries += old.receivers != null ? old.receivers.size() : 0;
                 return old;
             }
         }
         return null;
     }
 
+    private static boolean isSameReceivers(List a, List b) {
+        final int N = a != null ? a.size() : 0;
+        if (N != (b != null ? b.size() : 0)) {
+            return false;
+        }
+        for (int i = 0; i < N; i++) {
+            final Object ra = a.get(i);
+            final Object rb = b.get(i);
+            if (ra instanceof BroadcastFilter || rb instanceof BroadcastFilter) {
+                if (ra != rb) {
+                    return false;
+                }
+            } else {
+                final ActivityInfo ia = ((ResolveInfo) ra).activityInfo;
+                final ActivityInfo ib = ((ResolveInfo) rb).activityInfo;
+                if (ia.applicationInfo.uid != ib.applicationInfo.uid
+                        || !ia.packageName.equals(ib.packageName)
+                        || !ia.name.equals(ib.name)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
     private final void processCurBroadcastLocked(BroadcastRecord r,
             ProcessRecord app, boolean skipOomAdj) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
@@ -354,6 +436,7 @@ public final class BroadcastQueue {
             br.nextReceiver = mPendingBroadcastRecvIndex;
             mPendingBroadcast = null;
             scheduleBroadcastsLocked();
+            wakeWaitingLanesLocked();
         }
     }
 
@@ -395,6 +478,139 @@ public final class BroadcastQueue {
         mBroadcastsScheduled = true;
     }
 
+    /**
+     * Returns true if this queue has an ordered broadcast in flight to, or waiting for, the
+     * given process.
+     */
+    boolean isDeliveringOrderedToLocked(String processName, int uid) {
+        if (mPendingBroadcast != null && isProcess(mPendingBroadcast.curApp, processName, uid)) {
+            return true;
+        }
+        if (mOrderedBroadcasts.size() > 0) {
+            final BroadcastRecord r = mOrderedBroadcasts.get(0);
+            return r.state != BroadcastRecord.IDLE && isProcess(r.curApp, processName, uid);
+        }
+        return false;
+    }
+
+    private static boolean isProcess(ProcessRecord app, String processName, int uid) {
+        return app != null && app.uid == uid && app.processName.equals(processName);
+    }
+
+    /**
+     * Creates count lanes for this queue's scheduling class and returns them, with this queue
+     * as the main queue first.
+     */
+    BroadcastQueue[] createLanes(int count) {
+        final BroadcastQueue[] lanes = new BroadcastQueue[count + 1];
+        lanes[0] = this;
+        for (int i = 1; i <= count; i++) {
+            lanes[i] = new BroadcastQueue(mService, mHandler, mQueueName + "_lane" + i,
+                    mTimeoutPeriod, mDelayBehindServices);
+        }
+        for (BroadcastQueue lane : lanes) {
+            lane.mLanes = lanes;
+        }
+        return lanes;
+    }
+
+    /**
+     * Returns the queue of this class for a serialized broadcast.  When lanes are enabled and
+     * all receivers run in the same process, this is the lane of that process, so that
+     * delivery to one process never waits behind receivers of another; anything else goes to
+     * the main queue of the class and keeps its order.
+     */
+    BroadcastQueue getQueueForReceiversLocked(List receivers) {
+        final BroadcastQueue[] lanes = mLanes;
+        if (lanes == null || receivers == null || receivers.isEmpty()) {
+            return this;
+        }
+        final BroadcastQueue queue = lanes[0];
+        String processName = null;
+        int uid = -1;
+        for (int i = receivers.size() - 1; i >= 0; i--) {
+            final Object target = receivers.get(i);
+            final String targetProcessName;
+            final int targetUid;
+            if (target instanceof BroadcastFilter) {
+                final ProcessRecord app = ((BroadcastFilter) target).receiverList.app;
+                if (app == null) {
+                    return queue;
+                }
+                targetProcessName = app.processName;
+                targetUid = app.uid;
+            } else {
+                final ActivityInfo info = ((ResolveInfo) target).activityInfo;
+                targetProcessName = info.processName;
+                targetUid = info.applicationInfo.uid;
+            }
+            if (processName == null) {
+                processName = targetProcessName;
+                uid = targetUid;
+            } else if (uid != targetUid || !processName.equals(targetProcessName)) {
+                return queue;
+            }
+        }
+        final int hash = (31 * processName.hashCode() + uid) & Integer.MAX_VALUE;
+        return lanes[1 + hash % (lanes.length - 1)];
+    }
+
+    /**
+     * Returns true if the next receiver of r runs in a process that another queue of this
+     * class is currently delivering an ordered broadcast to.
+     */
+    @VisibleForTesting
+    boolean isNextReceiverBusyInOtherLaneLocked(BroadcastRecord r) {
+        final Object target = r.receivers.get(r.nextReceiver);
+        final String processName;
+        final int uid;
+        if (target instanceof BroadcastFilter) {
+            final ProcessRecord app = ((BroadcastFilter) target).receiverList.app;
+            if (app == null) {
+                return false;
+            }
+            processName = app.processName;
+            uid = app.uid;
+        } else {
+            final ActivityInfo info = ((ResolveInfo) target).activityInfo;
+            processName = info.processName;
+            uid = info.applicationInfo.uid;
+        }
+        for (BroadcastQueue lane : mLanes) {
+            if (lane != this && lane.isDeliveringOrderedToLocked(processName, uid)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Lets queues of this class that held back a receiver re-check whether its process
+     * is free now.
+     */
+    private void wakeWaitingLanesLocked() {
+        if (mLanes == null) {
+            return;
+        }
+        for (BroadcastQueue lane : mLanes) {
+            if (lane != this && lane.mWaitingForLane) {
+                lane.mWaitingForLane = false;
+                lane.scheduleBroadcastsLocked();
+            }
+        }
+    }
+
+    private void noteDispatchLocked(BroadcastRecord r) {
+        final long enqueueClockTime = r.coalescedEnqueueClockTime != 0
+                ? r.coalescedEnqueueClockTime : r.enqueueClockTime;
+        final long latency = Math.max(0, r.dispatchClockTime - enqueueClockTime);
+        mDispatchCount++;
+        mTotalDispatchLatency += latency;
+        if (latency > mMaxDispatchLatency) {
+            mMaxDispatchLatency = latency;
+        }
+    }
+
     public BroadcastRecord getMatchingOrderedReceiver(IBinder receiver) {
         if (mOrderedBroadcasts.size() > 0) {
             final BroadcastRecord r = mOrderedBroadcasts.get(0);
@@ -425,6 +641,7 @@ public final class BroadcastQueue {
         r.curReceiver = null;
         r.curApp = null;
         mPendingBroadcast = null;
+        wakeWaitingLanesLocked();
 
         r.resultCode = resultCode;
         r.resultData = resultData;
@@ -845,6 +1062,7 @@ public final class BroadcastQueue {
             r = mParallelBroadcasts.remove(0);
             r.dispatchTime = SystemClock.uptimeMillis();
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLocked(r);
 
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
@@ -902,6 +1120,7 @@ public final class BroadcastQueue {
                 mPendingBroadcast.state = BroadcastRecord.IDLE;
                 mPendingBroadcast.nextReceiver = mPendingBroadcastRecvIndex;
                 mPendingBroadcast = null;
+                wakeWaitingLanesLocked();
             }
         }
 
@@ -1003,6 +1222,17 @@ public final class BroadcastQueue {
             }
         } while (r == null);
 
+        mWaitingForLane = false;
+        if (mLanes != null && isNextReceiverBusyInOtherLaneLocked(r)) {
+            // Another queue of our class is delivering to this process; wait until it moves
+            // on.  The receiver timeout is re-armed when we dispatch.
+            if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "processNextBroadcast ["
+                    + mQueueName + "]: waiting for another lane to finish with next receiver");
+            mWaitingForLane = true;
+            cancelBroadcastTimeoutLocked();
+            return;
+        }
+
         // Get the next receiver...
         int recIdx = r.nextReceiver++;
 
@@ -1012,6 +1242,7 @@ public final class BroadcastQueue {
         if (recIdx == 0) {
             r.dispatchTime = r.receiverTime;
             r.dispatchClockTime = System.currentTimeMillis();
+            noteDispatchLocked(r);
             if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
                 Trace.asyncTraceEnd(Trace.TRACE_TAG_ACTIVITY_MANAGER,
                     createBroadcastTraceTitle(r, BroadcastRecord.DELIVERY_PENDING),
@@ -1717,6 +1948,25 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Dispatch [" + mQueueName + "]: parallel=" + mParallelBroadcasts.size()
+                    + " ordered=" + mOrderedBroadcasts.size()
+                    + " dispatched=" + mDispatchCount + " replaced=" + mReplacedCount
+                    + " savedDeliveries=" + mReplacedDeliveries + " avgLatency=");
+            TimeUtils.formatDuration(mDispatchCount > 0
+                    ? mTotalDispatchLatency / mDispatchCount : 0, pw);
+            pw.print(" maxLatency=");
+            TimeUtils.formatDuration(mMaxDispatchLatency, pw);
+            if (mWaitingForLane) {
+                pw.print(" (waiting for lane)");
+            }
+            pw.println();
+        }
+
         int i;
         boolean printed = false;
 
@@ -62,6 +62,7 @@ final class BroadcastRecord extends Binder {
     final int[] delivery;   // delivery state of each receiver
     IIntentReceiver resultTo; // who receives final result if non-null
     long enqueueClockTime;  // the clock time the broadcast was enqueued
+    long coalescedEnqueueClockTime; // enqueue clock time of the oldest broadcast replaced, or 0
     long dispatchTime;      // when dispatch started on this set of receivers
     long dispatchClockTime; // the clock time the dispatch started
     long receiverTime;      // when current receiver started for timeouts.
@@ -128,6 +129,10 @@ final class BroadcastRecord extends Binder {
                 pw.print(sdf.format(new Date(enqueueClockTime)));
                 pw.print(" dispatchClockTime=");
                 pw.println(sdf.format(new Date(dispatchClockTime)));
+        if (coalescedEnqueueClockTime != 0) {
+            pw.print(prefix); pw.print("coalescedEnqueueClockTime=");
+                    pw.println(sdf.format(new Date(coalescedEnqueueClockTime)));
+        }
         pw.print(prefix); pw.print("dispatchTime=");
                 TimeUtils.formatDuration(dispatchTime, now, pw);
                 pw.print(" (");
@@ -274,6 +279,7 @@ final class BroadcastRecord extends Binder {
         delivery = from.delivery;
         resultTo = from.resultTo;
         enqueueClockTime = from.enqueueClockTime;
+        coalescedEnqueueClockTime = from.coalescedEnqueueClockTime;
         dispatchTime = from.dispatchTime;
         dispatchClockTime = from.dispatchClockTime;
         receiverTime = from.receiverTime;
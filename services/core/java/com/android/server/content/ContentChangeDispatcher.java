@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.content.ContentResolver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.util.ArrayMap;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.util.IndentingPrintWriter;
+import com.android.server.content.ContentService.ObserverCall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+
+/**
+ * Delivers content changes to observers for {@link ContentService}, collecting changes notified
+ * with {@link ContentResolver#NOTIFY_BATCH} for a short while so that each observer gets them
+ * in a single callback.
+ *
+ * <p>Each observer sees its changes in the order they were notified: while an observer has
+ * changes waiting or being delivered, later changes for it queue up behind them and are
+ * delivered by the same thread.
+ */
+final class ContentChangeDispatcher {
+    private static final String TAG = ContentService.TAG;
+    private static final boolean DEBUG = ContentService.DEBUG;
+
+    /** How long changes notified with {@link ContentResolver#NOTIFY_BATCH} are collected. */
+    @VisibleForTesting
+    static final long NOTIFY_BATCH_WINDOW_MS = 50;
+
+    /** Called for an observer whose process has died. */
+    interface DeadObserverListener {
+        void onDeadObserver(ObserverCall call);
+    }
+
+    private final Handler mHandler;
+    private final DeadObserverListener mDeadObserverListener;
+
+    private final Object mLock = new Object();
+
+    /** Changes not delivered yet, by observer. */
+    @GuardedBy("mLock")
+    private final ArrayMap<IBinder, ObserverQueue> mQueues = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    private final Runnable mFlushPendingChanges = this::flushPendingChanges;
+
+    // Notification statistics for dumpsys.
+    @GuardedBy("mLock")
+    private long mNotifyCount;
+    @GuardedBy("mLock")
+    private long mBatchedNotifyCount;
+    @GuardedBy("mLock")
+    private long mObserverCallCount;
+    @GuardedBy("mLock")
+    private long mBatchedUriCount;
+    @GuardedBy("mLock")
+    private long mDuplicateUriCount;
+
+    ContentChangeDispatcher(Handler handler, DeadObserverListener deadObserverListener) {
+        mHandler = handler;
+        mDeadObserverListener = deadObserverListener;
+    }
+
+    /** Counts a change notified to {@link ContentService}, whether or not anyone observes it. */
+    void noteNotify(boolean batch) {
+        synchronized (mLock) {
+            mNotifyCount++;
+            if (batch) {
+                mBatchedNotifyCount++;
+            }
+        }
+    }
+
+    /**
+     * Delivers a change right away, after whatever is still waiting or being delivered to the
+     * same observer.
+     */
+    void dispatchChange(ObserverCall oc, Uri uri, int userHandle) {
+        final IBinder binder = oc.mObserver.asBinder();
+        final ObserverQueue queue;
+        synchronized (mLock) {
+            queue = mQueues.get(binder);
+            if (queue != null) {
+                final PendingChange change = new PendingChange(oc, userHandle, false);
+                change.mUris.add(uri);
+                queue.mChanges.add(change);
+                if (queue.mDelivering) {
+                    // The thread delivering to this observer will get to it.
+                    return;
+                }
+                queue.mDelivering = true;
+            } else {
+                mObserverCallCount++;
+            }
+        }
+        if (queue != null) {
+            deliverQueue(binder, queue);
+            return;
+        }
+        try {
+            oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
+            if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at " + uri);
+        } catch (RemoteException ex) {
+            mDeadObserverListener.onDeadObserver(oc);
+        }
+    }
+
+    /**
+     * Adds a change to the batch collected for the observer, to be delivered when the batch
+     * window ends or the observer's next unbatched change is dispatched.
+     */
+    void enqueueBatchedChange(ObserverCall oc, Uri uri, int userHandle) {
+        final IBinder binder = oc.mObserver.asBinder();
+        synchronized (mLock) {
+            ObserverQueue queue = mQueues.get(binder);
+            if (queue == null) {
+                queue = new ObserverQueue();
+                mQueues.put(binder, queue);
+            }
+            final ArrayList<PendingChange> changes = queue.mChanges;
+            PendingChange change = changes.isEmpty() ? null : changes.get(changes.size() - 1);
+            // One callback can't mix self changes or users with other changes, and an
+            // unbatched change ends the batch before it.
+            if (change == null || !change.mBatch || change.mCall.mSelfChange != oc.mSelfChange
+                    || change.mUserHandle != userHandle) {
+                change = new PendingChange(oc, userHandle, true);
+                changes.add(change);
+            }
+            if (!change.mUris.add(uri)) {
+                mDuplicateUriCount++;
+            }
+            if (!mFlushScheduled) {
+                mFlushScheduled = true;
+                mHandler.postDelayed(mFlushPendingChanges, NOTIFY_BATCH_WINDOW_MS);
+            }
+        }
+    }
+
+    /** Delivers every change collected so far. */
+    @VisibleForTesting
+    void flushPendingChanges() {
+        final ArrayList<IBinder> binders = new ArrayList<>();
+        final ArrayList<ObserverQueue> queues = new ArrayList<>();
+        synchronized (mLock) {
+            mFlushScheduled = false;
+            for (int i = 0; i < mQueues.size(); i++) {
+                final ObserverQueue queue = mQueues.valueAt(i);
+                if (!queue.mDelivering) {
+                    queue.mDelivering = true;
+                    binders.add(mQueues.keyAt(i));
+                    queues.add(queue);
+                }
+            }
+        }
+        for (int i = 0; i < queues.size(); i++) {
+            deliverQueue(binders.get(i), queues.get(i));
+        }
+    }
+
+    /**
+     * Delivers the changes queued for an observer in order, including any queued while doing
+     * so. Only the thread that set {@link ObserverQueue#mDelivering} may call this.
+     */
+    private void deliverQueue(IBinder binder, ObserverQueue queue) {
+        while (true) {
+            final PendingChange change;
+            synchronized (mLock) {
+                if (queue.mChanges.isEmpty()) {
+                    queue.mDelivering = false;
+                    mQueues.remove(binder);
+                    return;
+                }
+                change = queue.mChanges.remove(0);
+                mObserverCallCount++;
+                if (change.mBatch) {
+                    mBatchedUriCount += change.mUris.size();
+                }
+            }
+            deliverChange(change);
+        }
+    }
+
+    private void deliverChange(PendingChange change) {
+        final ObserverCall oc = change.mCall;
+        final Uri[] uris = change.mUris.toArray(new Uri[change.mUris.size()]);
+        try {
+            if (uris.length == 1) {
+                oc.mObserver.onChange(oc.mSelfChange, uris[0], change.mUserHandle);
+            } else {
+                oc.mObserver.onChangeUris(oc.mSelfChange, uris, change.mUserHandle);
+            }
+            if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + uris.length
+                    + " updates");
+        } catch (RemoteException ex) {
+            mDeadObserverListener.onDeadObserver(oc);
+        }
+    }
+
+    /** Returns the number of duplicate Uris dropped from batches so far. */
+    @VisibleForTesting
+    long getDuplicateUriCount() {
+        synchronized (mLock) {
+            return mDuplicateUriCount;
+        }
+    }
+
+    void dump(IndentingPrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Notifications:");
+            pw.increaseIndent();
+            pw.print("Notified changes: "); pw.print(mNotifyCount);
+            pw.print(" (batched: "); pw.print(mBatchedNotifyCount); pw.println(")");
+            pw.print("Observer callbacks: "); pw.println(mObserverCallCount);
+            pw.print("Uris delivered in batches: "); pw.println(mBatchedUriCount);
+            pw.print("Dropped duplicate uris: "); pw.println(mDuplicateUriCount);
+            pw.print("Observers with pending changes: "); pw.println(mQueues.size());
+            pw.decreaseIndent();
+        }
+    }
+
+    /** The changes waiting to be delivered to one observer, oldest first. */
+    private static final class ObserverQueue {
+        final ArrayList<PendingChange> mChanges = new ArrayList<>();
+        /** Whether a thread is delivering this observer's changes. */
+        boolean mDelivering;
+    }
+
+    /** Changes for one observer delivered in a single callback. */
+    private static final class PendingChange {
+        final ObserverCall mCall;
+        final int mUserHandle;
+        /** Whether more changes may be added, as opposed to a single unbatched change. */
+        final boolean mBatch;
+        final LinkedHashSet<Uri> mUris = new LinkedHashSet<>();
+
+        PendingChange(ObserverCall call, int userHandle, boolean batch) {
+            mCall = call;
+            mUserHandle = userHandle;
+            mBatch = batch;
+        }
+    }
+}
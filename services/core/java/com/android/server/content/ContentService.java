@@ -63,6 +63,7 @@ import android.util.SparseArray;
 import android.util.SparseIntArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
 import com.android.internal.util.IndentingPrintWriter;
@@ -135,6 +136,9 @@ public final class ContentService extends IContentService.Stub {
     private SyncManager mSyncManager = null;
     private final Object mSyncManagerLock = new Object();
 
+    private final ContentChangeDispatcher mChangeDispatcher = new ContentChangeDispatcher(
+            BackgroundThread.getHandler(), this::removeDeadObserver);
+
     /**
      * Map from userId to providerPackageName to [clientPackageName, uri] to
      * value. This structure is carefully optimized to keep invalidation logic
@@ -238,6 +242,9 @@ public final class ContentService extends IContentService.Stub {
                 pw.print(" Total number of observers: "); pw.println(counts[1]);
             }
 
+            pw.println();
+            mChangeDispatcher.dump(pw);
+
             synchronized (mCache) {
                 pw.println();
                 pw.println("Cached content:");
@@ -425,29 +432,15 @@ public final class ContentService extends IContentService.Stub {
                 mRootNode.collectObserversLocked(uri, 0, observer, observerWantsSelfNotifications,
                         flags, userHandle, calls);
             }
+            final boolean batch = (flags & ContentResolver.NOTIFY_BATCH) != 0;
+            mChangeDispatcher.noteNotify(batch);
             final int numCalls = calls.size();
             for (int i=0; i<numCalls; i++) {
                 ObserverCall oc = calls.get(i);
-                try {
-                    oc.mObserver.onChange(oc.mSelfChange, uri, userHandle);
-                    if (DEBUG) Slog.d(TAG, "Notified " + oc.mObserver + " of " + "update at "
-                            + uri);
-                } catch (RemoteException ex) {
-                    synchronized (mRootNode) {
-                        Log.w(TAG, "Found dead observer, removing");
-                        IBinder binder = oc.mObserver.asBinder();
-                        final ArrayList<ObserverNode.ObserverEntry> list
-                                = oc.mNode.mObservers;
-                        int numList = list.size();
-                        for (int j=0; j<numList; j++) {
-                            ObserverNode.ObserverEntry oe = list.get(j);
-                            if (oe.observer.asBinder() == binder) {
-                                list.remove(j);
-                                j--;
-                                numList--;
-                            }
-                        }
-                    }
+                if (batch) {
+                    mChangeDispatcher.enqueueBatchedChange(oc, uri, userHandle);
+                } else {
+                    mChangeDispatcher.dispatchChange(oc, uri, userHandle);
                 }
             }
             if ((flags&ContentResolver.NOTIFY_SYNC_TO_NETWORK) != 0) {
@@ -467,6 +460,24 @@ public final class ContentService extends IContentService.Stub {
         }
     }
 
+    private void removeDeadObserver(ObserverCall oc) {
+        synchronized (mRootNode) {
+            Log.w(TAG, "Found dead observer, removing");
+            IBinder binder = oc.mObserver.asBinder();
+            final ArrayList<ObserverNode.ObserverEntry> list
+                    = oc.mNode.mObservers;
+            int numList = list.size();
+            for (int j=0; j<numList; j++) {
+                ObserverNode.ObserverEntry oe = list.get(j);
+                if (oe.observer.asBinder() == binder) {
+                    list.remove(j);
+                    j--;
+                    numList--;
+                }
+            }
+        }
+    }
+
     private int checkUriPermission(Uri uri, int pid, int uid, int modeFlags, int userHandle) {
         try {
             return ActivityManager.getService().checkUriPermission(
@@ -1371,7 +1382,7 @@ public final class ContentService extends IContentService.Stub {
         public static final int DELETE_TYPE = 2;
 
         private String mName;
-        private ArrayList<ObserverNode> mChildren = new ArrayList<ObserverNode>();
+        private ArrayMap<String, ObserverNode> mChildren = new ArrayMap<>();
         private ArrayList<ObserverEntry> mObservers = new ArrayList<ObserverEntry>();
 
         public ObserverNode(String name) {
@@ -1403,7 +1414,7 @@ public final class ContentService extends IContentService.Stub {
                 }
                 for (int i=0; i<mChildren.size(); i++) {
                     counts[0]++;
-                    mChildren.get(i).dumpLocked(fd, pw, args, innerName, prefix,
+                    mChildren.valueAt(i).dumpLocked(fd, pw, args, innerName, prefix,
                             counts, pidCounts);
                 }
             }
@@ -1451,19 +1462,12 @@ public final class ContentService extends IContentService.Stub {
             if (segment == null) {
                 throw new IllegalArgumentException("Invalid Uri (" + uri + ") used for observer");
             }
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (node.mName.equals(segment)) {
-                    node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
-                            observersLock, uid, pid, userHandle);
-                    return;
-                }
+            ObserverNode node = mChildren.get(segment);
+            if (node == null) {
+                // No child found, create one
+                node = new ObserverNode(segment);
+                mChildren.put(segment, node);
             }
-
-            // No child found, create one
-            ObserverNode node = new ObserverNode(segment);
-            mChildren.add(node);
             node.addObserverLocked(uri, index + 1, observer, notifyForDescendants,
                     observersLock, uid, pid, userHandle);
         }
@@ -1471,9 +1475,9 @@ public final class ContentService extends IContentService.Stub {
         public boolean removeObserverLocked(IContentObserver observer) {
             int size = mChildren.size();
             for (int i = 0; i < size; i++) {
-                boolean empty = mChildren.get(i).removeObserverLocked(observer);
+                boolean empty = mChildren.valueAt(i).removeObserverLocked(observer);
                 if (empty) {
-                    mChildren.remove(i);
+                    mChildren.removeAt(i);
                     i--;
                     size--;
                 }
@@ -1567,17 +1571,19 @@ public final class ContentService extends IContentService.Stub {
                         flags, targetUserHandle, calls);
             }
 
-            int N = mChildren.size();
-            for (int i = 0; i < N; i++) {
-                ObserverNode node = mChildren.get(i);
-                if (segment == null || node.mName.equals(segment)) {
-                    // We found the child,
+            if (segment != null) {
+                // Look the child up by name instead of scanning all of them.
+                final ObserverNode node = mChildren.get(segment);
+                if (node != null) {
                     node.collectObserversLocked(uri, index + 1, observer,
                             observerWantsSelfNotifications, flags, targetUserHandle, calls);
-                    if (segment != null) {
-                        break;
-                    }
                 }
+                return;
+            }
+            int N = mChildren.size();
+            for (int i = 0; i < N; i++) {
+                mChildren.valueAt(i).collectObserversLocked(uri, index + 1, observer,
+                        observerWantsSelfNotifications, flags, targetUserHandle, calls);
             }
         }
     }
@@ -75,6 +75,7 @@ import android.os.IBinder;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Messenger;
+import android.os.PersistableBundle;
 import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteCallback;
@@ -91,6 +92,7 @@ import android.util.EventLog;
 import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
+import android.util.SparseArray;
 
 import com.android.internal.R;
 import com.android.internal.annotations.GuardedBy;
@@ -282,19 +284,61 @@ public class SyncManager {
         return newJobId;
     }
 
+    /** A pending job's extras and the sync operation, if any, parsed from them. */
+    private static final class ParsedPendingSync {
+        final PersistableBundle extras;
+        final SyncOperation op;
+
+        ParsedPendingSync(PersistableBundle extras, SyncOperation op) {
+            this.extras = extras;
+            this.op = op;
+        }
+    }
+
+    private final Object mParsedPendingSyncsLock = new Object();
+    /**
+     * The pending jobs as last parsed, by job id, so that only jobs scheduled since then have
+     * their extras parsed again. An entry only applies to the extras it was parsed from.
+     */
+    @GuardedBy("mParsedPendingSyncsLock")
+    private SparseArray<ParsedPendingSync> mParsedPendingSyncs = new SparseArray<>();
+
+    /**
+     * Returns the pending sync operations. Callers may modify them, so each call returns new
+     * copies.
+     */
     private List<SyncOperation> getAllPendingSyncs() {
         verifyJobScheduler();
         List<JobInfo> pendingJobs = mJobSchedulerInternal.getSystemScheduledPendingJobs();
         List<SyncOperation> pendingSyncs = new ArrayList<SyncOperation>(pendingJobs.size());
-        for (JobInfo job: pendingJobs) {
-            SyncOperation op = SyncOperation.maybeCreateFromJobExtras(job.getExtras());
-            if (op != null) {
-                pendingSyncs.add(op);
+        synchronized (mParsedPendingSyncsLock) {
+            final SparseArray<ParsedPendingSync> parsed = new SparseArray<>(pendingJobs.size());
+            for (JobInfo job: pendingJobs) {
+                final PersistableBundle extras = job.getExtras();
+                ParsedPendingSync entry = mParsedPendingSyncs.get(job.getId());
+                if (entry == null || entry.extras != extras) {
+                    entry = new ParsedPendingSync(extras,
+                            SyncOperation.maybeCreateFromJobExtras(extras));
+                }
+                parsed.put(job.getId(), entry);
+                if (entry.op != null) {
+                    pendingSyncs.add(copyPendingSync(entry.op));
+                }
             }
+            // Drops the jobs that are no longer pending.
+            mParsedPendingSyncs = parsed;
         }
         return pendingSyncs;
     }
 
+    private static SyncOperation copyPendingSync(SyncOperation op) {
+        final SyncOperation copy = new SyncOperation(op);
+        copy.jobId = op.jobId;
+        copy.expectedRuntime = op.expectedRuntime;
+        copy.retries = op.retries;
+        return copy;
+    }
+
     private final BroadcastReceiver mStorageIntentReceiver =
             new BroadcastReceiver() {
                 @Override
@@ -2195,6 +2239,7 @@ public class SyncManager {
         pw.print("Device idle: "); pw.println(mDeviceIsIdle);
         pw.print("Reported active: "); pw.println(mReportedSyncActive);
         pw.print("Clock valid: "); pw.println(mSyncStorageEngine.isClockValid());
+        mSyncStorageEngine.dumpAccountInfoWrites(pw);
 
         final AccountAndUser[] accounts = AccountManagerService.getSingleton().getAllAccounts();
 
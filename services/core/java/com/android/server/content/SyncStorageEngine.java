@@ -52,19 +52,29 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
 import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
+import com.android.server.utils.AppendOnlyJournal;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -91,6 +101,14 @@ public class SyncStorageEngine {
     private static final String XML_ATTR_ENABLED = "enabled";
     private static final String XML_ATTR_USER = "user";
     private static final String XML_TAG_LISTEN_FOR_TICKLES = "listenForTickles";
+    private static final String XML_ATTR_GENERATION = "generation";
+    /** Tag of a journal record, holding the account changes since the previous one. */
+    private static final String XML_TAG_ACCOUNTS_JOURNAL = "accounts-journal";
+    private static final String XML_TAG_REMOVED_AUTHORITY = "removed-authority";
+
+    private static final int ACCOUNTS_JOURNAL_MAGIC = 0x53414a31; // "SAJ1"
+    /** Once the journal would grow past this, accounts.xml is rewritten instead. */
+    private static final int MAX_ACCOUNTS_JOURNAL_LENGTH = 64 * 1024;
 
     /** Default time for a periodic sync. */
     private static final long DEFAULT_POLL_FREQUENCY_SECONDS = 60 * 60 * 24; // One day
@@ -472,6 +490,21 @@ public class SyncStorageEngine {
      */
     private final AtomicFile mAccountInfoFile;
 
+    /**
+     * The changes to the account information since accounts.xml was last written in full,
+     * replayed on top of it when it is read. Most changes touch a single authority, so this
+     * keeps them from rewriting every authority of every account.
+     */
+    private final AppendOnlyJournal mAccountInfoJournal;
+    /** Generation of accounts.xml, which only the journal of the same generation applies to. */
+    private int mAccountInfoGeneration;
+    /** The account information as it is on disk, or null if accounts.xml has to be written. */
+    private WrittenAccountInfo mWrittenAccountInfo;
+    private boolean mAccountInfoJournalEnabled = true;
+    private int mAccountInfoFullWrites;
+    private int mAccountInfoJournalWrites;
+    private long mAccountInfoBytesWritten;
+
     /**
      * This file contains the current sync status.  We would like to retain
      * it across boots, but its loss is not the end of the world, so we store
@@ -515,6 +548,8 @@ public class SyncStorageEngine {
         maybeDeleteLegacyPendingInfoLocked(syncDir);
 
         mAccountInfoFile = new AtomicFile(new File(syncDir, "accounts.xml"), "sync-accounts");
+        mAccountInfoJournal = new AppendOnlyJournal(new File(syncDir, "accounts.journal"),
+                ACCOUNTS_JOURNAL_MAGIC, MAX_ACCOUNTS_JOURNAL_LENGTH);
         mStatusFile = new AtomicFile(new File(syncDir, "status.bin"), "sync-status");
         mStatisticsFile = new AtomicFile(new File(syncDir, "stats.bin"), "sync-stats");
 
@@ -1593,6 +1628,7 @@ public class SyncStorageEngine {
             readStatusLocked();
             readStatisticsLocked();
             readAndDeleteLegacyAccountInfoLocked();
+            mWrittenAccountInfo = null;
             writeAccountInfoLocked();
             writeStatusLocked();
             writeStatisticsLocked();
@@ -1604,6 +1640,7 @@ public class SyncStorageEngine {
      */
     private void readAccountInfoLocked() {
         int highestAuthorityId = -1;
+        mAccountInfoGeneration = 0;
         FileInputStream fis = null;
         try {
             fis = mAccountInfoFile.openRead();
@@ -1636,6 +1673,7 @@ public class SyncStorageEngine {
                 if (version < 3) {
                     mGrantSyncAdaptersAccountAccess = true;
                 }
+                mAccountInfoGeneration = XmlUtils.readIntAttribute(parser, XML_ATTR_GENERATION, 0);
 
                 String nextIdString = parser.getAttributeValue(null, XML_ATTR_NEXT_AUTHORITY_ID);
                 try {
@@ -1707,9 +1745,63 @@ public class SyncStorageEngine {
             }
         }
 
+        replayAccountInfoJournalLocked();
         maybeMigrateSettingsForRenamedAuthorities();
     }
 
+    /**
+     * Applies the changes made since accounts.xml was written, as recorded in the journal of
+     * its generation.
+     */
+    private void replayAccountInfoJournalLocked() {
+        final List<byte[]> records = mAccountInfoJournal.read(mAccountInfoGeneration);
+        if (records.isEmpty()) {
+            return;
+        }
+        final AccountAuthorityValidator validator = new AccountAuthorityValidator(mContext);
+        try {
+            for (int i = 0; i < records.size(); i++) {
+                final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                        new ByteArrayInputStream(records.get(i)));
+                int eventType;
+                while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (eventType != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    final String tagName = parser.getName();
+                    if (XML_TAG_ACCOUNTS_JOURNAL.equals(tagName)) {
+                        mNextAuthorityId = Math.max(mNextAuthorityId, XmlUtils.readIntAttribute(
+                                parser, XML_ATTR_NEXT_AUTHORITY_ID, 0));
+                    } else if ("authority".equals(tagName)) {
+                        final AuthorityInfo authority = parseAuthority(parser, ACCOUNTS_VERSION,
+                                validator);
+                        if (authority != null) {
+                            mNextAuthorityId = Math.max(mNextAuthorityId, authority.ident + 1);
+                        }
+                    } else if (XML_TAG_LISTEN_FOR_TICKLES.equals(tagName)) {
+                        parseListenForTickles(parser);
+                    } else if (XML_TAG_REMOVED_AUTHORITY.equals(tagName)) {
+                        final AuthorityInfo authority = mAuthorities.get(
+                                XmlUtils.readIntAttribute(parser, "id", -1));
+                        if (authority != null) {
+                            final AccountInfo accountInfo = mAccounts.get(new AccountAndUser(
+                                    authority.target.account, authority.target.userId));
+                            if (accountInfo != null) {
+                                accountInfo.authorities.remove(authority.target.provider);
+                            }
+                            mAuthorities.remove(authority.ident);
+                        }
+                    }
+                }
+            }
+        } catch (XmlPullParserException | IOException e) {
+            Slog.w(TAG, "Error reading accounts journal", e);
+        }
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Replayed " + records.size() + " accounts journal records");
+        }
+    }
+
     /**
      * Ensure the old pending.bin is deleted, as it has been changed to pending.xml.
      * pending.xml was used starting in KLP.
@@ -1952,60 +2044,212 @@ public class SyncStorageEngine {
         }
     }
 
+    /** The account information as accounts.xml and its journal hold it. */
+    private static final class WrittenAccountInfo {
+        int nextAuthorityId;
+        final SparseBooleanArray masterSyncAutomatically = new SparseBooleanArray();
+        /** Whether each authority is enabled, by ident. */
+        final SparseBooleanArray enabled = new SparseBooleanArray();
+        /** Whether each authority is syncable, by ident. */
+        final SparseIntArray syncable = new SparseIntArray();
+    }
+
+    private WrittenAccountInfo copyAccountInfoLocked() {
+        final WrittenAccountInfo info = new WrittenAccountInfo();
+        info.nextAuthorityId = mNextAuthorityId;
+        for (int i = 0; i < mMasterSyncAutomatically.size(); i++) {
+            info.masterSyncAutomatically.put(mMasterSyncAutomatically.keyAt(i),
+                    mMasterSyncAutomatically.valueAt(i));
+        }
+        for (int i = 0; i < mAuthorities.size(); i++) {
+            final AuthorityInfo authority = mAuthorities.valueAt(i);
+            info.enabled.put(authority.ident, authority.enabled);
+            info.syncable.put(authority.ident, authority.syncable);
+        }
+        return info;
+    }
+
     /**
-     * Write all account information to the account file.
+     * Write all account information to the account file, or just what changed since the last
+     * write to its journal.
      */
     private void writeAccountInfoLocked() {
+        if (mAccountInfoJournalEnabled && mWrittenAccountInfo != null
+                && appendAccountInfoJournalLocked()) {
+            return;
+        }
+        writeAccountInfoFileLocked(mAccountInfoGeneration + 1);
+    }
+
+    /**
+     * Appends the changes since {@link #mWrittenAccountInfo} to the journal of accounts.xml as
+     * a single record. An authority's target never changes, so an authority that is there in
+     * both only needs a record if its enabled or syncable state did.
+     *
+     * @return whether the changes are on disk; if not, accounts.xml needs to be written.
+     */
+    private boolean appendAccountInfoJournalLocked() {
+        final WrittenAccountInfo written = mWrittenAccountInfo;
+        final WrittenAccountInfo current = copyAccountInfoLocked();
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        int changes = 0;
+        try {
+            final XmlSerializer out = new BinaryXmlSerializer();
+            out.setOutput(record, StandardCharsets.UTF_8.name());
+            out.startDocument(null, true);
+            out.startTag(null, XML_TAG_ACCOUNTS_JOURNAL);
+            out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID,
+                    Integer.toString(current.nextAuthorityId));
+            for (int i = 0; i < current.masterSyncAutomatically.size(); i++) {
+                final int userId = current.masterSyncAutomatically.keyAt(i);
+                final boolean listen = current.masterSyncAutomatically.valueAt(i);
+                final int index = written.masterSyncAutomatically.indexOfKey(userId);
+                if (index < 0 || written.masterSyncAutomatically.valueAt(index) != listen) {
+                    writeListenForTicklesLocked(out, userId, listen);
+                    changes++;
+                }
+            }
+            for (int i = 0; i < mAuthorities.size(); i++) {
+                final AuthorityInfo authority = mAuthorities.valueAt(i);
+                final int index = written.enabled.indexOfKey(authority.ident);
+                if (index < 0 || written.enabled.valueAt(index) != authority.enabled
+                        || written.syncable.get(authority.ident) != authority.syncable) {
+                    writeAuthorityLocked(out, authority);
+                    changes++;
+                }
+            }
+            for (int i = 0; i < written.enabled.size(); i++) {
+                final int ident = written.enabled.keyAt(i);
+                if (mAuthorities.get(ident) == null) {
+                    out.startTag(null, XML_TAG_REMOVED_AUTHORITY);
+                    out.attribute(null, "id", Integer.toString(ident));
+                    out.endTag(null, XML_TAG_REMOVED_AUTHORITY);
+                    changes++;
+                }
+            }
+            out.endTag(null, XML_TAG_ACCOUNTS_JOURNAL);
+            out.endDocument();
+        } catch (IOException e) {
+            Slog.w(TAG, "Error writing accounts journal record", e);
+            return false;
+        }
+        if (changes == 0 && current.nextAuthorityId == written.nextAuthorityId) {
+            return true;
+        }
+        if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
+            Slog.v(TAG_FILE, "Journaling " + changes + " account changes");
+        }
+        final byte[] bytes = record.toByteArray();
+        if (!mAccountInfoJournal.append(mAccountInfoGeneration, bytes)) {
+            return false;
+        }
+        mWrittenAccountInfo = current;
+        mAccountInfoJournalWrites++;
+        mAccountInfoBytesWritten += bytes.length;
+        return true;
+    }
+
+    private void writeListenForTicklesLocked(XmlSerializer out, int userId, boolean listen)
+            throws IOException {
+        out.startTag(null, XML_TAG_LISTEN_FOR_TICKLES);
+        out.attribute(null, XML_ATTR_USER, Integer.toString(userId));
+        out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(listen));
+        out.endTag(null, XML_TAG_LISTEN_FOR_TICKLES);
+    }
+
+    private void writeAuthorityLocked(XmlSerializer out, AuthorityInfo authority)
+            throws IOException {
+        EndPoint info = authority.target;
+        out.startTag(null, "authority");
+        out.attribute(null, "id", Integer.toString(authority.ident));
+        out.attribute(null, XML_ATTR_USER, Integer.toString(info.userId));
+        out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(authority.enabled));
+        out.attribute(null, "account", info.account.name);
+        out.attribute(null, "type", info.account.type);
+        out.attribute(null, "authority", info.provider);
+        out.attribute(null, "syncable", Integer.toString(authority.syncable));
+        out.endTag(null, "authority");
+    }
+
+    /**
+     * Write all account information to the account file as {@code generation}, which starts
+     * a new, empty journal.
+     */
+    private void writeAccountInfoFileLocked(int generation) {
         if (Log.isLoggable(TAG_FILE, Log.VERBOSE)) {
             Slog.v(TAG_FILE, "Writing new " + mAccountInfoFile.getBaseFile());
         }
         FileOutputStream fos = null;
 
         try {
-            fos = mAccountInfoFile.startWrite();
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
             XmlSerializer out = new FastXmlSerializer();
-            out.setOutput(fos, StandardCharsets.UTF_8.name());
+            out.setOutput(baos, StandardCharsets.UTF_8.name());
             out.startDocument(null, true);
             out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             out.startTag(null, "accounts");
             out.attribute(null, "version", Integer.toString(ACCOUNTS_VERSION));
+            out.attribute(null, XML_ATTR_GENERATION, Integer.toString(generation));
             out.attribute(null, XML_ATTR_NEXT_AUTHORITY_ID, Integer.toString(mNextAuthorityId));
             out.attribute(null, XML_ATTR_SYNC_RANDOM_OFFSET, Integer.toString(mSyncRandomOffset));
 
             // Write the Sync Automatically flags for each user
             final int M = mMasterSyncAutomatically.size();
             for (int m = 0; m < M; m++) {
-                int userId = mMasterSyncAutomatically.keyAt(m);
-                Boolean listen = mMasterSyncAutomatically.valueAt(m);
-                out.startTag(null, XML_TAG_LISTEN_FOR_TICKLES);
-                out.attribute(null, XML_ATTR_USER, Integer.toString(userId));
-                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(listen));
-                out.endTag(null, XML_TAG_LISTEN_FOR_TICKLES);
+                writeListenForTicklesLocked(out, mMasterSyncAutomatically.keyAt(m),
+                        mMasterSyncAutomatically.valueAt(m));
             }
 
             final int N = mAuthorities.size();
             for (int i = 0; i < N; i++) {
-                AuthorityInfo authority = mAuthorities.valueAt(i);
-                EndPoint info = authority.target;
-                out.startTag(null, "authority");
-                out.attribute(null, "id", Integer.toString(authority.ident));
-                out.attribute(null, XML_ATTR_USER, Integer.toString(info.userId));
-                out.attribute(null, XML_ATTR_ENABLED, Boolean.toString(authority.enabled));
-                out.attribute(null, "account", info.account.name);
-                out.attribute(null, "type", info.account.type);
-                out.attribute(null, "authority", info.provider);
-                out.attribute(null, "syncable", Integer.toString(authority.syncable));
-                out.endTag(null, "authority");
+                writeAuthorityLocked(out, mAuthorities.valueAt(i));
             }
             out.endTag(null, "accounts");
             out.endDocument();
+
+            final byte[] bytes = baos.toByteArray();
+            fos = mAccountInfoFile.startWrite();
+            fos.write(bytes);
             mAccountInfoFile.finishWrite(fos);
+            mAccountInfoFullWrites++;
+            mAccountInfoBytesWritten += bytes.length;
+
+            // The journal only applies to the accounts.xml it was appended for.
+            mAccountInfoGeneration = generation;
+            mAccountInfoJournal.delete();
+            mWrittenAccountInfo = copyAccountInfoLocked();
         } catch (java.io.IOException e1) {
             Slog.w(TAG, "Error writing accounts", e1);
             if (fos != null) {
                 mAccountInfoFile.failWrite(fos);
             }
+            mWrittenAccountInfo = null;
+        }
+    }
+
+    /** Set whether account changes may be journaled rather than rewriting accounts.xml. */
+    @VisibleForTesting
+    void setAccountInfoJournalEnabled(boolean enabled) {
+        synchronized (mAuthorities) {
+            mAccountInfoJournalEnabled = enabled;
+        }
+    }
+
+    /** Returns the number of bytes written to accounts.xml and its journal so far. */
+    @VisibleForTesting
+    long getAccountInfoBytesWritten() {
+        synchronized (mAuthorities) {
+            return mAccountInfoBytesWritten;
+        }
+    }
+
+    /** Prints how often, and how much, the account information was written. */
+    public void dumpAccountInfoWrites(PrintWriter pw) {
+        synchronized (mAuthorities) {
+            pw.print("Account info writes: full="); pw.print(mAccountInfoFullWrites);
+            pw.print(" journal="); pw.print(mAccountInfoJournalWrites);
+            pw.print(" bytes="); pw.println(mAccountInfoBytesWritten);
         }
     }
 
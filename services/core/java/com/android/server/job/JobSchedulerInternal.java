@@ -91,6 +91,10 @@ public interface JobSchedulerInternal {
         public int countSystemServerJobsSaved = -1;
         public int countSystemSyncManagerJobsSaved = -1;
 
+        public int countFullWrites;
+        public int countJournalWrites;
+        public long bytesWritten;
+
         public JobStorePersistStats() {
         }
 
@@ -102,6 +106,10 @@ public interface JobSchedulerInternal {
             countAllJobsSaved = source.countAllJobsSaved;
             countSystemServerJobsSaved = source.countSystemServerJobsSaved;
             countSystemSyncManagerJobsSaved = source.countSystemSyncManagerJobsSaved;
+
+            countFullWrites = source.countFullWrites;
+            countJournalWrites = source.countJournalWrites;
+            bytesWritten = source.bytesWritten;
         }
 
         @Override
@@ -113,7 +121,11 @@ public interface JobSchedulerInternal {
                     + " LastSave: "
                     + countAllJobsSaved + "/"
                     + countSystemServerJobsSaved + "/"
-                    + countSystemSyncManagerJobsSaved;
+                    + countSystemSyncManagerJobsSaved
+                    + " Writes: "
+                    + countFullWrites + "/"
+                    + countJournalWrites + " "
+                    + bytesWritten + "B";
         }
     }
 }
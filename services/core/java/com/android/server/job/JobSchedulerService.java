@@ -65,6 +65,7 @@ import android.os.UserHandle;
 import android.os.UserManagerInternal;
 import android.provider.Settings;
 import android.text.format.DateUtils;
+import android.util.ArraySet;
 import android.util.KeyValueListParser;
 import android.util.Log;
 import android.util.Slog;
@@ -184,7 +185,15 @@ public class JobSchedulerService extends com.android.server.SystemService
      * Queue of pending jobs. The JobServiceContext class will receive jobs from this list
      * when ready to execute them.
      */
-    final ArrayList<JobStatus> mPendingJobs = new ArrayList<>();
+    final PendingJobQueue mPendingJobs = new PendingJobQueue(mEnqueueTimeComparator);
+
+    /**
+     * Scheduled jobs whose constraints are currently satisfied, i.e. whose
+     * {@link JobStatus#isReady()} is true.  Jobs tell us when their constraints change, so
+     * deciding what to queue after a controller state change only looks at these instead of
+     * at every scheduled job.
+     */
+    final ArraySet<JobStatus> mReadyJobs = new ArraySet<>();
 
     int[] mStartedUsers = EmptyArray.INT;
 
@@ -905,7 +914,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                 // This is a new job, we can just immediately put it on the pending
                 // list and try to run it.
                 mJobPackageTracker.notePending(jobStatus);
-                addOrderedItem(mPendingJobs, jobStatus, mEnqueueTimeComparator);
+                mPendingJobs.add(jobStatus);
                 maybeRunPendingJobsLocked();
             }
         }
@@ -1268,6 +1277,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                         final StateController sc = mControllers.get(controller);
                         sc.maybeStartTrackingJobLocked(job, null);
                     }
+                    startTrackingReadinessLocked(job);
                 });
                 // GO GO GO!
                 mHandler.obtainMessage(MSG_CHECK_JOB).sendToTarget();
@@ -1294,9 +1304,15 @@ public class JobSchedulerService extends com.android.server.SystemService
                 }
                 controller.maybeStartTrackingJobLocked(jobStatus, lastJob);
             }
+            startTrackingReadinessLocked(jobStatus);
         }
     }
 
+    private void startTrackingReadinessLocked(JobStatus jobStatus) {
+        jobStatus.setReadinessListener(this);
+        onJobReadinessChangedLocked(jobStatus);
+    }
+
     /**
      * Called when we want to remove a JobStatus object that we've finished executing. Returns the
      * object removed.
@@ -1308,6 +1324,8 @@ public class JobSchedulerService extends com.android.server.SystemService
 
         // Remove from store as well as controllers.
         final boolean removed = mJobs.remove(jobStatus, writeBack);
+        jobStatus.setReadinessListener(null);
+        mReadyJobs.remove(jobStatus);
         if (removed && mReadyToRock) {
             for (int i=0; i<mControllers.size(); i++) {
                 StateController controller = mControllers.get(i);
@@ -1352,7 +1370,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
-    void noteJobsNonpending(List<JobStatus> jobs) {
+    void noteJobsNonpending(PendingJobQueue jobs) {
         for (int i = jobs.size() - 1; i >= 0; i--) {
             JobStatus job = jobs.get(i);
             mJobPackageTracker.noteNonpending(job);
@@ -1585,6 +1603,27 @@ public class JobSchedulerService extends com.android.server.SystemService
         mHandler.obtainMessage(MSG_JOB_EXPIRED, jobStatus).sendToTarget();
     }
 
+    @Override
+    public void onJobReadinessChangedLocked(JobStatus jobStatus) {
+        if (jobStatus.isReady()) {
+            mReadyJobs.add(jobStatus);
+        } else {
+            mReadyJobs.remove(jobStatus);
+        }
+    }
+
+    /** Runs the functor on every scheduled job that is {@link JobStatus#isReady() ready}. */
+    private void forEachReadyJobLocked(Consumer<JobStatus> functor) {
+        // The functors only look at the jobs; copy anyway so that a constraint change made
+        // while evaluating can't shift the set under us.
+        mTmpReadyJobs.addAll(mReadyJobs);
+        for (int i = 0; i < mTmpReadyJobs.size(); i++) {
+            functor.accept(mTmpReadyJobs.get(i));
+        }
+        mTmpReadyJobs.clear();
+    }
+    private final ArrayList<JobStatus> mTmpReadyJobs = new ArrayList<>();
+
     final private class JobHandler extends Handler {
 
         public JobHandler(Looper looper) {
@@ -1604,7 +1643,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                         // state is such that all ready jobs should be run immediately.
                         if (runNow != null && isReadyToBeExecutedLocked(runNow)) {
                             mJobPackageTracker.notePending(runNow);
-                            addOrderedItem(mPendingJobs, runNow, mEnqueueTimeComparator);
+                            mPendingJobs.add(runNow);
                         } else {
                             queueReadyJobsForExecutionLocked();
                         }
@@ -1694,7 +1733,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        forEachReadyJobLocked(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1727,9 +1766,6 @@ public class JobSchedulerService extends com.android.server.SystemService
             if (newReadyJobs != null) {
                 noteJobsPending(newReadyJobs);
                 mPendingJobs.addAll(newReadyJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
             }
             newReadyJobs = null;
         }
@@ -1816,9 +1852,6 @@ public class JobSchedulerService extends com.android.server.SystemService
                 }
                 noteJobsPending(runnableJobs);
                 mPendingJobs.addAll(runnableJobs);
-                if (mPendingJobs.size() > 1) {
-                    mPendingJobs.sort(mEnqueueTimeComparator);
-                }
             } else {
                 if (DEBUG) {
                     Slog.d(TAG, "maybeQueueReadyJobsForExecutionLocked: Not running anything.");
@@ -1848,7 +1881,7 @@ public class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        forEachReadyJobLocked(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
@@ -2765,6 +2798,7 @@ public class JobSchedulerService extends com.android.server.SystemService
                     js.overrideState = 0;
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
+                onJobReadinessChangedLocked(js);
 
                 queueReadyJobsForExecutionLocked();
                 maybeRunPendingJobsLocked();
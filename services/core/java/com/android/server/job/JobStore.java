@@ -31,34 +31,41 @@ import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
-import android.util.Xml;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.BitUtils;
 import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
 import com.android.server.IoThread;
 import com.android.server.LocalServices;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
+import com.android.server.utils.AppendOnlyJournal;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
@@ -71,6 +78,10 @@ import java.util.function.Predicate;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs are written in full to jobs.xml, and jobs added or removed since then are
+ * appended to a journal that is replayed on top of it at boot. Once the journal grows too
+ * large, jobs.xml is rewritten and the journal starts over.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -87,6 +98,13 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /** Set to write jobs.xml as text; jobs are then always written in full. */
+    private static final String PROPERTY_TEXT_XML = "persist.sys.job.text_xml";
+
+    private static final int JOURNAL_MAGIC = 0x4a534a31; // "JSJ1"
+    /** Once the journal would grow past this, jobs.xml is rewritten instead. */
+    private static final int MAX_JOURNAL_LENGTH = 128 * 1024;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid and per-source-uid tracking
     final Context mContext;
@@ -99,6 +117,27 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final AppendOnlyJournal mJournal;
+
+    /** A persisted job that was added or removed since the last write. */
+    private static final class JournalOp {
+        final JobStatus job;
+        final boolean removed;
+
+        JournalOp(JobStatus job, boolean removed) {
+            this.job = job;
+            this.removed = removed;
+        }
+    }
+
+    /** Changes to persisted jobs not yet written out, oldest first. */
+    private final ArrayList<JournalOp> mPendingJournalOps = new ArrayList<>();
+    /** Generation of jobs.xml, which only the journal of the same generation applies to. */
+    private int mGeneration;
+    /** Whether jobs.xml needs to be written in full, rather than journaling the changes. */
+    private boolean mNeedsFullWrite = true;
+    private boolean mJournalEnabled = true;
+
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -138,6 +177,8 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"), "jobs");
+        mJournal = new AppendOnlyJournal(new File(jobDir, "jobs.journal"), JOURNAL_MAGIC,
+                MAX_JOURNAL_LENGTH);
 
         mJobSet = new JobSet();
 
@@ -152,7 +193,8 @@ public final class JobStore {
         // an incorrect historical timestamp.  That's fine; at worst we'll reboot with
         // a *correct* timestamp, see a bunch of overdue jobs, and run them; then
         // settle into normal operation.
-        mXmlTimestamp = mJobsFile.getLastModifiedTime();
+        mXmlTimestamp = Math.max(mJobsFile.getLastModifiedTime(),
+                mJournal.getFile().lastModified());
         mRtcGood = (sSystemClock.millis() > mXmlTimestamp);
 
         readJobMapFromDisk(mJobSet, mRtcGood);
@@ -200,6 +242,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            mPendingJournalOps.add(new JournalOp(jobStatus, false));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -237,8 +280,12 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Without writeBack, the removal is written out along with the next change.
+            mPendingJournalOps.add(new JournalOp(jobStatus, true));
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -249,14 +296,24 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // Written out along with the next change.
+        mNeedsFullWrite = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mPendingJournalOps.clear();
+        mNeedsFullWrite = true;
         maybeWriteStatusToDiskAsync();
     }
 
+    /** Makes every write rewrite jobs.xml in full, as it was before jobs were journaled. */
+    @VisibleForTesting
+    void setJournalEnabled(boolean enabled) {
+        mJournalEnabled = enabled;
+    }
+
     /**
      * @param userHandle User for whom we are querying the list of jobs.
      * @return A list of all the jobs scheduled for the provided user. Never null.
@@ -313,10 +370,22 @@ public final class JobStore {
     private static final String XML_TAG_PERIODIC = "periodic";
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
+    /** Tag of a journal record, holding the jobs added and removed since the previous one. */
+    private static final String XML_TAG_JOURNAL = "job-journal";
+    private static final String XML_TAG_REMOVED = "removed";
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Whether jobs.xml is written in the binary form read back by {@link BinaryXmlPullParser}.
+     * Files in either form are always readable, so this can be switched off to get a file that
+     * can be inspected as text.
+     */
+    private static boolean useBinaryXml() {
+        return !SystemProperties.getBoolean(PROPERTY_TEXT_XML, false);
+    }
+
+    /**
+     * Every time the state changes we write the changes since the last write to the journal,
+     * or all the jobs in one swath when the journal can't take them.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -335,7 +404,8 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to persisted jobs out to the journal, or all of
+     * {@link #mJobSet} out to xml.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
@@ -343,46 +413,117 @@ public final class JobStore {
         public void run() {
             final long startElapsed = sElapsedRealtimeClock.millis();
             final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            final List<JournalOp> journalCopy = new ArrayList<>();
+            boolean journal;
+            final int generation;
             synchronized (mLock) {
+                journal = mJournalEnabled && !mNeedsFullWrite && useBinaryXml();
                 // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(null, (job) -> {
-                    if (job.isPersisted()) {
-                        storeCopy.add(new JobStatus(job));
+                if (journal) {
+                    for (int i = 0; i < mPendingJournalOps.size(); i++) {
+                        final JournalOp op = mPendingJournalOps.get(i);
+                        journalCopy.add(op.removed ? op
+                                : new JournalOp(new JobStatus(op.job), false));
                     }
-                });
+                } else {
+                    copyPersistedJobsLocked(storeCopy);
+                }
+                mPendingJournalOps.clear();
+                mNeedsFullWrite = false;
+                generation = mGeneration;
+            }
+            if (journal && !appendJournalImpl(journalCopy, generation)) {
+                // The journal is full or can't be written; compact it into jobs.xml.
+                synchronized (mLock) {
+                    copyPersistedJobsLocked(storeCopy);
+                    mPendingJournalOps.clear();
+                }
+                journal = false;
+            }
+            if (!journal) {
+                writeJobsMapImpl(storeCopy, generation + 1);
             }
-            writeJobsMapImpl(storeCopy);
             if (DEBUG) {
-                Slog.v(TAG, "Finished writing, took " + (sElapsedRealtimeClock.millis()
-                        - startElapsed) + "ms");
+                Slog.v(TAG, "Finished writing " + (journal ? "journal" : "jobs") + ", took "
+                        + (sElapsedRealtimeClock.millis() - startElapsed) + "ms");
+            }
+        }
+
+        private void copyPersistedJobsLocked(List<JobStatus> storeCopy) {
+            mJobSet.forEachJob(null, (job) -> {
+                if (job.isPersisted()) {
+                    storeCopy.add(new JobStatus(job));
+                }
+            });
+        }
+
+        /**
+         * Appends the changes in {@code ops} to the journal of jobs.xml {@code generation} as a
+         * single record.
+         *
+         * @return whether the record was appended; if not, jobs.xml needs to be written in full.
+         */
+        private boolean appendJournalImpl(List<JournalOp> ops, int generation) {
+            if (ops.isEmpty()) {
+                return true;
+            }
+            final ByteArrayOutputStream record = new ByteArrayOutputStream();
+            try {
+                final XmlSerializer out = new BinaryXmlSerializer();
+                out.setOutput(record, StandardCharsets.UTF_8.name());
+                out.startDocument(null, true);
+                out.startTag(null, XML_TAG_JOURNAL);
+                for (int i = 0; i < ops.size(); i++) {
+                    final JournalOp op = ops.get(i);
+                    if (op.removed) {
+                        out.startTag(null, XML_TAG_REMOVED);
+                        out.attribute(null, "jobid", Integer.toString(op.job.getJobId()));
+                        out.attribute(null, "uid", Integer.toString(op.job.getUid()));
+                        out.endTag(null, XML_TAG_REMOVED);
+                    } else {
+                        writeJobToXml(out, op.job);
+                    }
+                }
+                out.endTag(null, XML_TAG_JOURNAL);
+                out.endDocument();
+            } catch (IOException | XmlPullParserException e) {
+                if (DEBUG) {
+                    Slog.d(TAG, "Error writing journal record.", e);
+                }
+                return false;
             }
+            final byte[] bytes = record.toByteArray();
+            if (!mJournal.append(generation, bytes)) {
+                return false;
+            }
+            mDirtyOperations = 0;
+            mPersistInfo.countJournalWrites++;
+            mPersistInfo.bytesWritten += bytes.length;
+            return true;
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private void writeJobsMapImpl(List<JobStatus> jobList, int generation) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
                 final long startTime = SystemClock.uptimeMillis();
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
+                XmlSerializer out = useBinaryXml()
+                        ? new BinaryXmlSerializer() : new FastXmlSerializer();
                 out.setOutput(baos, StandardCharsets.UTF_8.name());
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, "generation", Integer.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -396,10 +537,20 @@ public final class JobStore {
                 out.endDocument();
 
                 // Write out to disk in one fell swoop.
+                final byte[] bytes = baos.toByteArray();
                 FileOutputStream fos = mJobsFile.startWrite(startTime);
-                fos.write(baos.toByteArray());
+                fos.write(bytes);
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+                mPersistInfo.countFullWrites++;
+                mPersistInfo.bytesWritten += bytes.length;
+
+                // The journal only applies to the jobs.xml it was appended for.
+                synchronized (mLock) {
+                    mGeneration = generation;
+                }
+                mJournal.delete();
+                return;
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
@@ -413,6 +564,20 @@ public final class JobStore {
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
                 mPersistInfo.countSystemSyncManagerJobsSaved = numSyncJobs;
             }
+            // Try again in full with the next change.
+            synchronized (mLock) {
+                mNeedsFullWrite = true;
+            }
+        }
+
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
         }
 
         /** Write out a tag with data comprising the required fields and priority of this job and
@@ -598,6 +763,8 @@ public final class JobStore {
                 synchronized (mLock) {
                     jobs = readJobMapImpl(fis, rtcGood);
                     if (jobs != null) {
+                        replayJournalLocked(jobs, rtcGood);
+                        mNeedsFullWrite = false;
                         long now = sElapsedRealtimeClock.millis();
                         IActivityManager am = ActivityManager.getService();
                         for (int i=0; i<jobs.size(); i++) {
@@ -633,10 +800,9 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
-        private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
+        private List<JobStatus> readJobMapImpl(InputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -665,6 +831,7 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                mGeneration = XmlUtils.readIntAttribute(parser, "generation", 0);
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -690,6 +857,56 @@ public final class JobStore {
             return null;
         }
 
+        /**
+         * Applies the jobs added and removed since jobs.xml was written, as recorded in the
+         * journal of its generation, to {@code jobs}.
+         */
+        private void replayJournalLocked(List<JobStatus> jobs, boolean rtcIsGood)
+                throws XmlPullParserException, IOException {
+            final List<byte[]> records = mJournal.read(mGeneration);
+            if (records.isEmpty()) {
+                return;
+            }
+            final ArrayMap<Pair<Integer, Integer>, JobStatus> jobsById =
+                    new ArrayMap<>(jobs.size());
+            for (int i = 0; i < jobs.size(); i++) {
+                final JobStatus job = jobs.get(i);
+                jobsById.put(Pair.create(job.getUid(), job.getJobId()), job);
+            }
+            for (int i = 0; i < records.size(); i++) {
+                final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                        new ByteArrayInputStream(records.get(i)));
+                int eventType;
+                while ((eventType = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (eventType != XmlPullParser.START_TAG) {
+                        continue;
+                    }
+                    final String tagName = parser.getName();
+                    if ("job".equals(tagName)) {
+                        final JobStatus job = restoreJobFromXml(rtcIsGood, parser);
+                        if (job != null) {
+                            jobsById.put(Pair.create(job.getUid(), job.getJobId()), job);
+                        } else {
+                            Slog.d(TAG, "Error reading job from journal.");
+                        }
+                    } else if (XML_TAG_REMOVED.equals(tagName)) {
+                        try {
+                            jobsById.remove(Pair.create(
+                                    Integer.parseInt(parser.getAttributeValue(null, "uid")),
+                                    Integer.parseInt(parser.getAttributeValue(null, "jobid"))));
+                        } catch (NumberFormatException e) {
+                            Slog.d(TAG, "Error reading removed job from journal.");
+                        }
+                    }
+                }
+            }
+            if (DEBUG) {
+                Slog.d(TAG, "Replayed " + records.size() + " journal records");
+            }
+            jobs.clear();
+            jobs.addAll(jobsById.values());
+        }
+
         /**
          * @param parser Xml parser at the beginning of a "<job/>" tag. The next "parser.next()" call
          *               will take the parser into the body of the job tag.
@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import android.util.ArraySet;
+
+import com.android.server.job.controllers.JobStatus;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Jobs waiting for an execution context, kept in the order given by a comparator.  Membership
+ * is also tracked in a set, since deciding whether a ready job still needs queuing asks whether
+ * it is already pending for every candidate.
+ */
+final class PendingJobQueue implements Iterable<JobStatus> {
+    private final Comparator<JobStatus> mComparator;
+    private final ArrayList<JobStatus> mJobs = new ArrayList<>();
+    private final ArraySet<JobStatus> mJobSet = new ArraySet<>();
+
+    PendingJobQueue(Comparator<JobStatus> comparator) {
+        mComparator = comparator;
+    }
+
+    int size() {
+        return mJobs.size();
+    }
+
+    JobStatus get(int index) {
+        return mJobs.get(index);
+    }
+
+    boolean contains(JobStatus job) {
+        return mJobSet.contains(job);
+    }
+
+    /** Inserts the job at its place in the queue, unless it is already pending. */
+    void add(JobStatus job) {
+        if (mJobSet.add(job)) {
+            JobSchedulerService.addOrderedItem(mJobs, job, mComparator);
+        }
+    }
+
+    /** Adds all jobs that aren't pending yet, then restores the queue order. */
+    void addAll(List<JobStatus> jobs) {
+        final int oldSize = mJobs.size();
+        for (int i = 0; i < jobs.size(); i++) {
+            final JobStatus job = jobs.get(i);
+            if (mJobSet.add(job)) {
+                mJobs.add(job);
+            }
+        }
+        if (mJobs.size() > oldSize && mJobs.size() > 1) {
+            mJobs.sort(mComparator);
+        }
+    }
+
+    boolean remove(JobStatus job) {
+        if (!mJobSet.remove(job)) {
+            return false;
+        }
+        mJobs.remove(job);
+        return true;
+    }
+
+    void clear() {
+        mJobs.clear();
+        mJobSet.clear();
+    }
+
+    @Override
+    public Iterator<JobStatus> iterator() {
+        return Collections.unmodifiableList(mJobs).iterator();
+    }
+}
@@ -38,5 +38,11 @@ public interface StateChangedListener {
      */
     public void onRunJobNow(JobStatus jobStatus);
 
+    /**
+     * Called by a scheduled job when one of its constraints changed, which may have changed
+     * whether it is ready to run.  Called with the JobScheduler lock held.
+     */
+    public void onJobReadinessChangedLocked(JobStatus jobStatus);
+
     public void onDeviceIdleStateChanged(boolean deviceIdle);
 }
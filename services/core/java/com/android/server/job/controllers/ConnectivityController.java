@@ -65,8 +65,9 @@ public final class ConnectivityController extends StateController implements
     private final ConnectivityManager mConnManager;
     private final NetworkPolicyManager mNetPolicyManager;
 
+    /** Jobs with a connectivity constraint, by source UID. */
     @GuardedBy("mLock")
-    private final ArraySet<JobStatus> mTrackedJobs = new ArraySet<>();
+    private final SparseArray<ArraySet<JobStatus>> mTrackedJobs = new SparseArray<>();
 
     public ConnectivityController(JobSchedulerService service) {
         super(service);
@@ -87,7 +88,12 @@ public final class ConnectivityController extends StateController implements
     public void maybeStartTrackingJobLocked(JobStatus jobStatus, JobStatus lastJob) {
         if (jobStatus.hasConnectivityConstraint()) {
             updateConstraintsSatisfied(jobStatus);
-            mTrackedJobs.add(jobStatus);
+            ArraySet<JobStatus> jobs = mTrackedJobs.get(jobStatus.getSourceUid());
+            if (jobs == null) {
+                jobs = new ArraySet<>();
+                mTrackedJobs.put(jobStatus.getSourceUid(), jobs);
+            }
+            jobs.add(jobStatus);
             jobStatus.setTrackingController(JobStatus.TRACKING_CONNECTIVITY);
         }
     }
@@ -97,7 +103,10 @@ public final class ConnectivityController extends StateController implements
     public void maybeStopTrackingJobLocked(JobStatus jobStatus, JobStatus incomingJob,
             boolean forUpdate) {
         if (jobStatus.clearTrackingController(JobStatus.TRACKING_CONNECTIVITY)) {
-            mTrackedJobs.remove(jobStatus);
+            final ArraySet<JobStatus> jobs = mTrackedJobs.get(jobStatus.getSourceUid());
+            if (jobs != null && jobs.remove(jobStatus) && jobs.isEmpty()) {
+                mTrackedJobs.remove(jobStatus.getSourceUid());
+            }
         }
     }
 
@@ -202,17 +211,19 @@ public final class ConnectivityController extends StateController implements
     private boolean updateConstraintsSatisfied(JobStatus jobStatus) {
         final Network network = mConnManager.getActiveNetworkForUid(jobStatus.getSourceUid());
         final NetworkCapabilities capabilities = mConnManager.getNetworkCapabilities(network);
-        return updateConstraintsSatisfied(jobStatus, network, capabilities);
+        final NetworkInfo info = mConnManager.getNetworkInfoForUid(network,
+                jobStatus.getSourceUid(), isIgnoringBlocked(jobStatus));
+        return updateConstraintsSatisfied(jobStatus, network, capabilities, info);
+    }
+
+    private static boolean isIgnoringBlocked(JobStatus jobStatus) {
+        return (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
     }
 
     private boolean updateConstraintsSatisfied(JobStatus jobStatus, Network network,
-            NetworkCapabilities capabilities) {
+            NetworkCapabilities capabilities, NetworkInfo info) {
         // TODO: consider matching against non-active networks
 
-        final boolean ignoreBlocked = (jobStatus.getFlags() & JobInfo.FLAG_WILL_BE_FOREGROUND) != 0;
-        final NetworkInfo info = mConnManager.getNetworkInfoForUid(network,
-                jobStatus.getSourceUid(), ignoreBlocked);
-
         final boolean connected = (info != null) && info.isConnected();
         final boolean satisfied = isSatisfied(jobStatus, network, capabilities, mConstants);
 
@@ -244,37 +255,19 @@ public final class ConnectivityController extends StateController implements
         synchronized (mLock) {
             // Since this is a really hot codepath, temporarily cache any
             // answers that we get from ConnectivityManager.
-            final SparseArray<Network> uidToNetwork = new SparseArray<>();
             final SparseArray<NetworkCapabilities> networkToCapabilities = new SparseArray<>();
 
             boolean changed = false;
-            for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                final int uid = js.getSourceUid();
-
-                final boolean uidMatch = (filterUid == -1 || filterUid == uid);
-                if (uidMatch) {
-                    Network network = uidToNetwork.get(uid);
-                    if (network == null) {
-                        network = mConnManager.getActiveNetworkForUid(uid);
-                        uidToNetwork.put(uid, network);
-                    }
-
-                    // Update either when we have a network match, or when the
-                    // job hasn't yet been evaluated against the currently
-                    // active network; typically when we just lost a network.
-                    final boolean networkMatch = (filterNetwork == null
-                            || Objects.equals(filterNetwork, network));
-                    final boolean forceUpdate = !Objects.equals(js.network, network);
-                    if (networkMatch || forceUpdate) {
-                        final int netId = network != null ? network.netId : -1;
-                        NetworkCapabilities capabilities = networkToCapabilities.get(netId);
-                        if (capabilities == null) {
-                            capabilities = mConnManager.getNetworkCapabilities(network);
-                            networkToCapabilities.put(netId, capabilities);
-                        }
-                        changed |= updateConstraintsSatisfied(js, network, capabilities);
-                    }
+            if (filterUid == -1) {
+                for (int i = mTrackedJobs.size() - 1; i >= 0; i--) {
+                    changed |= updateTrackedJobsForUid(mTrackedJobs.keyAt(i),
+                            mTrackedJobs.valueAt(i), filterNetwork, networkToCapabilities);
+                }
+            } else {
+                final ArraySet<JobStatus> jobs = mTrackedJobs.get(filterUid);
+                if (jobs != null) {
+                    changed = updateTrackedJobsForUid(filterUid, jobs, filterNetwork,
+                            networkToCapabilities);
                 }
             }
             if (changed) {
@@ -283,6 +276,61 @@ public final class ConnectivityController extends StateController implements
         }
     }
 
+    private boolean updateTrackedJobsForUid(int uid, ArraySet<JobStatus> jobs,
+            Network filterNetwork, SparseArray<NetworkCapabilities> networkToCapabilities) {
+        final Network network = mConnManager.getActiveNetworkForUid(uid);
+        final boolean networkMatch = (filterNetwork == null
+                || Objects.equals(filterNetwork, network));
+        final int netId = network != null ? network.netId : -1;
+
+        // All jobs of the UID see the same network, so look it up once; only the
+        // FLAG_WILL_BE_FOREGROUND jobs see it without the UID's blocked state.
+        NetworkCapabilities capabilities = null;
+        NetworkInfo info = null;
+        NetworkInfo infoIgnoringBlocked = null;
+        boolean haveCapabilities = false;
+        boolean haveInfo = false;
+        boolean haveInfoIgnoringBlocked = false;
+
+        boolean changed = false;
+        for (int i = jobs.size() - 1; i >= 0; i--) {
+            final JobStatus js = jobs.valueAt(i);
+
+            // Update either when we have a network match, or when the
+            // job hasn't yet been evaluated against the currently
+            // active network; typically when we just lost a network.
+            if (!networkMatch && Objects.equals(js.network, network)) {
+                continue;
+            }
+            if (!haveCapabilities) {
+                final int index = networkToCapabilities.indexOfKey(netId);
+                if (index >= 0) {
+                    capabilities = networkToCapabilities.valueAt(index);
+                } else {
+                    capabilities = mConnManager.getNetworkCapabilities(network);
+                    networkToCapabilities.put(netId, capabilities);
+                }
+                haveCapabilities = true;
+            }
+            final NetworkInfo jobInfo;
+            if (isIgnoringBlocked(js)) {
+                if (!haveInfoIgnoringBlocked) {
+                    infoIgnoringBlocked = mConnManager.getNetworkInfoForUid(network, uid, true);
+                    haveInfoIgnoringBlocked = true;
+                }
+                jobInfo = infoIgnoringBlocked;
+            } else {
+                if (!haveInfo) {
+                    info = mConnManager.getNetworkInfoForUid(network, uid, false);
+                    haveInfo = true;
+                }
+                jobInfo = info;
+            }
+            changed |= updateConstraintsSatisfied(js, network, capabilities, jobInfo);
+        }
+        return changed;
+    }
+
     /**
      * We know the network has just come up. We want to run any jobs that are ready.
      */
@@ -290,12 +338,15 @@ public final class ConnectivityController extends StateController implements
     public void onNetworkActive() {
         synchronized (mLock) {
             for (int i = mTrackedJobs.size()-1; i >= 0; i--) {
-                final JobStatus js = mTrackedJobs.valueAt(i);
-                if (js.isReady()) {
-                    if (DEBUG) {
-                        Slog.d(TAG, "Running " + js + " due to network activity.");
+                final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+                for (int j = jobs.size() - 1; j >= 0; j--) {
+                    final JobStatus js = jobs.valueAt(j);
+                    if (js.isReady()) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Running " + js + " due to network activity.");
+                        }
+                        mStateChangedListener.onRunJobNow(js);
                     }
-                    mStateChangedListener.onRunJobNow(js);
                 }
             }
         }
@@ -334,15 +385,18 @@ public final class ConnectivityController extends StateController implements
     public void dumpControllerStateLocked(IndentingPrintWriter pw,
             Predicate<JobStatus> predicate) {
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (predicate.test(js)) {
-                pw.print("#");
-                js.printUniqueId(pw);
-                pw.print(" from ");
-                UserHandle.formatUid(pw, js.getSourceUid());
-                pw.print(": ");
-                pw.print(js.getJob().getRequiredNetwork());
-                pw.println();
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (predicate.test(js)) {
+                    pw.print("#");
+                    js.printUniqueId(pw);
+                    pw.print(" from ");
+                    UserHandle.formatUid(pw, js.getSourceUid());
+                    pw.print(": ");
+                    pw.print(js.getJob().getRequiredNetwork());
+                    pw.println();
+                }
             }
         }
     }
@@ -355,20 +409,26 @@ public final class ConnectivityController extends StateController implements
         final long mToken = proto.start(StateControllerProto.CONNECTIVITY);
 
         for (int i = 0; i < mTrackedJobs.size(); i++) {
-            final JobStatus js = mTrackedJobs.valueAt(i);
-            if (!predicate.test(js)) {
-                continue;
-            }
-            final long jsToken = proto.start(StateControllerProto.ConnectivityController.TRACKED_JOBS);
-            js.writeToShortProto(proto, StateControllerProto.ConnectivityController.TrackedJob.INFO);
-            proto.write(StateControllerProto.ConnectivityController.TrackedJob.SOURCE_UID,
-                    js.getSourceUid());
-            NetworkRequest rn = js.getJob().getRequiredNetwork();
-            if (rn != null) {
-                rn.writeToProto(proto,
-                        StateControllerProto.ConnectivityController.TrackedJob.REQUIRED_NETWORK);
+            final ArraySet<JobStatus> jobs = mTrackedJobs.valueAt(i);
+            for (int j = 0; j < jobs.size(); j++) {
+                final JobStatus js = jobs.valueAt(j);
+                if (!predicate.test(js)) {
+                    continue;
+                }
+                final long jsToken = proto.start(
+                        StateControllerProto.ConnectivityController.TRACKED_JOBS);
+                js.writeToShortProto(proto,
+                        StateControllerProto.ConnectivityController.TrackedJob.INFO);
+                proto.write(StateControllerProto.ConnectivityController.TrackedJob.SOURCE_UID,
+                        js.getSourceUid());
+                NetworkRequest rn = js.getJob().getRequiredNetwork();
+                if (rn != null) {
+                    rn.writeToProto(proto,
+                            StateControllerProto.ConnectivityController.TrackedJob
+                                    .REQUIRED_NETWORK);
+                }
+                proto.end(jsToken);
             }
-            proto.end(jsToken);
         }
 
         proto.end(mToken);
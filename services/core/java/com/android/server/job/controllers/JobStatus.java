@@ -42,6 +42,7 @@ import com.android.server.job.JobSchedulerInternal;
 import com.android.server.job.JobSchedulerService;
 import com.android.server.job.JobStatusDumpProto;
 import com.android.server.job.JobStatusShortInfoProto;
+import com.android.server.job.StateChangedListener;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
@@ -162,6 +163,9 @@ public final class JobStatus {
     // Set to true when the app is "active" per AppStateTracker
     public boolean uidActive;
 
+    // Told whenever a constraint of this job changes, while the job is scheduled.
+    private StateChangedListener mReadinessListener;
+
     /**
      * Flag for {@link #trackingControllers}: the battery controller is currently tracking this job.
      */
@@ -899,9 +903,20 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        if (mReadinessListener != null) {
+            mReadinessListener.onJobReadinessChangedLocked(this);
+        }
         return true;
     }
 
+    /**
+     * Sets who to tell when a change to this job's constraints may have changed whether it
+     * {@link #isReady() is ready}, or null to stop telling anyone.
+     */
+    public void setReadinessListener(StateChangedListener listener) {
+        mReadinessListener = listener;
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
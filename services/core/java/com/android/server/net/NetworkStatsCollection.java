@@ -32,6 +32,7 @@ import static android.text.format.DateUtils.WEEK_IN_MILLIS;
 
 import static com.android.server.net.NetworkStatsService.TAG;
 
+import android.annotation.Nullable;
 import android.net.NetworkIdentity;
 import android.net.NetworkStats;
 import android.net.NetworkStatsHistory;
@@ -62,14 +63,18 @@ import com.google.android.collect.Lists;
 import com.google.android.collect.Maps;
 
 import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -93,6 +98,8 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private static final int VERSION_UID_WITH_SET = 4;
 
     private static final int VERSION_UNIFIED_INIT = 16;
+    /** Unified format with a per-key index ahead of the history payloads. */
+    private static final int VERSION_INDEXED = 17;
 
     private ArrayMap<Key, NetworkStatsHistory> mStats = new ArrayMap<>();
 
@@ -486,6 +493,14 @@ public class NetworkStatsCollection implements FileRotator.Reader {
                 }
                 break;
             }
+            case VERSION_INDEXED: {
+                // Histories are stored in index order, so a full read can just stream them.
+                final IndexEntry[] index = readIndex(in);
+                for (IndexEntry entry : index) {
+                    recordHistory(entry.key, new NetworkStatsHistory(in));
+                }
+                break;
+            }
             default: {
                 throw new ProtocolException("unexpected version: " + version);
             }
@@ -493,38 +508,128 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     }
 
     public void write(DataOutputStream out) throws IOException {
-        // cluster key lists grouped by ident
-        final HashMap<NetworkIdentitySet, ArrayList<Key>> keysByIdent = Maps.newHashMap();
-        for (Key key : mStats.keySet()) {
-            ArrayList<Key> keys = keysByIdent.get(key.ident);
-            if (keys == null) {
-                keys = Lists.newArrayList();
-                keysByIdent.put(key.ident, keys);
+        // idents := size *(NetworkIdentitySet)
+        // index := size *(identIndex uid set tag start end length)
+        // histories := *(NetworkStatsHistory), in index order
+        final ArrayList<NetworkIdentitySet> idents = new ArrayList<>();
+        final HashMap<NetworkIdentitySet, Integer> identIndexes = Maps.newHashMap();
+        final ArrayList<Key> keys = getSortedKeys();
+        for (Key key : keys) {
+            if (!identIndexes.containsKey(key.ident)) {
+                identIndexes.put(key.ident, idents.size());
+                idents.add(key.ident);
             }
-            keys.add(key);
         }
 
+        // Serialize histories first so that the index can carry their lengths.
+        final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        final DataOutputStream payloadOut = new DataOutputStream(payload);
+        final int[] lengths = new int[keys.size()];
+        for (int i = 0; i < keys.size(); i++) {
+            final int before = payloadOut.size();
+            mStats.get(keys.get(i)).writeToStream(payloadOut);
+            lengths[i] = payloadOut.size() - before;
+        }
+        payloadOut.flush();
+
         out.writeInt(FILE_MAGIC);
-        out.writeInt(VERSION_UNIFIED_INIT);
+        out.writeInt(VERSION_INDEXED);
 
-        out.writeInt(keysByIdent.size());
-        for (NetworkIdentitySet ident : keysByIdent.keySet()) {
-            final ArrayList<Key> keys = keysByIdent.get(ident);
+        out.writeInt(idents.size());
+        for (NetworkIdentitySet ident : idents) {
             ident.writeToStream(out);
+        }
 
-            out.writeInt(keys.size());
-            for (Key key : keys) {
-                final NetworkStatsHistory history = mStats.get(key);
-                out.writeInt(key.uid);
-                out.writeInt(key.set);
-                out.writeInt(key.tag);
-                history.writeToStream(out);
-            }
+        out.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            final Key key = keys.get(i);
+            final NetworkStatsHistory history = mStats.get(key);
+            out.writeInt(identIndexes.get(key.ident));
+            out.writeInt(key.uid);
+            out.writeInt(key.set);
+            out.writeInt(key.tag);
+            out.writeLong(history.getStart());
+            out.writeLong(history.getEnd());
+            out.writeInt(lengths[i]);
         }
 
+        payload.writeTo(out);
         out.flush();
     }
 
+    /**
+     * Read the histories in the given file that can contribute to a query of {@code template}
+     * over {@code [start, end]}. For files written with a per-key index, the file is
+     * memory-mapped and every other history is skipped without being deserialized; files in
+     * older formats are read completely.
+     *
+     * @param template template to match, or {@code null} to match all networks.
+     */
+    public void readMatching(File file, @Nullable NetworkTemplate template, long start, long end)
+            throws IOException {
+        try (FileInputStream fis = new FileInputStream(file);
+                FileChannel channel = fis.getChannel()) {
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            final DataInputStream in = new DataInputStream(new ByteBufferInputStream(buffer));
+            final int magic = in.readInt();
+            final int version = in.readInt();
+            if (magic != FILE_MAGIC || version != VERSION_INDEXED) {
+                buffer.rewind();
+                read(in);
+                return;
+            }
+
+            final IndexEntry[] index = readIndex(in);
+            final HashMap<NetworkIdentitySet, Boolean> identMatches = Maps.newHashMap();
+            int offset = buffer.position();
+            for (IndexEntry entry : index) {
+                final int historyOffset = offset;
+                offset += entry.length;
+                if (entry.start > end || entry.end < start) continue;
+
+                Boolean matches = identMatches.get(entry.key.ident);
+                if (matches == null) {
+                    matches = template == null || templateMatches(template, entry.key.ident);
+                    identMatches.put(entry.key.ident, matches);
+                }
+                if (!matches) continue;
+
+                buffer.position(historyOffset);
+                recordHistory(entry.key, new NetworkStatsHistory(in));
+            }
+        }
+    }
+
+    private static IndexEntry[] readIndex(DataInputStream in) throws IOException {
+        final int identSize = in.readInt();
+        final NetworkIdentitySet[] idents = new NetworkIdentitySet[identSize];
+        for (int i = 0; i < identSize; i++) {
+            idents[i] = new NetworkIdentitySet(in);
+        }
+
+        final int size = in.readInt();
+        final IndexEntry[] index = new IndexEntry[size];
+        for (int i = 0; i < size; i++) {
+            final int identIndex = in.readInt();
+            if (identIndex < 0 || identIndex >= identSize) {
+                throw new ProtocolException("unexpected ident index: " + identIndex);
+            }
+            final int uid = in.readInt();
+            final int set = in.readInt();
+            final int tag = in.readInt();
+            final long start = in.readLong();
+            final long end = in.readLong();
+            final int length = in.readInt();
+            if (length < 0) {
+                throw new ProtocolException("unexpected history length: " + length);
+            }
+            index[i] = new IndexEntry(new Key(idents[identIndex], uid, set, tag), start, end,
+                    length);
+        }
+        return index;
+    }
+
     @Deprecated
     public void readLegacyNetwork(File file) throws IOException {
         final AtomicFile inputFile = new AtomicFile(file);
@@ -763,7 +868,7 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      * Test if given {@link NetworkTemplate} matches any {@link NetworkIdentity}
      * in the given {@link NetworkIdentitySet}.
      */
-    private static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
+    static boolean templateMatches(NetworkTemplate template, NetworkIdentitySet identSet) {
         for (NetworkIdentity ident : identSet) {
             if (template.matches(ident)) {
                 return true;
@@ -772,6 +877,55 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         return false;
     }
 
+    private static class IndexEntry {
+        public final Key key;
+        public final long start;
+        public final long end;
+        public final int length;
+
+        public IndexEntry(Key key, long start, long end, int length) {
+            this.key = key;
+            this.start = start;
+            this.end = end;
+            this.length = length;
+        }
+    }
+
+    /** Streams from a {@link ByteBuffer}, leaving its position just past what was read. */
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer mBuffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            mBuffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return mBuffer.hasRemaining() ? (mBuffer.get() & 0xff) : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            if (!mBuffer.hasRemaining()) return -1;
+            len = Math.min(len, mBuffer.remaining());
+            mBuffer.get(b, off, len);
+            return len;
+        }
+
+        @Override
+        public long skip(long n) {
+            final int skipped = (int) Math.max(0, Math.min(n, mBuffer.remaining()));
+            mBuffer.position(mBuffer.position() + skipped);
+            return skipped;
+        }
+
+        @Override
+        public int available() {
+            return mBuffer.remaining();
+        }
+    }
+
     private static class Key implements Comparable<Key> {
         public final NetworkIdentitySet ident;
         public final int uid;
@@ -93,6 +93,15 @@ public class NetworkStatsRecorder {
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
+    /**
+     * History last loaded by {@link #getOrLoadMatchingLocked}: everything that can match
+     * {@link #mMatchingTemplate} from {@link #mMatchingStart} on. Like {@link #mComplete}, it
+     * is updated with future snapshots as long as the reference is valid.
+     */
+    private WeakReference<NetworkStatsCollection> mMatching;
+    private NetworkTemplate mMatchingTemplate;
+    private long mMatchingStart;
+
     /**
      * Non-persisted recorder, with only one bucket. Used by {@link NetworkStatsObservers}.
      */
@@ -149,6 +158,9 @@ public class NetworkStatsRecorder {
         if (mComplete != null) {
             mComplete.clear();
         }
+        if (mMatching != null) {
+            mMatching.clear();
+        }
     }
 
     public NetworkStats.Entry getTotalSinceBootLocked(NetworkTemplate template) {
@@ -185,6 +197,45 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Load only the history that can match {@code template} from {@code start} on, using the
+     * per-key index of the on-disk files to skip everything else. Caches the most recently
+     * loaded history internally as a {@link WeakReference}, and updated with future
+     * {@link #recordSnapshotLocked(NetworkStats, Map, VpnInfo[], long)} snapshots as long as
+     * reference is valid, so that repeated queries for the same template don't read from disk.
+     * Returns the cached complete history instead when it is already loaded.
+     */
+    public NetworkStatsCollection getOrLoadMatchingLocked(NetworkTemplate template, long start) {
+        checkNotNull(mRotator, "missing FileRotator");
+        NetworkStatsCollection res = mComplete != null ? mComplete.get() : null;
+        if (res != null) {
+            return res;
+        }
+        res = mMatching != null ? mMatching.get() : null;
+        if (res != null && template.equals(mMatchingTemplate) && start >= mMatchingStart) {
+            return res;
+        }
+
+        if (LOGD) Slog.d(TAG, "getOrLoadMatchingLocked() reading from disk for " + mCookie);
+        final NetworkStatsCollection matching = new NetworkStatsCollection(mBucketDuration);
+        try {
+            mRotator.readMatchingFiles(
+                    file -> matching.readMatching(file, template, start, Long.MAX_VALUE),
+                    start, Long.MAX_VALUE);
+            matching.recordCollection(mPending);
+            mMatching = new WeakReference<NetworkStatsCollection>(matching);
+            mMatchingTemplate = template;
+            mMatchingStart = start;
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading matching network stats", e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading matching network stats", e);
+            recoverFromWtf();
+        }
+        return matching;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
@@ -226,6 +277,7 @@ public class NetworkStatsRecorder {
         }
 
         final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        final NetworkStatsCollection matching = mMatching != null ? mMatching.get() : null;
 
         final NetworkStats delta = NetworkStats.subtract(
                 snapshot, mLastSnapshot, mObserver, mCookie);
@@ -279,6 +331,12 @@ public class NetworkStatsRecorder {
                 if (complete != null) {
                     complete.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
                 }
+
+                // and against the cached matching history when it can match
+                if (matching != null
+                        && NetworkStatsCollection.templateMatches(mMatchingTemplate, ident)) {
+                    matching.recordData(ident, entry.uid, entry.set, entry.tag, start, end, entry);
+                }
             }
         }
 
@@ -359,6 +417,10 @@ public class NetworkStatsRecorder {
         if (complete != null) {
             complete.removeUids(uids);
         }
+        final NetworkStatsCollection matching = mMatching != null ? mMatching.get() : null;
+        if (matching != null) {
+            matching.removeUids(uids);
+        }
     }
 
     /**
@@ -517,5 +579,8 @@ public class NetworkStatsRecorder {
         }
 
         mRotator.deleteAll();
+        if (mMatching != null) {
+            mMatching.clear();
+        }
     }
 }
@@ -758,12 +758,15 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
         assertSystemReady();
         assertBandwidthControlEnabled();
 
-        final NetworkStatsCollection uidComplete;
+        // Only load what can match; this avoids deserializing the whole uid history when it
+        // isn't already cached. The loaded history is cached and kept up to date by the
+        // recorder, so read it under the lock.
         synchronized (mStatsLock) {
-            uidComplete = mUidRecorder.getOrLoadCompleteLocked();
+            final NetworkStatsCollection uidStats =
+                    mUidRecorder.getOrLoadMatchingLocked(template, start);
+            return uidStats.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
+                    android.os.Process.SYSTEM_UID);
         }
-        return uidComplete.getSummary(template, start, end, NetworkStatsAccess.Level.DEVICE,
-                android.os.Process.SYSTEM_UID);
     }
 
     @Override
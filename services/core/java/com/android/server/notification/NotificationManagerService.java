@@ -302,6 +302,11 @@ public class NotificationManagerService extends SystemService {
     private static final long MIN_PACKAGE_OVERRATE_LOG_INTERVAL = 5000; // milliseconds
 
     private static final long DELAY_FOR_ASSISTANT_TIME = 100;
+    /**
+     * An update enqueued within this long of the last post of its notification waits out the
+     * rest of it, so that updates enqueued in the meantime are posted together.
+     */
+    private static final long UPDATE_COALESCE_WINDOW_MS = 100;
 
     private static final String ACTION_NOTIFICATION_TIMEOUT =
             NotificationManagerService.class.getSimpleName() + ".TIMEOUT";
@@ -402,6 +407,7 @@ public class NotificationManagerService extends SystemService {
     private RankingHandler mRankingHandler;
     private long mLastOverRateLogTime;
     private float mMaxPackageEnqueueRate = DEFAULT_MAX_NOTIFICATION_ENQUEUE_RATE;
+    private long mUpdateCoalesceWindowMs = UPDATE_COALESCE_WINDOW_MS;
 
     private SnoozeHelper mSnoozeHelper;
     private GroupHelper mGroupHelper;
@@ -1356,6 +1362,11 @@ public class NotificationManagerService extends SystemService {
         mUsageStats = us;
     }
 
+    @VisibleForTesting
+    void setUpdateCoalesceWindowMs(long windowMs) {
+        mUpdateCoalesceWindowMs = windowMs;
+    }
+
     @VisibleForTesting
     void setAccessibilityManager(AccessibilityManager am) {
         mAccessibilityManager = am;
@@ -3882,6 +3893,7 @@ public class NotificationManagerService extends SystemService {
                     pw.println("  mCallState=" + callStateToString(mCallState));
                     pw.println("  mSystemReady=" + mSystemReady);
                     pw.println("  mMaxPackageEnqueueRate=" + mMaxPackageEnqueueRate);
+                    pw.println("  mUpdateCoalesceWindowMs=" + mUpdateCoalesceWindowMs);
                 }
                 pw.println("  mArchive=" + mArchive.toString());
                 Iterator<StatusBarNotification> iter = mArchive.descendingIterator();
@@ -4008,7 +4020,7 @@ public class NotificationManagerService extends SystemService {
                             mNotificationList, pkg, null, notificationId, userId);
                     if (r != null) {
                         removeForegroundServiceFlagLocked(r);
-                        mRankingHelper.sort(mNotificationList);
+                        mRankingHelper.reposition(mNotificationList, r, null);
                         mListeners.notifyPostedLocked(r, r);
                     }
                 }
@@ -4395,7 +4407,16 @@ public class NotificationManagerService extends SystemService {
         @Override
         public void run() {
             synchronized (mNotificationLock) {
-                mEnqueuedNotifications.add(r);
+                // An update of a notification that is still waiting to be posted takes its
+                // place, and is posted by the runnable already scheduled for it.
+                final int pendingIndex = indexOfEnqueuedLocked(r.getKey());
+                if (pendingIndex >= 0) {
+                    r.inheritEnqueueElapsedTime(mEnqueuedNotifications.get(pendingIndex));
+                    mEnqueuedNotifications.set(pendingIndex, r);
+                    mUsageStats.registerCoalescedByApp(r);
+                } else {
+                    mEnqueuedNotifications.add(r);
+                }
                 scheduleTimeoutLocked(r);
 
                 final StatusBarNotification n = r.sbn;
@@ -4438,15 +4459,43 @@ public class NotificationManagerService extends SystemService {
                 mRankingHelper.extractSignals(r);
 
                 // tell the assistant service about the notification
+                long delay = getUpdateCoalesceDelayLocked(r, old);
                 if (mAssistants.isEnabled()) {
                     mAssistants.onNotificationEnqueued(r);
-                    mHandler.postDelayed(new PostNotificationRunnable(r.getKey()),
-                            DELAY_FOR_ASSISTANT_TIME);
-                } else {
-                    mHandler.post(new PostNotificationRunnable(r.getKey()));
+                    delay = Math.max(delay, DELAY_FOR_ASSISTANT_TIME);
                 }
+                if (pendingIndex < 0) {
+                    mHandler.postDelayed(new PostNotificationRunnable(r.getKey()), delay);
+                }
+            }
+        }
+    }
+
+    @GuardedBy("mNotificationLock")
+    private int indexOfEnqueuedLocked(String key) {
+        final int N = mEnqueuedNotifications.size();
+        for (int i = 0; i < N; i++) {
+            if (key.equals(mEnqueuedNotifications.get(i).getKey())) {
+                return i;
             }
         }
+        return -1;
+    }
+
+    /**
+     * Returns how long to hold back the post of {@code r}, so that an app updating a posted
+     * notification many times a second has its updates posted at most once per window.
+     */
+    @GuardedBy("mNotificationLock")
+    private long getUpdateCoalesceDelayLocked(NotificationRecord r, NotificationRecord old) {
+        if (old == null) {
+            return 0;
+        }
+        final long sinceLastPost = r.sbn.getPostTime() - old.sbn.getPostTime();
+        if (sinceLastPost < 0 || sinceLastPost >= mUpdateCoalesceWindowMs) {
+            return 0;
+        }
+        return mUpdateCoalesceWindowMs - sinceLastPost;
     }
 
     @GuardedBy("mNotificationLock")
@@ -4516,7 +4565,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    mRankingHelper.reposition(mNotificationList, r, old);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -5269,7 +5318,7 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            mRankingHelper.reposition(mNotificationList, record, null);
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             float contactAffinityAfter = record.getContactAffinity();
@@ -5499,6 +5548,7 @@ public class NotificationManagerService extends SystemService {
         if ((recordInList = findNotificationByListLocked(mNotificationList, r.getKey()))
                 != null) {
             mNotificationList.remove(recordInList);
+            mRankingHelper.remove(mNotificationList, recordInList);
             mNotificationsByKey.remove(recordInList.sbn.getKey());
             wasPosted = true;
         }
@@ -6590,6 +6640,9 @@ public class NotificationManagerService extends SystemService {
         static final String TAG_ENABLED_NOTIFICATION_LISTENERS = "enabled_listeners";
 
         private final ArraySet<ManagedServiceInfo> mLightTrimListeners = new ArraySet<>();
+        /** Posts each listener has yet to be told about. */
+        @GuardedBy("mNotificationLock")
+        private final ArrayMap<ManagedServiceInfo, PendingPosts> mPendingPosts = new ArrayMap<>();
 
         public NotificationListeners(IPackageManager pm) {
             super(getContext(), mNotificationLock, mUserProfiles, pm);
@@ -6711,10 +6764,10 @@ public class NotificationManagerService extends SystemService {
                     continue;
                 }
 
-                final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
-
                 // This notification became invisible -> remove the old one.
                 if (oldSbnVisible && !sbnVisible) {
+                    flushPendingPostsLocked(info);
+                    final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
                     final StatusBarNotification oldSbnLightClone = oldSbn.cloneLight();
                     mHandler.post(new Runnable() {
                         @Override
@@ -6732,12 +6785,84 @@ public class NotificationManagerService extends SystemService {
                 updateUriPermissions(r, old, info.component.getPackageName(), targetUserId);
 
                 final StatusBarNotification sbnToPost = trimCache.ForListener(info);
-                mHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        notifyPosted(info, sbnToPost, update);
+                PendingPosts pending = mPendingPosts.get(info);
+                if (pending == null) {
+                    pending = new PendingPosts(info);
+                    mPendingPosts.put(info, pending);
+                    mHandler.post(pending);
+                }
+                pending.add(sbnToPost, r.getEnqueueElapsedTimeMs());
+            }
+        }
+
+        /**
+         * Hands the posts waiting for {@code info} to the handler now, ahead of whatever is
+         * about to be sent to it. A post of a notification about to be removed is still
+         * delivered, so that the listener never hears of a removal without the post before it.
+         */
+        @GuardedBy("mNotificationLock")
+        private void flushPendingPostsLocked(ManagedServiceInfo info) {
+            final PendingPosts pending = mPendingPosts.remove(info);
+            if (pending == null) {
+                return;
+            }
+            final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
+            mHandler.post(() -> pending.deliver(update));
+        }
+
+        /**
+         * The notifications posted for one listener since it was last told about any, with
+         * only the latest update of each. They are sent one after the other with the same
+         * ranking update, made when they are sent, so that a burst of posts builds one ranking
+         * update instead of one per post.
+         */
+        private final class PendingPosts implements Runnable {
+            private final ManagedServiceInfo mInfo;
+            private final ArrayMap<String, StatusBarNotification> mSbns = new ArrayMap<>();
+            private final ArrayMap<String, Long> mEnqueueTimes = new ArrayMap<>();
+            /** Keys in the order they were first posted. */
+            private final ArrayList<String> mKeys = new ArrayList<>();
+
+            PendingPosts(ManagedServiceInfo info) {
+                mInfo = info;
+            }
+
+            /**
+             * Adds a post, replacing any earlier one of the same key but keeping its enqueue
+             * time, so that the delivery latency covers the whole wait.
+             */
+            @GuardedBy("mNotificationLock")
+            void add(StatusBarNotification sbn, long enqueueElapsedTimeMs) {
+                final String key = sbn.getKey();
+                if (mSbns.put(key, sbn) == null) {
+                    mKeys.add(key);
+                    mEnqueueTimes.put(key, enqueueElapsedTimeMs);
+                }
+            }
+
+            @Override
+            public void run() {
+                final NotificationRankingUpdate update;
+                synchronized (mNotificationLock) {
+                    if (mPendingPosts.get(mInfo) != this) {
+                        // Already flushed ahead of a removal or ranking update.
+                        return;
                     }
-                });
+                    mPendingPosts.remove(mInfo);
+                    update = makeRankingUpdateLocked(mInfo);
+                }
+                deliver(update);
+            }
+
+            void deliver(NotificationRankingUpdate update) {
+                final int N = mKeys.size();
+                for (int i = 0; i < N; i++) {
+                    final String key = mKeys.get(i);
+                    final StatusBarNotification sbn = mSbns.get(key);
+                    notifyPosted(mInfo, sbn, update);
+                    mUsageStats.registerDeliveredToListener(sbn.getPackageName(),
+                            SystemClock.elapsedRealtime() - mEnqueueTimes.get(key));
+                }
             }
         }
 
@@ -6775,6 +6900,7 @@ public class NotificationManagerService extends SystemService {
                 // Only assistants can get stats
                 final NotificationStats stats = mAssistants.isServiceTokenValidLocked(info.service)
                         ? notificationStats : null;
+                flushPendingPostsLocked(info);
                 final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
                 mHandler.post(new Runnable() {
                     @Override
@@ -6819,6 +6945,7 @@ public class NotificationManagerService extends SystemService {
                 }
 
                 if (notifyThisListener || !isHiddenRankingUpdate) {
+                    flushPendingPostsLocked(serviceInfo);
                     final NotificationRankingUpdate update = makeRankingUpdateLocked(
                             serviceInfo);
 
@@ -50,6 +50,7 @@ import android.os.Build;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.service.notification.Adjustment;
@@ -133,6 +134,10 @@ public final class NotificationRecord {
     // user
     private long mInterruptionTimeMs;
 
+    // SystemClock.elapsedRealtime() when the app enqueued this version of the notification, or
+    // the earliest version it replaced before that was posted.
+    private long mEnqueueElapsedTimeMs;
+
     // Is this record an update of an old record?
     public boolean isUpdate;
     private int mPackagePriority;
@@ -187,6 +192,7 @@ public final class NotificationRecord {
         mCreationTimeMs = sbn.getPostTime();
         mUpdateTimeMs = mCreationTimeMs;
         mInterruptionTimeMs = mCreationTimeMs;
+        mEnqueueElapsedTimeMs = SystemClock.elapsedRealtime();
         mContext = context;
         stats = new NotificationUsageStats.SingleNotificationStats();
         mChannel = channel;
@@ -784,6 +790,22 @@ public final class NotificationRecord {
         return mRankingTimeMs;
     }
 
+    /**
+     * Returns {@link SystemClock#elapsedRealtime()} when the app enqueued this record, or the
+     * earliest record it replaced before that one was posted.
+     */
+    public long getEnqueueElapsedTimeMs() {
+        return mEnqueueElapsedTimeMs;
+    }
+
+    /**
+     * Makes this record, which replaces {@code old} before it was posted, count its latency
+     * from when {@code old} was enqueued.
+     */
+    public void inheritEnqueueElapsedTime(NotificationRecord old) {
+        mEnqueueElapsedTimeMs = Math.min(mEnqueueElapsedTimeMs, old.mEnqueueElapsedTimeMs);
+    }
+
     /**
      * @param now this current time in milliseconds.
      * @returns the number of milliseconds since the most recent update, or the post time if none.
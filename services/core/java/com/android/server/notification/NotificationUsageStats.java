@@ -174,6 +174,29 @@ public class NotificationUsageStats {
         }
     }
 
+    /**
+     * Called when an update replaced one of the app's that was still waiting to be posted.
+     */
+    public synchronized void registerCoalescedByApp(NotificationRecord notification) {
+        AggregatedStats[] aggregatedStatsArray = getAggregatedStatsLocked(notification);
+        for (AggregatedStats stats : aggregatedStatsArray) {
+            stats.numCoalescedByApp++;
+        }
+        releaseAggregatedStatsLocked(aggregatedStatsArray);
+    }
+
+    /**
+     * Called when a listener has been told about a notification the app posted, {@code
+     * latencyMs} after the app enqueued it.
+     */
+    public synchronized void registerDeliveredToListener(String packageName, long latencyMs) {
+        AggregatedStats[] aggregatedStatsArray = getAggregatedStatsLocked(packageName);
+        for (AggregatedStats stats : aggregatedStatsArray) {
+            stats.listenerLatency.increment(latencyMs);
+        }
+        releaseAggregatedStatsLocked(aggregatedStatsArray);
+    }
+
     /**
      * Called when the originating app removed the notification programmatically.
      */
@@ -372,6 +395,7 @@ public class NotificationUsageStats {
         public int numEnqueuedByApp;
         public int numPostedByApp;
         public int numUpdatedByApp;
+        public int numCoalescedByApp;
         public int numRemovedByApp;
         public int numPeopleCacheHit;
         public int numPeopleCacheMiss;;
@@ -398,6 +422,7 @@ public class NotificationUsageStats {
         public ImportanceHistogram noisyImportance;
         public ImportanceHistogram quietImportance;
         public ImportanceHistogram finalImportance;
+        public LatencyHistogram listenerLatency;
         public RateEstimator enqueueRate;
         public AlertRateLimiter alertRate;
         public int numRateViolations;
@@ -412,6 +437,7 @@ public class NotificationUsageStats {
             noisyImportance = new ImportanceHistogram(context, "note_imp_noisy_");
             quietImportance = new ImportanceHistogram(context, "note_imp_quiet_");
             finalImportance = new ImportanceHistogram(context, "note_importance_");
+            listenerLatency = new LatencyHistogram(context, "note_listener_latency_");
             enqueueRate = new RateEstimator();
             alertRate = new AlertRateLimiter();
         }
@@ -502,6 +528,7 @@ public class NotificationUsageStats {
             maybeCount("note_enqueued", (numEnqueuedByApp - previous.numEnqueuedByApp));
             maybeCount("note_post", (numPostedByApp - previous.numPostedByApp));
             maybeCount("note_update", (numUpdatedByApp - previous.numUpdatedByApp));
+            maybeCount("note_coalesced", (numCoalescedByApp - previous.numCoalescedByApp));
             maybeCount("note_remove", (numRemovedByApp - previous.numRemovedByApp));
             maybeCount("note_with_people", (numWithValidPeople - previous.numWithValidPeople));
             maybeCount("note_with_stars", (numWithStaredPeople - previous.numWithStaredPeople));
@@ -531,10 +558,12 @@ public class NotificationUsageStats {
             noisyImportance.maybeCount(previous.noisyImportance);
             quietImportance.maybeCount(previous.quietImportance);
             finalImportance.maybeCount(previous.finalImportance);
+            listenerLatency.maybeCount(previous.listenerLatency);
 
             previous.numEnqueuedByApp = numEnqueuedByApp;
             previous.numPostedByApp = numPostedByApp;
             previous.numUpdatedByApp = numUpdatedByApp;
+            previous.numCoalescedByApp = numCoalescedByApp;
             previous.numRemovedByApp = numRemovedByApp;
             previous.numPeopleCacheHit = numPeopleCacheHit;
             previous.numPeopleCacheMiss = numPeopleCacheMiss;
@@ -564,6 +593,7 @@ public class NotificationUsageStats {
             noisyImportance.update(previous.noisyImportance);
             quietImportance.update(previous.quietImportance);
             finalImportance.update(previous.finalImportance);
+            listenerLatency.update(previous.listenerLatency);
         }
 
         void maybeCount(String name, int value) {
@@ -615,6 +645,8 @@ public class NotificationUsageStats {
             output.append(indentPlusTwo);
             output.append("numUpdatedByApp=").append(numUpdatedByApp).append(",\n");
             output.append(indentPlusTwo);
+            output.append("numCoalescedByApp=").append(numCoalescedByApp).append(",\n");
+            output.append(indentPlusTwo);
             output.append("numRemovedByApp=").append(numRemovedByApp).append(",\n");
             output.append(indentPlusTwo);
             output.append("numPeopleCacheHit=").append(numPeopleCacheHit).append(",\n");
@@ -669,6 +701,7 @@ public class NotificationUsageStats {
             output.append(indentPlusTwo).append(noisyImportance.toString()).append("\n");
             output.append(indentPlusTwo).append(quietImportance.toString()).append("\n");
             output.append(indentPlusTwo).append(finalImportance.toString()).append("\n");
+            output.append(indentPlusTwo).append(listenerLatency.toString()).append("\n");
             output.append(indent).append("}");
             return output.toString();
         }
@@ -681,6 +714,7 @@ public class NotificationUsageStats {
             maybePut(dump, "numEnqueuedByApp", numEnqueuedByApp);
             maybePut(dump, "numPostedByApp", numPostedByApp);
             maybePut(dump, "numUpdatedByApp", numUpdatedByApp);
+            maybePut(dump, "numCoalescedByApp", numCoalescedByApp);
             maybePut(dump, "numRemovedByApp", numRemovedByApp);
             maybePut(dump, "numPeopleCacheHit", numPeopleCacheHit);
             maybePut(dump, "numPeopleCacheMiss", numPeopleCacheMiss);
@@ -711,6 +745,7 @@ public class NotificationUsageStats {
             noisyImportance.maybePut(dump, previous.noisyImportance);
             quietImportance.maybePut(dump, previous.quietImportance);
             finalImportance.maybePut(dump, previous.finalImportance);
+            listenerLatency.maybePut(dump);
 
             return dump;
         }
@@ -788,6 +823,69 @@ public class NotificationUsageStats {
         }
     }
 
+    /**
+     * Counts latencies in buckets that double in size, from up to 1ms to over 1024ms.
+     */
+    private static class LatencyHistogram {
+        private static final int NUM_BUCKETS = 12;
+        private final Context mContext;
+        private final String[] mCounterNames;
+        private final String mPrefix;
+        private int[] mCount;
+
+        LatencyHistogram(Context context, String prefix) {
+            mContext = context;
+            mCount = new int[NUM_BUCKETS];
+            mCounterNames = new String[NUM_BUCKETS];
+            mPrefix = prefix;
+            for (int i = 0; i < NUM_BUCKETS - 1; i++) {
+                mCounterNames[i] = mPrefix + (1 << i);
+            }
+            mCounterNames[NUM_BUCKETS - 1] = mPrefix + "over_" + (1 << (NUM_BUCKETS - 2));
+        }
+
+        void increment(long latencyMs) {
+            int bucket = 0;
+            while (bucket < NUM_BUCKETS - 1 && latencyMs > (1 << bucket)) {
+                bucket++;
+            }
+            mCount[bucket]++;
+        }
+
+        void maybeCount(LatencyHistogram prev) {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                final int value = mCount[i] - prev.mCount[i];
+                if (value > 0) {
+                    MetricsLogger.count(mContext, mCounterNames[i], value);
+                }
+            }
+        }
+
+        void update(LatencyHistogram that) {
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                mCount[i] = that.mCount[i];
+            }
+        }
+
+        public void maybePut(JSONObject dump) throws JSONException {
+            dump.put(mPrefix, new JSONArray(mCount));
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder();
+            output.append(mPrefix).append(": [");
+            for (int i = 0; i < NUM_BUCKETS; i++) {
+                output.append(mCount[i]);
+                if (i < (NUM_BUCKETS-1)) {
+                    output.append(", ");
+                }
+            }
+            output.append("]");
+            return output.toString();
+        }
+    }
+
     /**
      * Tracks usage of an individual notification that is currently active.
      */
@@ -19,6 +19,7 @@ import static android.app.NotificationManager.IMPORTANCE_NONE;
 
 import android.annotation.IntDef;
 import android.annotation.NonNull;
+import android.annotation.Nullable;
 import android.app.Notification;
 import android.app.NotificationChannel;
 import android.app.NotificationChannelGroup;
@@ -72,6 +73,9 @@ public class RankingHelper implements RankingConfig {
 
     private static final int XML_VERSION = 1;
 
+    /** Distance between the authoritative ranks handed out by {@link #sort}. */
+    private static final int RANK_GAP = 1 << 12;
+
     static final String TAG_RANKING = "ranking";
     private static final String TAG_PACKAGE = "package";
     private static final String TAG_CHANNEL = "channel";
@@ -111,6 +115,13 @@ public class RankingHelper implements RankingConfig {
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
     private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
+    /**
+     * The records of the list last ordered by {@link #sort}, in preliminary order. Their
+     * authoritative ranks are spread {@link #RANK_GAP} apart, so that a record can be ranked
+     * between two others without renumbering the rest.
+     */
+    private final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
+    private ArrayList<NotificationRecord> mSortedList;
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
     private final Context mContext;
@@ -466,49 +477,24 @@ public class RankingHelper implements RankingConfig {
 
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
+        mPreliminaryOrder.clear();
+        mPreliminaryOrder.addAll(notificationList);
+        mSortedList = notificationList;
 
         synchronized (mProxyByGroupTmp) {
             // record individual ranking result and nominate proxies for each group
             for (int i = N - 1; i >= 0; i--) {
                 final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
+                record.setAuthoritativeRank((i + 1) * RANK_GAP);
                 final String groupKey = record.getGroupKey();
                 NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
                 if (existingProxy == null) {
                     mProxyByGroupTmp.put(groupKey, record);
                 }
             }
-            // assign global sort key:
-            //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
-                NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
-                } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
-                }
-
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                assignGlobalSortKey(record, mProxyByGroupTmp.get(record.getGroupKey()));
             }
             mProxyByGroupTmp.clear();
         }
@@ -517,6 +503,166 @@ public class RankingHelper implements RankingConfig {
         Collections.sort(notificationList, mFinalComparator);
     }
 
+    /**
+     * Puts {@code record} back in its place in a list last ordered by {@link #sort}, after it
+     * was added to the list, replaced {@code old} in it, or had its ranking signals changed.
+     * Only the records in the groups of {@code record} and {@code old} get new global sort keys;
+     * the list is sorted from scratch if it isn't the one this helper keeps track of.
+     */
+    public void reposition(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord record, @Nullable NotificationRecord old) {
+        if (notificationList != mSortedList
+                || (old != null && old != record && !removePreliminary(old))) {
+            sort(notificationList);
+            return;
+        }
+        removePreliminary(record);
+        if (mPreliminaryOrder.size() + 1 != notificationList.size()) {
+            sort(notificationList);
+            return;
+        }
+
+        // rank the record against the others, which keep their ranks
+        int index = Collections.binarySearch(mPreliminaryOrder, record, mPreliminaryComparator);
+        if (index < 0) {
+            index = -index - 1;
+        } else {
+            // after the records it ties with, as a stable sort of the final order would
+            while (index < mPreliminaryOrder.size()
+                    && mPreliminaryComparator.compare(mPreliminaryOrder.get(index), record) == 0) {
+                index++;
+            }
+        }
+        final long before = index > 0 ? mPreliminaryOrder.get(index - 1).getAuthoritativeRank() : 0;
+        final long after = index < mPreliminaryOrder.size()
+                ? mPreliminaryOrder.get(index).getAuthoritativeRank() : before + 2 * RANK_GAP;
+        if (after - before < 2 || after > Integer.MAX_VALUE) {
+            // no room left between the neighbours; spread all the ranks out again
+            sort(notificationList);
+            return;
+        }
+        mPreliminaryOrder.add(index, record);
+        record.setAuthoritativeRank((int) ((before + after) / 2));
+
+        final String groupKey = record.getGroupKey();
+        final String oldGroupKey = old != null ? old.getGroupKey() : null;
+        regroup(notificationList, record, groupKey,
+                Objects.equals(oldGroupKey, groupKey) ? null : oldGroupKey);
+    }
+
+    /**
+     * Called after {@code record} was taken out of a list last ordered by {@link #sort}, so that
+     * the rest of its group is ordered by the next member in line.
+     */
+    public void remove(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord record) {
+        if (notificationList != mSortedList) {
+            return;
+        }
+        if (!removePreliminary(record)) {
+            mSortedList = null;
+            return;
+        }
+        regroup(notificationList, null, record.getGroupKey(), null);
+    }
+
+    /** Removes {@code record} from the preliminary order, found by its rank. */
+    private boolean removePreliminary(NotificationRecord record) {
+        int lo = 0;
+        int hi = mPreliminaryOrder.size() - 1;
+        final int rank = record.getAuthoritativeRank();
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midRank = mPreliminaryOrder.get(mid).getAuthoritativeRank();
+            if (midRank < rank) {
+                lo = mid + 1;
+            } else if (midRank > rank) {
+                hi = mid - 1;
+            } else {
+                if (mPreliminaryOrder.get(mid) != record) {
+                    return false;
+                }
+                mPreliminaryOrder.remove(mid);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gives the members of the given groups, and {@code record}, new global sort keys and moves
+     * them to their places in the list.
+     */
+    private void regroup(ArrayList<NotificationRecord> notificationList,
+            @Nullable NotificationRecord record, String groupKey, @Nullable String otherGroupKey) {
+        final ArrayList<NotificationRecord> members = new ArrayList<>();
+        for (int i = notificationList.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = notificationList.get(i);
+            final String key = r.getGroupKey();
+            if (r == record || key.equals(groupKey) || key.equals(otherGroupKey)) {
+                members.add(r);
+                notificationList.remove(i);
+            }
+        }
+        NotificationRecord proxy = null;
+        NotificationRecord otherProxy = null;
+        for (int i = members.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = members.get(i);
+            if (r.getGroupKey().equals(groupKey)) {
+                if (proxy == null || r.getAuthoritativeRank() < proxy.getAuthoritativeRank()) {
+                    proxy = r;
+                }
+            } else if (otherProxy == null
+                    || r.getAuthoritativeRank() < otherProxy.getAuthoritativeRank()) {
+                otherProxy = r;
+            }
+        }
+        for (int i = members.size() - 1; i >= 0; i--) {
+            final NotificationRecord r = members.get(i);
+            assignGlobalSortKey(r, r.getGroupKey().equals(groupKey) ? proxy : otherProxy);
+            int index = Collections.binarySearch(notificationList, r, mFinalComparator);
+            notificationList.add(index < 0 ? -index - 1 : index, r);
+        }
+    }
+
+    private static void assignGlobalSortKey(NotificationRecord record,
+            NotificationRecord groupProxy) {
+        String groupSortKey = record.getNotification().getSortKey();
+        boolean isGroupSummary = record.getNotification().isGroupSummary();
+
+        // assign global sort key:
+        //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
+        final StringBuilder sb = new StringBuilder(64);
+        sb.append("intrsv=").append(record.isRecentlyIntrusive()
+                && record.getImportance() > NotificationManager.IMPORTANCE_MIN ? '0' : '1');
+        sb.append(":grnk=0x");
+        appendRank(sb, groupProxy.getAuthoritativeRank());
+        sb.append(":gsmry=").append(isGroupSummary ? '0' : '1');
+
+        // We need to make sure the developer provided group sort key (gsk) is handled
+        // correctly:
+        //   gsk="" < gsk=non-null-string < gsk=null
+        //
+        // We enforce this by using different prefixes for these three cases.
+        if (groupSortKey == null) {
+            sb.append(":nsk");
+        } else if (groupSortKey.equals("")) {
+            sb.append(":esk");
+        } else {
+            sb.append(":gsk=").append(groupSortKey);
+        }
+        sb.append(":rnk=0x");
+        appendRank(sb, record.getAuthoritativeRank());
+        record.setGlobalSortKey(sb.toString());
+    }
+
+    /** Appends {@code rank} as eight hex digits, so that keys compare by rank. */
+    private static void appendRank(StringBuilder sb, int rank) {
+        for (int shift = 28; shift >= 0; shift -= 4) {
+            sb.append(Character.forDigit((rank >>> shift) & 0xf, 16));
+        }
+    }
+
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
         return Collections.binarySearch(notificationList, target, mFinalComparator);
     }
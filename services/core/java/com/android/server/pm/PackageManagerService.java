@@ -931,6 +931,12 @@ public class PackageManagerService extends IPackageManager.Stub
     // All available services, for your resolving pleasure.
     final ServiceIntentResolver mServices = new ServiceIntentResolver();
 
+    // Results of repeated queries; see invalidateQueryCaches().
+    private final QueryResultCache<QueryResultCache.IntentKey, List<ResolveInfo>>
+            mActivityQueryCache = new QueryResultCache<>("queryIntentActivities", 256);
+    private final QueryResultCache<QueryResultCache.PackageKey, PackageInfo>
+            mPackageInfoCache = new QueryResultCache<>("getPackageInfo", 256);
+
     // All available providers, for your resolving pleasure.
     final ProviderIntentResolver mProviders = new ProviderIntentResolver();
 
@@ -1020,6 +1026,17 @@ public class PackageManagerService extends IPackageManager.Stub
 
     private File mCacheDir;
 
+    /** Index of the code paths committed by the last boot scan; only set while booting. */
+    private PackageScanIndex mScanIndex;
+
+    /**
+     * Packages whose certificates were already collected by the parsing threads during
+     * the current directory scan.
+     */
+    @GuardedBy("mInstallLock")
+    private final ArraySet<PackageParser.Package> mCertificatesCollectedByParser =
+            new ArraySet<>();
+
     private Future<?> mPrepareAppDataFuture;
 
     private static class IFVerificationParams {
@@ -1743,7 +1760,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     synchronized (mPackages) {
                         removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                         for (int userId : mDirtyUsers) {
-                            mSettings.writePackageRestrictionsLPr(userId);
+                            mSettings.writePendingPackageRestrictionsLPr(userId);
                         }
                         mDirtyUsers.clear();
                     }
@@ -2274,7 +2291,18 @@ public class PackageManagerService extends IPackageManager.Stub
         return extras;
     }
 
+    /**
+     * Drops all cached query results. Called whenever package, component or per-user package
+     * state changes; changes are always followed by scheduling or performing a settings write,
+     * so that is where this hooks in.
+     */
+    void invalidateQueryCaches() {
+        mActivityQueryCache.invalidate();
+        mPackageInfoCache.invalidate();
+    }
+
     void scheduleWriteSettingsLocked() {
+        invalidateQueryCaches();
         if (!mHandler.hasMessages(WRITE_SETTINGS)) {
             mHandler.sendEmptyMessageDelayed(WRITE_SETTINGS, WRITE_SETTINGS_DELAY);
         }
@@ -2294,10 +2322,21 @@ public class PackageManagerService extends IPackageManager.Stub
     }
 
     void scheduleWritePackageRestrictionsLocked(int userId) {
+        scheduleWritePackageRestrictionsLocked(userId, null);
+    }
+
+    /**
+     * Schedules writing the restrictions of {@code userId} after the state of a single package
+     * changed, which can be persisted without rewriting the restrictions of every package.
+     * A {@code null} package name means any other per-user state changed.
+     */
+    void scheduleWritePackageRestrictionsLocked(int userId, @Nullable String packageName) {
+        invalidateQueryCaches();
         final int[] userIds = (userId == UserHandle.USER_ALL)
                 ? sUserManager.getUserIds() : new int[]{userId};
         for (int nextUserId : userIds) {
             if (!sUserManager.exists(nextUserId)) return;
+            mSettings.noteUserStateChangedLPw(nextUserId, packageName);
             mDirtyUsers.add(nextUserId);
             if (!mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.sendEmptyMessageDelayed(WRITE_PACKAGE_RESTRICTIONS, WRITE_SETTINGS_DELAY);
@@ -2439,6 +2478,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     }, mPackages /*externalLock*/);
             mDefaultPermissionPolicy = mPermissionManager.getDefaultPermissionGrantPolicy();
             mSettings = new Settings(mPermissionManager.getPermissionSettings(), mPackages);
+            mSettings.setOnWriteListener(this::invalidateQueryCaches);
         }
         }
         mSettings.addSharedUserLPw("android.uid.system", Process.SYSTEM_UID,
@@ -2598,6 +2638,10 @@ public class PackageManagerService extends IPackageManager.Stub
 
             mCacheDir = preparePackageParserCache(mIsUpgrade);
 
+            mScanIndex = new PackageScanIndex(
+                    new File(Environment.getDataSystemDirectory(), "package_scan_index"));
+            mScanIndex.read();
+
             // Set flag to monitor and not change apk file paths when
             // scanning install directories.
             int scanFlags = SCAN_BOOTING | SCAN_INITIAL;
@@ -3003,6 +3047,13 @@ public class PackageManagerService extends IPackageManager.Stub
             }
             mExpectingBetter.clear();
 
+            // Data apps aren't scanned in core-only mode, so keep the index from the last full
+            // boot rather than forgetting them.
+            if (!mOnlyCore) {
+                mScanIndex.write();
+            }
+            mScanIndex = null;
+
             // Resolve the storage manager.
             mStorageManagerPackage = getStorageManagerPackageName();
 
@@ -4097,8 +4148,32 @@ public class PackageManagerService extends IPackageManager.Stub
 
     @Override
     public PackageInfo getPackageInfo(String packageName, int flags, int userId) {
-        return getPackageInfoInternal(packageName, PackageManager.VERSION_CODE_HIGHEST,
-                flags, Binder.getCallingUid(), userId);
+        final int callingUid = Binder.getCallingUid();
+        // Calls from within system_server get the very object we return rather than a
+        // parceled copy of it, so don't share cached results with them.
+        if (Binder.getCallingPid() == Process.myPid() || Process.isIsolated(callingUid)) {
+            return getPackageInfoInternal(packageName, PackageManager.VERSION_CODE_HIGHEST,
+                    flags, callingUid, userId);
+        }
+
+        if (!sUserManager.exists(userId)) return null;
+        mPermissionManager.enforceCrossUserPermission(callingUid, userId,
+                false /* requireFullPermission */, false /* checkShell */, "get package info");
+        // Key on the flags as resolved against the user's lock state, so that results cached
+        // while the user was locked, with only direct boot aware components, aren't handed out
+        // once it is unlocked, or the other way around once it is stopped.
+        final QueryResultCache.PackageKey key = new QueryResultCache.PackageKey(packageName,
+                updateFlags(flags, userId), userId, callingUid);
+        PackageInfo info = mPackageInfoCache.get(key);
+        if (info == null) {
+            final int generation = mPackageInfoCache.getGeneration();
+            info = getPackageInfoInternal(packageName, PackageManager.VERSION_CODE_HIGHEST,
+                    flags, callingUid, userId);
+            if (info != null) {
+                mPackageInfoCache.put(key, info, generation);
+            }
+        }
+        return info;
     }
 
     @Override
@@ -6637,6 +6712,63 @@ public class PackageManagerService extends IPackageManager.Stub
     private @NonNull List<ResolveInfo> queryIntentActivitiesInternal(Intent intent,
             String resolvedType, int flags, int filterCallingUid, int userId,
             boolean resolveForStart, boolean allowDynamicSplits) {
+        if (!isActivityQueryCacheable(intent, filterCallingUid, userId)) {
+            return queryIntentActivitiesInternalUncached(intent, resolvedType, flags,
+                    filterCallingUid, userId, resolveForStart, allowDynamicSplits);
+        }
+
+        if (!sUserManager.exists(userId)) return Collections.emptyList();
+        mPermissionManager.enforceCrossUserPermission(Binder.getCallingUid(), userId,
+                false /* requireFullPermission */, false /* checkShell */,
+                "query intent activities");
+        // As in getPackageInfo(), key on the flags as resolved against the user's lock state.
+        final QueryResultCache.IntentKey key = new QueryResultCache.IntentKey(intent,
+                resolvedType, updateFlags(flags, userId), userId, filterCallingUid,
+                resolveForStart, allowDynamicSplits);
+        final List<ResolveInfo> cached = mActivityQueryCache.get(key);
+        if (cached != null) {
+            return QueryResultCache.copyResolveInfos(cached);
+        }
+
+        final int generation = mActivityQueryCache.getGeneration();
+        final List<ResolveInfo> result = queryIntentActivitiesInternalUncached(intent,
+                resolvedType, flags, filterCallingUid, userId, resolveForStart,
+                allowDynamicSplits);
+        for (int i = result.size() - 1; i >= 0; i--) {
+            final ResolveInfo ri = result.get(i);
+            if (ri.auxiliaryInfo != null || ri.isInstantAppAvailable) {
+                // Instant app resolution isn't driven by local state; don't hold on to it.
+                return result;
+            }
+        }
+        mActivityQueryCache.put(key, QueryResultCache.copyResolveInfos(result), generation);
+        return result;
+    }
+
+    /**
+     * Returns whether the result of resolving {@code intent} only depends on state that
+     * invalidates {@link #mActivityQueryCache} when it changes.
+     */
+    private boolean isActivityQueryCacheable(Intent intent, int filterCallingUid, int userId) {
+        if (intent.getComponent() != null || intent.getSelector() != null
+                || intent.getExtras() != null) {
+            return false;
+        }
+        if ((intent.getFlags() & Intent.FLAG_DEBUG_LOG_RESOLUTION) != 0) {
+            return false;
+        }
+        // Isolated uids are recycled between owners.
+        if (Process.isIsolated(filterCallingUid)) {
+            return false;
+        }
+        // Instant app resolution may reach out to the resolver.
+        return !isInstantAppResolutionAllowed(intent, null /*resolvedActivities*/, userId,
+                true /*skipPackageCheck*/);
+    }
+
+    private @NonNull List<ResolveInfo> queryIntentActivitiesInternalUncached(Intent intent,
+            String resolvedType, int flags, int filterCallingUid, int userId,
+            boolean resolveForStart, boolean allowDynamicSplits) {
         if (!sUserManager.exists(userId)) return Collections.emptyList();
         final String instantAppPkgName = getInstantAppPackageName(filterCallingUid);
         mPermissionManager.enforceCrossUserPermission(Binder.getCallingUid(), userId,
@@ -8492,7 +8624,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
         try (ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
-                mParallelPackageParserCallback)) {
+                mParallelPackageParserCallback, mScanIndex)) {
             // Submit files for parsing in parallel
             int fileCount = 0;
             for (File file : files) {
@@ -8523,10 +8655,22 @@ public class PackageManagerService extends IPackageManager.Stub
                     if (parseResult.pkg.applicationInfo.isStaticSharedLibrary()) {
                         renameStaticSharedLibraryPackage(parseResult.pkg);
                     }
+                    if (parseResult.certificatesCollected) {
+                        mCertificatesCollectedByParser.add(parseResult.pkg);
+                        final int childCount = parseResult.pkg.childPackages != null
+                                ? parseResult.pkg.childPackages.size() : 0;
+                        for (int i = 0; i < childCount; i++) {
+                            mCertificatesCollectedByParser.add(
+                                    parseResult.pkg.childPackages.get(i));
+                        }
+                    }
                     try {
                         if (errorCode == PackageManager.INSTALL_SUCCEEDED) {
                             scanPackageChildLI(parseResult.pkg, parseFlags, scanFlags,
                                     currentTime, null);
+                            if (mScanIndex != null) {
+                                recordScanIndexLI(parseResult.pkg, parseFlags);
+                            }
                         }
                     } catch (PackageManagerException e) {
                         errorCode = e.error;
@@ -8550,6 +8694,24 @@ public class PackageManagerService extends IPackageManager.Stub
                     removeCodePathLI(parseResult.scanFile);
                 }
             }
+        } finally {
+            mCertificatesCollectedByParser.clear();
+        }
+    }
+
+    /**
+     * Records the state a package was committed with in the boot scan index, unless it was
+     * shadowed by another version of the package.
+     */
+    private void recordScanIndexLI(PackageParser.Package pkg, @ParseFlags int parseFlags) {
+        synchronized (mPackages) {
+            final PackageSetting ps = mSettings.mPackages.get(pkg.packageName);
+            if (ps == null || mPackages.get(pkg.packageName) != pkg) {
+                return;
+            }
+            mScanIndex.record(new File(pkg.codePath), parseFlags,
+                    deriveAbiOverride(pkg.cpuAbiOverride, ps),
+                    pkg.applicationInfo.primaryCpuAbi, pkg.applicationInfo.secondaryCpuAbi);
         }
     }
 
@@ -8586,6 +8748,11 @@ public class PackageManagerService extends IPackageManager.Stub
                     (forceCollect ? " (forced)" : ""));
         }
 
+        // The parsing threads collect with the verification a non-forced collection uses.
+        if (mCertificatesCollectedByParser.remove(pkg) && !forceCollect) {
+            return;
+        }
+
         try {
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "collectCertificates");
             PackageParser.collectCertificates(pkg, skipVerify);
@@ -8843,7 +9010,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     final ScanRequest request = new ScanRequest(pkg, sharedUserSetting, null,
                             disabledPkgSetting /* pkgSetting */, null /* disabledPkgSetting */,
                             null /* originalPkgSetting */, null, parseFlags, scanFlags,
-                            (pkg == mPlatformPackage), user);
+                            (pkg == mPlatformPackage), user, null);
                     applyPolicy(pkg, parseFlags, scanFlags, mPlatformPackage);
                     scanPackageOnlyLI(request, mFactoryTest, -1L);
                 }
@@ -9574,7 +9741,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (mHandler.hasMessages(WRITE_PACKAGE_RESTRICTIONS)) {
                 mHandler.removeMessages(WRITE_PACKAGE_RESTRICTIONS);
                 for (int userId : mDirtyUsers) {
-                    mSettings.writePackageRestrictionsLPr(userId);
+                    mSettings.writePendingPackageRestrictionsLPr(userId);
                 }
                 mDirtyUsers.clear();
             }
@@ -10077,6 +10244,8 @@ public class PackageManagerService extends IPackageManager.Stub
         @Nullable public final UserHandle user;
         /** Whether or not the platform package is being scanned */
         public final boolean isPlatformPackage;
+        /** The boot scan index entry, if the package's code is unchanged since it was made */
+        @Nullable public final PackageScanIndex.Entry scanIndexEntry;
         public ScanRequest(
                 @NonNull PackageParser.Package pkg,
                 @Nullable SharedUserSetting sharedUserSetting,
@@ -10088,7 +10257,8 @@ public class PackageManagerService extends IPackageManager.Stub
                 @ParseFlags int parseFlags,
                 @ScanFlags int scanFlags,
                 boolean isPlatformPackage,
-                @Nullable UserHandle user) {
+                @Nullable UserHandle user,
+                @Nullable PackageScanIndex.Entry scanIndexEntry) {
             this.pkg = pkg;
             this.oldPkg = oldPkg;
             this.pkgSetting = pkgSetting;
@@ -10101,6 +10271,7 @@ public class PackageManagerService extends IPackageManager.Stub
             this.scanFlags = scanFlags;
             this.isPlatformPackage = isPlatformPackage;
             this.user = user;
+            this.scanIndexEntry = scanIndexEntry;
         }
     }
 
@@ -10227,7 +10398,9 @@ public class PackageManagerService extends IPackageManager.Stub
                 final ScanRequest request = new ScanRequest(pkg, sharedUserSetting,
                         pkgSetting == null ? null : pkgSetting.pkg, pkgSetting, disabledPkgSetting,
                         originalPkgSetting, realPkgName, parseFlags, scanFlags,
-                        (pkg == mPlatformPackage), user);
+                        (pkg == mPlatformPackage), user,
+                        mScanIndex != null ? mScanIndex.getUnchanged(new File(pkg.codePath))
+                                : null);
                 final ScanResult result = scanPackageOnlyLI(request, mFactoryTest, currentTime);
                 if (result.success) {
                     commitScanResultsLocked(request, result);
@@ -10687,6 +10860,15 @@ public class PackageManagerService extends IPackageManager.Stub
 
         final String cpuAbiOverride = deriveAbiOverride(pkg.cpuAbiOverride, pkgSetting);
 
+        // The boot scan index remembers the ABIs of code that hasn't changed since they were
+        // last derived for the same supported ABIs, so they don't need deriving again.
+        if (needToDeriveAbi && request.scanIndexEntry != null
+                && request.scanIndexEntry.matchesAbiOverride(cpuAbiOverride)) {
+            primaryCpuAbiFromSettings = request.scanIndexEntry.primaryCpuAbi;
+            secondaryCpuAbiFromSettings = request.scanIndexEntry.secondaryCpuAbi;
+            needToDeriveAbi = false;
+        }
+
         if ((scanFlags & SCAN_NEW_INSTALL) == 0) {
             if (needToDeriveAbi) {
                 Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "derivePackageAbi");
@@ -12847,6 +13029,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void addActivity(PackageParser.Activity a, String type) {
+            invalidateQueryCaches();
             mActivities.put(a.getComponentName(), a);
             if (DEBUG_SHOW_INFO)
                 Log.v(
@@ -12876,6 +13059,7 @@ public class PackageManagerService extends IPackageManager.Stub
         }
 
         public final void removeActivity(PackageParser.Activity a, String type) {
+            invalidateQueryCaches();
             mActivities.remove(a.getComponentName());
             if (DEBUG_SHOW_INFO) {
                 Log.v(TAG, "  " + type + " "
@@ -21093,7 +21277,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             }
         }
         synchronized (mPackages) {
-            scheduleWritePackageRestrictionsLocked(userId);
+            scheduleWritePackageRestrictionsLocked(userId, packageName);
             updateSequenceNumberLP(pkgSetting, new int[] { userId });
             final long callingId = Binder.clearCallingIdentity();
             try {
@@ -21199,7 +21383,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
             if (!filterAppAccessLPr(ps, callingUid, userId)
                     && mSettings.setPackageStoppedStateLPw(this, packageName, stopped,
                             allowedByPermission, callingUid, userId)) {
-                scheduleWritePackageRestrictionsLocked(userId);
+                scheduleWritePackageRestrictionsLocked(userId, packageName);
             }
         }
     }
@@ -21508,6 +21692,7 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 pw.println("    dexopt: dump dexopt state");
                 pw.println("    compiler-stats: dump compiler statistics");
                 pw.println("    service-permissions: dump permissions required by services");
+                pw.println("    query-cache: dump query result cache statistics");
                 pw.println("    <package.name>: info about given package");
                 return;
             } else if ("--checkin".equals(opt)) {
@@ -21637,6 +21822,8 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 dumpState.setDump(DumpState.DUMP_FROZEN);
             } else if ("volumes".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_VOLUMES);
+            } else if ("query-cache".equals(cmd)) {
+                dumpState.setDump(DumpState.DUMP_QUERY_CACHE);
             } else if ("dexopt".equals(cmd)) {
                 dumpState.setDump(DumpState.DUMP_DEXOPT);
             } else if ("compiler-stats".equals(cmd)) {
@@ -22025,6 +22212,19 @@ Slog.v(TAG, ":: stepped forward, applying functor at tag " + parser.getName());
                 ipw.decreaseIndent();
             }
 
+            if (!checkin && dumpState.isDumping(DumpState.DUMP_QUERY_CACHE)
+                    && packageName == null) {
+                if (dumpState.onTitlePrinted()) pw.println();
+
+                final IndentingPrintWriter ipw = new IndentingPrintWriter(pw, "  ", 120);
+                ipw.println();
+                ipw.println("Query result caches:");
+                ipw.increaseIndent();
+                mActivityQueryCache.dump(ipw);
+                mPackageInfoCache.dump(ipw);
+                ipw.decreaseIndent();
+            }
+
             if (!checkin && dumpState.isDumping(DumpState.DUMP_SERVICE_PERMISSIONS)
                     && packageName == null) {
                 if (dumpState.onTitlePrinted()) pw.println();
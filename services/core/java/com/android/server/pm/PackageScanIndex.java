@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.annotation.Nullable;
+import android.content.pm.PackageParser;
+import android.os.Build;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * Remembers what the boot scan derived for each code path it committed, so the next boot can
+ * tell which packages are unchanged without parsing their certificates or native libraries.
+ *
+ * <p>A code path is considered unchanged when its last modified time and size (summed over
+ * the APKs of a cluster package) match what was recorded. Files on the system partitions
+ * can keep their timestamps across an OTA, so entries for them are only trusted on the
+ * build that recorded them. All entries are dropped when the set of supported ABIs or the
+ * platform SDK changes, since the derived ABIs depend on both.
+ *
+ * <p>Lookups may happen concurrently from the package parsing threads once {@link #read()}
+ * has returned; updates are collected separately and only the code paths recorded during
+ * the current boot are written back.
+ */
+final class PackageScanIndex {
+    private static final String TAG = "PackageScanIndex";
+
+    private static final int VERSION = 1;
+
+    private static final int FLAG_SYSTEM_DIR = 1 << 0;
+
+    static final class Entry {
+        final int flags;
+        final long lastModified;
+        final long size;
+        @Nullable final String cpuAbiOverride;
+        @Nullable final String primaryCpuAbi;
+        @Nullable final String secondaryCpuAbi;
+
+        Entry(int flags, long lastModified, long size, String cpuAbiOverride,
+                String primaryCpuAbi, String secondaryCpuAbi) {
+            this.flags = flags;
+            this.lastModified = lastModified;
+            this.size = size;
+            this.cpuAbiOverride = cpuAbiOverride;
+            this.primaryCpuAbi = primaryCpuAbi;
+            this.secondaryCpuAbi = secondaryCpuAbi;
+        }
+
+        /**
+         * Whether the recorded ABIs were derived with the same override the package would
+         * be derived with now.
+         */
+        boolean matchesAbiOverride(@Nullable String cpuAbiOverride) {
+            return Objects.equals(this.cpuAbiOverride, cpuAbiOverride);
+        }
+    }
+
+    private final AtomicFile mFile;
+    private final String mAbiStamp;
+    private final String mFingerprint;
+
+    /** Entries read from disk; not modified once {@link #read()} returns. */
+    private final ArrayMap<String, Entry> mEntries = new ArrayMap<>();
+
+    @GuardedBy("mUpdated")
+    private final ArrayMap<String, Entry> mUpdated = new ArrayMap<>();
+
+    PackageScanIndex(File file) {
+        this(file, getAbiStamp(), Build.FINGERPRINT);
+    }
+
+    @VisibleForTesting
+    PackageScanIndex(File file, String abiStamp, String fingerprint) {
+        mFile = new AtomicFile(file);
+        mAbiStamp = abiStamp;
+        mFingerprint = fingerprint;
+    }
+
+    private static String getAbiStamp() {
+        return Build.VERSION.SDK_INT
+                + ";" + TextUtils.join(",", Build.SUPPORTED_32_BIT_ABIS)
+                + ";" + TextUtils.join(",", Build.SUPPORTED_64_BIT_ABIS);
+    }
+
+    void read() {
+        mEntries.clear();
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(mFile.openRead()));
+            if (in.readInt() != VERSION || !mAbiStamp.equals(in.readUTF())) {
+                return;
+            }
+            final boolean sameBuild = mFingerprint.equals(in.readUTF());
+            final int count = in.readInt();
+            mEntries.ensureCapacity(count);
+            for (int i = 0; i < count; i++) {
+                final String codePath = in.readUTF();
+                final Entry entry = new Entry(in.readInt(), in.readLong(), in.readLong(),
+                        readString(in), readString(in), readString(in));
+                if (sameBuild || (entry.flags & FLAG_SYSTEM_DIR) == 0) {
+                    mEntries.put(codePath, entry);
+                }
+            }
+        } catch (FileNotFoundException e) {
+            // First boot with the index; every package is treated as changed.
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile.getBaseFile() + "; ignoring it", e);
+            mEntries.clear();
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    void write() {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            out.writeInt(VERSION);
+            out.writeUTF(mAbiStamp);
+            out.writeUTF(mFingerprint);
+            synchronized (mUpdated) {
+                final int count = mUpdated.size();
+                out.writeInt(count);
+                for (int i = 0; i < count; i++) {
+                    final Entry entry = mUpdated.valueAt(i);
+                    out.writeUTF(mUpdated.keyAt(i));
+                    out.writeInt(entry.flags);
+                    out.writeLong(entry.lastModified);
+                    out.writeLong(entry.size);
+                    writeString(out, entry.cpuAbiOverride);
+                    writeString(out, entry.primaryCpuAbi);
+                    writeString(out, entry.secondaryCpuAbi);
+                }
+            }
+            out.flush();
+            mFile.finishWrite(fos);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write " + mFile.getBaseFile(), e);
+            mFile.failWrite(fos);
+        }
+    }
+
+    /**
+     * Returns the entry recorded for {@code codePath} if the code there hasn't changed since,
+     * or {@code null} otherwise.
+     */
+    @Nullable Entry getUnchanged(File codePath) {
+        final Entry entry = mEntries.get(codePath.getAbsolutePath());
+        if (entry == null) {
+            return null;
+        }
+        final long[] stat = stat(codePath);
+        if (stat == null || stat[0] != entry.lastModified || stat[1] != entry.size) {
+            return null;
+        }
+        return entry;
+    }
+
+    /** Records the state a package at {@code codePath} was committed with. */
+    void record(File codePath, @PackageParser.ParseFlags int parseFlags,
+            @Nullable String cpuAbiOverride, @Nullable String primaryCpuAbi,
+            @Nullable String secondaryCpuAbi) {
+        final long[] stat = stat(codePath);
+        if (stat == null) {
+            return;
+        }
+        final int flags = (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0
+                ? FLAG_SYSTEM_DIR : 0;
+        final Entry entry = new Entry(flags, stat[0], stat[1], cpuAbiOverride,
+                primaryCpuAbi, secondaryCpuAbi);
+        synchronized (mUpdated) {
+            mUpdated.put(codePath.getAbsolutePath(), entry);
+        }
+    }
+
+    /**
+     * Returns the last modified time and size of a monolithic APK, or the latest modified
+     * time and total size of the APKs in a cluster package, or {@code null} if there are no
+     * APKs at {@code codePath}.
+     */
+    private static @Nullable long[] stat(File codePath) {
+        if (!codePath.isDirectory()) {
+            final long lastModified = codePath.lastModified();
+            return lastModified == 0 ? null : new long[] { lastModified, codePath.length() };
+        }
+        final File[] files = codePath.listFiles();
+        if (files == null) {
+            return null;
+        }
+        long lastModified = 0;
+        long size = 0;
+        for (File file : files) {
+            if (PackageParser.isApkFile(file)) {
+                lastModified = Math.max(lastModified, file.lastModified());
+                size += file.length();
+            }
+        }
+        return lastModified == 0 ? null : new long[] { lastModified, size };
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+}
@@ -36,17 +36,22 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
  * Helper class for parallel parsing of packages using {@link PackageParser}.
  * <p>Parsing requests are processed by a thread-pool of {@link #MAX_THREADS}.
  * At any time, at most {@link #QUEUE_CAPACITY} results are kept in RAM</p>
+ * <p>When given a {@link PackageScanIndex}, certificates of packages whose code changed
+ * since the last boot are also collected on the pool, so the serial part of the scan
+ * doesn't have to.</p>
  */
 class ParallelPackageParser implements AutoCloseable {
 
     private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    private static final int MAX_THREADS =
+            Math.max(4, Math.min(Runtime.getRuntime().availableProcessors(), 8));
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
     private final DisplayMetrics mMetrics;
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
+    private final PackageScanIndex mScanIndex;
     private volatile String mInterruptedInThread;
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
@@ -56,11 +61,18 @@ class ParallelPackageParser implements AutoCloseable {
 
     ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
             DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback) {
+        this(separateProcesses, onlyCoreApps, metrics, cacheDir, callback, null);
+    }
+
+    ParallelPackageParser(String[] separateProcesses, boolean onlyCoreApps,
+            DisplayMetrics metrics, File cacheDir, PackageParser.Callback callback,
+            PackageScanIndex scanIndex) {
         mSeparateProcesses = separateProcesses;
         mOnlyCore = onlyCoreApps;
         mMetrics = metrics;
         mCacheDir = cacheDir;
         mPackageParserCallback = callback;
+        mScanIndex = scanIndex;
     }
 
     static class ParseResult {
@@ -68,6 +80,7 @@ class ParallelPackageParser implements AutoCloseable {
         PackageParser.Package pkg; // Parsed package
         File scanFile; // File that was parsed
         Throwable throwable; // Set if an error occurs during parsing
+        boolean certificatesCollected; // Set if pkg already carries its signing details
 
         @Override
         public String toString() {
@@ -75,6 +88,7 @@ class ParallelPackageParser implements AutoCloseable {
                     "pkg=" + pkg +
                     ", scanFile=" + scanFile +
                     ", throwable=" + throwable +
+                    ", certificatesCollected=" + certificatesCollected +
                     '}';
         }
     }
@@ -115,6 +129,10 @@ class ParallelPackageParser implements AutoCloseable {
                 pp.setCallback(mPackageParserCallback);
                 pr.scanFile = scanFile;
                 pr.pkg = parsePackage(pp, scanFile, parseFlags);
+                if (pr.pkg != null && mScanIndex != null
+                        && mScanIndex.getUnchanged(scanFile) == null) {
+                    pr.certificatesCollected = collectCertificates(pr.pkg, parseFlags);
+                }
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
@@ -138,6 +156,27 @@ class ParallelPackageParser implements AutoCloseable {
         return packageParser.parsePackage(scanFile, parseFlags, true /* useCaches */);
     }
 
+    /**
+     * Collects the certificates of a package whose code changed since the last boot, with the
+     * same verification the serial scan would apply. Failures are left for the serial scan to
+     * report, since it may not need the certificates at all.
+     *
+     * @return whether the certificates were collected
+     */
+    @VisibleForTesting
+    protected boolean collectCertificates(PackageParser.Package pkg, int parseFlags) {
+        Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel collectCertificates");
+        try {
+            PackageParser.collectCertificates(pkg,
+                    (parseFlags & PackageParser.PARSE_IS_SYSTEM_DIR) != 0 /* skipVerify */);
+            return true;
+        } catch (PackageParser.PackageParserException e) {
+            return false;
+        } finally {
+            Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
+        }
+    }
+
     @Override
     public void close() {
         List<Runnable> unfinishedTasks = mService.shutdownNow();
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ResolveInfo;
+import android.util.LruCache;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.IndentingPrintWriter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Caches the results of package manager queries that apps tend to repeat in tight loops.
+ *
+ * <p>Entries are keyed by everything the query depends on, including the user and the calling
+ * uid, and are all dropped by {@link #invalidate()} whenever package, component or per-user
+ * package state changes. A result computed while an invalidation was in flight is never stored,
+ * so the cache can't hand out anything older than the last invalidation.
+ */
+final class QueryResultCache<K, V> {
+    private final String mName;
+
+    @GuardedBy("this")
+    private final LruCache<K, V> mCache;
+
+    @GuardedBy("this")
+    private int mGeneration;
+
+    @GuardedBy("this")
+    private long mInvalidations;
+
+    QueryResultCache(String name, int maxSize) {
+        mName = name;
+        mCache = new LruCache<>(maxSize);
+    }
+
+    /**
+     * Returns the current generation; pass it to {@link #put} along with a result computed
+     * after this call.
+     */
+    synchronized int getGeneration() {
+        return mGeneration;
+    }
+
+    synchronized V get(K key) {
+        return mCache.get(key);
+    }
+
+    synchronized void put(K key, V value, int generation) {
+        if (generation == mGeneration) {
+            mCache.put(key, value);
+        }
+    }
+
+    synchronized void invalidate() {
+        mGeneration++;
+        mInvalidations++;
+        mCache.evictAll();
+    }
+
+    synchronized void dump(IndentingPrintWriter pw) {
+        final int hits = mCache.hitCount();
+        final int misses = mCache.missCount();
+        final int lookups = hits + misses;
+        pw.print(mName); pw.print(": size="); pw.print(mCache.size());
+        pw.print("/"); pw.print(mCache.maxSize());
+        pw.print(" hits="); pw.print(hits);
+        pw.print(" misses="); pw.print(misses);
+        pw.print(" hitRate="); pw.print(lookups > 0 ? (hits * 100 / lookups) : 0);
+        pw.print("% evictions="); pw.print(mCache.evictionCount());
+        pw.print(" invalidations="); pw.println(mInvalidations);
+    }
+
+    /**
+     * Returns a copy of {@code list} whose entries can be handed out or modified without
+     * affecting the cached ones.
+     */
+    static List<ResolveInfo> copyResolveInfos(List<ResolveInfo> list) {
+        final ArrayList<ResolveInfo> res = new ArrayList<>(list.size());
+        for (int i = 0; i < list.size(); i++) {
+            final ResolveInfo ri = new ResolveInfo(list.get(i));
+            if (ri.activityInfo != null) {
+                ri.activityInfo = new ActivityInfo(ri.activityInfo);
+            }
+            res.add(ri);
+        }
+        return res;
+    }
+
+    /** Key for intent queries. */
+    static final class IntentKey {
+        private final Intent mIntent;
+        private final int mIntentFlags;
+        private final String mResolvedType;
+        private final int mFlags;
+        private final int mUserId;
+        private final int mCallingUid;
+        private final boolean mResolveForStart;
+        private final boolean mAllowDynamicSplits;
+        private final int mHashCode;
+
+        IntentKey(Intent intent, String resolvedType, int flags, int userId, int callingUid,
+                boolean resolveForStart, boolean allowDynamicSplits) {
+            mIntent = intent.cloneFilter();
+            mIntentFlags = intent.getFlags();
+            mResolvedType = resolvedType;
+            mFlags = flags;
+            mUserId = userId;
+            mCallingUid = callingUid;
+            mResolveForStart = resolveForStart;
+            mAllowDynamicSplits = allowDynamicSplits;
+
+            int hash = mIntent.filterHashCode();
+            hash = 31 * hash + mIntentFlags;
+            hash = 31 * hash + Objects.hashCode(resolvedType);
+            hash = 31 * hash + flags;
+            hash = 31 * hash + userId;
+            hash = 31 * hash + callingUid;
+            hash = 31 * hash + (resolveForStart ? 1 : 0);
+            hash = 31 * hash + (allowDynamicSplits ? 1 : 0);
+            mHashCode = hash;
+        }
+
+        @Override
+        public int hashCode() {
+            return mHashCode;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof IntentKey)) {
+                return false;
+            }
+            final IntentKey other = (IntentKey) o;
+            return mHashCode == other.mHashCode
+                    && mIntentFlags == other.mIntentFlags
+                    && mFlags == other.mFlags
+                    && mUserId == other.mUserId
+                    && mCallingUid == other.mCallingUid
+                    && mResolveForStart == other.mResolveForStart
+                    && mAllowDynamicSplits == other.mAllowDynamicSplits
+                    && Objects.equals(mResolvedType, other.mResolvedType)
+                    && mIntent.filterEquals(other.mIntent);
+        }
+    }
+
+    /** Key for package queries. */
+    static final class PackageKey {
+        private final String mPackageName;
+        private final int mFlags;
+        private final int mUserId;
+        private final int mCallingUid;
+
+        PackageKey(String packageName, int flags, int userId, int callingUid) {
+            mPackageName = packageName;
+            mFlags = flags;
+            mUserId = userId;
+            mCallingUid = callingUid;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = Objects.hashCode(mPackageName);
+            hash = 31 * hash + mFlags;
+            hash = 31 * hash + mUserId;
+            hash = 31 * hash + mCallingUid;
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof PackageKey)) {
+                return false;
+            }
+            final PackageKey other = (PackageKey) o;
+            return mFlags == other.mFlags
+                    && mUserId == other.mUserId
+                    && mCallingUid == other.mCallingUid
+                    && Objects.equals(mPackageName, other.mPackageName);
+        }
+    }
+}
@@ -62,6 +62,7 @@ import android.os.PatternMatcher;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -83,6 +84,8 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
@@ -92,6 +95,7 @@ import com.android.server.pm.permission.BasePermission;
 import com.android.server.pm.permission.PermissionSettings;
 import com.android.server.pm.permission.PermissionsState;
 import com.android.server.pm.permission.PermissionsState.PermissionState;
+import com.android.server.utils.AppendOnlyJournal;
 
 import libcore.io.IoUtils;
 
@@ -102,6 +106,8 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -181,6 +187,17 @@ public final class Settings {
     private static final String TAG_DISABLED_COMPONENTS = "disabled-components";
     private static final String TAG_ENABLED_COMPONENTS = "enabled-components";
     private static final String TAG_PACKAGE_RESTRICTIONS = "package-restrictions";
+    private static final String ATTR_JOURNAL_GENERATION = "journal-generation";
+
+    /** Set to write packages.xml and the package restrictions files as text. */
+    private static final String PROPERTY_TEXT_XML = "persist.pm.settings_text_xml";
+
+    /** Changes to more packages than this rewrite the restrictions file instead. */
+    private static final int MAX_JOURNALED_PACKAGES = 16;
+
+    private static final int RESTRICTIONS_JOURNAL_MAGIC = 0x50524a31; // "PRJ1"
+    /** Once a restrictions journal would grow past this, the restrictions file is rewritten. */
+    private static final int MAX_RESTRICTIONS_JOURNAL_LENGTH = 64 * 1024;
     private static final String TAG_PACKAGE = "pkg";
     private static final String TAG_SHARED_USER = "shared-user";
     private static final String TAG_RUNTIME_PERMISSIONS = "runtime-permissions";
@@ -404,6 +421,15 @@ public final class Settings {
     // App-link priority tracking, per-user
     final SparseIntArray mNextAppLinkGeneration = new SparseIntArray();
 
+    /**
+     * Per user, the packages whose state changed since the user's restrictions were last
+     * written, or {@code null} if more than package state changed.
+     */
+    private final SparseArray<ArraySet<String>> mChangedUserStates = new SparseArray<>();
+
+    /** Per user, the generation of the restrictions file its journal has to match. */
+    private final SparseIntArray mUserStateGenerations = new SparseIntArray();
+
     final StringBuilder mReadMessages = new StringBuilder();
 
     /**
@@ -421,6 +447,12 @@ public final class Settings {
     /** Settings and other information about permissions */
     final PermissionSettings mPermissions;
 
+    /**
+     * Run whenever settings are persisted, which callers do after changing them; used to drop
+     * anything derived from the previous state.
+     */
+    private Runnable mOnWriteListener;
+
     Settings(PermissionSettings permissions, Object lock) {
         this(Environment.getDataDirectory(), permissions, lock);
     }
@@ -449,6 +481,16 @@ public final class Settings {
         mBackupStoppedPackagesFilename = new File(mSystemDir, "packages-stopped-backup.xml");
     }
 
+    void setOnWriteListener(Runnable listener) {
+        mOnWriteListener = listener;
+    }
+
+    private void notifyWriteLPr() {
+        if (mOnWriteListener != null) {
+            mOnWriteListener.run();
+        }
+    }
+
     PackageSetting getPackageLPr(String pkgName) {
         return mPackages.get(pkgName);
     }
@@ -1379,6 +1421,25 @@ public final class Settings {
                 "package-restrictions-backup.xml");
     }
 
+    private AppendOnlyJournal getUserPackagesStateJournal(int userId) {
+        final File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+        return new AppendOnlyJournal(new File(userDir, "package-restrictions.journal"),
+                RESTRICTIONS_JOURNAL_MAGIC, MAX_RESTRICTIONS_JOURNAL_LENGTH);
+    }
+
+    /**
+     * Whether packages.xml and the package restrictions files are written in the binary form
+     * read back by {@link BinaryXmlPullParser}. Files in either form are always readable, so
+     * this can be switched off to get files that can be inspected as text.
+     */
+    private static boolean useBinaryXml() {
+        return !SystemProperties.getBoolean(PROPERTY_TEXT_XML, false);
+    }
+
+    private static XmlSerializer newSerializer() {
+        return useBinaryXml() ? new BinaryXmlSerializer() : new FastXmlSerializer();
+    }
+
     void writeAllUsersPackageRestrictionsLPr() {
         List<UserInfo> users = getAllUsers(UserManagerService.getInstance());
         if (users == null) return;
@@ -1651,8 +1712,7 @@ public final class Settings {
                 }
                 str = new FileInputStream(userPackagesStateFile);
             }
-            final XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(str);
 
             int type;
             while ((type=parser.next()) != XmlPullParser.START_TAG
@@ -1667,10 +1727,12 @@ public final class Settings {
                 return;
             }
 
+            final int generation = XmlUtils.readIntAttribute(parser, ATTR_JOURNAL_GENERATION, 0);
+            mUserStateGenerations.put(userId, generation);
+
             int maxAppLinkGeneration = 0;
 
             int outerDepth = parser.getDepth();
-            PackageSetting ps = null;
             while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
                    && (type != XmlPullParser.END_TAG
                            || parser.getDepth() > outerDepth)) {
@@ -1681,106 +1743,10 @@ public final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals(TAG_PACKAGE)) {
-                    String name = parser.getAttributeValue(null, ATTR_NAME);
-                    ps = mPackages.get(name);
-                    if (ps == null) {
-                        Slog.w(PackageManagerService.TAG, "No package known for stopped package "
-                                + name);
-                        XmlUtils.skipCurrentTag(parser);
-                        continue;
-                    }
-
-                    final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
-                            0);
-                    final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
-                            true);
-                    final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
-                            false);
-                    final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_NOT_LAUNCHED, false);
-
-                    // For backwards compatibility with the previous name of "blocked", which
-                    // now means hidden, read the old attribute as well.
-                    final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
-                    boolean hidden = blockedStr == null
-                            ? false : Boolean.parseBoolean(blockedStr);
-                    final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
-                    hidden = hiddenStr == null
-                            ? hidden : Boolean.parseBoolean(hiddenStr);
-
-                    final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
-                            false);
-                    String suspendingPackage = parser.getAttributeValue(null,
-                            ATTR_SUSPENDING_PACKAGE);
-                    final String dialogMessage = parser.getAttributeValue(null,
-                            ATTR_SUSPEND_DIALOG_MESSAGE);
-                    if (suspended && suspendingPackage == null) {
-                        suspendingPackage = PLATFORM_PACKAGE_NAME;
-                    }
-
-                    final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_BLOCK_UNINSTALL, false);
-                    final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_INSTANT_APP, false);
-                    final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
-                            ATTR_VIRTUAL_PRELOAD, false);
-                    final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
-                            COMPONENT_ENABLED_STATE_DEFAULT);
-                    final String enabledCaller = parser.getAttributeValue(null,
-                            ATTR_ENABLED_CALLER);
-                    final String harmfulAppWarning =
-                            parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
-                    final int verifState = XmlUtils.readIntAttribute(parser,
-                            ATTR_DOMAIN_VERIFICATON_STATE,
-                            PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
-                    final int linkGeneration = XmlUtils.readIntAttribute(parser,
-                            ATTR_APP_LINK_GENERATION, 0);
+                    final int linkGeneration = readPackageRestrictionLPr(parser, userId);
                     if (linkGeneration > maxAppLinkGeneration) {
                         maxAppLinkGeneration = linkGeneration;
                     }
-                    final int installReason = XmlUtils.readIntAttribute(parser,
-                            ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
-
-                    ArraySet<String> enabledComponents = null;
-                    ArraySet<String> disabledComponents = null;
-                    PersistableBundle suspendedAppExtras = null;
-                    PersistableBundle suspendedLauncherExtras = null;
-
-                    int packageDepth = parser.getDepth();
-                    while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
-                            && (type != XmlPullParser.END_TAG
-                            || parser.getDepth() > packageDepth)) {
-                        if (type == XmlPullParser.END_TAG
-                                || type == XmlPullParser.TEXT) {
-                            continue;
-                        }
-                        switch (parser.getName()) {
-                            case TAG_ENABLED_COMPONENTS:
-                                enabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_DISABLED_COMPONENTS:
-                                disabledComponents = readComponentsLPr(parser);
-                                break;
-                            case TAG_SUSPENDED_APP_EXTRAS:
-                                suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            case TAG_SUSPENDED_LAUNCHER_EXTRAS:
-                                suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
-                                break;
-                            default:
-                                Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
-                                        + TAG_PACKAGE);
-                        }
-                    }
-
-                    if (blockUninstall) {
-                        setBlockUninstallLPw(userId, name, true);
-                    }
-                    ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
-                            hidden, suspended, suspendingPackage, dialogMessage, suspendedAppExtras,
-                            suspendedLauncherExtras, instantApp, virtualPreload, enabledCaller,
-                            enabledComponents, disabledComponents, verifState, linkGeneration,
-                            installReason, harmfulAppWarning);
                 } else if (tagName.equals("preferred-activities")) {
                     readPreferredActivitiesLPw(parser, userId);
                 } else if (tagName.equals(TAG_PERSISTENT_PREFERRED_ACTIVITIES)) {
@@ -1800,6 +1766,20 @@ public final class Settings {
 
             str.close();
 
+            // Apply the package state changes written since the file itself.
+            final List<byte[]> records = getUserPackagesStateJournal(userId).read(generation);
+            for (int i = 0; i < records.size(); i++) {
+                final XmlPullParser recordParser = BinaryXmlPullParser.resolvePullParser(
+                        new ByteArrayInputStream(records.get(i)));
+                while ((type = recordParser.next()) != XmlPullParser.END_DOCUMENT) {
+                    if (type == XmlPullParser.START_TAG
+                            && TAG_PACKAGE.equals(recordParser.getName())) {
+                        maxAppLinkGeneration = Math.max(maxAppLinkGeneration,
+                                readPackageRestrictionLPr(recordParser, userId));
+                    }
+                }
+            }
+
             mNextAppLinkGeneration.put(userId, maxAppLinkGeneration + 1);
 
         } catch (XmlPullParserException e) {
@@ -1817,6 +1797,114 @@ public final class Settings {
         }
     }
 
+    /**
+     * Reads the state for {@code userId} of the package at the current {@link #TAG_PACKAGE}.
+     *
+     * @return the app link generation of the package, or 0 if the package isn't known
+     */
+    private int readPackageRestrictionLPr(XmlPullParser parser, int userId)
+            throws XmlPullParserException, IOException {
+        final String name = parser.getAttributeValue(null, ATTR_NAME);
+        final PackageSetting ps = mPackages.get(name);
+        if (ps == null) {
+            Slog.w(PackageManagerService.TAG, "No package known for stopped package "
+                    + name);
+            XmlUtils.skipCurrentTag(parser);
+            return 0;
+        }
+
+        final long ceDataInode = XmlUtils.readLongAttribute(parser, ATTR_CE_DATA_INODE,
+                0);
+        final boolean installed = XmlUtils.readBooleanAttribute(parser, ATTR_INSTALLED,
+                true);
+        final boolean stopped = XmlUtils.readBooleanAttribute(parser, ATTR_STOPPED,
+                false);
+        final boolean notLaunched = XmlUtils.readBooleanAttribute(parser,
+                ATTR_NOT_LAUNCHED, false);
+
+        // For backwards compatibility with the previous name of "blocked", which
+        // now means hidden, read the old attribute as well.
+        final String blockedStr = parser.getAttributeValue(null, ATTR_BLOCKED);
+        boolean hidden = blockedStr == null
+                ? false : Boolean.parseBoolean(blockedStr);
+        final String hiddenStr = parser.getAttributeValue(null, ATTR_HIDDEN);
+        hidden = hiddenStr == null
+                ? hidden : Boolean.parseBoolean(hiddenStr);
+
+        final boolean suspended = XmlUtils.readBooleanAttribute(parser, ATTR_SUSPENDED,
+                false);
+        String suspendingPackage = parser.getAttributeValue(null,
+                ATTR_SUSPENDING_PACKAGE);
+        final String dialogMessage = parser.getAttributeValue(null,
+                ATTR_SUSPEND_DIALOG_MESSAGE);
+        if (suspended && suspendingPackage == null) {
+            suspendingPackage = PLATFORM_PACKAGE_NAME;
+        }
+
+        final boolean blockUninstall = XmlUtils.readBooleanAttribute(parser,
+                ATTR_BLOCK_UNINSTALL, false);
+        final boolean instantApp = XmlUtils.readBooleanAttribute(parser,
+                ATTR_INSTANT_APP, false);
+        final boolean virtualPreload = XmlUtils.readBooleanAttribute(parser,
+                ATTR_VIRTUAL_PRELOAD, false);
+        final int enabled = XmlUtils.readIntAttribute(parser, ATTR_ENABLED,
+                COMPONENT_ENABLED_STATE_DEFAULT);
+        final String enabledCaller = parser.getAttributeValue(null,
+                ATTR_ENABLED_CALLER);
+        final String harmfulAppWarning =
+                parser.getAttributeValue(null, ATTR_HARMFUL_APP_WARNING);
+        final int verifState = XmlUtils.readIntAttribute(parser,
+                ATTR_DOMAIN_VERIFICATON_STATE,
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED);
+        final int linkGeneration = XmlUtils.readIntAttribute(parser,
+                ATTR_APP_LINK_GENERATION, 0);
+        final int installReason = XmlUtils.readIntAttribute(parser,
+                ATTR_INSTALL_REASON, PackageManager.INSTALL_REASON_UNKNOWN);
+
+        ArraySet<String> enabledComponents = null;
+        ArraySet<String> disabledComponents = null;
+        PersistableBundle suspendedAppExtras = null;
+        PersistableBundle suspendedLauncherExtras = null;
+
+        int type;
+        int packageDepth = parser.getDepth();
+        while ((type=parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG
+                || parser.getDepth() > packageDepth)) {
+            if (type == XmlPullParser.END_TAG
+                    || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            switch (parser.getName()) {
+                case TAG_ENABLED_COMPONENTS:
+                    enabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_DISABLED_COMPONENTS:
+                    disabledComponents = readComponentsLPr(parser);
+                    break;
+                case TAG_SUSPENDED_APP_EXTRAS:
+                    suspendedAppExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                case TAG_SUSPENDED_LAUNCHER_EXTRAS:
+                    suspendedLauncherExtras = PersistableBundle.restoreFromXml(parser);
+                    break;
+                default:
+                    Slog.wtf(TAG, "Unknown tag " + parser.getName() + " under tag "
+                            + TAG_PACKAGE);
+            }
+        }
+
+        if (blockUninstall) {
+            setBlockUninstallLPw(userId, name, true);
+        }
+        ps.setUserState(userId, ceDataInode, enabled, installed, stopped, notLaunched,
+                hidden, suspended, suspendingPackage, dialogMessage, suspendedAppExtras,
+                suspendedLauncherExtras, instantApp, virtualPreload, enabledCaller,
+                enabledComponents, disabledComponents, verifState, linkGeneration,
+                installReason, harmfulAppWarning);
+        return linkGeneration;
+    }
+
     void setBlockUninstallLPw(int userId, String packageName, boolean blockUninstall) {
         ArraySet<String> packages = mBlockUninstallPackages.get(userId);
         if (blockUninstall) {
@@ -2024,11 +2112,83 @@ public final class Settings {
         }
     }
 
+    /**
+     * Notes that the state of {@code packageName} for {@code userId} changed, so that
+     * {@link #writePendingPackageRestrictionsLPr} only has to persist the packages that changed.
+     * A {@code null} package name means other per-user state changed and the whole file needs
+     * writing.
+     */
+    void noteUserStateChangedLPw(int userId, @Nullable String packageName) {
+        final int index = mChangedUserStates.indexOfKey(userId);
+        if (packageName == null) {
+            mChangedUserStates.put(userId, null);
+        } else if (index < 0) {
+            final ArraySet<String> packageNames = new ArraySet<>();
+            packageNames.add(packageName);
+            mChangedUserStates.put(userId, packageNames);
+        } else if (mChangedUserStates.valueAt(index) != null) {
+            mChangedUserStates.valueAt(index).add(packageName);
+        }
+    }
+
+    /**
+     * Persists the changes noted by {@link #noteUserStateChangedLPw} for {@code userId}. When
+     * only a few packages changed, their state is appended to the user's restrictions journal
+     * rather than rewriting the whole restrictions file.
+     */
+    void writePendingPackageRestrictionsLPr(int userId) {
+        final int index = mChangedUserStates.indexOfKey(userId);
+        final ArraySet<String> packageNames =
+                index >= 0 ? mChangedUserStates.valueAt(index) : null;
+        if (packageNames != null && packageNames.size() <= MAX_JOURNALED_PACKAGES
+                && useBinaryXml() && mUserStateGenerations.indexOfKey(userId) >= 0
+                && getUserPackagesStateFile(userId).exists()
+                && !getUserPackagesStateBackupFile(userId).exists()) {
+            notifyWriteLPr();
+            if (appendPackageRestrictionsLPr(userId, packageNames)) {
+                mChangedUserStates.remove(userId);
+                return;
+            }
+        }
+        writePackageRestrictionsLPr(userId);
+    }
+
+    private boolean appendPackageRestrictionsLPr(int userId, ArraySet<String> packageNames) {
+        final long startTime = SystemClock.uptimeMillis();
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        try {
+            final XmlSerializer serializer = new BinaryXmlSerializer();
+            serializer.setOutput(record, StandardCharsets.UTF_8.name());
+            serializer.startDocument(null, true);
+            serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            for (int i = 0; i < packageNames.size(); i++) {
+                final PackageSetting pkg = mPackages.get(packageNames.valueAt(i));
+                if (pkg != null) {
+                    writePackageRestrictionLPr(serializer, pkg, userId);
+                }
+            }
+            serializer.endTag(null, TAG_PACKAGE_RESTRICTIONS);
+            serializer.endDocument();
+        } catch (IOException e) {
+            return false;
+        }
+        if (!getUserPackagesStateJournal(userId).append(
+                mUserStateGenerations.get(userId), record.toByteArray())) {
+            return false;
+        }
+        com.android.internal.logging.EventLogTags.writeCommitSysConfigFile(
+                "package-user-journal-" + userId, SystemClock.uptimeMillis() - startTime);
+        return true;
+    }
+
     void writePackageRestrictionsLPr(int userId) {
+        notifyWriteLPr();
         if (DEBUG_MU) {
             Log.i(TAG, "Writing package restrictions for user=" + userId);
         }
         final long startTime = SystemClock.uptimeMillis();
+        mChangedUserStates.remove(userId);
+        final int generation = mUserStateGenerations.get(userId) + 1;
 
         // Keep the old stopped packages around until we know the new ones have
         // been successfully written.
@@ -2057,116 +2217,16 @@ public final class Settings {
             final FileOutputStream fstr = new FileOutputStream(userPackagesStateFile);
             final BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            final XmlSerializer serializer = new FastXmlSerializer();
+            final XmlSerializer serializer = newSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             serializer.startTag(null, TAG_PACKAGE_RESTRICTIONS);
+            XmlUtils.writeIntAttribute(serializer, ATTR_JOURNAL_GENERATION, generation);
 
             for (final PackageSetting pkg : mPackages.values()) {
-                final PackageUserState ustate = pkg.readUserState(userId);
-                if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
-
-                serializer.startTag(null, TAG_PACKAGE);
-                serializer.attribute(null, ATTR_NAME, pkg.name);
-                if (ustate.ceDataInode != 0) {
-                    XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
-                }
-                if (!ustate.installed) {
-                    serializer.attribute(null, ATTR_INSTALLED, "false");
-                }
-                if (ustate.stopped) {
-                    serializer.attribute(null, ATTR_STOPPED, "true");
-                }
-                if (ustate.notLaunched) {
-                    serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
-                }
-                if (ustate.hidden) {
-                    serializer.attribute(null, ATTR_HIDDEN, "true");
-                }
-                if (ustate.suspended) {
-                    serializer.attribute(null, ATTR_SUSPENDED, "true");
-                    if (ustate.suspendingPackage != null) {
-                        serializer.attribute(null, ATTR_SUSPENDING_PACKAGE,
-                                ustate.suspendingPackage);
-                    }
-                    if (ustate.dialogMessage != null) {
-                        serializer.attribute(null, ATTR_SUSPEND_DIALOG_MESSAGE,
-                                ustate.dialogMessage);
-                    }
-                    if (ustate.suspendedAppExtras != null) {
-                        serializer.startTag(null, TAG_SUSPENDED_APP_EXTRAS);
-                        try {
-                            ustate.suspendedAppExtras.saveToXml(serializer);
-                        } catch (XmlPullParserException xmle) {
-                            Slog.wtf(TAG, "Exception while trying to write suspendedAppExtras for "
-                                    + pkg + ". Will be lost on reboot", xmle);
-                        }
-                        serializer.endTag(null, TAG_SUSPENDED_APP_EXTRAS);
-                    }
-                    if (ustate.suspendedLauncherExtras != null) {
-                        serializer.startTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
-                        try {
-                            ustate.suspendedLauncherExtras.saveToXml(serializer);
-                        } catch (XmlPullParserException xmle) {
-                            Slog.wtf(TAG, "Exception while trying to write suspendedLauncherExtras"
-                                    + " for " + pkg + ". Will be lost on reboot", xmle);
-                        }
-                        serializer.endTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
-                    }
-                }
-                if (ustate.instantApp) {
-                    serializer.attribute(null, ATTR_INSTANT_APP, "true");
-                }
-                if (ustate.virtualPreload) {
-                    serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
-                }
-                if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
-                    serializer.attribute(null, ATTR_ENABLED,
-                            Integer.toString(ustate.enabled));
-                    if (ustate.lastDisableAppCaller != null) {
-                        serializer.attribute(null, ATTR_ENABLED_CALLER,
-                                ustate.lastDisableAppCaller);
-                    }
-                }
-                if (ustate.domainVerificationStatus !=
-                        PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
-                            ustate.domainVerificationStatus);
-                }
-                if (ustate.appLinkGeneration != 0) {
-                    XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
-                            ustate.appLinkGeneration);
-                }
-                if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
-                    serializer.attribute(null, ATTR_INSTALL_REASON,
-                            Integer.toString(ustate.installReason));
-                }
-                if (ustate.harmfulAppWarning != null) {
-                    serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
-                            ustate.harmfulAppWarning);
-                }
-                if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
-                    serializer.startTag(null, TAG_ENABLED_COMPONENTS);
-                    for (final String name : ustate.enabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_ENABLED_COMPONENTS);
-                }
-                if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
-                    serializer.startTag(null, TAG_DISABLED_COMPONENTS);
-                    for (final String name : ustate.disabledComponents) {
-                        serializer.startTag(null, TAG_ITEM);
-                        serializer.attribute(null, ATTR_NAME, name);
-                        serializer.endTag(null, TAG_ITEM);
-                    }
-                    serializer.endTag(null, TAG_DISABLED_COMPONENTS);
-                }
-
-                serializer.endTag(null, TAG_PACKAGE);
+                writePackageRestrictionLPr(serializer, pkg, userId);
             }
 
             writePreferredActivitiesLPr(serializer, userId, true);
@@ -2186,6 +2246,8 @@ public final class Settings {
             // New settings successfully written, old ones are no longer
             // needed.
             backupFile.delete();
+            mUserStateGenerations.put(userId, generation);
+            getUserPackagesStateJournal(userId).delete();
             FileUtils.setPermissions(userPackagesStateFile.toString(),
                     FileUtils.S_IRUSR|FileUtils.S_IWUSR
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
@@ -2211,6 +2273,112 @@ public final class Settings {
         }
     }
 
+    private void writePackageRestrictionLPr(XmlSerializer serializer, PackageSetting pkg,
+            int userId) throws IOException {
+        final PackageUserState ustate = pkg.readUserState(userId);
+        if (DEBUG_MU) Log.i(TAG, "  pkg=" + pkg.name + ", state=" + ustate.enabled);
+
+        serializer.startTag(null, TAG_PACKAGE);
+        serializer.attribute(null, ATTR_NAME, pkg.name);
+        if (ustate.ceDataInode != 0) {
+            XmlUtils.writeLongAttribute(serializer, ATTR_CE_DATA_INODE, ustate.ceDataInode);
+        }
+        if (!ustate.installed) {
+            serializer.attribute(null, ATTR_INSTALLED, "false");
+        }
+        if (ustate.stopped) {
+            serializer.attribute(null, ATTR_STOPPED, "true");
+        }
+        if (ustate.notLaunched) {
+            serializer.attribute(null, ATTR_NOT_LAUNCHED, "true");
+        }
+        if (ustate.hidden) {
+            serializer.attribute(null, ATTR_HIDDEN, "true");
+        }
+        if (ustate.suspended) {
+            serializer.attribute(null, ATTR_SUSPENDED, "true");
+            if (ustate.suspendingPackage != null) {
+                serializer.attribute(null, ATTR_SUSPENDING_PACKAGE,
+                        ustate.suspendingPackage);
+            }
+            if (ustate.dialogMessage != null) {
+                serializer.attribute(null, ATTR_SUSPEND_DIALOG_MESSAGE,
+                        ustate.dialogMessage);
+            }
+            if (ustate.suspendedAppExtras != null) {
+                serializer.startTag(null, TAG_SUSPENDED_APP_EXTRAS);
+                try {
+                    ustate.suspendedAppExtras.saveToXml(serializer);
+                } catch (XmlPullParserException xmle) {
+                    Slog.wtf(TAG, "Exception while trying to write suspendedAppExtras for "
+                            + pkg + ". Will be lost on reboot", xmle);
+                }
+                serializer.endTag(null, TAG_SUSPENDED_APP_EXTRAS);
+            }
+            if (ustate.suspendedLauncherExtras != null) {
+                serializer.startTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
+                try {
+                    ustate.suspendedLauncherExtras.saveToXml(serializer);
+                } catch (XmlPullParserException xmle) {
+                    Slog.wtf(TAG, "Exception while trying to write suspendedLauncherExtras"
+                            + " for " + pkg + ". Will be lost on reboot", xmle);
+                }
+                serializer.endTag(null, TAG_SUSPENDED_LAUNCHER_EXTRAS);
+            }
+        }
+        if (ustate.instantApp) {
+            serializer.attribute(null, ATTR_INSTANT_APP, "true");
+        }
+        if (ustate.virtualPreload) {
+            serializer.attribute(null, ATTR_VIRTUAL_PRELOAD, "true");
+        }
+        if (ustate.enabled != COMPONENT_ENABLED_STATE_DEFAULT) {
+            serializer.attribute(null, ATTR_ENABLED,
+                    Integer.toString(ustate.enabled));
+            if (ustate.lastDisableAppCaller != null) {
+                serializer.attribute(null, ATTR_ENABLED_CALLER,
+                        ustate.lastDisableAppCaller);
+            }
+        }
+        if (ustate.domainVerificationStatus !=
+                PackageManager.INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_UNDEFINED) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_DOMAIN_VERIFICATON_STATE,
+                    ustate.domainVerificationStatus);
+        }
+        if (ustate.appLinkGeneration != 0) {
+            XmlUtils.writeIntAttribute(serializer, ATTR_APP_LINK_GENERATION,
+                    ustate.appLinkGeneration);
+        }
+        if (ustate.installReason != PackageManager.INSTALL_REASON_UNKNOWN) {
+            serializer.attribute(null, ATTR_INSTALL_REASON,
+                    Integer.toString(ustate.installReason));
+        }
+        if (ustate.harmfulAppWarning != null) {
+            serializer.attribute(null, ATTR_HARMFUL_APP_WARNING,
+                    ustate.harmfulAppWarning);
+        }
+        if (!ArrayUtils.isEmpty(ustate.enabledComponents)) {
+            serializer.startTag(null, TAG_ENABLED_COMPONENTS);
+            for (final String name : ustate.enabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_ENABLED_COMPONENTS);
+        }
+        if (!ArrayUtils.isEmpty(ustate.disabledComponents)) {
+            serializer.startTag(null, TAG_DISABLED_COMPONENTS);
+            for (final String name : ustate.disabledComponents) {
+                serializer.startTag(null, TAG_ITEM);
+                serializer.attribute(null, ATTR_NAME, name);
+                serializer.endTag(null, TAG_ITEM);
+            }
+            serializer.endTag(null, TAG_DISABLED_COMPONENTS);
+        }
+
+        serializer.endTag(null, TAG_PACKAGE);
+    }
+
     void readInstallPermissionsLPr(XmlPullParser parser,
             PermissionsState permissionsState) throws IOException, XmlPullParserException {
         int outerDepth = parser.getDepth();
@@ -2453,6 +2621,7 @@ public final class Settings {
     }
 
     void writeLPr() {
+        notifyWriteLPr();
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
         final long startTime = SystemClock.uptimeMillis();
@@ -2483,8 +2652,7 @@ public final class Settings {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
+            XmlSerializer serializer = newSerializer();
             serializer.setOutput(str, StandardCharsets.UTF_8.name());
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
@@ -3015,8 +3183,7 @@ public final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -4164,6 +4331,9 @@ public final class Settings {
         file.delete();
         file = getUserPackagesStateBackupFile(userId);
         file.delete();
+        getUserPackagesStateJournal(userId).delete();
+        mChangedUserStates.remove(userId);
+        mUserStateGenerations.delete(userId);
         removeCrossProfileIntentFiltersLPw(userId);
 
         mRuntimePermissionsPersistence.onUserRemovedLPw(userId);
@@ -5109,6 +5279,7 @@ public final class Settings {
     }
 
     public void writeRuntimePermissionsForUserLPr(int userId, boolean sync) {
+        notifyWriteLPr();
         if (sync) {
             mRuntimePermissionsPersistence.writePermissionsForUserSyncLPr(userId);
         } else {
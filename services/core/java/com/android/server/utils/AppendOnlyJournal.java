@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.utils;
+
+import android.os.FileUtils;
+import android.util.Slog;
+
+import libcore.io.IoUtils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of changes made since a state file was last written in full, so that
+ * changes to a few entries don't rewrite the state of all of them.
+ *
+ * <p>The journal belongs to the state file carrying the same generation; a journal left
+ * behind for an older generation is ignored and replaced. Each record is checksummed; reading
+ * stops at the first record that was only partially written or is corrupt, and truncates the
+ * journal there so that records appended afterwards are read back.
+ */
+public final class AppendOnlyJournal {
+    private static final String TAG = "AppendOnlyJournal";
+
+    private static final int HEADER_LENGTH = 8;
+
+    private final File mFile;
+    private final int mMagic;
+    private final int mMaxLength;
+
+    /**
+     * @param magic identifies the kind of state the journal holds
+     * @param maxLength once the journal would grow past this many bytes, the caller is asked to
+     *         write its state file in full instead
+     */
+    public AppendOnlyJournal(File file, int magic, int maxLength) {
+        mFile = file;
+        mMagic = magic;
+        mMaxLength = maxLength;
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Appends {@code record} to the journal for {@code generation}.
+     *
+     * @return whether the record was durably appended; if not, the caller needs to write its
+     *         state file in full.
+     */
+    public boolean append(int generation, byte[] record) {
+        if (readGeneration() != generation) {
+            mFile.delete();
+        }
+        final long oldLength = mFile.length();
+        final long headerLength = oldLength == 0 ? HEADER_LENGTH : 0;
+        if (oldLength + headerLength + 12 + record.length > mMaxLength) {
+            return false;
+        }
+
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mFile, true);
+            final DataOutputStream out = new DataOutputStream(fos);
+            if (oldLength == 0) {
+                out.writeInt(mMagic);
+                out.writeInt(generation);
+            }
+            out.writeInt(record.length);
+            out.writeLong(crc.getValue());
+            out.write(record);
+            out.flush();
+            FileUtils.sync(fos);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append to " + mFile, e);
+            // Don't leave a partial record in front of the ones appended later.
+            truncate(oldLength);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /**
+     * Returns the records appended for {@code generation}, oldest first.
+     *
+     * <p>A record left partially written or corrupt, say by a crash during {@link #append}, is
+     * cut off along with anything behind it, so that records appended later aren't hidden
+     * behind it.
+     */
+    public List<byte[]> read(int generation) {
+        final ArrayList<byte[]> records = new ArrayList<>();
+        // Length of the valid prefix of the journal, or -1 if it isn't for this generation.
+        long validLength = -1;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            if (in.readInt() != mMagic || in.readInt() != generation) {
+                return records;
+            }
+            validLength = HEADER_LENGTH;
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length = in.readInt();
+                final long checksum = in.readLong();
+                if (length < 0 || length > mMaxLength) {
+                    break;
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                crc.reset();
+                crc.update(record);
+                if (crc.getValue() != checksum) {
+                    break;
+                }
+                records.add(record);
+                validLength += 12 + length;
+            }
+        } catch (FileNotFoundException | EOFException e) {
+            // No journal, or reached its end.
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to read " + mFile, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        if (validLength >= 0 && mFile.length() > validLength) {
+            Slog.w(TAG, "Discarding " + (mFile.length() - validLength) + " bytes of torn records"
+                    + " at the end of " + mFile);
+            truncate(validLength);
+        }
+        return records;
+    }
+
+    public void delete() {
+        mFile.delete();
+    }
+
+    private int readGeneration() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(mFile));
+            return in.readInt() == mMagic ? in.readInt() : -1;
+        } catch (IOException e) {
+            return -1;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private void truncate(long length) {
+        try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+            raf.setLength(length);
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to truncate " + mFile + "; discarding it", e);
+            mFile.delete();
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Replays sets of inexact alarms and rebatch events against the batching done by
+ * AlarmManagerService, comparing a start-ordered list of batches that is scanned for a batch
+ * to join and rebuilt whenever an alarm is removed, with {@link AlarmBatchTree} and an index
+ * of the batch holding each alarm.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.AlarmBatchPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class AlarmBatchPerfTest {
+    private static final int[] ALARM_COUNTS = { 500, 1000, 2000 };
+    private static final int EVENTS = 200;
+    /** One in this many events rebatches everything, as a time change would. */
+    private static final int REBATCH_RATIO = 10;
+    private static final long DAY = 24 * 60 * 60 * 1000L;
+
+    private static final class TestAlarm {
+        final int key;
+        long when;
+        long maxWhen;
+        TestBatch batch;
+
+        TestAlarm(int key) {
+            this.key = key;
+        }
+    }
+
+    private static final class TestBatch implements AlarmBatchTree.Interval {
+        final ArrayList<TestAlarm> alarms = new ArrayList<>();
+        long start;
+        long end;
+
+        TestBatch(TestAlarm seed) {
+            start = seed.when;
+            end = seed.maxWhen;
+            add(seed);
+        }
+
+        void add(TestAlarm alarm) {
+            alarms.add(alarm);
+            alarm.batch = this;
+            start = Math.max(start, alarm.when);
+            end = Math.min(end, alarm.maxWhen);
+        }
+
+        void remove(TestAlarm alarm) {
+            alarms.remove(alarm);
+            alarm.batch = null;
+            start = 0;
+            end = Long.MAX_VALUE;
+            for (int i = 0; i < alarms.size(); i++) {
+                start = Math.max(start, alarms.get(i).when);
+                end = Math.min(end, alarms.get(i).maxWhen);
+            }
+        }
+
+        boolean canHold(long when, long maxWhen) {
+            return end >= when && start <= maxWhen;
+        }
+
+        @Override
+        public long getStart() {
+            return start;
+        }
+
+        @Override
+        public long getEnd() {
+            return end;
+        }
+
+        @Override
+        public boolean isStandalone() {
+            return false;
+        }
+    }
+
+    /** Batching as AlarmManagerService did it with a list of batches. */
+    private static final class ListBatches {
+        final ArrayList<TestBatch> batches = new ArrayList<>();
+
+        void insert(TestAlarm alarm) {
+            for (int i = 0; i < batches.size(); i++) {
+                final TestBatch b = batches.get(i);
+                if (b.canHold(alarm.when, alarm.maxWhen)) {
+                    final long oldStart = b.start;
+                    b.add(alarm);
+                    if (b.start != oldStart) {
+                        batches.remove(i);
+                        insertBatch(b);
+                    }
+                    return;
+                }
+            }
+            insertBatch(new TestBatch(alarm));
+        }
+
+        private void insertBatch(TestBatch batch) {
+            int index = 0;
+            while (index < batches.size() && batches.get(index).start <= batch.start) {
+                index++;
+            }
+            batches.add(index, batch);
+        }
+
+        void remove(TestAlarm alarm) {
+            for (int i = batches.size() - 1; i >= 0; i--) {
+                final TestBatch b = batches.get(i);
+                if (b.alarms.contains(alarm)) {
+                    b.remove(alarm);
+                    if (b.alarms.isEmpty()) {
+                        batches.remove(i);
+                    }
+                }
+            }
+            rebatchAll();
+        }
+
+        void rebatchAll() {
+            final ArrayList<TestBatch> old = new ArrayList<>(batches);
+            batches.clear();
+            for (int i = 0; i < old.size(); i++) {
+                final ArrayList<TestAlarm> alarms = old.get(i).alarms;
+                for (int j = 0; j < alarms.size(); j++) {
+                    insert(alarms.get(j));
+                }
+            }
+        }
+    }
+
+    /** Batching as AlarmManagerService does it now. */
+    private static final class TreeBatches {
+        final AlarmBatchTree<TestBatch> batches = new AlarmBatchTree<>();
+
+        void insert(TestAlarm alarm) {
+            final TestBatch b = batches.findFirstOverlapping(alarm.when, alarm.maxWhen);
+            if (b == null) {
+                batches.add(new TestBatch(alarm));
+            } else {
+                b.add(alarm);
+                batches.update(b);
+            }
+        }
+
+        void remove(TestAlarm alarm) {
+            final TestBatch b = alarm.batch;
+            b.remove(alarm);
+            batches.remove(b);
+            for (int i = 0; i < b.alarms.size(); i++) {
+                insert(b.alarms.get(i));
+            }
+        }
+
+        void rebatchAll() {
+            final ArrayList<TestBatch> old = batches.toList();
+            batches.clear();
+            for (int i = 0; i < old.size(); i++) {
+                final ArrayList<TestAlarm> alarms = old.get(i).alarms;
+                for (int j = 0; j < alarms.size(); j++) {
+                    insert(alarms.get(j));
+                }
+            }
+        }
+    }
+
+    /** Gives the alarm an inexact window, as maxTriggerTime() does for a new alarm. */
+    private static void schedule(TestAlarm alarm, Random random) {
+        final long futurity = 10000 + (long) (random.nextDouble() * DAY);
+        alarm.when = futurity;
+        alarm.maxWhen = futurity + (long) (.75 * futurity);
+    }
+
+    private static TestBatch linearFind(AlarmBatchTree<TestBatch> tree, long when, long maxWhen) {
+        for (TestBatch b : tree) {
+            if (b.canHold(when, maxWhen)) {
+                return b;
+            }
+        }
+        return null;
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void testFindFirstOverlappingMatchesLinearScan() {
+        final Random random = new Random(1);
+        final TreeBatches tree = new TreeBatches();
+        final ArrayList<TestAlarm> alarms = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            final TestAlarm alarm = new TestAlarm(i);
+            schedule(alarm, random);
+            if (i % 3 == 2) {
+                final TestAlarm removed = alarms.remove(random.nextInt(alarms.size()));
+                tree.remove(removed);
+            }
+            final TestBatch expected = linearFind(tree.batches, alarm.when, alarm.maxWhen);
+            assertSame(expected, tree.batches.findFirstOverlapping(alarm.when, alarm.maxWhen));
+            tree.insert(alarm);
+            alarms.add(alarm);
+        }
+
+        long lastStart = Long.MIN_VALUE;
+        int count = 0;
+        for (int i = 0; i < tree.batches.size(); i++) {
+            final TestBatch b = tree.batches.get(i);
+            assertTrue(b.start >= lastStart);
+            lastStart = b.start;
+            count += b.alarms.size();
+        }
+        assertEquals(alarms.size(), count);
+    }
+
+    @Test
+    public void timeReplaySetsAndRebatches() {
+        for (int count : ALARM_COUNTS) {
+            final Random random = new Random(count);
+            final ListBatches list = new ListBatches();
+            final TreeBatches tree = new TreeBatches();
+            final HashMap<Integer, TestAlarm> listAlarms = new HashMap<>();
+            final HashMap<Integer, TestAlarm> treeAlarms = new HashMap<>();
+            for (int i = 0; i < count; i++) {
+                final TestAlarm a = new TestAlarm(i);
+                schedule(a, random);
+                final TestAlarm b = new TestAlarm(i);
+                b.when = a.when;
+                b.maxWhen = a.maxWhen;
+                list.insert(a);
+                tree.insert(b);
+                listAlarms.put(i, a);
+                treeAlarms.put(i, b);
+            }
+
+            long listNanos = 0;
+            long treeNanos = 0;
+            for (int i = 0; i < EVENTS; i++) {
+                final boolean rebatch = i % REBATCH_RATIO == 0;
+                final int key = random.nextInt(count);
+                final TestAlarm a = listAlarms.get(key);
+                final TestAlarm b = treeAlarms.get(key);
+                final TestAlarm next = new TestAlarm(key);
+                schedule(next, random);
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                if (rebatch) {
+                    list.rebatchAll();
+                } else {
+                    // Setting an alarm again removes it first, as setImplLocked() does.
+                    list.remove(a);
+                    a.when = next.when;
+                    a.maxWhen = next.maxWhen;
+                    list.insert(a);
+                }
+                listNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                if (rebatch) {
+                    tree.rebatchAll();
+                } else {
+                    tree.remove(b);
+                    b.when = next.when;
+                    b.maxWhen = next.maxWhen;
+                    tree.insert(b);
+                }
+                treeNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            report("listUsPerEvent", count, listNanos / 1000 / EVENTS);
+            report("treeUsPerEvent", count, treeNanos / 1000 / EVENTS);
+            report("listBatches", count, list.batches.size());
+            report("treeBatches", count, tree.batches.size());
+        }
+    }
+}
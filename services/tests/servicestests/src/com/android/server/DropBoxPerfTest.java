@@ -0,0 +1,198 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.os.Bundle;
+import android.os.DropBoxManager;
+import android.os.FileUtils;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Random;
+
+/**
+ * Replays a crash storm against the drop box: apps crashing over and over, each crash adding
+ * a report of a few kilobytes, with now and then a bigger one. Compares entries that each
+ * have a file, as before the ring store, with small entries and tombstones kept in the ring
+ * store, by the time to add an entry, the time to read every entry back and what is left on
+ * disk. Also checks that both keep the same entries.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.DropBoxPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class DropBoxPerfTest {
+    private static final int[] ENTRY_COUNTS = { 500, 2000, 5000 };
+    private static final String[] TAGS = { "data_app_crash", "system_app_crash",
+            "data_app_anr" };
+    /** One in this many entries is big enough to have a file even with the ring store. */
+    private static final int BIG_RATIO = 50;
+
+    private Context mContext;
+    private File mFilesDir;
+    private File mRingDir;
+
+    @Before
+    public void setUp() {
+        mContext = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public void sendBroadcastAsUser(Intent intent, UserHandle user,
+                    String receiverPermission) {
+                // Don't actually send broadcasts.
+            }
+        };
+        final File root = InstrumentationRegistry.getContext().getCacheDir();
+        mFilesDir = new File(root, "dropbox_perftest_files");
+        mRingDir = new File(root, "dropbox_perftest_ring");
+        deleteRecursively(mFilesDir);
+        deleteRecursively(mRingDir);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mFilesDir);
+        deleteRecursively(mRingDir);
+    }
+
+    private static void deleteRecursively(File dir) {
+        FileUtils.deleteContents(dir);
+        dir.delete();
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    /** Returns something like a crash report: a few lines of header and a stack trace. */
+    private static String createReport(int index, Random random) {
+        final StringBuilder sb = new StringBuilder();
+        sb.append("Process: com.example.app").append(random.nextInt(20)).append('\n');
+        sb.append("PID: ").append(1000 + index).append('\n');
+        sb.append("Flags: 0x").append(Integer.toHexString(random.nextInt())).append('\n');
+        sb.append("Build: example/build/").append(index).append('\n').append('\n');
+        sb.append("java.lang.IllegalStateException: crash ").append(index).append('\n');
+        final int frames = index % BIG_RATIO == 0 ? 2000 : 20 + random.nextInt(40);
+        for (int i = 0; i < frames; i++) {
+            sb.append("\tat com.example.app.Class").append(random.nextInt(100))
+                    .append(".method").append(random.nextInt(100))
+                    .append("(Class.java:").append(random.nextInt(1000)).append(")\n");
+        }
+        return sb.toString();
+    }
+
+    private DropBoxManagerService createService(File dir, boolean ringStore) {
+        final DropBoxManagerService service = new DropBoxManagerService(mContext, dir,
+                Looper.getMainLooper());
+        service.setRingStoreEnabled(ringStore);
+        return service;
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.length();
+            }
+        }
+        return size;
+    }
+
+    /** Reads every entry back; returns the number of bytes read. */
+    private static long readAll(DropBoxManagerService service) throws Exception {
+        final byte[] buffer = new byte[8192];
+        long bytes = 0;
+        long millis = 0;
+        DropBoxManager.Entry entry;
+        while ((entry = service.getNextEntry(null, millis)) != null) {
+            try (InputStream in = entry.getInputStream()) {
+                if (in != null) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) {
+                        bytes += n;
+                    }
+                }
+            }
+            millis = entry.getTimeMillis();
+            entry.close();
+        }
+        return bytes;
+    }
+
+    @Test
+    public void timeCrashStorm() throws Exception {
+        for (int count : ENTRY_COUNTS) {
+            final DropBoxManagerService files = createService(mFilesDir, false);
+            final DropBoxManagerService ring = createService(mRingDir, true);
+
+            final Random random = new Random(count);
+            long filesNanos = 0;
+            long ringNanos = 0;
+            for (int i = 0; i < count; i++) {
+                final String tag = TAGS[random.nextInt(TAGS.length)];
+                final String report = createReport(i, random);
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                files.add(new DropBoxManager.Entry(tag, 0, report));
+                filesNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                ring.add(new DropBoxManager.Entry(tag, 0, report));
+                ringNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+
+            long start = SystemClock.elapsedRealtimeNanos();
+            final long filesBytesRead = readAll(files);
+            final long filesReadNanos = SystemClock.elapsedRealtimeNanos() - start;
+            start = SystemClock.elapsedRealtimeNanos();
+            final long ringBytesRead = readAll(ring);
+            final long ringReadNanos = SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals(filesBytesRead, ringBytesRead);
+
+            report("filesUsPerAdd", count, filesNanos / 1000 / count);
+            report("ringUsPerAdd", count, ringNanos / 1000 / count);
+            report("filesReadAllMs", count, filesReadNanos / 1000000);
+            report("ringReadAllMs", count, ringReadNanos / 1000000);
+            report("filesDiskBytes", count, sizeOf(mFilesDir));
+            report("ringDiskBytes", count, sizeOf(mRingDir));
+            report("filesDiskFiles", count, mFilesDir.list().length);
+            report("ringDiskFiles", count, mRingDir.list().length);
+
+            deleteRecursively(mFilesDir);
+            deleteRecursively(mRingDir);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.os.DropBoxManager;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests that what {@link DropBoxRingStore} writes to its segments is read back.
+ *
+ * Run with:
+ * atest FrameworksServicesTests:com.android.server.DropBoxRingStoreTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class DropBoxRingStoreTest {
+    private static final String TAG = "DropBoxRingStoreTest";
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "dropbox_ring_test");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    private DropBoxRingStore open(List<DropBoxRingStore.Record> live) {
+        final DropBoxRingStore store = new DropBoxRingStore(mDir);
+        live.addAll(store.open());
+        return store;
+    }
+
+    private static byte[] data(long timestampMillis, int length) {
+        final byte[] data = new byte[length];
+        Arrays.fill(data, (byte) timestampMillis);
+        return data;
+    }
+
+    private static long[] timestamps(List<DropBoxRingStore.Record> records) {
+        final long[] timestamps = new long[records.size()];
+        for (int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = records.get(i).timestampMillis;
+        }
+        return timestamps;
+    }
+
+    @Test
+    public void testReopenAfterCompaction() throws Exception {
+        final DropBoxRingStore store = open(new ArrayList<>());
+        final ArrayList<DropBoxRingStore.Record> records = new ArrayList<>();
+        for (long t = 1; t <= 200; t++) {
+            records.add(store.append(TAG, t, 0, data(t, 1024)));
+        }
+        final int segments = store.getSegmentCount();
+        assertTrue("Records span several segments", segments > 2);
+
+        // Keeping only the first and last record leaves the oldest segment mostly dead, so its
+        // live record is copied forward and the segment deleted.
+        for (int i = 1; i < records.size() - 1; i++) {
+            store.remove(records.get(i));
+        }
+        assertTrue("Segments were reclaimed", store.getSegmentCount() < segments);
+        assertTrue("Dead records were reclaimed",
+                store.getTotalBytes() <= 2 * store.getLiveBytes() + 64 * 1024);
+
+        final ArrayList<DropBoxRingStore.Record> live = new ArrayList<>();
+        final DropBoxRingStore reopened = open(live);
+        assertArrayEquals(new long[] { 1, 200 }, timestamps(live));
+        assertArrayEquals(data(1, 1024), reopened.read(live.get(0)));
+        assertArrayEquals(data(200, 1024), reopened.read(live.get(1)));
+        assertEquals(store.getLiveBytes(), reopened.getLiveBytes());
+    }
+
+    @Test
+    public void testTornLastRecordIsDropped() throws Exception {
+        final DropBoxRingStore store = open(new ArrayList<>());
+        store.append(TAG, 1, 0, data(1, 100));
+        store.append(TAG, 2, 0, data(2, 100));
+        store.append(TAG, 3, 0, data(3, 100));
+
+        // Cut the last record short, as if the device went down while it was appended.
+        final File[] files = mDir.listFiles();
+        assertEquals(1, files.length);
+        try (RandomAccessFile file = new RandomAccessFile(files[0], "rw")) {
+            file.setLength(file.length() - 10);
+        }
+
+        final ArrayList<DropBoxRingStore.Record> live = new ArrayList<>();
+        final DropBoxRingStore reopened = open(live);
+        assertArrayEquals(new long[] { 1, 2 }, timestamps(live));
+        assertArrayEquals(data(2, 100), reopened.read(live.get(1)));
+
+        // New records go to a new segment rather than after the torn one.
+        reopened.append(TAG, 4, 0, data(4, 100));
+        assertEquals(2, reopened.getSegmentCount());
+        live.clear();
+        open(live);
+        assertArrayEquals(new long[] { 1, 2, 4 }, timestamps(live));
+    }
+
+    @Test
+    public void testTombstoneReplacesEntryWithSameTimestamp() throws Exception {
+        final DropBoxRingStore store = open(new ArrayList<>());
+        final DropBoxRingStore.Record entry = store.append(TAG, 1, 0, data(1, 100));
+        final DropBoxRingStore.Record other = store.append(TAG, 2, 0, data(2, 100));
+        final DropBoxRingStore.Record tombstone = store.appendLost(TAG, 1);
+        store.release(entry);
+        assertEquals(other.recordLength + tombstone.recordLength, store.getLiveBytes());
+
+        final ArrayList<DropBoxRingStore.Record> live = new ArrayList<>();
+        open(live);
+        assertArrayEquals(new long[] { 1, 2 }, timestamps(live));
+        assertEquals(DropBoxManager.IS_EMPTY, live.get(0).flags);
+        assertEquals(0, live.get(0).length);
+        assertEquals(0, live.get(1).flags);
+        assertEquals(100, live.get(1).length);
+    }
+
+    @Test
+    public void testRemovedRecordStaysRemoved() throws Exception {
+        final DropBoxRingStore store = open(new ArrayList<>());
+        final DropBoxRingStore.Record first = store.append(TAG, 1, 0, data(1, 100));
+        store.append(TAG, 2, 0, data(2, 100));
+        store.remove(first);
+
+        final ArrayList<DropBoxRingStore.Record> live = new ArrayList<>();
+        final DropBoxRingStore reopened = open(live);
+        assertArrayEquals(new long[] { 2 }, timestamps(live));
+
+        // The removal still holds once the segment holding it is no longer appended to.
+        reopened.append(TAG, 3, 0, data(3, 100));
+        live.clear();
+        open(live);
+        assertArrayEquals(new long[] { 2, 3 }, timestamps(live));
+    }
+}
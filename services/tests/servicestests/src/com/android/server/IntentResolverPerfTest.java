@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.app.Activity;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.IntentResolverTest.TestFilter;
+import com.android.server.IntentResolverTest.TestResolver;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Measures {@link IntentResolver#queryIntent} latency as the number of registered filters
+ * grows, against a scan of every filter as the baseline.  Results are reported through
+ * instrumentation status as nanoseconds per query.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.IntentResolverPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverPerfTest {
+    private static final int[] FILTER_COUNTS = { 100, 1000, 5000 };
+    private static final int ITERATIONS = 2000;
+
+    /**
+     * Builds filters shaped like a typical device: most apps declare a handful of custom
+     * actions, a share target, and a few web links for their own hosts.
+     */
+    private static TestResolver newResolver(int count, ArrayList<TestFilter> out) {
+        final TestResolver resolver = new TestResolver();
+        for (int i = 0; i < count; i++) {
+            final TestFilter filter = new TestFilter("filter" + i);
+            switch (i % 4) {
+                case 0:
+                    filter.addAction("com.example.app" + i + ".ACTION");
+                    break;
+                case 1:
+                    filter.addAction(Intent.ACTION_SEND);
+                    try {
+                        filter.addDataType(i % 8 == 1 ? "image/*" : "text/plain");
+                    } catch (IntentFilter.MalformedMimeTypeException e) {
+                        throw new RuntimeException(e);
+                    }
+                    break;
+                case 2:
+                    filter.addAction(Intent.ACTION_VIEW);
+                    filter.addCategory(Intent.CATEGORY_BROWSABLE);
+                    filter.addDataScheme("https");
+                    filter.addDataAuthority("app" + i + ".example.com", null);
+                    break;
+                case 3:
+                    filter.addAction("com.example.app" + i + ".SYNC");
+                    filter.addDataScheme("https");
+                    break;
+            }
+            resolver.addFilter(filter);
+            out.add(filter);
+        }
+        return resolver;
+    }
+
+    private static void report(String name, int count, long elapsedNanos) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count + "_nsPerQuery", elapsedNanos / ITERATIONS);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private static void timeQuery(String name, Intent intent, String resolvedType) {
+        for (int count : FILTER_COUNTS) {
+            final ArrayList<TestFilter> filters = new ArrayList<>();
+            final TestResolver resolver = newResolver(count, filters);
+            final ArrayList<TestFilter[]> all = new ArrayList<>();
+            all.add(filters.toArray(new TestFilter[filters.size()]));
+
+            // Warm up.
+            for (int i = 0; i < ITERATIONS / 10; i++) {
+                resolver.queryIntent(intent, resolvedType, false, 0);
+            }
+            long start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < ITERATIONS; i++) {
+                resolver.queryIntent(intent, resolvedType, false, 0);
+            }
+            report(name, count, SystemClock.elapsedRealtimeNanos() - start);
+
+            start = SystemClock.elapsedRealtimeNanos();
+            for (int i = 0; i < ITERATIONS; i++) {
+                resolver.queryIntentFromList(intent, resolvedType, false, all, 0);
+            }
+            report(name + "_fullScan", count, SystemClock.elapsedRealtimeNanos() - start);
+        }
+    }
+
+    @Test
+    public void timeWebLink() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW,
+                Uri.parse("https://app2.example.com/path"));
+        intent.addCategory(Intent.CATEGORY_BROWSABLE);
+        timeQuery("webLink", intent, null);
+    }
+
+    @Test
+    public void timeShareImage() {
+        final Intent intent = new Intent(Intent.ACTION_SEND);
+        intent.setType("image/png");
+        timeQuery("shareImage", intent, "image/png");
+    }
+
+    @Test
+    public void timeCustomActionWithData() {
+        final Intent intent = new Intent("com.example.app3.SYNC",
+                Uri.parse("https://sync.example.com/"));
+        timeQuery("customActionWithData", intent, null);
+    }
+}
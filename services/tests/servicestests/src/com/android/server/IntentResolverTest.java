@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.os.PatternMatcher;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Unit tests for {@link IntentResolver}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final String[] ACTIONS = {
+            Intent.ACTION_VIEW, Intent.ACTION_SEND, Intent.ACTION_EDIT, "com.example.ACTION" };
+    private static final String[] TYPES = { "image/png", "image/*", "text/plain" };
+    private static final String[] SCHEMES = { "http", "https", "content", "file", "example" };
+    private static final String[] FILTER_HOSTS = {
+            "example.com", "Example.org", "*.example.com", "*", "bücher.example" };
+    private static final String[] DATA_HOSTS = {
+            "example.com", "EXAMPLE.COM", "www.example.com", "example.org", "other.net",
+            "bücher.example", "BÜCHER.example" };
+
+    static class TestFilter extends IntentFilter {
+        final String mName;
+
+        TestFilter(String name) {
+            mName = name;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    static class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return true;
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    @Test
+    public void testHostBucketsKeepRegistrationOrder() {
+        final TestResolver resolver = new TestResolver();
+        final TestFilter anyHost1 = newViewFilter("anyHost1", null);
+        final TestFilter host = newViewFilter("host", "Example.com");
+        final TestFilter anyHost2 = newViewFilter("anyHost2", null);
+        final TestFilter otherHost = newViewFilter("otherHost", "other.net");
+        final TestFilter wildHost = newViewFilter("wildHost", "*.com");
+        resolver.addFilter(anyHost1);
+        resolver.addFilter(host);
+        resolver.addFilter(anyHost2);
+        resolver.addFilter(otherHost);
+        resolver.addFilter(wildHost);
+
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://EXAMPLE.com/a"));
+        assertEquals(Arrays.asList(anyHost1, host, anyHost2, wildHost),
+                resolver.queryIntent(intent, null, false, 0));
+
+        resolver.removeFilter(anyHost1);
+        resolver.addFilter(anyHost1);
+        assertEquals(Arrays.asList(host, anyHost2, wildHost, anyHost1),
+                resolver.queryIntent(intent, null, false, 0));
+    }
+
+    @Test
+    public void testIndexedQueryMatchesFullScan() {
+        final Random random = new Random(1);
+        final TestResolver resolver = new TestResolver();
+        final ArrayList<TestFilter> filters = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            final TestFilter filter = newRandomFilter(random, "filter" + i);
+            filters.add(filter);
+            resolver.addFilter(filter);
+        }
+        // Churn some registrations so the index sees removals too.
+        for (int i = 0; i < 100; i++) {
+            final TestFilter filter = filters.remove(random.nextInt(filters.size()));
+            resolver.removeFilter(filter);
+            if (random.nextBoolean()) {
+                filters.add(filter);
+                resolver.addFilter(filter);
+            }
+        }
+
+        final ArrayList<TestFilter[]> all = new ArrayList<>();
+        all.add(filters.toArray(new TestFilter[filters.size()]));
+        for (int i = 0; i < 2000; i++) {
+            final Intent intent = new Intent(ACTIONS[random.nextInt(ACTIONS.length)]);
+            String type = null;
+            if (random.nextBoolean()) {
+                type = random.nextBoolean() ? "image/png" : "text/plain";
+            }
+            if (random.nextInt(3) != 0) {
+                final String scheme = SCHEMES[random.nextInt(SCHEMES.length)];
+                final String host = DATA_HOSTS[random.nextInt(DATA_HOSTS.length)];
+                intent.setDataAndType(Uri.parse(scheme + "://" + host + "/path"), type);
+            } else {
+                intent.setType(type);
+            }
+            if (random.nextInt(4) == 0) {
+                intent.addCategory(Intent.CATEGORY_BROWSABLE);
+            }
+
+            final List<TestFilter> actual = resolver.queryIntent(intent, type, false, 0);
+            final List<TestFilter> expected =
+                    resolver.queryIntentFromList(intent, type, false, all, 0);
+            assertEquals(intent.toString(), distinct(expected).keySet(),
+                    distinct(actual).keySet());
+        }
+    }
+
+    private static TestFilter newViewFilter(String name, String host) {
+        final TestFilter filter = new TestFilter(name);
+        filter.addAction(Intent.ACTION_VIEW);
+        filter.addDataScheme("http");
+        if (host != null) {
+            filter.addDataAuthority(host, null);
+        }
+        return filter;
+    }
+
+    private static TestFilter newRandomFilter(Random random, String name) {
+        final TestFilter filter = new TestFilter(name);
+        for (String action : ACTIONS) {
+            if (random.nextInt(3) == 0) {
+                filter.addAction(action);
+            }
+        }
+        if (random.nextInt(4) == 0) {
+            filter.addCategory(Intent.CATEGORY_BROWSABLE);
+        }
+        if (random.nextBoolean()) {
+            try {
+                filter.addDataType(TYPES[random.nextInt(TYPES.length)]);
+            } catch (IntentFilter.MalformedMimeTypeException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        if (random.nextBoolean()) {
+            filter.addDataScheme(SCHEMES[random.nextInt(SCHEMES.length)]);
+            final int hosts = random.nextInt(3);
+            for (int i = 0; i < hosts; i++) {
+                filter.addDataAuthority(FILTER_HOSTS[random.nextInt(FILTER_HOSTS.length)], null);
+            }
+            if (random.nextInt(5) == 0) {
+                filter.addDataSchemeSpecificPart("//example.com/path",
+                        PatternMatcher.PATTERN_LITERAL);
+            }
+        }
+        return filter;
+    }
+
+    private static IdentityHashMap<TestFilter, Boolean> distinct(List<TestFilter> filters) {
+        final IdentityHashMap<TestFilter, Boolean> res = new IdentityHashMap<>();
+        for (TestFilter filter : filters) {
+            res.put(filter, true);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,248 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ResolveInfo;
+import android.os.HandlerThread;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test class for {@link BroadcastQueue}.
+ *
+ * Build/Install/Run:
+ *  atest FrameworksServicesTests:com.android.server.am.BroadcastQueueTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class BroadcastQueueTest {
+    private static final String ACTION = "com.android.server.am.TEST_ACTION";
+    private static final String PACKAGE_1 = "com.android.test.app1";
+    private static final String PACKAGE_2 = "com.android.test.app2";
+    private static final int UID_1 = 10001;
+    private static final int UID_2 = 10002;
+    private static final int USER_ID = 0;
+
+    private HandlerThread mThread;
+    private BroadcastQueue mQueue;
+
+    @Before
+    public void setUp() {
+        mThread = new HandlerThread("BroadcastQueueTest");
+        mThread.start();
+        mQueue = new BroadcastQueue(mock(ActivityManagerService.class),
+                mThread.getThreadHandler(), "test", 10_000, false);
+    }
+
+    @After
+    public void tearDown() {
+        mThread.quit();
+    }
+
+    private static ResolveInfo makeReceiver(String packageName, int uid) {
+        final ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.packageName = packageName;
+        applicationInfo.uid = uid;
+        final ActivityInfo activityInfo = new ActivityInfo();
+        activityInfo.applicationInfo = applicationInfo;
+        activityInfo.packageName = packageName;
+        activityInfo.processName = packageName;
+        activityInfo.name = packageName + ".Receiver";
+        final ResolveInfo info = new ResolveInfo();
+        info.activityInfo = activityInfo;
+        return info;
+    }
+
+    private static ProcessRecord makeProcess(String packageName, int uid) {
+        final ApplicationInfo applicationInfo = new ApplicationInfo();
+        applicationInfo.packageName = packageName;
+        applicationInfo.uid = uid;
+        return new ProcessRecord(null, null, applicationInfo, packageName, uid);
+    }
+
+    private BroadcastRecord makeRecord(Intent intent, List receivers) {
+        return new BroadcastRecord(mQueue, intent, null, PACKAGE_1, 0, UID_1, false, null,
+                null, 0, null, receivers, null, 0, null, null, true, true, false, USER_ID);
+    }
+
+    private static List<ResolveInfo> receivers(ResolveInfo... infos) {
+        return new ArrayList<>(Arrays.asList(infos));
+    }
+
+    /**
+     * Enqueues an unrelated broadcast first; the head of the ordered queue may be in flight
+     * and is never replaced.
+     */
+    private void enqueueHead() {
+        mQueue.enqueueOrderedBroadcastLocked(makeRecord(new Intent("com.android.test.OTHER"),
+                receivers(makeReceiver(PACKAGE_1, UID_1))));
+    }
+
+    @Test
+    public void testCoalesceReplacesBroadcastToSameReceivers() {
+        enqueueHead();
+        final BroadcastRecord old = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_2, UID_2)));
+        mQueue.enqueueOrderedBroadcastLocked(old);
+        old.enqueueClockTime -= 1000;
+
+        final BroadcastRecord r = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_2, UID_2)));
+        assertSame(old, mQueue.coalesceOrderedBroadcastLocked(r));
+        assertSame(r, mQueue.mOrderedBroadcasts.get(1));
+        assertEquals(2, mQueue.mOrderedBroadcasts.size());
+        assertEquals(1, mQueue.mReplacedCount);
+        assertEquals(2, mQueue.mReplacedDeliveries);
+
+        // The new broadcast keeps its own enqueue time and remembers the replaced one's.
+        assertEquals(old.enqueueClockTime, r.coalescedEnqueueClockTime);
+        assertTrue(r.enqueueClockTime > old.enqueueClockTime);
+    }
+
+    @Test
+    public void testCoalesceKeepsOldestEnqueueTime() {
+        enqueueHead();
+        final BroadcastRecord first = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        mQueue.enqueueOrderedBroadcastLocked(first);
+        first.enqueueClockTime -= 1000;
+        final BroadcastRecord second = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        assertSame(first, mQueue.coalesceOrderedBroadcastLocked(second));
+        final BroadcastRecord third = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        assertSame(second, mQueue.coalesceOrderedBroadcastLocked(third));
+
+        assertEquals(first.enqueueClockTime, third.coalescedEnqueueClockTime);
+    }
+
+    @Test
+    public void testCoalesceKeepsBroadcastToDifferentReceivers() {
+        enqueueHead();
+        final BroadcastRecord old = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        mQueue.enqueueOrderedBroadcastLocked(old);
+
+        final BroadcastRecord r = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_2, UID_2)));
+        assertNull(mQueue.coalesceOrderedBroadcastLocked(r));
+        final BroadcastRecord other = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_2, UID_2)));
+        assertNull(mQueue.coalesceOrderedBroadcastLocked(other));
+
+        assertSame(old, mQueue.mOrderedBroadcasts.get(1));
+        assertEquals(0, mQueue.mReplacedCount);
+        assertEquals(0, r.coalescedEnqueueClockTime);
+    }
+
+    @Test
+    public void testCoalesceParallelReplacesBroadcastToSameReceivers() {
+        mQueue.enqueueParallelBroadcastLocked(makeRecord(new Intent("com.android.test.OTHER"),
+                receivers(makeReceiver(PACKAGE_1, UID_1))));
+        final BroadcastRecord old = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        mQueue.enqueueParallelBroadcastLocked(old);
+
+        final BroadcastRecord different = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_2, UID_2)));
+        assertNull(mQueue.coalesceParallelBroadcastLocked(different));
+        final BroadcastRecord r = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        assertSame(old, mQueue.coalesceParallelBroadcastLocked(r));
+        assertSame(r, mQueue.mParallelBroadcasts.get(1));
+        assertEquals(1, mQueue.mReplacedCount);
+    }
+
+    @Test
+    public void testLanesAreOffByDefault() {
+        assertNull(mQueue.mLanes);
+        assertSame(mQueue, mQueue.getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1))));
+    }
+
+    @Test
+    public void testSingleProcessBroadcastGoesToItsLane() {
+        final BroadcastQueue[] lanes = mQueue.createLanes(4);
+        assertEquals(5, lanes.length);
+        assertSame(mQueue, lanes[0]);
+        for (BroadcastQueue lane : lanes) {
+            assertSame(lanes, lane.mLanes);
+        }
+
+        final BroadcastQueue lane = mQueue.getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        assertNotSame(mQueue, lane);
+        assertSame(lane, mQueue.getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_1, UID_1))));
+        assertSame(lane, lanes[1].getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1))));
+
+        // Broadcasts to more than one process, or to none, stay on the main queue.
+        assertSame(mQueue, mQueue.getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_2, UID_2))));
+        assertSame(mQueue, lane.getQueueForReceiversLocked(
+                receivers(makeReceiver(PACKAGE_1, UID_1), makeReceiver(PACKAGE_2, UID_2))));
+        assertSame(mQueue, mQueue.getQueueForReceiversLocked(receivers()));
+    }
+
+    @Test
+    public void testNextReceiverWaitsWhileBusyInOtherLane() {
+        final BroadcastQueue[] lanes = mQueue.createLanes(2);
+        final BroadcastQueue other = lanes[1];
+        final BroadcastRecord inFlight = makeRecord(new Intent("com.android.test.OTHER"),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        other.enqueueOrderedBroadcastLocked(inFlight);
+        final BroadcastRecord r = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_1, UID_1)));
+        mQueue.enqueueOrderedBroadcastLocked(r);
+        assertFalse("Other lane is idle", mQueue.isNextReceiverBusyInOtherLaneLocked(r));
+
+        inFlight.state = BroadcastRecord.APP_RECEIVE;
+        inFlight.curApp = makeProcess(PACKAGE_1, UID_1);
+        assertTrue("Other lane is delivering to the process",
+                mQueue.isNextReceiverBusyInOtherLaneLocked(r));
+        assertFalse("A queue never waits for itself",
+                other.isNextReceiverBusyInOtherLaneLocked(inFlight));
+        final BroadcastRecord toOtherProcess = makeRecord(new Intent(ACTION),
+                receivers(makeReceiver(PACKAGE_2, UID_2)));
+        assertFalse("Other lane is delivering to another process",
+                mQueue.isNextReceiverBusyInOtherLaneLocked(toOtherProcess));
+
+        inFlight.state = BroadcastRecord.IDLE;
+        assertFalse("Other lane moved on", mQueue.isNextReceiverBusyInOtherLaneLocked(r));
+    }
+}
@@ -0,0 +1,361 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.pm.ApplicationInfo;
+import android.content.pm.ProviderInfo;
+import android.content.pm.ServiceInfo;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Replays bind/unbind traces against synthetic process graphs and compares how many
+ * processes have their oom adj computed by a full update and by an incremental update of
+ * the process whose binding changed. The computation itself needs a running system server,
+ * so the harness measures the graph walks and reports the number of processes and client
+ * edges each approach visits, which is what computeOomAdjLocked's cost scales with.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.am.OomAdjReplayPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class OomAdjReplayPerfTest {
+    private static final int[] PROCESS_COUNTS = { 100, 300, 600 };
+    private static final int TRACE_LENGTH = 2000;
+
+    /** One in this many processes hosts services or providers that many apps use. */
+    private static final int HUB_RATIO = 15;
+
+    private static final class Graph {
+        final ArrayList<ProcessRecord> procs = new ArrayList<>();
+        final ArrayList<ProcessRecord> hubs = new ArrayList<>();
+        final ArrayList<ConnectionRecord> bindings = new ArrayList<>();
+        int edges;
+    }
+
+    private static ProcessRecord newProcess(String name, int uid) {
+        final ApplicationInfo ai = new ApplicationInfo();
+        ai.packageName = name;
+        ai.uid = uid;
+        final ProcessRecord app = new ProcessRecord(null, null, ai, name, uid);
+        app.services.add(newService(app));
+        return app;
+    }
+
+    private static ServiceRecord newService(ProcessRecord host) {
+        final ServiceInfo si = new ServiceInfo();
+        si.applicationInfo = host.info;
+        si.packageName = host.info.packageName;
+        si.processName = host.processName;
+        si.name = host.processName + ".Service";
+        final ServiceRecord service = new ServiceRecord(null, null,
+                new ComponentName(si.packageName, si.name),
+                new Intent.FilterComparison(new Intent()), si, false, null);
+        service.app = host;
+        return service;
+    }
+
+    private static ConnectionRecord bind(Graph graph, ProcessRecord client, ProcessRecord host) {
+        final ServiceRecord service = host.services.valueAt(0);
+        final IntentBindRecord intent = new IntentBindRecord(service, service.intent);
+        final ConnectionRecord c = new ConnectionRecord(
+                new AppBindRecord(service, intent, client), null, null,
+                Context.BIND_AUTO_CREATE, 0, null);
+        client.connections.add(c);
+        graph.bindings.add(c);
+        graph.edges++;
+        return c;
+    }
+
+    private static void unbind(Graph graph, ConnectionRecord c) {
+        c.binding.client.connections.remove(c);
+        graph.bindings.remove(c);
+        graph.edges--;
+    }
+
+    private static void connectProvider(Graph graph, ProcessRecord client, ProcessRecord host) {
+        final ProviderInfo pi = new ProviderInfo();
+        pi.packageName = host.info.packageName;
+        pi.name = host.processName + ".Provider";
+        final ContentProviderRecord cpr = new ContentProviderRecord(null, pi, host.info,
+                new ComponentName(pi.packageName, pi.name), false);
+        cpr.proc = host;
+        client.conProviders.add(new ContentProviderConnection(cpr, client));
+        graph.edges++;
+    }
+
+    /**
+     * Builds a graph shaped like a running device: a few hub processes that most apps bind to
+     * or query, some of which depend on other hubs, and apps with a couple of bindings each.
+     */
+    private static Graph newGraph(int count, Random random) {
+        final Graph graph = new Graph();
+        for (int i = 0; i < count; i++) {
+            final ProcessRecord app = newProcess("com.example.proc" + i, 10000 + i);
+            graph.procs.add(app);
+            if (i % HUB_RATIO == 0) {
+                graph.hubs.add(app);
+            }
+        }
+        for (int i = 1; i < graph.hubs.size(); i++) {
+            bind(graph, graph.hubs.get(i), graph.hubs.get(random.nextInt(i)));
+        }
+        for (ProcessRecord app : graph.procs) {
+            if (graph.hubs.contains(app)) {
+                continue;
+            }
+            for (int j = random.nextInt(3); j >= 0; j--) {
+                bind(graph, app, graph.hubs.get(random.nextInt(graph.hubs.size())));
+            }
+            if (random.nextBoolean()) {
+                connectProvider(graph, app, graph.hubs.get(random.nextInt(graph.hubs.size())));
+            }
+        }
+        return graph;
+    }
+
+    /** Returns the client edges computeOomAdjLocked looks at for every process. */
+    private static long walkAll(Graph graph) {
+        long visits = 0;
+        for (int i = graph.procs.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = graph.procs.get(i);
+            visits += 1 + app.connections.size() + app.conProviders.size();
+        }
+        return visits;
+    }
+
+    /** Returns the processes and edges an incremental update starting at app looks at. */
+    private static long walkDependents(ProcessRecord app, ArrayList<ProcessRecord> dependents,
+            ArraySet<ProcessRecord> visited) {
+        ActivityManagerService.collectOomAdjDependents(app, dependents, visited);
+        long visits = 0;
+        for (int i = dependents.size() - 1; i >= 0; i--) {
+            final ProcessRecord dependent = dependents.get(i);
+            visits += 1 + dependent.connections.size() + dependent.conProviders.size();
+        }
+        dependents.clear();
+        visited.clear();
+        return visits;
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void testCollectOomAdjDependents() {
+        final Graph graph = new Graph();
+        final ProcessRecord app = newProcess("app", 10000);
+        final ProcessRecord service = newProcess("service", 10001);
+        final ProcessRecord provider = newProcess("provider", 10002);
+        final ProcessRecord unrelated = newProcess("unrelated", 10003);
+        bind(graph, app, service);
+        connectProvider(graph, service, provider);
+        bind(graph, unrelated, provider);
+        // Cycles end the walk.
+        bind(graph, provider, app);
+
+        final ArrayList<ProcessRecord> dependents = new ArrayList<>();
+        ActivityManagerService.collectOomAdjDependents(app, dependents, new ArraySet<>());
+        assertEquals(Arrays.asList(app, service, provider), dependents);
+    }
+
+    /**
+     * A stand-in for computeOomAdjLocked, which needs a running system server: a process is as
+     * important as its own base adj or its most important client, and computing a process
+     * first computes its clients not yet computed in the current sequence, as
+     * computeOomAdjLocked does.
+     */
+    private static final class AdjModel {
+        final ArrayMap<ProcessRecord, Integer> base = new ArrayMap<>();
+        final ArrayMap<ProcessRecord, Integer> adj = new ArrayMap<>();
+        final ArrayMap<ProcessRecord, Integer> adjSeq = new ArrayMap<>();
+        final ArrayMap<ProcessRecord, ArrayList<ProcessRecord>> clients = new ArrayMap<>();
+        final ArraySet<ProcessRecord> computing = new ArraySet<>();
+        int seq;
+        boolean containsCycle;
+
+        AdjModel(ArrayMap<ProcessRecord, Integer> baseAdj) {
+            base.putAll(baseAdj);
+        }
+
+        void updateClients(Graph graph) {
+            clients.clear();
+            for (ProcessRecord app : graph.procs) {
+                clients.put(app, new ArrayList<>());
+            }
+            for (ProcessRecord client : graph.procs) {
+                for (int j = client.connections.size() - 1; j >= 0; j--) {
+                    clients.get(client.connections.valueAt(j).binding.service.app).add(client);
+                }
+                for (int j = client.conProviders.size() - 1; j >= 0; j--) {
+                    clients.get(client.conProviders.get(j).provider.proc).add(client);
+                }
+            }
+        }
+
+        int compute(ProcessRecord app) {
+            if (computing.contains(app)) {
+                containsCycle = true;
+                return adj.get(app);
+            }
+            if (adjSeq.containsKey(app) && adjSeq.get(app) == seq) {
+                return adj.get(app);
+            }
+            adjSeq.put(app, seq);
+            computing.add(app);
+            int value = base.get(app);
+            for (ProcessRecord client : clients.get(app)) {
+                value = Math.min(value, compute(client));
+            }
+            computing.remove(app);
+            adj.put(app, value);
+            return value;
+        }
+
+        /** Recomputes every process until nothing changes, as repeated full updates would. */
+        void updateAll(Graph graph) {
+            for (ProcessRecord app : graph.procs) {
+                adj.put(app, base.get(app));
+            }
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                for (ProcessRecord app : graph.procs) {
+                    int value = base.get(app);
+                    for (ProcessRecord client : clients.get(app)) {
+                        value = Math.min(value, adj.get(client));
+                    }
+                    if (value != adj.get(app)) {
+                        adj.put(app, value);
+                        changed = true;
+                    }
+                }
+            }
+        }
+
+        /** Recomputes app and its dependents, as updateOomAdjAndDependentsLocked does. */
+        void updateDependents(Graph graph, ProcessRecord app) {
+            seq++;
+            containsCycle = false;
+            final ArrayList<ProcessRecord> dependents = new ArrayList<>();
+            ActivityManagerService.collectOomAdjDependents(app, dependents, new ArraySet<>());
+            for (ProcessRecord dependent : dependents) {
+                compute(dependent);
+            }
+            if (containsCycle) {
+                updateAll(graph);
+            }
+        }
+    }
+
+    @Test
+    public void testIncrementalUpdateMatchesFullUpdate() {
+        final Random random = new Random(42);
+        final Graph graph = newGraph(100, random);
+        final ArrayMap<ProcessRecord, Integer> baseAdj = new ArrayMap<>();
+        for (ProcessRecord app : graph.procs) {
+            baseAdj.put(app, random.nextInt(1000));
+        }
+        final AdjModel incremental = new AdjModel(baseAdj);
+        final AdjModel full = new AdjModel(baseAdj);
+        incremental.updateClients(graph);
+        incremental.updateAll(graph);
+
+        for (int i = 0; i < TRACE_LENGTH; i++) {
+            final ProcessRecord host;
+            if (random.nextBoolean() || graph.bindings.isEmpty()) {
+                host = graph.hubs.get(random.nextInt(graph.hubs.size()));
+                bind(graph, graph.procs.get(random.nextInt(graph.procs.size())), host);
+            } else {
+                final ConnectionRecord c = graph.bindings.get(
+                        random.nextInt(graph.bindings.size()));
+                host = c.binding.service.app;
+                unbind(graph, c);
+            }
+
+            incremental.updateClients(graph);
+            incremental.updateDependents(graph, host);
+            full.updateClients(graph);
+            full.updateAll(graph);
+            for (ProcessRecord app : graph.procs) {
+                assertEquals("adj of " + app.processName + " after event " + i,
+                        full.adj.get(app), incremental.adj.get(app));
+            }
+        }
+    }
+
+    @Test
+    public void timeReplayBindUnbindTrace() {
+        final ArrayList<ProcessRecord> dependents = new ArrayList<>();
+        final ArraySet<ProcessRecord> visited = new ArraySet<>();
+        for (int count : PROCESS_COUNTS) {
+            final Random random = new Random(count);
+            final Graph graph = newGraph(count, random);
+
+            long fullVisits = 0;
+            long incrementalVisits = 0;
+            long fullNanos = 0;
+            long incrementalNanos = 0;
+            for (int i = 0; i < TRACE_LENGTH; i++) {
+                final ProcessRecord host;
+                if (random.nextBoolean() || graph.bindings.isEmpty()) {
+                    final ProcessRecord client = graph.procs.get(random.nextInt(count));
+                    host = graph.hubs.get(random.nextInt(graph.hubs.size()));
+                    bind(graph, client, host);
+                } else {
+                    final ConnectionRecord c = graph.bindings.get(
+                            random.nextInt(graph.bindings.size()));
+                    host = c.binding.service.app;
+                    unbind(graph, c);
+                }
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                fullVisits += walkAll(graph);
+                fullNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                incrementalVisits += walkDependents(host, dependents, visited);
+                incrementalNanos += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            report("fullVisitsPerEvent", count, fullVisits / TRACE_LENGTH);
+            report("incrementalVisitsPerEvent", count, incrementalVisits / TRACE_LENGTH);
+            report("fullNanosPerEvent", count, fullNanos / TRACE_LENGTH);
+            report("incrementalNanosPerEvent", count, incrementalNanos / TRACE_LENGTH);
+        }
+    }
+}
@@ -17,12 +17,14 @@ package com.android.server;
 
 import static android.app.AppOpsManager.MODE_ALLOWED;
 import static android.app.AppOpsManager.MODE_ERRORED;
+import static android.app.AppOpsManager.MODE_IGNORED;
 import static android.app.AppOpsManager.OP_READ_SMS;
 import static android.app.AppOpsManager.OP_WRITE_SMS;
 
 import static com.google.common.truth.Truth.assertThat;
 import static com.google.common.truth.Truth.assertWithMessage;
 
+import android.app.AppOpsManager;
 import android.app.AppOpsManager.OpEntry;
 import android.app.AppOpsManager.PackageOps;
 import android.content.Context;
@@ -193,6 +195,30 @@ public class AppOpsServiceTest {
         assertThat(getLoggedOps()).isNull();
     }
 
+    @Test
+    public void testCheckOperationSeesModeChanges() {
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+        // The second check is answered without taking the service lock.
+        assertThat(mAppOpsService.mCheckModeCache.get(mMyUid, mMyPackageName, OP_READ_SMS))
+                .isEqualTo(MODE_ALLOWED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ALLOWED);
+
+        mAppOpsService.setMode(OP_READ_SMS, mMyUid, mMyPackageName, MODE_ERRORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_ERRORED);
+
+        mAppOpsService.setUidMode(OP_READ_SMS, mMyUid, MODE_IGNORED);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(MODE_IGNORED);
+
+        mAppOpsService.uidRemoved(mMyUid);
+        assertThat(mAppOpsService.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName))
+                .isEqualTo(AppOpsManager.opToDefaultMode(OP_READ_SMS));
+    }
+
     private List<PackageOps> getLoggedOps() {
         return mAppOpsService.getOpsForPackage(mMyUid, mMyPackageName, null /* all ops */);
     }
@@ -0,0 +1,183 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import static org.junit.Assert.assertEquals;
+
+import android.database.IContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.content.ContentService.ObserverCall;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for {@link ContentChangeDispatcher}.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.content.ContentChangeDispatcherTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ContentChangeDispatcherTest {
+    private static final int USER_ID = 0;
+    private static final Uri URI_A = Uri.parse("content://test/a");
+    private static final Uri URI_B = Uri.parse("content://test/b");
+    private static final Uri URI_C = Uri.parse("content://test/c");
+
+    private ContentChangeDispatcher mDispatcher;
+    private final ArrayList<ObserverCall> mDeadObservers = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        // Flushes are driven by the tests, so the handler's looper never runs.
+        final HandlerThread thread = new HandlerThread("ContentChangeDispatcherTest");
+        thread.start();
+        final Handler handler = new Handler(thread.getLooper());
+        thread.quit();
+        mDispatcher = new ContentChangeDispatcher(handler, mDeadObservers::add);
+    }
+
+    /** Records the callbacks it gets, as "onChange uri" or "onChangeUris [uris]". */
+    private static class RecordingObserver extends IContentObserver.Stub {
+        final List<String> mCalls = new ArrayList<>();
+
+        @Override
+        public void onChange(boolean selfUpdate, Uri uri, int userId) {
+            synchronized (mCalls) {
+                mCalls.add("onChange " + uri);
+            }
+        }
+
+        @Override
+        public void onChangeUris(boolean selfUpdate, Uri[] uris, int userId) {
+            synchronized (mCalls) {
+                mCalls.add("onChangeUris " + Arrays.toString(uris));
+            }
+        }
+    }
+
+    private static ObserverCall call(IContentObserver observer) {
+        return new ObserverCall(null, observer, false, USER_ID);
+    }
+
+    @Test
+    public void testBatchedChangesAreDeliveredTogether() {
+        final RecordingObserver observer = new RecordingObserver();
+        final ObserverCall oc = call(observer);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_B, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_C, USER_ID);
+        assertEquals(Arrays.asList(), observer.mCalls);
+
+        mDispatcher.flushPendingChanges();
+        assertEquals(Arrays.asList("onChangeUris [" + URI_A + ", " + URI_B + ", " + URI_C + "]"),
+                observer.mCalls);
+    }
+
+    @Test
+    public void testDuplicateUrisAreDeliveredOnce() {
+        final RecordingObserver observer = new RecordingObserver();
+        final ObserverCall oc = call(observer);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_B, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+
+        mDispatcher.flushPendingChanges();
+        assertEquals(Arrays.asList("onChangeUris [" + URI_A + ", " + URI_B + "]"),
+                observer.mCalls);
+        assertEquals(1, mDispatcher.getDuplicateUriCount());
+    }
+
+    @Test
+    public void testSingleUriBatchUsesOnChange() {
+        final RecordingObserver observer = new RecordingObserver();
+        final ObserverCall oc = call(observer);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+
+        mDispatcher.flushPendingChanges();
+        assertEquals(Arrays.asList("onChange " + URI_A), observer.mCalls);
+    }
+
+    @Test
+    public void testUnbatchedChangeFollowsPendingBatch() {
+        final RecordingObserver observer = new RecordingObserver();
+        final ObserverCall oc = call(observer);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_B, USER_ID);
+        mDispatcher.dispatchChange(oc, URI_C, USER_ID);
+        assertEquals(Arrays.asList("onChangeUris [" + URI_A + ", " + URI_B + "]",
+                "onChange " + URI_C), observer.mCalls);
+
+        mDispatcher.flushPendingChanges();
+        assertEquals(2, observer.mCalls.size());
+    }
+
+    @Test
+    public void testUnbatchedChangeDoesNotOvertakeBatchBeingDelivered() {
+        final List<String> calls = new ArrayList<>();
+        final IContentObserver observer = new RecordingObserver() {
+            @Override
+            public void onChangeUris(boolean selfUpdate, Uri[] uris, int userId) {
+                // Another thread notifies a change while the batch is being delivered; it must
+                // not be delivered before this callback is done.
+                final Thread thread = new Thread(
+                        () -> mDispatcher.dispatchChange(call(this), URI_C, USER_ID));
+                thread.start();
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                synchronized (calls) {
+                    calls.add("onChangeUris " + Arrays.toString(uris));
+                }
+            }
+
+            @Override
+            public void onChange(boolean selfUpdate, Uri uri, int userId) {
+                synchronized (calls) {
+                    calls.add("onChange " + uri);
+                }
+            }
+        };
+        final ObserverCall oc = call(observer);
+        mDispatcher.enqueueBatchedChange(oc, URI_A, USER_ID);
+        mDispatcher.enqueueBatchedChange(oc, URI_B, USER_ID);
+
+        mDispatcher.flushPendingChanges();
+        assertEquals(Arrays.asList("onChangeUris [" + URI_A + ", " + URI_B + "]",
+                "onChange " + URI_C), calls);
+    }
+
+    @Test
+    public void testUnbatchedChangeWithoutBatchIsDeliveredRightAway() {
+        final RecordingObserver observer = new RecordingObserver();
+        mDispatcher.dispatchChange(call(observer), URI_A, USER_ID);
+        assertEquals(Arrays.asList("onChange " + URI_A), observer.mCalls);
+    }
+}
@@ -103,4 +103,34 @@ public class ObserverNodeTest extends AndroidTestCase {
             calls.clear();
         }
     }
+
+    public void testManySiblings() {
+        final int myUserHandle = UserHandle.myUserId();
+
+        ObserverNode root = new ObserverNode("");
+        root.addObserverLocked(Uri.parse("content://c/"), new TestObserver().getContentObserver(),
+                true, root, 0, 0, myUserHandle);
+        for (int i = 0; i < 100; i++) {
+            root.addObserverLocked(Uri.parse("content://c/" + i),
+                    new TestObserver().getContentObserver(), false, root, 0, 0, myUserHandle);
+        }
+
+        ArrayList<ObserverCall> calls = new ArrayList<ObserverCall>();
+
+        // The observer of the row and the one of all rows.
+        root.collectObserversLocked(Uri.parse("content://c/42"), 0, null, false, 0,
+                myUserHandle, calls);
+        assertEquals(2, calls.size());
+        calls.clear();
+
+        root.collectObserversLocked(Uri.parse("content://c/100"), 0, null, false, 0,
+                myUserHandle, calls);
+        assertEquals(1, calls.size());
+        calls.clear();
+
+        // Every row.
+        root.collectObserversLocked(Uri.parse("content://c/"), 0, null, false, 0,
+                myUserHandle, calls);
+        assertEquals(101, calls.size());
+    }
 }
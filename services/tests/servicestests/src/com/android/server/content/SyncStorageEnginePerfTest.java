@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import android.accounts.Account;
+import android.app.Activity;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Measures the time taken and the bytes written per sync setting changed, on a device with
+ * many accounts that each have many sync adapters. Compares rewriting accounts.xml for every
+ * change with journaling the changes.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.content.SyncStorageEnginePerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SyncStorageEnginePerfTest {
+    private static final int[] ACCOUNT_COUNTS = { 5, 20, 50 };
+    private static final int AUTHORITY_COUNT = 20;
+    private static final int CHANGES = 200;
+    private static final int USER_ID = 0;
+
+    private File mFilesDir;
+    private Context mTestContext;
+
+    @Before
+    public void setUp() {
+        mFilesDir = new File(InstrumentationRegistry.getContext().getCacheDir(),
+                "sync_perftest");
+        deleteRecursively(mFilesDir);
+        mFilesDir.mkdirs();
+        mTestContext = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public File getFilesDir() {
+                return mFilesDir;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mFilesDir);
+    }
+
+    private static void deleteRecursively(File dir) {
+        FileUtils.deleteContents(dir);
+        dir.delete();
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private static Account account(int index) {
+        return new Account("user" + index + "@example.com", "com.example");
+    }
+
+    private static String authority(int index) {
+        return "com.example.provider" + index;
+    }
+
+    /** Creates an engine holding every authority of every account. */
+    private SyncStorageEngine createEngine(int accountCount, boolean journal) {
+        deleteRecursively(mFilesDir);
+        mFilesDir.mkdirs();
+        final SyncStorageEngine engine = SyncStorageEngine.newTestInstance(mTestContext);
+        engine.setAccountInfoJournalEnabled(journal);
+        for (int a = 0; a < accountCount; a++) {
+            for (int p = 0; p < AUTHORITY_COUNT; p++) {
+                engine.setIsSyncable(account(a), USER_ID, authority(p),
+                        SyncStorageEngine.AuthorityInfo.NOT_SYNCABLE, Process.myUid());
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * Flips whether random authorities are syncable. Neither value requests a sync, so only
+     * the change and its write are timed.
+     *
+     * @return the time taken, in nanoseconds.
+     */
+    private static long timeChanges(SyncStorageEngine engine, int accountCount, Random random) {
+        long nanos = 0;
+        for (int i = 0; i < CHANGES; i++) {
+            final Account account = account(random.nextInt(accountCount));
+            final String authority = authority(random.nextInt(AUTHORITY_COUNT));
+            final int syncable = engine.getIsSyncable(account, USER_ID, authority)
+                    == SyncStorageEngine.AuthorityInfo.NOT_SYNCABLE
+                    ? SyncStorageEngine.AuthorityInfo.NOT_INITIALIZED
+                    : SyncStorageEngine.AuthorityInfo.NOT_SYNCABLE;
+            final long start = SystemClock.elapsedRealtimeNanos();
+            engine.setIsSyncable(account, USER_ID, authority, syncable, Process.myUid());
+            nanos += SystemClock.elapsedRealtimeNanos() - start;
+        }
+        return nanos;
+    }
+
+    @Test
+    public void timeSyncSettingChanges() {
+        for (int count : ACCOUNT_COUNTS) {
+            final SyncStorageEngine full = createEngine(count, false);
+            final long fullBytesBefore = full.getAccountInfoBytesWritten();
+            final long fullNanos = timeChanges(full, count, new Random(count));
+            final long fullBytes = full.getAccountInfoBytesWritten() - fullBytesBefore;
+
+            final SyncStorageEngine journal = createEngine(count, true);
+            final long journalBytesBefore = journal.getAccountInfoBytesWritten();
+            final long journalNanos = timeChanges(journal, count, new Random(count));
+            final long journalBytes = journal.getAccountInfoBytesWritten() - journalBytesBefore;
+
+            final int authorities = count * AUTHORITY_COUNT;
+            report("fullUsPerChange", authorities, fullNanos / 1000 / CHANGES);
+            report("journalUsPerChange", authorities, journalNanos / 1000 / CHANGES);
+            report("fullBytesPerChange", authorities, fullBytes / CHANGES);
+            report("journalBytesPerChange", authorities, journalBytes / CHANGES);
+        }
+    }
+}
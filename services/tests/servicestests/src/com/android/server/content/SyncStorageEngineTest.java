@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.content;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.accounts.Account;
+import android.accounts.AccountManager;
+import android.content.ContentResolver;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.content.pm.ProviderInfo;
+import android.os.FileUtils;
+import android.os.Process;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.content.SyncStorageEngine.AuthorityInfo;
+import com.android.server.content.SyncStorageEngine.EndPoint;
+
+import libcore.io.IoUtils;
+import libcore.io.Streams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+
+/**
+ * Tests that sync settings journaled by {@link SyncStorageEngine} are read back.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.content.SyncStorageEngineTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SyncStorageEngineTest {
+    private static final int USER_ID = 0;
+    private static final Account ACCOUNT_1 = new Account("user1@example.com", "com.example");
+    private static final Account ACCOUNT_2 = new Account("user2@example.com", "com.example");
+    private static final String AUTHORITY_1 = "com.example.provider1";
+    private static final String AUTHORITY_2 = "com.example.provider2";
+
+    private File mFilesDir;
+    private File mJournalFile;
+    private Context mTestContext;
+
+    @Before
+    public void setUp() {
+        mFilesDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "sync_test");
+        FileUtils.deleteContentsAndDir(mFilesDir);
+        mFilesDir.mkdirs();
+        mJournalFile = new File(mFilesDir, "system/sync/accounts.journal");
+
+        // Authorities are only read back for accounts and providers that exist.
+        final AccountManager accountManager = mock(AccountManager.class);
+        when(accountManager.getAccountsAsUser(anyInt()))
+                .thenReturn(new Account[] { ACCOUNT_1, ACCOUNT_2 });
+        final PackageManager packageManager = mock(PackageManager.class);
+        when(packageManager.resolveContentProviderAsUser(anyString(), anyInt(), anyInt()))
+                .thenReturn(new ProviderInfo());
+        mTestContext = new ContextWrapper(InstrumentationRegistry.getContext()) {
+            @Override
+            public File getFilesDir() {
+                return mFilesDir;
+            }
+
+            @Override
+            public Object getSystemService(String name) {
+                if (Context.ACCOUNT_SERVICE.equals(name)) {
+                    return accountManager;
+                }
+                return super.getSystemService(name);
+            }
+
+            @Override
+            public PackageManager getPackageManager() {
+                return packageManager;
+            }
+
+            @Override
+            public void sendBroadcast(Intent intent) {
+                // Don't actually send broadcasts.
+            }
+        };
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mFilesDir);
+    }
+
+    private SyncStorageEngine newEngine() {
+        return SyncStorageEngine.newTestInstance(mTestContext);
+    }
+
+    private static void setIsSyncable(SyncStorageEngine engine, Account account,
+            String authority, int syncable) {
+        engine.setIsSyncable(account, USER_ID, authority, syncable, Process.myUid());
+    }
+
+    @Test
+    public void testJournaledChangesAreReadBack() {
+        final SyncStorageEngine engine = newEngine();
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_2, AuthorityInfo.NOT_SYNCABLE);
+        setIsSyncable(engine, ACCOUNT_2, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        engine.setSyncAutomatically(ACCOUNT_1, USER_ID, AUTHORITY_2, false,
+                ContentResolver.SYNC_EXEMPTION_NONE, Process.myUid());
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_2, AuthorityInfo.NOT_INITIALIZED);
+        engine.setMasterSyncAutomatically(false, USER_ID, ContentResolver.SYNC_EXEMPTION_NONE,
+                Process.myUid());
+        assertTrue("Changes were journaled", mJournalFile.length() > 0);
+
+        final SyncStorageEngine reread = newEngine();
+        assertEquals(engine.getAuthorityCount(), reread.getAuthorityCount());
+        for (Account account : new Account[] { ACCOUNT_1, ACCOUNT_2 }) {
+            for (String authority : new String[] { AUTHORITY_1, AUTHORITY_2 }) {
+                assertEquals(engine.getIsSyncable(account, USER_ID, authority),
+                        reread.getIsSyncable(account, USER_ID, authority));
+                assertEquals(engine.getSyncAutomatically(account, USER_ID, authority),
+                        reread.getSyncAutomatically(account, USER_ID, authority));
+            }
+        }
+        assertFalse(reread.getMasterSyncAutomatically(USER_ID));
+    }
+
+    @Test
+    public void testRemovedAuthorityStaysRemoved() {
+        final SyncStorageEngine engine = newEngine();
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        setIsSyncable(engine, ACCOUNT_2, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        final int removedId = engine.getCopyOfAuthorityWithSyncStatus(
+                new EndPoint(ACCOUNT_2, AUTHORITY_1, USER_ID)).first.ident;
+
+        engine.doDatabaseCleanup(new Account[] { ACCOUNT_1 }, USER_ID);
+        assertNull(engine.getAuthority(removedId));
+        assertTrue("Removal was journaled", mJournalFile.length() > 0);
+
+        final SyncStorageEngine reread = newEngine();
+        assertEquals(1, reread.getAuthorityCount());
+        assertNull(reread.getAuthority(removedId));
+        assertEquals(AuthorityInfo.NOT_SYNCABLE,
+                reread.getIsSyncable(ACCOUNT_1, USER_ID, AUTHORITY_1));
+    }
+
+    @Test
+    public void testJournalOfOlderGenerationIsIgnored() throws Exception {
+        final SyncStorageEngine engine = newEngine();
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        setIsSyncable(engine, ACCOUNT_1, AUTHORITY_1, AuthorityInfo.NOT_INITIALIZED);
+        final byte[] oldJournal = readFile(mJournalFile);
+        assertTrue(oldJournal.length > 0);
+
+        // Reopening writes accounts.xml in full as a new generation; a change written in full
+        // again after that leaves no journal behind.
+        final SyncStorageEngine newer = newEngine();
+        newer.setAccountInfoJournalEnabled(false);
+        setIsSyncable(newer, ACCOUNT_1, AUTHORITY_1, AuthorityInfo.NOT_SYNCABLE);
+        assertFalse(mJournalFile.exists());
+
+        // Put the journal of the first generation back, as if deleting it had been lost.
+        writeFile(mJournalFile, oldJournal);
+        final SyncStorageEngine reread = newEngine();
+        assertEquals(AuthorityInfo.NOT_SYNCABLE,
+                reread.getIsSyncable(ACCOUNT_1, USER_ID, AUTHORITY_1));
+    }
+
+    private static byte[] readFile(File file) throws Exception {
+        FileInputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return Streams.readFully(in);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void writeFile(File file, byte[] data) throws Exception {
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(file);
+            out.write(data);
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job;
+
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.app.Activity;
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManagerInternal;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.test.RenamingDelegatingContext;
+
+import com.android.server.IoThread;
+import com.android.server.LocalServices;
+import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
+import com.android.server.job.controllers.JobStatus;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the bytes written to disk per persisted job scheduled or cancelled, when apps
+ * schedule and cancel jobs in bursts on top of a few hundred jobs that are already persisted.
+ * Compares rewriting jobs.xml for every change with journaling the changes.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.job.JobStorePerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class JobStorePerfTest {
+    private static final int[] PERSISTED_JOB_COUNTS = { 100, 300, 1000 };
+    private static final int BURSTS = 20;
+    private static final int BURST_SIZE = 10;
+    private static final int FIRST_UID = 10000;
+    private static final int UID_COUNT = 50;
+
+    private Context mTestContext;
+    private ComponentName mComponent;
+    private JobStore mJobStore;
+
+    @Before
+    public void setUp() throws Exception {
+        mTestContext = new RenamingDelegatingContext(InstrumentationRegistry.getContext(),
+                "_perftest_");
+        mComponent = new ComponentName("foo", "bar");
+        final PackageManagerInternal pm = mock(PackageManagerInternal.class);
+        when(pm.getPackageTargetSdkVersion(anyString()))
+                .thenReturn(Build.VERSION_CODES.CUR_DEVELOPMENT);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, pm);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (mJobStore != null) {
+            mJobStore.clear();
+            waitForPendingIo();
+        }
+    }
+
+    private static void waitForPendingIo() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(1);
+        IoThread.getHandler().post(latch::countDown);
+        latch.await(10, TimeUnit.SECONDS);
+    }
+
+    private JobStatus createJobStatus(int jobId, int uid) {
+        final PersistableBundle extras = new PersistableBundle();
+        extras.putString("account", "user" + jobId + "@example.com");
+        final JobInfo job = new JobInfo.Builder(jobId, mComponent)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setMinimumLatency(60000L)
+                .setExtras(extras)
+                .setPersisted(true)
+                .build();
+        return JobStatus.createFromJobInfo(job, uid, null, -1, null);
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    /**
+     * Schedules {@code count} jobs, then replays bursts of schedules and cancels, and reports
+     * the bytes written and the time spent writing per change.
+     */
+    private void runBursts(int count, boolean journal, String prefix) throws Exception {
+        mJobStore = JobStore.initAndGetForTesting(mTestContext, mTestContext.getFilesDir());
+        mJobStore.setJournalEnabled(journal);
+        final Random random = new Random(count);
+        final ArrayList<JobStatus> jobs = new ArrayList<>();
+        synchronized (mJobStore.mLock) {
+            for (int i = 0; i < count; i++) {
+                final JobStatus job = createJobStatus(i, FIRST_UID + i % UID_COUNT);
+                jobs.add(job);
+                mJobStore.add(job);
+            }
+        }
+        waitForPendingIo();
+
+        final JobStorePersistStats before = new JobStorePersistStats(mJobStore.getPersistStats());
+        int nextJobId = count;
+        int changes = 0;
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BURSTS; i++) {
+            // Each change is written out before the next one, as when an app's calls to
+            // schedule and cancel reach the service one binder call at a time.
+            for (int j = 0; j < BURST_SIZE; j++) {
+                synchronized (mJobStore.mLock) {
+                    if (random.nextBoolean()) {
+                        final JobStatus job = createJobStatus(nextJobId++,
+                                FIRST_UID + random.nextInt(UID_COUNT));
+                        jobs.add(job);
+                        mJobStore.add(job);
+                    } else {
+                        mJobStore.remove(jobs.remove(random.nextInt(jobs.size())), true);
+                    }
+                }
+                waitForPendingIo();
+                changes++;
+            }
+        }
+        final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        final JobStorePersistStats after = mJobStore.getPersistStats();
+        report(prefix + "BytesPerChange", count, (after.bytesWritten - before.bytesWritten)
+                / changes);
+        report(prefix + "FullWrites", count, after.countFullWrites - before.countFullWrites);
+        report(prefix + "UsPerChange", count, elapsed / 1000 / changes);
+
+        mJobStore.clear();
+        waitForPendingIo();
+    }
+
+    @Test
+    public void timeBurstsOfScheduleAndCancel() throws Exception {
+        for (int count : PERSISTED_JOB_COUNTS) {
+            runBursts(count, false, "rewrite");
+            runBursts(count, true, "journal");
+        }
+        mJobStore = null;
+    }
+}
@@ -39,6 +39,8 @@ import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.time.Clock;
 import java.time.ZoneOffset;
 import java.util.Arrays;
@@ -140,6 +142,77 @@ public class JobStoreTest {
                 ts.getLatestRunTimeElapsed(), loadedTaskStatus.getLatestRunTimeElapsed());
     }
 
+    @Test
+    public void testJournaledChangesAreReadBack() throws Exception {
+        final JobInfo task1 = new Builder(1, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(2, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task3 = new Builder(3, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        final JobStatus taskStatus3 = JobStatus.createFromJobInfo(task3, SOME_UID, null, -1, null);
+        final int fullWrites = mTaskStoreUnderTest.getPersistStats().countFullWrites;
+        mTaskStoreUnderTest.add(taskStatus1);
+        mTaskStoreUnderTest.add(taskStatus2);
+        waitForPendingIo();
+        mTaskStoreUnderTest.remove(taskStatus1, true);
+        mTaskStoreUnderTest.add(taskStatus3);
+        waitForPendingIo();
+
+        assertEquals("Changes weren't journaled.",
+                fullWrites, mTaskStoreUnderTest.getPersistStats().countFullWrites);
+        final JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 2, jobStatusSet.size());
+        assertTasksEqual(task2, jobStatusSet.get(SOME_UID, 2).getJob());
+        assertTasksEqual(task3, jobStatusSet.get(SOME_UID, 3).getJob());
+    }
+
+    @Test
+    public void testChangesAppendedAfterTornJournalRecordAreReadBack() throws Exception {
+        final JobInfo task1 = new Builder(1, mComponent)
+                .setRequiresCharging(true)
+                .setPersisted(true)
+                .build();
+        final JobInfo task2 = new Builder(2, mComponent)
+                .setRequiresDeviceIdle(true)
+                .setPersisted(true)
+                .build();
+        final JobStatus taskStatus1 = JobStatus.createFromJobInfo(task1, SOME_UID, null, -1, null);
+        final JobStatus taskStatus2 = JobStatus.createFromJobInfo(task2, SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(taskStatus1);
+        waitForPendingIo();
+
+        // Simulate a crash in the middle of an append: a record header with no record behind it.
+        final File journal = new File(mTestContext.getFilesDir(), "system/job/jobs.journal");
+        assertTrue("Change wasn't journaled.", journal.exists());
+        try (FileOutputStream fos = new FileOutputStream(journal, true)) {
+            fos.write(new byte[] { 0, 0, 1, 0, 1, 2, 3 });
+        }
+
+        // Reading the journal back drops the torn record...
+        JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 1, jobStatusSet.size());
+
+        // ...so changes appended afterwards aren't hidden behind it.
+        mTaskStoreUnderTest.add(taskStatus2);
+        waitForPendingIo();
+        jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Incorrect # of persisted tasks.", 2, jobStatusSet.size());
+        assertTasksEqual(task1, jobStatusSet.get(SOME_UID, 1).getJob());
+        assertTasksEqual(task2, jobStatusSet.get(SOME_UID, 2).getJob());
+    }
+
     @Test
     public void testWritingTwoFilesToDisk() throws Exception {
         final JobInfo task1 = new Builder(8, mComponent)
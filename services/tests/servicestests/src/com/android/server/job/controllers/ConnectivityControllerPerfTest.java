@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.server.job.controllers;
+
+import static android.net.NetworkCapabilities.NET_CAPABILITY_INTERNET;
+import static android.net.NetworkCapabilities.NET_CAPABILITY_VALIDATED;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.doNothing;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.mockingDetails;
+import static org.mockito.Mockito.when;
+
+import android.app.Activity;
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.pm.PackageManagerInternal;
+import android.net.ConnectivityManager;
+import android.net.ConnectivityManager.NetworkCallback;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkInfo;
+import android.net.NetworkInfo.DetailedState;
+import android.net.NetworkPolicyManager;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.LocalServices;
+import com.android.server.job.JobSchedulerService;
+import com.android.server.job.JobSchedulerService.Constants;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+
+/**
+ * Measures how long the connectivity controller takes to re-evaluate its jobs when the
+ * default network comes and goes, with 5k to 20k scheduled jobs spread over a few hundred
+ * apps.  Reports the time and the number of ConnectivityManager calls per change.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.job.controllers.ConnectivityControllerPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ConnectivityControllerPerfTest {
+    private static final int[] JOB_COUNTS = { 5000, 10000, 20000 };
+    private static final int UID_COUNT = 300;
+    private static final int FIRST_UID = 10000;
+    private static final int CHANGES = 50;
+
+    private ConnectivityManager mConnManager;
+    private JobSchedulerService mService;
+    private Network mActiveNetwork;
+
+    @Before
+    public void setUp() throws Exception {
+        final PackageManagerInternal pm = mock(PackageManagerInternal.class);
+        when(pm.getPackageTargetSdkVersion(anyString()))
+                .thenReturn(Build.VERSION_CODES.CUR_DEVELOPMENT);
+        LocalServices.removeServiceForTest(PackageManagerInternal.class);
+        LocalServices.addService(PackageManagerInternal.class, pm);
+
+        final Context context = mock(Context.class);
+        mConnManager = mock(ConnectivityManager.class);
+        mService = mock(JobSchedulerService.class);
+        when(context.getSystemServiceName(ConnectivityManager.class))
+                .thenReturn(Context.CONNECTIVITY_SERVICE);
+        when(context.getSystemService(Context.CONNECTIVITY_SERVICE)).thenReturn(mConnManager);
+        when(context.getSystemServiceName(NetworkPolicyManager.class))
+                .thenReturn(Context.NETWORK_POLICY_SERVICE);
+        when(context.getSystemService(Context.NETWORK_POLICY_SERVICE))
+                .thenReturn(mock(NetworkPolicyManager.class));
+        when(mService.getTestableContext()).thenReturn(context);
+        when(mService.getLock()).thenReturn(mService);
+        when(mService.getConstants()).thenReturn(new Constants());
+
+        final NetworkCapabilities caps = new NetworkCapabilities()
+                .addCapability(NET_CAPABILITY_INTERNET)
+                .addCapability(NET_CAPABILITY_VALIDATED);
+        final NetworkInfo info = new NetworkInfo(ConnectivityManager.TYPE_WIFI, 0, null, null);
+        info.setDetailedState(DetailedState.CONNECTED, null, null);
+        when(mConnManager.getActiveNetworkForUid(anyInt()))
+                .thenAnswer(invocation -> mActiveNetwork);
+        when(mConnManager.getNetworkCapabilities(any()))
+                .thenAnswer(invocation -> invocation.getArgument(0) != null ? caps : null);
+        when(mConnManager.getNetworkInfoForUid(any(), anyInt(), anyBoolean()))
+                .thenAnswer(invocation -> invocation.getArgument(0) != null ? info : null);
+    }
+
+    private static JobStatus createJobStatus(int jobId, int uid) {
+        final JobInfo job = new JobInfo.Builder(jobId, new ComponentName("foo", "bar"))
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY).build();
+        return new JobStatus(job, uid, null, -1, 0, 0, null, 0, Long.MAX_VALUE, 0, 0, null, 0);
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timeNetworkChange() {
+        final ArgumentCaptor<NetworkCallback> callback =
+                ArgumentCaptor.forClass(NetworkCallback.class);
+        doNothing().when(mConnManager).registerNetworkCallback(any(), callback.capture());
+        final Network network = new Network(101);
+        final NetworkCapabilities caps = mConnManager.getNetworkCapabilities(network);
+
+        for (int count : JOB_COUNTS) {
+            final ConnectivityController controller = new ConnectivityController(mService);
+            mActiveNetwork = network;
+            for (int i = 0; i < count; i++) {
+                controller.maybeStartTrackingJobLocked(
+                        createJobStatus(i, FIRST_UID + i % UID_COUNT), null);
+            }
+            clearInvocations(mConnManager);
+
+            long elapsed = 0;
+            for (int i = 0; i < CHANGES; i++) {
+                final long start = SystemClock.elapsedRealtimeNanos();
+                if (i % 2 == 0) {
+                    mActiveNetwork = null;
+                    callback.getValue().onLost(network);
+                } else {
+                    mActiveNetwork = network;
+                    callback.getValue().onCapabilitiesChanged(network, caps);
+                }
+                elapsed += SystemClock.elapsedRealtimeNanos() - start;
+            }
+            report("usPerChange", count, elapsed / 1000 / CHANGES);
+            report("connectivityCallsPerChange", count,
+                    mockingDetails(mConnManager).getInvocations().size() / CHANGES);
+        }
+    }
+}
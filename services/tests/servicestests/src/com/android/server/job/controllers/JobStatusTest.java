@@ -17,6 +17,10 @@
 package com.android.server.job.controllers;
 
 import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 
 import android.app.job.JobInfo;
 import android.content.ComponentName;
@@ -24,6 +28,7 @@ import android.os.SystemClock;
 import android.support.test.runner.AndroidJUnit4;
 
 import com.android.server.job.JobSchedulerService;
+import com.android.server.job.StateChangedListener;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -66,6 +71,27 @@ public class JobStatusTest {
         assertEquals(1, createJobStatus(now - 2000, now).getFractionRunTime(), DELTA);
     }
 
+    @Test
+    public void testReadinessListener() throws Exception {
+        final JobStatus job = createJobStatus(0, Long.MAX_VALUE);
+        final StateChangedListener listener = mock(StateChangedListener.class);
+
+        job.setReadinessListener(listener);
+        job.setConnectivityConstraintSatisfied(true);
+        // Unchanged constraints aren't reported.
+        job.setConnectivityConstraintSatisfied(true);
+        verify(listener, times(1)).onJobReadinessChangedLocked(job);
+
+        job.setReadinessListener(null);
+        job.setConnectivityConstraintSatisfied(false);
+        verify(listener, times(1)).onJobReadinessChangedLocked(job);
+
+        final StateChangedListener other = mock(StateChangedListener.class);
+        job.setReadinessListener(other);
+        job.setChargingConstraintSatisfied(false);
+        verify(other, never()).onJobReadinessChangedLocked(job);
+    }
+
     private static JobStatus createJobStatus(long earliestRunTimeElapsedMillis,
             long latestRunTimeElapsedMillis) {
         final JobInfo job = new JobInfo.Builder(101, new ComponentName("foo", "bar"))
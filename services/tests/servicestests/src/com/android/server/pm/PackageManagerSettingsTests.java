@@ -156,6 +156,44 @@ public class PackageManagerSettingsTests {
         assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
     }
 
+    @Test
+    public void testWritePendingPackageRestrictions_journalsChangedPackages() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        final File journal = new File(context.getFilesDir(),
+                "system/users/0/package-restrictions.journal");
+        final Settings settingsUnderTest = new Settings(context.getFilesDir(), null, new Object());
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        settingsUnderTest.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        settingsUnderTest.writePackageRestrictionsLPr(0);
+
+        settingsUnderTest.mPackages.get(PACKAGE_NAME_1).setEnabled(
+                COMPONENT_ENABLED_STATE_DISABLED_USER, 0, "caller");
+        settingsUnderTest.noteUserStateChangedLPw(0, PACKAGE_NAME_1);
+        settingsUnderTest.writePendingPackageRestrictionsLPr(0);
+        assertThat(journal.exists(), is(true));
+
+        // Reading applies the journal on top of the restrictions file.
+        final Settings readSettings = new Settings(context.getFilesDir(), null, new Object());
+        readSettings.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        readSettings.mPackages.put(PACKAGE_NAME_2, createPackageSetting(PACKAGE_NAME_2));
+        readSettings.readPackageRestrictionsLPr(0);
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_1).getEnabled(0),
+                is(COMPONENT_ENABLED_STATE_DISABLED_USER));
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_2).getEnabled(0),
+                is(COMPONENT_ENABLED_STATE_DEFAULT));
+
+        // Any other change rewrites the file, which makes the journal obsolete.
+        readSettings.noteUserStateChangedLPw(0, PACKAGE_NAME_2);
+        readSettings.noteUserStateChangedLPw(0, null);
+        readSettings.writePendingPackageRestrictionsLPr(0);
+        assertThat(journal.exists(), is(false));
+
+        readSettings.mPackages.put(PACKAGE_NAME_1, createPackageSetting(PACKAGE_NAME_1));
+        readSettings.readPackageRestrictionsLPr(0);
+        assertThat(readSettings.mPackages.get(PACKAGE_NAME_1).getEnabled(0),
+                is(COMPONENT_ENABLED_STATE_DISABLED_USER));
+    }
+
     private PersistableBundle getPersistableBundle(String packageName, long longVal,
             double doubleVal, boolean boolVal, String textVal) {
         final PersistableBundle bundle = new PersistableBundle();
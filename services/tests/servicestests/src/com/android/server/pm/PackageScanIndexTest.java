@@ -0,0 +1,148 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.pm.PackageParser;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class PackageScanIndexTest {
+    private static final String ABIS = "28;armeabi-v7a;arm64-v8a";
+    private static final String BUILD = "build/1";
+
+    private File mDir;
+    private File mIndexFile;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "PackageScanIndexTest");
+        mDir.mkdirs();
+        mIndexFile = new File(mDir, "index");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    private File writeApk(String name, int size) throws IOException {
+        final File apk = new File(mDir, name);
+        try (FileOutputStream out = new FileOutputStream(apk)) {
+            out.write(new byte[size]);
+        }
+        apk.setLastModified(1000000L);
+        return apk;
+    }
+
+    private PackageScanIndex reload(String abis, String build) {
+        final PackageScanIndex index = new PackageScanIndex(mIndexFile, abis, build);
+        index.read();
+        return index;
+    }
+
+    @Test
+    public void testRecordedEntriesSurviveReload() throws Exception {
+        final File apk = writeApk("a.apk", 16);
+        PackageScanIndex index = reload(ABIS, BUILD);
+        assertNull(index.getUnchanged(apk));
+        index.record(apk, 0, null, "arm64-v8a", "armeabi-v7a");
+        index.write();
+
+        index = reload(ABIS, BUILD);
+        final PackageScanIndex.Entry entry = index.getUnchanged(apk);
+        assertNotNull(entry);
+        assertEquals("arm64-v8a", entry.primaryCpuAbi);
+        assertEquals("armeabi-v7a", entry.secondaryCpuAbi);
+        assertTrue(entry.matchesAbiOverride(null));
+        assertFalse(entry.matchesAbiOverride("armeabi-v7a"));
+    }
+
+    @Test
+    public void testChangedCodeIsNotReturned() throws Exception {
+        final File apk = writeApk("a.apk", 16);
+        final File other = writeApk("b.apk", 16);
+        PackageScanIndex index = reload(ABIS, BUILD);
+        index.record(apk, 0, null, null, null);
+        index.record(other, 0, null, null, null);
+        index.write();
+
+        writeApk("a.apk", 32);
+        other.setLastModified(2000000L);
+        index = reload(ABIS, BUILD);
+        assertNull(index.getUnchanged(apk));
+        assertNull(index.getUnchanged(other));
+    }
+
+    @Test
+    public void testClusterPackageSumsApks() throws Exception {
+        final File cluster = new File(mDir, "cluster");
+        cluster.mkdirs();
+        writeApk("cluster/base.apk", 16);
+        writeApk("cluster/split.apk", 16);
+        PackageScanIndex index = reload(ABIS, BUILD);
+        index.record(cluster, 0, null, null, null);
+        index.write();
+
+        assertNotNull(reload(ABIS, BUILD).getUnchanged(cluster));
+        writeApk("cluster/split.apk", 8);
+        assertNull(reload(ABIS, BUILD).getUnchanged(cluster));
+    }
+
+    @Test
+    public void testSystemEntriesOnlyTrustedOnSameBuild() throws Exception {
+        final File systemApk = writeApk("system.apk", 16);
+        final File dataApk = writeApk("data.apk", 16);
+        final PackageScanIndex index = reload(ABIS, BUILD);
+        index.record(systemApk, PackageParser.PARSE_IS_SYSTEM_DIR, null, null, null);
+        index.record(dataApk, 0, null, null, null);
+        index.write();
+
+        final PackageScanIndex upgraded = reload(ABIS, "build/2");
+        assertNull(upgraded.getUnchanged(systemApk));
+        assertNotNull(upgraded.getUnchanged(dataApk));
+    }
+
+    @Test
+    public void testAbiChangeDropsEverything() throws Exception {
+        final File dataApk = writeApk("data.apk", 16);
+        final PackageScanIndex index = reload(ABIS, BUILD);
+        index.record(dataApk, 0, null, "arm64-v8a", null);
+        index.write();
+
+        assertNull(reload("29;armeabi-v7a;arm64-v8a", BUILD).getUnchanged(dataApk));
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import android.app.Activity;
+import android.content.Context;
+import android.content.pm.PackageParser;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.DisplayMetrics;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+
+/**
+ * Measures the parallel part of a boot scan over images of 100, 300 and 600 packages: parsing
+ * every package, and collecting the certificates of the ones the boot scan index doesn't know.
+ * Results are reported through instrumentation status as milliseconds per scan.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.pm.ParallelPackageParserPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ParallelPackageParserPerfTest {
+    private static final int[] PACKAGE_COUNTS = { 100, 300, 600 };
+
+    private File mDir;
+    private File mApk;
+    private DisplayMetrics mMetrics;
+    private PackageParser.Callback mCallback;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getContext();
+        mDir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "ParallelPackageParserPerfTest");
+        mDir.mkdirs();
+        mApk = new File(context.getPackageCodePath());
+        mMetrics = new DisplayMetrics();
+        mMetrics.setToDefaults();
+        mCallback = new PackageParser.CallbackImpl(context.getPackageManager());
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    private static void report(String name, int count, long elapsedMillis) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count + "_ms", elapsedMillis);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    /** Scans the test APK {@code count} times, as a boot scan would scan one directory. */
+    private long scan(int count, PackageScanIndex index) {
+        final long start = SystemClock.uptimeMillis();
+        try (ParallelPackageParser parser = new ParallelPackageParser(
+                null, false, mMetrics, null, mCallback, index)) {
+            for (int i = 0; i < count; i++) {
+                parser.submit(mApk, 0);
+            }
+            for (int i = 0; i < count; i++) {
+                final ParallelPackageParser.ParseResult result = parser.take();
+                Assert.assertNull(result.throwable);
+                if (index != null && !result.certificatesCollected) {
+                    // Stands in for the settings lookup the serial scan does for unchanged code.
+                    Assert.assertNotNull(index.getUnchanged(result.scanFile));
+                }
+            }
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    /** Parses and collects certificates on a single thread, as scanning used to for the latter. */
+    private long scanSerially(int count) throws Exception {
+        final long start = SystemClock.uptimeMillis();
+        for (int i = 0; i < count; i++) {
+            final PackageParser pp = new PackageParser();
+            pp.setDisplayMetrics(mMetrics);
+            pp.setCallback(mCallback);
+            final PackageParser.Package pkg = pp.parsePackage(mApk, 0, false /* useCaches */);
+            PackageParser.collectCertificates(pkg, false /* skipVerify */);
+        }
+        return SystemClock.uptimeMillis() - start;
+    }
+
+    @Test
+    public void timeBootScan() throws Exception {
+        final PackageScanIndex changed = new PackageScanIndex(new File(mDir, "empty"));
+        changed.read();
+        final File indexFile = new File(mDir, "index");
+        final PackageScanIndex writer = new PackageScanIndex(indexFile);
+        writer.record(mApk, 0, null, null, null);
+        writer.write();
+        final PackageScanIndex unchanged = new PackageScanIndex(indexFile);
+        unchanged.read();
+
+        // Warm up.
+        scan(PACKAGE_COUNTS[0], changed);
+
+        for (int count : PACKAGE_COUNTS) {
+            report("serial", count, scanSerially(count));
+            report("parallelAllChanged", count, scan(count, changed));
+            report("parallelUnchanged", count, scan(count, unchanged));
+        }
+    }
+}
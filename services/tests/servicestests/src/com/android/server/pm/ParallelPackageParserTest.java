@@ -17,6 +17,8 @@
 package com.android.server.pm;
 
 import android.content.pm.PackageParser;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.Log;
 
@@ -27,6 +29,9 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
 
@@ -66,10 +71,63 @@ public class ParallelPackageParserTest {
         }
     }
 
+    @Test(timeout = 5000)
+    public void testCollectsCertificatesOfChangedPackagesOnly() throws IOException {
+        final File dir = new File(InstrumentationRegistry.getTargetContext().getFilesDir(),
+                "ParallelPackageParserTest");
+        dir.mkdirs();
+        try {
+            final File unchanged = new File(dir, "unchanged.apk");
+            final File changed = new File(dir, "changed.apk");
+            for (File file : new File[] { unchanged, changed }) {
+                try (FileOutputStream out = new FileOutputStream(file)) {
+                    out.write(1);
+                }
+            }
+            final PackageScanIndex index = new PackageScanIndex(new File(dir, "index"));
+            index.record(unchanged, 0, null, null, null);
+            index.write();
+            index.read();
+
+            final Set<File> collected = Collections.synchronizedSet(new HashSet<>());
+            final ParallelPackageParser parser = new TestParallelPackageParser(index) {
+                @Override
+                protected PackageParser.Package parsePackage(PackageParser packageParser,
+                        File scanFile, int parseFlags) {
+                    final PackageParser.Package pkg = new PackageParser.Package(scanFile.getName());
+                    pkg.codePath = scanFile.getAbsolutePath();
+                    return pkg;
+                }
+
+                @Override
+                protected boolean collectCertificates(PackageParser.Package pkg,
+                        int parseFlags) {
+                    collected.add(new File(pkg.codePath));
+                    return true;
+                }
+            };
+            parser.submit(unchanged, 0);
+            parser.submit(changed, 0);
+            for (int i = 0; i < 2; i++) {
+                final ParallelPackageParser.ParseResult result = parser.take();
+                Assert.assertEquals(result.scanFile.equals(changed),
+                        result.certificatesCollected);
+            }
+            parser.close();
+            Assert.assertEquals(Collections.singleton(changed), collected);
+        } finally {
+            FileUtils.deleteContentsAndDir(dir);
+        }
+    }
+
     class TestParallelPackageParser extends ParallelPackageParser {
 
         TestParallelPackageParser() {
-            super(null, false, null, null, null);
+            this(null);
+        }
+
+        TestParallelPackageParser(PackageScanIndex index) {
+            super(null, false, null, null, null, index);
         }
 
         @Override
@@ -0,0 +1,125 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.pm;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+
+import android.content.Intent;
+import android.content.pm.ActivityInfo;
+import android.content.pm.PackageManager;
+import android.content.pm.ResolveInfo;
+import android.net.Uri;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.List;
+
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class QueryResultCacheTest {
+
+    private static QueryResultCache.IntentKey key(Intent intent, int userId) {
+        return new QueryResultCache.IntentKey(intent, null, 0, userId, 10001, false, true);
+    }
+
+    @Test
+    public void testIntentKeyMatchesOnFilterFields() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        final Intent same = new Intent(Intent.ACTION_VIEW, Uri.parse("http://example.com"));
+        assertEquals(key(intent, 0), key(same, 0));
+        assertEquals(key(intent, 0).hashCode(), key(same, 0).hashCode());
+
+        assertNotEquals(key(intent, 0), key(intent, 10));
+        assertNotEquals(key(intent, 0),
+                key(new Intent(same).addCategory(Intent.CATEGORY_BROWSABLE), 0));
+        assertNotEquals(key(intent, 0),
+                key(new Intent(same).addFlags(Intent.FLAG_EXCLUDE_STOPPED_PACKAGES), 0));
+    }
+
+    @Test
+    public void testIntentKeyIsNotAffectedByLaterChanges() {
+        final Intent intent = new Intent(Intent.ACTION_VIEW);
+        final QueryResultCache.IntentKey key = key(intent, 0);
+        intent.setAction(Intent.ACTION_SEND);
+        assertEquals(key, key(new Intent(Intent.ACTION_VIEW), 0));
+    }
+
+    @Test
+    public void testResultsCachedWhileUserLockedAreNotServedOnceUnlocked() {
+        // PackageManagerService keys on the flags as updated for the user's lock state.
+        final int lockedFlags = PackageManager.MATCH_DIRECT_BOOT_AWARE;
+        final int unlockedFlags = PackageManager.MATCH_DIRECT_BOOT_AWARE
+                | PackageManager.MATCH_DIRECT_BOOT_UNAWARE;
+
+        final QueryResultCache<QueryResultCache.PackageKey, String> packages =
+                new QueryResultCache<>("test", 4);
+        packages.put(new QueryResultCache.PackageKey("com.example", lockedFlags, 0, 10001),
+                "locked", packages.getGeneration());
+        assertNull(packages.get(
+                new QueryResultCache.PackageKey("com.example", unlockedFlags, 0, 10001)));
+        assertEquals("locked", packages.get(
+                new QueryResultCache.PackageKey("com.example", lockedFlags, 0, 10001)));
+
+        final Intent intent = new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_HOME);
+        final QueryResultCache<QueryResultCache.IntentKey, String> intents =
+                new QueryResultCache<>("test", 4);
+        intents.put(new QueryResultCache.IntentKey(intent, null, lockedFlags, 0, 10001, false,
+                true), "locked", intents.getGeneration());
+        assertNull(intents.get(new QueryResultCache.IntentKey(intent, null, unlockedFlags, 0,
+                10001, false, true)));
+    }
+
+    @Test
+    public void testInvalidateDropsEntries() {
+        final QueryResultCache<String, String> cache = new QueryResultCache<>("test", 4);
+        cache.put("a", "1", cache.getGeneration());
+        assertEquals("1", cache.get("a"));
+        cache.invalidate();
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testPutFromOlderGenerationIsIgnored() {
+        final QueryResultCache<String, String> cache = new QueryResultCache<>("test", 4);
+        final int generation = cache.getGeneration();
+        // State changed while the result was being computed.
+        cache.invalidate();
+        cache.put("a", "stale", generation);
+        assertNull(cache.get("a"));
+    }
+
+    @Test
+    public void testCopyResolveInfos() {
+        final ResolveInfo ri = new ResolveInfo();
+        ri.activityInfo = new ActivityInfo();
+        ri.activityInfo.name = "Activity";
+        ri.priority = 5;
+        final List<ResolveInfo> copy = QueryResultCache.copyResolveInfos(Arrays.asList(ri));
+        assertEquals(1, copy.size());
+        assertNotSame(ri, copy.get(0));
+        assertNotSame(ri.activityInfo, copy.get(0).activityInfo);
+        assertEquals(5, copy.get(0).priority);
+        assertEquals("Activity", copy.get(0).activityInfo.name);
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.app.usage.UsageStatsManager;
+import android.os.Bundle;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Measures queryUsageStats() and queryEvents() over a month of daily stats, comparing stats
+ * files that hold their events, as text XML, with binary stats files and event logs. Also
+ * checks that both return the same events.
+ *
+ * $ atest FrameworksServicesTests:com.android.server.usage.UsageStatsDatabasePerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class UsageStatsDatabasePerfTest {
+    private static final int[] EVENTS_PER_DAY = { 500, 2000, 5000 };
+    private static final int DAYS = 30;
+    private static final int PACKAGE_COUNT = 100;
+    private static final int QUERIES = 5;
+    private static final long DAY = UnixCalendar.DAY_IN_MILLIS;
+    private static final long BEGIN_TIME = 1500000000000L;
+
+    private File mTextDir;
+    private File mBinaryDir;
+
+    @Before
+    public void setUp() {
+        final File root = InstrumentationRegistry.getContext().getCacheDir();
+        mTextDir = new File(root, "usagestats_perftest_text");
+        mBinaryDir = new File(root, "usagestats_perftest_binary");
+        deleteRecursively(mTextDir);
+        deleteRecursively(mBinaryDir);
+    }
+
+    @After
+    public void tearDown() {
+        deleteRecursively(mTextDir);
+        deleteRecursively(mBinaryDir);
+    }
+
+    private static void deleteRecursively(File dir) {
+        FileUtils.deleteContents(dir);
+        dir.delete();
+    }
+
+    private static IntervalStats createDailyStats(int day, int eventCount, Random random) {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME + day * DAY;
+        stats.endTime = stats.beginTime + 1;
+        long time = stats.beginTime;
+        for (int i = 0; i < eventCount; i++) {
+            time += 1 + random.nextInt((int) (DAY / eventCount));
+            final String pkg = "com.example.package" + random.nextInt(PACKAGE_COUNT);
+            final int type = i % 2 == 0 ? UsageEvents.Event.MOVE_TO_FOREGROUND
+                    : UsageEvents.Event.MOVE_TO_BACKGROUND;
+            final UsageEvents.Event event = stats.buildEvent(pkg, pkg + ".MainActivity");
+            event.mTimeStamp = time;
+            event.mEventType = type;
+            stats.addEvent(event);
+            stats.update(pkg, time, type);
+        }
+        return stats;
+    }
+
+    /** Writes each day as a text XML file holding its events, as before event logs. */
+    private static UsageStatsDatabase createTextDatabase(File dir, List<IntervalStats> days)
+            throws IOException {
+        final File dailyDir = new File(dir, "daily");
+        dailyDir.mkdirs();
+        for (IntervalStats stats : days) {
+            try (FileOutputStream out = new FileOutputStream(
+                    new File(dailyDir, Long.toString(stats.beginTime)))) {
+                UsageStatsXml.write(out, stats);
+            }
+        }
+        final UsageStatsDatabase database = new UsageStatsDatabase(dir);
+        database.init(BEGIN_TIME + (DAYS + 1) * DAY);
+        return database;
+    }
+
+    private static UsageStatsDatabase createBinaryDatabase(File dir, List<IntervalStats> days)
+            throws IOException {
+        final UsageStatsDatabase database = new UsageStatsDatabase(dir);
+        database.init(BEGIN_TIME + (DAYS + 1) * DAY);
+        for (IntervalStats stats : days) {
+            database.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+        }
+        return database;
+    }
+
+    private static long sizeOf(File dir) {
+        long size = 0;
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                size += f.isDirectory() ? sizeOf(f) : f.length();
+            }
+        }
+        return size;
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private static long timeQueryUsageStats(UsageStatsDatabase database) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < QUERIES; i++) {
+            database.queryUsageStats(UsageStatsManager.INTERVAL_DAILY, BEGIN_TIME,
+                    BEGIN_TIME + DAYS * DAY, (IntervalStats stats, boolean mutable,
+                            List<UsageStats> accumulatedResult) -> {
+                        accumulatedResult.addAll(stats.packageStats.values());
+                    });
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / QUERIES;
+    }
+
+    private static long timeQueryEvents(UsageStatsDatabase database, long beginTime,
+            long endTime) {
+        final long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < QUERIES; i++) {
+            database.queryEvents(beginTime, endTime, (event, accumulatedResult) -> {
+                accumulatedResult.add(event);
+            });
+        }
+        return (SystemClock.elapsedRealtimeNanos() - start) / QUERIES;
+    }
+
+    @Test
+    public void timeQueriesOverAMonth() throws Exception {
+        for (int count : EVENTS_PER_DAY) {
+            final Random random = new Random(count);
+            final ArrayList<IntervalStats> days = new ArrayList<>();
+            for (int day = 0; day < DAYS; day++) {
+                days.add(createDailyStats(day, count, random));
+            }
+            final UsageStatsDatabase text = createTextDatabase(mTextDir, days);
+            final UsageStatsDatabase binary = createBinaryDatabase(mBinaryDir, days);
+
+            // Both return the same events, in the same order.
+            final long beginTime = BEGIN_TIME + DAY / 2;
+            final long endTime = BEGIN_TIME + (DAYS - 1) * DAY;
+            final List<UsageEvents.Event> expected = text.queryEvents(beginTime, endTime,
+                    (event, accumulatedResult) -> accumulatedResult.add(event));
+            final List<UsageEvents.Event> actual = binary.queryEvents(beginTime, endTime,
+                    (event, accumulatedResult) -> accumulatedResult.add(event));
+            assertEquals(expected.size(), actual.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals(expected.get(i).mTimeStamp, actual.get(i).mTimeStamp);
+                assertEquals(expected.get(i).mPackage, actual.get(i).mPackage);
+                assertEquals(expected.get(i).mClass, actual.get(i).mClass);
+                assertEquals(expected.get(i).mEventType, actual.get(i).mEventType);
+            }
+
+            report("textBytes", count, sizeOf(mTextDir));
+            report("binaryBytes", count, sizeOf(mBinaryDir));
+            report("textQueryUsageStatsUs", count, timeQueryUsageStats(text) / 1000);
+            report("binaryQueryUsageStatsUs", count, timeQueryUsageStats(binary) / 1000);
+            report("textQueryEventsMonthUs", count,
+                    timeQueryEvents(text, BEGIN_TIME, BEGIN_TIME + DAYS * DAY) / 1000);
+            report("binaryQueryEventsMonthUs", count,
+                    timeQueryEvents(binary, BEGIN_TIME, BEGIN_TIME + DAYS * DAY) / 1000);
+            // An hour at the start of a day, as when looking at recent events.
+            final long hourBegin = BEGIN_TIME + (DAYS - 1) * DAY;
+            report("textQueryEventsHourUs", count,
+                    timeQueryEvents(text, hourBegin, hourBegin + DAY / 24) / 1000);
+            report("binaryQueryEventsHourUs", count,
+                    timeQueryEvents(binary, hourBegin, hourBegin + DAY / 24) / 1000);
+
+            deleteRecursively(mTextDir);
+            deleteRecursively(mBinaryDir);
+        }
+    }
+}
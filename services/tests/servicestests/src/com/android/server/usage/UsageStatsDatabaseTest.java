@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStatsManager;
+import android.os.FileUtils;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * $ atest FrameworksServicesTests:com.android.server.usage.UsageStatsDatabaseTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class UsageStatsDatabaseTest {
+    private static final long DAY = UnixCalendar.DAY_IN_MILLIS;
+    private static final long BEGIN_TIME = 1500000000000L;
+    private static final String PACKAGE = "com.example.package";
+
+    private File mDir;
+    private UsageStatsDatabase mDatabase;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "usagestats_test");
+        FileUtils.deleteContents(mDir);
+        mDatabase = new UsageStatsDatabase(mDir);
+        mDatabase.init(BEGIN_TIME + DAY);
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    private static void addEvent(IntervalStats stats, long time) {
+        final UsageEvents.Event event = stats.buildEvent(PACKAGE, PACKAGE + ".MainActivity");
+        event.mTimeStamp = time;
+        event.mEventType = UsageEvents.Event.MOVE_TO_FOREGROUND;
+        stats.addEvent(event);
+        stats.update(PACKAGE, time, UsageEvents.Event.MOVE_TO_FOREGROUND);
+    }
+
+    private List<UsageEvents.Event> queryAllEvents() {
+        return mDatabase.queryEvents(0, Long.MAX_VALUE,
+                (event, accumulatedResult) -> accumulatedResult.add(event));
+    }
+
+    @Test
+    public void testEventLogFollowsTimeChange() throws Exception {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.endTime = BEGIN_TIME + 1;
+        addEvent(stats, BEGIN_TIME + 1000);
+        addEvent(stats, BEGIN_TIME + 2000);
+        mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, stats);
+
+        final long timeDiff = -60 * 60 * 1000;
+        mDatabase.onTimeChanged(timeDiff);
+
+        // The events moved along with the interval...
+        List<UsageEvents.Event> events = queryAllEvents();
+        assertEquals(2, events.size());
+        assertEquals(BEGIN_TIME + timeDiff + 1000, events.get(0).mTimeStamp);
+        assertEquals(BEGIN_TIME + timeDiff + 2000, events.get(1).mTimeStamp);
+
+        // ...and the ones appended to the renamed log afterwards read back as written.
+        final IntervalStats latest = mDatabase.getLatestUsageStats(
+                UsageStatsManager.INTERVAL_DAILY);
+        assertEquals(BEGIN_TIME + timeDiff, latest.beginTime);
+        addEvent(latest, BEGIN_TIME + timeDiff + 3000);
+        mDatabase.putUsageStats(UsageStatsManager.INTERVAL_DAILY, latest);
+
+        events = queryAllEvents();
+        assertEquals(3, events.size());
+        assertEquals(BEGIN_TIME + timeDiff + 1000, events.get(0).mTimeStamp);
+        assertEquals(BEGIN_TIME + timeDiff + 2000, events.get(1).mTimeStamp);
+        assertEquals(BEGIN_TIME + timeDiff + 3000, events.get(2).mTimeStamp);
+    }
+}
@@ -290,6 +290,8 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
             }
         }
         mService.setAudioManager(mAudioManager);
+        // Most tests post updates right after the notification; don't hold them back.
+        mService.setUpdateCoalesceWindowMs(0);
 
         // Tests call directly into the Binder.
         mBinderService = mService.getBinderService();
@@ -681,6 +683,69 @@ public class NotificationManagerServiceTest extends UiServiceTestCase {
         assertEquals(NotificationStats.DISMISSAL_OTHER, captor.getValue().getDismissalSurface());
     }
 
+    @Test
+    public void testUpdateEnqueuedBeforePost_replacesPendingRecord() throws Exception {
+        final Notification first = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle("first")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .build();
+        final Notification second = new Notification.Builder(mContext, TEST_CHANNEL_ID)
+                .setContentTitle("second")
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .build();
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0, first, 0);
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0, second, 0);
+        waitForIdle();
+
+        StatusBarNotification[] notifs = mBinderService.getActiveNotifications(PKG);
+        assertEquals(1, notifs.length);
+        assertEquals("second",
+                notifs[0].getNotification().extras.getCharSequence(Notification.EXTRA_TITLE));
+        assertEquals(0, mService.mEnqueuedNotifications.size());
+        verify(mUsageStats, times(1)).registerCoalescedByApp(any());
+        verify(mListeners, times(1)).notifyPostedLocked(any(), any());
+    }
+
+    @Test
+    public void testUpdateWithinCoalesceWindow_isHeldBack() throws Exception {
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        waitForIdle();
+        mService.setUpdateCoalesceWindowMs(60 * 60 * 1000);
+
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        waitForIdle();
+
+        assertEquals(1, mService.mEnqueuedNotifications.size());
+        verify(mUsageStats, times(1)).registerCoalescedByApp(any());
+        verify(mListeners, times(1)).notifyPostedLocked(any(), any());
+    }
+
+    @Test
+    public void testCoalescedUpdate_keepsFirstEnqueueTime() throws Exception {
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        waitForIdle();
+        mService.setUpdateCoalesceWindowMs(60 * 60 * 1000);
+
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        waitForIdle();
+        final long firstEnqueueTime = mService.mEnqueuedNotifications.get(0)
+                .getEnqueueElapsedTimeMs();
+        Thread.sleep(10);
+        mBinderService.enqueueNotificationWithTag(PKG, "opPkg", "tag", 0,
+                generateNotificationRecord(null).getNotification(), 0);
+        waitForIdle();
+
+        assertEquals(1, mService.mEnqueuedNotifications.size());
+        assertEquals(firstEnqueueTime,
+                mService.mEnqueuedNotifications.get(0).getEnqueueElapsedTimeMs());
+    }
+
     @Test
     public void testCancelNotificationsFromListenerImmediatelyAfterEnqueue() throws Exception {
         NotificationRecord r = generateNotificationRecord(null);
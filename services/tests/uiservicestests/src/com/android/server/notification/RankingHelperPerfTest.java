@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.notification;
+
+import static android.app.NotificationManager.IMPORTANCE_DEFAULT;
+import static android.app.NotificationManager.IMPORTANCE_HIGH;
+import static android.app.NotificationManager.IMPORTANCE_LOW;
+
+import static org.junit.Assert.assertEquals;
+
+import android.app.Activity;
+import android.app.Notification;
+import android.app.NotificationChannel;
+import android.content.pm.PackageManager;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.service.notification.StatusBarNotification;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.server.UiServiceTestCase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+/**
+ * Replays posts, updates and cancels of notifications spread over many groups, comparing the
+ * time taken to bring the ranking up to date by sorting the whole list, as every post used to,
+ * with {@link RankingHelper#reposition}. Also checks that both give the same order.
+ *
+ * $ atest FrameworksUiServicesTests:com.android.server.notification.RankingHelperPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class RankingHelperPerfTest extends UiServiceTestCase {
+    private static final int[] NOTIFICATION_COUNTS = { 500, 1000, 2000 };
+    private static final int GROUP_COUNT = 100;
+    private static final int EVENTS = 500;
+    /** One in this many events cancels a notification instead of posting one. */
+    private static final int CANCEL_RATIO = 5;
+    private static final int[] IMPORTANCES = { IMPORTANCE_LOW, IMPORTANCE_DEFAULT,
+            IMPORTANCE_HIGH };
+
+    @Mock NotificationUsageStats mUsageStats;
+    @Mock RankingHandler mHandler;
+    @Mock PackageManager mPm;
+    @Mock ZenModeHelper mZenModeHelper;
+
+    private long mNextWhen;
+
+    @Before
+    public void setUp() {
+        mNextWhen = 1000;
+    }
+
+    private RankingHelper createHelper() {
+        return new RankingHelper(getContext(), mPm, mHandler, mZenModeHelper, mUsageStats,
+                new String[0]);
+    }
+
+    /** Creates two copies of a posting of notification {@code id}, one for each list. */
+    private NotificationRecord[] post(int id, Random random) {
+        final int group = random.nextInt(GROUP_COUNT + GROUP_COUNT / 4);
+        final NotificationChannel channel = new NotificationChannel("channel" + group % 3,
+                "name", IMPORTANCES[group % 3]);
+        final Notification.Builder builder = new Notification.Builder(getContext(),
+                channel.getId())
+                .setSmallIcon(android.R.drawable.sym_def_app_icon)
+                .setWhen(mNextWhen++)
+                .setPriority(random.nextInt(5) - 2);
+        // Some notifications are not in a group, as for apps that don't group theirs.
+        if (group < GROUP_COUNT) {
+            builder.setGroup("group" + group);
+            if (random.nextInt(3) == 0) {
+                builder.setSortKey(Integer.toString(random.nextInt(10)));
+            }
+        }
+        final Notification n = builder.build();
+        final NotificationRecord[] records = new NotificationRecord[2];
+        for (int i = 0; i < records.length; i++) {
+            final StatusBarNotification sbn = new StatusBarNotification(PKG_O, PKG_O, id, null,
+                    0, 0, n.clone(), UserHandle.SYSTEM, null, System.currentTimeMillis());
+            records[i] = new NotificationRecord(getContext(), sbn, channel);
+        }
+        return records;
+    }
+
+    private static int indexOfKey(ArrayList<NotificationRecord> list, String key) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i).getKey().equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static void assertSameOrder(ArrayList<NotificationRecord> expected,
+            ArrayList<NotificationRecord> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getKey(), actual.get(i).getKey());
+        }
+    }
+
+    private static void report(String name, int count, long value) {
+        final Bundle status = new Bundle();
+        status.putLong(name + "_" + count, value);
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    @Test
+    public void timePostsAndCancels() {
+        for (int count : NOTIFICATION_COUNTS) {
+            final Random random = new Random(count);
+            final RankingHelper sortHelper = createHelper();
+            final RankingHelper repositionHelper = createHelper();
+            final ArrayList<NotificationRecord> sorted = new ArrayList<>();
+            final ArrayList<NotificationRecord> repositioned = new ArrayList<>();
+            for (int id = 0; id < count; id++) {
+                final NotificationRecord[] records = post(id, random);
+                sorted.add(records[0]);
+                repositioned.add(records[1]);
+            }
+            sortHelper.sort(sorted);
+            repositionHelper.sort(repositioned);
+            assertSameOrder(sorted, repositioned);
+
+            long sortNanos = 0;
+            long repositionNanos = 0;
+            int posts = 0;
+            int nextId = count;
+            for (int i = 0; i < EVENTS; i++) {
+                if (i % CANCEL_RATIO == CANCEL_RATIO - 1) {
+                    final String key = sorted.get(random.nextInt(sorted.size())).getKey();
+                    // NotificationManagerService doesn't sort the list again after a cancel.
+                    sorted.remove(indexOfKey(sorted, key));
+                    final int index = indexOfKey(repositioned, key);
+                    final NotificationRecord removed = repositioned.remove(index);
+                    long start = SystemClock.elapsedRealtimeNanos();
+                    repositionHelper.remove(repositioned, removed);
+                    repositionNanos += SystemClock.elapsedRealtimeNanos() - start;
+                    continue;
+                }
+
+                // Half of the posts update a notification that is already there.
+                final boolean update = random.nextBoolean();
+                final int id = update
+                        ? sorted.get(random.nextInt(sorted.size())).sbn.getId() : nextId++;
+                final NotificationRecord[] records = post(id, random);
+                final int sortedIndex = indexOfKey(sorted, records[0].getKey());
+                final int repositionedIndex = indexOfKey(repositioned, records[1].getKey());
+
+                long start = SystemClock.elapsedRealtimeNanos();
+                if (sortedIndex < 0) {
+                    sorted.add(records[0]);
+                } else {
+                    sorted.set(sortedIndex, records[0]);
+                }
+                sortHelper.sort(sorted);
+                sortNanos += SystemClock.elapsedRealtimeNanos() - start;
+
+                start = SystemClock.elapsedRealtimeNanos();
+                NotificationRecord old = null;
+                if (repositionedIndex < 0) {
+                    repositioned.add(records[1]);
+                } else {
+                    old = repositioned.set(repositionedIndex, records[1]);
+                }
+                repositionHelper.reposition(repositioned, records[1], old);
+                repositionNanos += SystemClock.elapsedRealtimeNanos() - start;
+                posts++;
+
+                assertSameOrder(sorted, repositioned);
+            }
+            report("sortUsPerPost", count, sortNanos / 1000 / posts);
+            report("repositionUsPerEvent", count, repositionNanos / 1000 / EVENTS);
+        }
+    }
+}
@@ -40,6 +40,14 @@ class IntervalStats {
     public Configuration activeConfiguration;
     public EventList events;
 
+    /**
+     * How many of the {@link #events}, from the first one, are already in the interval's event
+     * log, if it has one.
+     */
+    int loggedEventCount;
+    /** Whether an event was inserted among those already logged, so the log must be rewritten. */
+    boolean eventLogStale;
+
     // A string cache. This is important as when we're parsing XML files, we don't want to
     // keep hundreds of strings that have the same contents. We will read the string
     // and only keep it if it's not in the cache. The GC will take care of the
@@ -127,6 +135,21 @@ class IntervalStats {
         return event;
     }
 
+    /**
+     * Adds {@code event} to the events of this interval, keeping track of whether it lands
+     * before events that are already logged.
+     */
+    void addEvent(UsageEvents.Event event) {
+        if (events == null) {
+            events = new EventList();
+        }
+        if (loggedEventCount > 0
+                && events.get(loggedEventCount - 1).mTimeStamp > event.mTimeStamp) {
+            eventLogStale = true;
+        }
+        events.insert(event);
+    }
+
     private boolean isStatefulEvent(int eventType) {
         switch (eventType) {
             case UsageEvents.Event.MOVE_TO_FOREGROUND:
@@ -0,0 +1,479 @@
+/**
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.EventList;
+import android.app.usage.UsageEvents;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The events of one daily interval, in a binary file that only ever grows while the interval
+ * is current, so persisting the stats appends the events reported since the last time instead
+ * of rewriting all of them.
+ *
+ * <p>The file is named after the interval's begin time, and event times are stored relative to
+ * it, so that renaming the file after a time change shifts them too. The file starts with a
+ * header holding the begin time it was created with, followed by records in non-descending
+ * order of event time. Package, class and shortcut names are written once, as a string record,
+ * and referred to by index afterwards. Reading stops at a record that was only partially
+ * written, and the next append drops it.
+ */
+final class UsageEventLog {
+    private static final String TAG = "UsageEventLog";
+
+    private static final int MAGIC = 0x55454c31; // "UEL1"
+
+    private static final int RECORD_STRING = 1;
+    private static final int RECORD_EVENT = 2;
+
+    private static final int NO_STRING = -1;
+
+    private static final String CONFIG_TAG = "config";
+
+    private final File mFile;
+    private final long mBeginTime;
+
+    /** Strings already in the file, and their indices, or null until the file is scanned. */
+    private ArrayMap<String, Integer> mStrings;
+    /** Length of the file up to the end of the last complete record. */
+    private long mValidLength;
+    /** Time of the last event in the file. */
+    private long mLastEventTime;
+
+    /**
+     * Gets each event read from a log, for {@link #query}.
+     */
+    interface EventCombiner {
+        /**
+         * Adds {@code event} to {@code accumulatedResult} if it is wanted. The event is newly
+         * created and may be kept as is.
+         */
+        void combine(UsageEvents.Event event, List<UsageEvents.Event> accumulatedResult);
+    }
+
+    UsageEventLog(File file, long beginTime) {
+        mFile = file;
+        mBeginTime = beginTime;
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    long getBeginTime() {
+        return mBeginTime;
+    }
+
+    boolean exists() {
+        return mFile.exists();
+    }
+
+    void delete() {
+        mFile.delete();
+        mStrings = null;
+    }
+
+    /**
+     * Appends the events of {@code events} from index {@code start} on. They must not be older
+     * than the events already in the log.
+     */
+    void append(EventList events, int start) throws IOException {
+        if (mStrings == null || mFile.length() < mValidLength) {
+            scan();
+        }
+        final int size = events.size();
+        if (start >= size) {
+            return;
+        }
+        if (events.get(start).mTimeStamp < mLastEventTime) {
+            throw new IllegalArgumentException("Events must be appended in time order");
+        }
+
+        FileOutputStream fos = null;
+        try {
+            if (mFile.length() > mValidLength) {
+                // Don't leave a partial record in front of the ones appended now.
+                try (RandomAccessFile raf = new RandomAccessFile(mFile, "rw")) {
+                    raf.setLength(mValidLength);
+                }
+            }
+            final boolean newFile = mValidLength == 0;
+            fos = new FileOutputStream(mFile, !newFile);
+            final CountingOutputStream counter = new CountingOutputStream(fos);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter));
+            if (newFile) {
+                writeHeader(out);
+            }
+            for (int i = start; i < size; i++) {
+                writeEvent(out, events.get(i));
+            }
+            out.flush();
+            FileUtils.sync(fos);
+            mValidLength += counter.mCount;
+        } catch (IOException e) {
+            // Rescan before the next append, which will drop whatever got written.
+            mStrings = null;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(fos);
+        }
+    }
+
+    /** Replaces the contents of the log with {@code events}. */
+    void rewrite(EventList events) throws IOException {
+        final AtomicFile file = new AtomicFile(mFile);
+        mStrings = new ArrayMap<>();
+        mLastEventTime = 0;
+        FileOutputStream fos = file.startWrite();
+        try {
+            final CountingOutputStream counter = new CountingOutputStream(fos);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(counter));
+            writeHeader(out);
+            final int size = events != null ? events.size() : 0;
+            for (int i = 0; i < size; i++) {
+                writeEvent(out, events.get(i));
+            }
+            out.flush();
+            file.finishWrite(fos);
+            fos = null;
+            mValidLength = counter.mCount;
+        } finally {
+            file.failWrite(fos);
+            if (fos != null) {
+                mStrings = null;
+            }
+        }
+    }
+
+    /** Reads all events of the log into {@code statsOut.events}. */
+    void read(IntervalStats statsOut) throws IOException {
+        if (statsOut.events == null) {
+            statsOut.events = new EventList();
+        } else {
+            statsOut.events.clear();
+        }
+        final EventList events = statsOut.events;
+        query(Long.MIN_VALUE, Long.MAX_VALUE, (event, accumulatedResult) -> {
+            final UsageEvents.Event cached = statsOut.buildEvent(event.mPackage, event.mClass);
+            cached.mTimeStamp = event.mTimeStamp;
+            cached.mEventType = event.mEventType;
+            cached.mFlags = event.mFlags;
+            cached.mConfiguration = event.mConfiguration;
+            cached.mShortcutId = event.mShortcutId;
+            cached.mBucketAndReason = event.mBucketAndReason;
+            events.insert(cached);
+        }, null);
+    }
+
+    /**
+     * Reads the events at or after {@code beginTime} and before {@code endTime}, one at a time,
+     * and passes each to {@code combiner}. Reading stops at the first event at or after
+     * {@code endTime}.
+     */
+    void query(long beginTime, long endTime, EventCombiner combiner,
+            List<UsageEvents.Event> accumulatedResult) throws IOException {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+            readHeader(in);
+            final ArrayList<String> strings = new ArrayList<>();
+            while (true) {
+                final int record = in.read();
+                if (record == RECORD_STRING) {
+                    strings.add(in.readUTF());
+                } else if (record == RECORD_EVENT) {
+                    final long time = mBeginTime + in.readLong();
+                    if (time >= endTime) {
+                        break;
+                    }
+                    final UsageEvents.Event event = readEvent(in, time, strings);
+                    if (time >= beginTime) {
+                        combiner.combine(event, accumulatedResult);
+                    }
+                } else {
+                    // End of file, or a partial record.
+                    break;
+                }
+            }
+        } catch (FileNotFoundException | EOFException e) {
+            // No events, or the last record was only partially written.
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    /**
+     * Learns the strings already in the log, and where its last complete record ends, before
+     * appending to it.
+     */
+    private void scan() throws IOException {
+        mStrings = new ArrayMap<>();
+        mValidLength = 0;
+        mLastEventTime = 0;
+        if (!mFile.exists()) {
+            return;
+        }
+        final ArrayList<String> strings = new ArrayList<>();
+        DataInputStream in = null;
+        try {
+            final CountingInputStream counter = new CountingInputStream(
+                    new BufferedInputStream(new FileInputStream(mFile)));
+            in = new DataInputStream(counter);
+            readHeader(in);
+            mValidLength = counter.mCount;
+            while (true) {
+                final int record = in.read();
+                if (record == RECORD_STRING) {
+                    strings.add(in.readUTF());
+                } else if (record == RECORD_EVENT) {
+                    mLastEventTime = mBeginTime + in.readLong();
+                    readEvent(in, mLastEventTime, strings);
+                } else {
+                    break;
+                }
+                mValidLength = counter.mCount;
+            }
+        } catch (EOFException e) {
+            // The last record was only partially written; it gets dropped.
+        } catch (IOException e) {
+            mStrings = null;
+            throw e;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        final int count = strings.size();
+        for (int i = 0; i < count; i++) {
+            mStrings.put(strings.get(i), i);
+        }
+    }
+
+    private void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeLong(mBeginTime);
+    }
+
+    /**
+     * Skips the header. Event times are relative to the begin time in the file name rather than
+     * the one in the header, which isn't updated when the file is renamed after a time change.
+     */
+    private static void readHeader(DataInputStream in) throws IOException {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a usage event log");
+        }
+        in.readLong();
+    }
+
+    private void writeEvent(DataOutputStream out, UsageEvents.Event event) throws IOException {
+        final int pkg = writeString(out, event.mPackage);
+        final int cls = writeString(out, event.mClass);
+        final int shortcutId = event.mEventType == UsageEvents.Event.SHORTCUT_INVOCATION
+                ? writeString(out, event.mShortcutId) : NO_STRING;
+
+        out.writeByte(RECORD_EVENT);
+        out.writeLong(event.mTimeStamp - mBeginTime);
+        out.writeShort(event.mEventType);
+        out.writeInt(event.mFlags);
+        out.writeInt(pkg);
+        out.writeInt(cls);
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                final byte[] config = writeConfiguration(event.mConfiguration);
+                out.writeInt(config.length);
+                out.write(config);
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                out.writeInt(shortcutId);
+                break;
+            case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                out.writeInt(event.mBucketAndReason);
+                break;
+        }
+        mLastEventTime = event.mTimeStamp;
+    }
+
+    private static UsageEvents.Event readEvent(DataInputStream in, long time,
+            ArrayList<String> strings) throws IOException {
+        final UsageEvents.Event event = new UsageEvents.Event();
+        event.mTimeStamp = time;
+        event.mEventType = in.readShort();
+        event.mFlags = in.readInt();
+        event.mPackage = getString(strings, in.readInt());
+        event.mClass = getString(strings, in.readInt());
+        switch (event.mEventType) {
+            case UsageEvents.Event.CONFIGURATION_CHANGE:
+                final byte[] config = new byte[in.readInt()];
+                in.readFully(config);
+                event.mConfiguration = readConfiguration(config);
+                break;
+            case UsageEvents.Event.SHORTCUT_INVOCATION:
+                final String id = getString(strings, in.readInt());
+                event.mShortcutId = (id != null) ? id.intern() : null;
+                break;
+            case UsageEvents.Event.STANDBY_BUCKET_CHANGED:
+                event.mBucketAndReason = in.readInt();
+                break;
+        }
+        return event;
+    }
+
+    /** Writes {@code s} as a string record if it isn't in the log yet, and returns its index. */
+    private int writeString(DataOutputStream out, String s) throws IOException {
+        if (s == null) {
+            return NO_STRING;
+        }
+        final Integer index = mStrings.get(s);
+        if (index != null) {
+            return index;
+        }
+        out.writeByte(RECORD_STRING);
+        out.writeUTF(s);
+        final int newIndex = mStrings.size();
+        mStrings.put(s, newIndex);
+        return newIndex;
+    }
+
+    private static String getString(ArrayList<String> strings, int index) throws IOException {
+        if (index == NO_STRING) {
+            return null;
+        }
+        if (index < 0 || index >= strings.size()) {
+            throw new IOException("Bad string index " + index);
+        }
+        return strings.get(index);
+    }
+
+    private static byte[] writeConfiguration(Configuration config) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final XmlSerializer xml = new BinaryXmlSerializer();
+        xml.setOutput(bytes, StandardCharsets.UTF_8.name());
+        xml.startDocument(null, true);
+        xml.startTag(null, CONFIG_TAG);
+        if (config != null) {
+            Configuration.writeXmlAttrs(xml, config);
+        }
+        xml.endTag(null, CONFIG_TAG);
+        xml.endDocument();
+        return bytes.toByteArray();
+    }
+
+    private static Configuration readConfiguration(byte[] bytes) throws IOException {
+        final Configuration config = new Configuration();
+        try {
+            final XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(
+                    new ByteArrayInputStream(bytes));
+            XmlUtils.beginDocument(parser, CONFIG_TAG);
+            Configuration.readXmlAttrs(parser, config);
+        } catch (XmlPullParserException e) {
+            Slog.w(TAG, "Failed to read configuration", e);
+            throw new IOException(e);
+        }
+        return config;
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+        private final OutputStream mOut;
+        long mCount;
+
+        CountingOutputStream(OutputStream out) {
+            mOut = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            mOut.write(b);
+            mCount++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            mOut.write(b, off, len);
+            mCount += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            mOut.flush();
+        }
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+        long mCount;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            final int b = super.read();
+            if (b >= 0) {
+                mCount++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            final int count = super.read(b, off, len);
+            if (count > 0) {
+                mCount += count;
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            final long count = super.skip(n);
+            mCount += count;
+            return count;
+        }
+    }
+}
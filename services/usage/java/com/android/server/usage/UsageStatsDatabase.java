@@ -17,6 +17,7 @@
 package com.android.server.usage;
 
 import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManager;
 import android.os.Build;
@@ -41,6 +42,10 @@ import java.util.List;
 
 /**
  * Provides an interface to query for UsageStat data from an XML database.
+ *
+ * <p>The events of daily intervals are kept apart from the rest of their stats, in a
+ * {@link UsageEventLog} per interval, so that persisting the current day appends the new
+ * events and querying events doesn't read the stats of every day in the range.
  */
 class UsageStatsDatabase {
     private static final int CURRENT_VERSION = 3;
@@ -66,6 +71,9 @@ class UsageStatsDatabase {
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
     private final UnixCalendar mCal;
     private final File mVersionFile;
+    private final File mEventLogDir;
+    /** Event log of the daily interval last written, which is usually the current one. */
+    private UsageEventLog mLatestEventLog;
     private boolean mFirstUpdate;
     private boolean mNewUpdate;
 
@@ -77,6 +85,7 @@ class UsageStatsDatabase {
                 new File(dir, "yearly"),
         };
         mVersionFile = new File(dir, "version");
+        mEventLogDir = new File(dir, "events");
         mSortedStatFiles = new TimeSparseArray[mIntervalDirs.length];
         mCal = new UnixCalendar(0);
     }
@@ -93,6 +102,7 @@ class UsageStatsDatabase {
                             + f.getAbsolutePath());
                 }
             }
+            mEventLogDir.mkdirs();
 
             checkVersionAndBuildLocked();
             indexFilesLocked();
@@ -115,6 +125,7 @@ class UsageStatsDatabase {
                     files.removeAt(i);
                 }
             }
+            deleteOrphanedEventLogsLocked();
         }
     }
 
@@ -154,7 +165,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readLocked(UsageStatsManager.INTERVAL_DAILY, files.valueAt(i), stats, true);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -331,6 +342,25 @@ class UsageStatsDatabase {
                 files.clear();
             }
 
+            mLatestEventLog = null;
+            final File[] eventLogs = mEventLogDir.listFiles();
+            if (eventLogs != null) {
+                for (File f : eventLogs) {
+                    final long newTime;
+                    try {
+                        newTime = UsageStatsXml.parseBeginTime(f) + timeDiffMillis;
+                    } catch (IOException e) {
+                        f.delete();
+                        continue;
+                    }
+                    if (newTime < 0) {
+                        f.delete();
+                    } else {
+                        f.renameTo(new File(mEventLogDir, Long.toString(newTime)));
+                    }
+                }
+            }
+
             logBuilder.append(" files deleted: ").append(filesDeleted);
             logBuilder.append(" files moved: ").append(filesMoved);
             Slog.i(TAG, logBuilder.toString());
@@ -357,7 +387,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readLocked(intervalType, f, stats, true);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -443,7 +473,8 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    // None of the combiners look at the events, which are queried on their own.
+                    readLocked(intervalType, f, stats, false);
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -457,6 +488,69 @@ class UsageStatsDatabase {
         }
     }
 
+    /**
+     * Finds the events of the daily intervals on disk that were reported at or after
+     * {@code beginTime} and before {@code endTime}, and passes them to {@code combiner} as they
+     * are read, without reading the rest of the stats of those intervals.
+     */
+    public List<UsageEvents.Event> queryEvents(long beginTime, long endTime,
+            UsageEventLog.EventCombiner combiner) {
+        synchronized (mLock) {
+            final TimeSparseArray<AtomicFile> intervalStats =
+                    mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+
+            if (endTime <= beginTime) {
+                return null;
+            }
+
+            int startIndex = intervalStats.closestIndexOnOrBefore(beginTime);
+            if (startIndex < 0) {
+                startIndex = 0;
+            }
+
+            int endIndex = intervalStats.closestIndexOnOrBefore(endTime);
+            if (endIndex >= 0 && intervalStats.keyAt(endIndex) == endTime) {
+                // The endTime is exclusive, so if we matched exactly take the one before.
+                endIndex--;
+            }
+            if (endIndex < 0) {
+                // All the stats start after this range ends, so nothing matches.
+                return null;
+            }
+
+            final ArrayList<UsageEvents.Event> results = new ArrayList<>();
+            for (int i = startIndex; i <= endIndex; i++) {
+                final UsageEventLog log = getEventLogLocked(intervalStats.keyAt(i));
+                try {
+                    if (log.exists()) {
+                        log.query(beginTime, endTime, combiner, results);
+                        continue;
+                    }
+
+                    // Written before event logs existed, so the events are in the stats file.
+                    final IntervalStats stats = new IntervalStats();
+                    UsageStatsXml.read(intervalStats.valueAt(i), stats);
+                    if (stats.events == null) {
+                        continue;
+                    }
+                    final int size = stats.events.size();
+                    for (int j = stats.events.firstIndexOnOrAfter(beginTime); j < size; j++) {
+                        final UsageEvents.Event event = stats.events.get(j);
+                        if (event.mTimeStamp >= endTime) {
+                            break;
+                        }
+                        combiner.combine(event, results);
+                    }
+                } catch (IOException e) {
+                    Slog.e(TAG, "Failed to read usage events", e);
+                    // We continue so that we return results that are not
+                    // corrupt.
+                }
+            }
+            return results;
+        }
+    }
+
     /**
      * Find the interval that best matches this range.
      *
@@ -510,12 +604,13 @@ class UsageStatsDatabase {
             mCal.setTimeInMillis(currentTimeMillis);
             mCal.addDays(-SELECTION_LOG_RETENTION_LEN);
             for (int i = 0; i < mIntervalDirs.length; ++i) {
-                pruneChooserCountsOlderThan(mIntervalDirs[i], mCal.getTimeInMillis());
+                pruneChooserCountsOlderThan(i, mCal.getTimeInMillis());
             }
 
             // We must re-index our file list or we will be trying to read
             // deleted files.
             indexFilesLocked();
+            deleteOrphanedEventLogsLocked();
         }
     }
 
@@ -542,8 +637,8 @@ class UsageStatsDatabase {
         }
     }
 
-    private static void pruneChooserCountsOlderThan(File dir, long expiryTime) {
-        File[] files = dir.listFiles();
+    private void pruneChooserCountsOlderThan(int intervalType, long expiryTime) {
+        File[] files = mIntervalDirs[intervalType].listFiles();
         if (files != null) {
             for (File f : files) {
                 String path = f.getPath();
@@ -562,7 +657,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        readLocked(intervalType, af, stats, false);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +665,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        writeLocked(intervalType, af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,11 +691,95 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            writeLocked(intervalType, f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
 
+    /**
+     * Reads the stats in {@code file}. The events of a daily interval with an event log come
+     * from the log, and are only read if {@code withEvents} is set.
+     */
+    private void readLocked(int intervalType, AtomicFile file, IntervalStats statsOut,
+            boolean withEvents) throws IOException {
+        UsageStatsXml.read(file, statsOut);
+        statsOut.loggedEventCount = 0;
+        statsOut.eventLogStale = false;
+        if (intervalType != UsageStatsManager.INTERVAL_DAILY) {
+            return;
+        }
+
+        final UsageEventLog log = getEventLogLocked(statsOut.beginTime);
+        if (!log.exists()) {
+            // Written before event logs existed; the stats file holds the events.
+            return;
+        }
+        // The log holds all events of the interval, including any the file still has.
+        if (withEvents) {
+            log.read(statsOut);
+            statsOut.loggedEventCount = statsOut.events.size();
+        } else if (statsOut.events != null) {
+            statsOut.events.clear();
+        }
+    }
+
+    /**
+     * Writes {@code stats} to {@code file}. The events of a daily interval go to its event log:
+     * the ones added since the stats were last written are appended, unless the log has to be
+     * written again in full.
+     */
+    private void writeLocked(int intervalType, AtomicFile file, IntervalStats stats)
+            throws IOException {
+        if (intervalType != UsageStatsManager.INTERVAL_DAILY) {
+            UsageStatsXml.write(file, stats, true);
+            return;
+        }
+
+        // Write the events first: while the log is missing events, the old stats file still
+        // has them, but once the log exists the events in the stats file are ignored.
+        final UsageEventLog log = getEventLogLocked(stats.beginTime);
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        if (stats.eventLogStale || (stats.loggedEventCount == 0 && eventCount > 0)) {
+            log.rewrite(stats.events);
+        } else if (stats.loggedEventCount < eventCount) {
+            log.append(stats.events, stats.loggedEventCount);
+        }
+        stats.loggedEventCount = eventCount;
+        stats.eventLogStale = false;
+        mLatestEventLog = log;
+
+        UsageStatsXml.write(file, stats, false);
+    }
+
+    private UsageEventLog getEventLogLocked(long beginTime) {
+        if (mLatestEventLog != null && mLatestEventLog.getBeginTime() == beginTime) {
+            return mLatestEventLog;
+        }
+        return new UsageEventLog(new File(mEventLogDir, Long.toString(beginTime)), beginTime);
+    }
+
+    /** Deletes the event logs of daily intervals that no longer have a stats file. */
+    private void deleteOrphanedEventLogsLocked() {
+        mLatestEventLog = null;
+        final File[] files = mEventLogDir.listFiles();
+        if (files == null) {
+            return;
+        }
+        final TimeSparseArray<AtomicFile> dailyFiles =
+                mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY];
+        for (File f : files) {
+            long beginTime;
+            try {
+                beginTime = UsageStatsXml.parseBeginTime(f);
+            } catch (IOException e) {
+                beginTime = -1;
+            }
+            if (beginTime < 0 || dailyFiles.get(beginTime) == null) {
+                f.delete();
+            }
+        }
+    }
+
 
     /* Backup/Restore Code */
     byte[] getBackupPayload(String key) {
@@ -615,28 +794,28 @@ class UsageStatsDatabase {
                     out.writeInt(mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY].size());
                     for (int i = 0; i < mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY].size();
                             i++) {
-                        writeIntervalStatsToStream(out,
+                        writeIntervalStatsToStream(out, UsageStatsManager.INTERVAL_DAILY,
                                 mSortedStatFiles[UsageStatsManager.INTERVAL_DAILY].valueAt(i));
                     }
 
                     out.writeInt(mSortedStatFiles[UsageStatsManager.INTERVAL_WEEKLY].size());
                     for (int i = 0; i < mSortedStatFiles[UsageStatsManager.INTERVAL_WEEKLY].size();
                             i++) {
-                        writeIntervalStatsToStream(out,
+                        writeIntervalStatsToStream(out, UsageStatsManager.INTERVAL_WEEKLY,
                                 mSortedStatFiles[UsageStatsManager.INTERVAL_WEEKLY].valueAt(i));
                     }
 
                     out.writeInt(mSortedStatFiles[UsageStatsManager.INTERVAL_MONTHLY].size());
                     for (int i = 0; i < mSortedStatFiles[UsageStatsManager.INTERVAL_MONTHLY].size();
                             i++) {
-                        writeIntervalStatsToStream(out,
+                        writeIntervalStatsToStream(out, UsageStatsManager.INTERVAL_MONTHLY,
                                 mSortedStatFiles[UsageStatsManager.INTERVAL_MONTHLY].valueAt(i));
                     }
 
                     out.writeInt(mSortedStatFiles[UsageStatsManager.INTERVAL_YEARLY].size());
                     for (int i = 0; i < mSortedStatFiles[UsageStatsManager.INTERVAL_YEARLY].size();
                             i++) {
-                        writeIntervalStatsToStream(out,
+                        writeIntervalStatsToStream(out, UsageStatsManager.INTERVAL_YEARLY,
                                 mSortedStatFiles[UsageStatsManager.INTERVAL_YEARLY].valueAt(i));
                     }
                     if (DEBUG) Slog.i(TAG, "Written " + baos.size() + " bytes of data");
@@ -675,6 +854,8 @@ class UsageStatsDatabase {
                     for (int i = 0; i < mIntervalDirs.length; i++) {
                         deleteDirectoryContents(mIntervalDirs[i]);
                     }
+                    deleteDirectoryContents(mEventLogDir);
+                    mLatestEventLog = null;
 
                     int fileCount = in.readInt();
                     for (int i = 0; i < fileCount; i++) {
@@ -726,11 +907,12 @@ class UsageStatsDatabase {
         return beingRestored;
     }
 
-    private void writeIntervalStatsToStream(DataOutputStream out, AtomicFile statsFile)
+    private void writeIntervalStatsToStream(DataOutputStream out, int intervalType,
+            AtomicFile statsFile)
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            readLocked(intervalType, statsFile, stats, false);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
@@ -16,13 +16,16 @@
 
 package com.android.server.usage;
 
+import android.os.SystemProperties;
 import android.util.AtomicFile;
 import android.util.Slog;
-import android.util.Xml;
+import com.android.internal.util.BinaryXmlPullParser;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.XmlUtils;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
 
 import java.io.*;
 
@@ -32,6 +35,15 @@ public class UsageStatsXml {
     private static final String USAGESTATS_TAG = "usagestats";
     private static final String VERSION_ATTR = "version";
     static final String CHECKED_IN_SUFFIX = "-c";
+    private static final String PROPERTY_TEXT_XML = "persist.sys.usagestats.text_xml";
+
+    /**
+     * Whether stats files are written in the binary form read back by
+     * {@link BinaryXmlPullParser}. Files in either form are always readable.
+     */
+    static boolean useBinaryXml() {
+        return !SystemProperties.getBoolean(PROPERTY_TEXT_XML, false);
+    }
 
     public static long parseBeginTime(AtomicFile file) throws IOException {
         return parseBeginTime(file.getBaseFile());
@@ -75,10 +87,20 @@ public class UsageStatsXml {
         }
     }
 
-    public static void write(AtomicFile file, IntervalStats stats) throws IOException {
+    /**
+     * Writes {@code stats} to {@code file}, in binary form unless text XML was asked for.
+     *
+     * @param includeEvents whether to write the events too, or leave them to an event log.
+     */
+    public static void write(AtomicFile file, IntervalStats stats, boolean includeEvents)
+            throws IOException {
         FileOutputStream fos = file.startWrite();
         try {
-            write(fos, stats);
+            final XmlSerializer xml = useBinaryXml()
+                    ? new BinaryXmlSerializer() : new FastXmlSerializer();
+            final BufferedOutputStream out = new BufferedOutputStream(fos);
+            write(xml, out, stats, includeEvents);
+            out.flush();
             file.finishWrite(fos);
             fos = null;
         } finally {
@@ -88,9 +110,8 @@ public class UsageStatsXml {
     }
 
     static void read(InputStream in, IntervalStats statsOut) throws IOException {
-        XmlPullParser parser = Xml.newPullParser();
         try {
-            parser.setInput(in, "utf-8");
+            XmlPullParser parser = BinaryXmlPullParser.resolvePullParser(in);
             XmlUtils.beginDocument(parser, USAGESTATS_TAG);
             String versionStr = parser.getAttributeValue(null, VERSION_ATTR);
             try {
@@ -114,14 +135,18 @@ public class UsageStatsXml {
     }
 
     static void write(OutputStream out, IntervalStats stats) throws IOException {
-        FastXmlSerializer xml = new FastXmlSerializer();
+        write(new FastXmlSerializer(), out, stats, true);
+    }
+
+    private static void write(XmlSerializer xml, OutputStream out, IntervalStats stats,
+            boolean includeEvents) throws IOException {
         xml.setOutput(out, "utf-8");
         xml.startDocument("utf-8", true);
         xml.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
         xml.startTag(null, USAGESTATS_TAG);
         xml.attribute(null, VERSION_ATTR, Integer.toString(CURRENT_VERSION));
 
-        UsageStatsXmlV1.write(xml, stats);
+        UsageStatsXmlV1.write(xml, stats, includeEvents);
 
         xml.endTag(null, USAGESTATS_TAG);
         xml.endDocument();
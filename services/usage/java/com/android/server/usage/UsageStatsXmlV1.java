@@ -379,8 +379,10 @@ final class UsageStatsXmlV1 {
      *
      * @param xml The serializer to which to write the packageStats data.
      * @param stats The stats object to write to the XML file.
+     * @param includeEvents Whether to write the event log of the stats object.
      */
-    public static void write(XmlSerializer xml, IntervalStats stats) throws IOException {
+    public static void write(XmlSerializer xml, IntervalStats stats, boolean includeEvents)
+            throws IOException {
         XmlUtils.writeLongAttribute(xml, END_TIME_ATTR, stats.endTime - stats.beginTime);
 
         writeCountAndTime(xml, INTERACTIVE_TAG, stats.interactiveTracker.count,
@@ -408,7 +410,7 @@ final class UsageStatsXmlV1 {
         xml.endTag(null, CONFIGURATIONS_TAG);
 
         xml.startTag(null, EVENT_LOG_TAG);
-        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        final int eventCount = includeEvents && stats.events != null ? stats.events.size() : 0;
         for (int i = 0; i < eventCount; i++) {
             writeEvent(xml, stats, stats.events.get(i));
         }
@@ -172,11 +172,8 @@ class UserUsageStatsService {
         }
 
         // Add the event to the daily list.
-        if (currentDailyStats.events == null) {
-            currentDailyStats.events = new EventList();
-        }
         if (event.mEventType != UsageEvents.Event.SYSTEM_INTERACTION) {
-            currentDailyStats.events.insert(event);
+            currentDailyStats.addEvent(event);
         }
 
         boolean incrementAppLaunch = false;
@@ -354,36 +351,55 @@ class UserUsageStatsService {
         return queryStats(bucketType, beginTime, endTime, sEventStatsCombiner);
     }
 
+    /**
+     * Selects the events reported at or after {@code beginTime} and before {@code endTime}, and
+     * calls the {@link UsageEventLog.EventCombiner} provided on each of them. The events of
+     * past days are streamed from their event logs rather than read with the rest of their
+     * stats.
+     */
+    private List<UsageEvents.Event> queryEventList(final long beginTime, final long endTime,
+            UsageEventLog.EventCombiner combiner) {
+        final IntervalStats currentStats = mCurrentStats[UsageStatsManager.INTERVAL_DAILY];
+        if (beginTime >= currentStats.endTime) {
+            // Nothing newer available.
+            return null;
+        }
+
+        // As in queryStats(), the in-memory stats are appended to the results from disk.
+        final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
+        List<UsageEvents.Event> results = mDatabase.queryEvents(beginTime, truncatedEndTime,
+                combiner);
+
+        if (endTime > currentStats.beginTime && currentStats.events != null) {
+            if (results == null) {
+                results = new ArrayList<>();
+            }
+            final int startIndex = currentStats.events.firstIndexOnOrAfter(beginTime);
+            final int size = currentStats.events.size();
+            for (int i = startIndex; i < size; i++) {
+                final UsageEvents.Event event = currentStats.events.get(i);
+                if (event.mTimeStamp >= endTime) {
+                    break;
+                }
+                combiner.combine(event, results);
+            }
+        }
+        return results;
+    }
+
     UsageEvents queryEvents(final long beginTime, final long endTime,
             boolean obfuscateInstantApps) {
         final ArraySet<String> names = new ArraySet<>();
-        List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
-
-                        final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.get(i).mTimeStamp >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.get(i);
-                            if (obfuscateInstantApps) {
-                                event = event.getObfuscatedIfInstantApp();
-                            }
-                            names.add(event.mPackage);
-                            if (event.mClass != null) {
-                                names.add(event.mClass);
-                            }
-                            accumulatedResult.add(event);
-                        }
+        List<UsageEvents.Event> results = queryEventList(beginTime, endTime,
+                (event, accumulatedResult) -> {
+                    if (obfuscateInstantApps) {
+                        event = event.getObfuscatedIfInstantApp();
                     }
+                    names.add(event.mPackage);
+                    if (event.mClass != null) {
+                        names.add(event.mClass);
+                    }
+                    accumulatedResult.add(event);
                 });
 
         if (results == null || results.isEmpty()) {
@@ -399,28 +415,15 @@ class UserUsageStatsService {
             final String packageName) {
         final ArraySet<String> names = new ArraySet<>();
         names.add(packageName);
-        final List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, (stats, mutable, accumulatedResult) -> {
-                    if (stats.events == null) {
+        final List<UsageEvents.Event> results = queryEventList(beginTime, endTime,
+                (event, accumulatedResult) -> {
+                    if (!packageName.equals(event.mPackage)) {
                         return;
                     }
-
-                    final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                    final int size = stats.events.size();
-                    for (int i = startIndex; i < size; i++) {
-                        if (stats.events.get(i).mTimeStamp >= endTime) {
-                            return;
-                        }
-
-                        final UsageEvents.Event event = stats.events.get(i);
-                        if (!packageName.equals(event.mPackage)) {
-                            continue;
-                        }
-                        if (event.mClass != null) {
-                            names.add(event.mClass);
-                        }
-                        accumulatedResult.add(event);
+                    if (event.mClass != null) {
+                        names.add(event.mClass);
                     }
+                    accumulatedResult.add(event);
                 });
 
         if (results == null || results.isEmpty()) {
@@ -615,29 +618,12 @@ class UserUsageStatsService {
 
         final long beginTime = yesterday.getTimeInMillis();
 
-        List<UsageEvents.Event> events = queryStats(UsageStatsManager.INTERVAL_DAILY,
-                beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
-                    @Override
-                    public void combine(IntervalStats stats, boolean mutable,
-                            List<UsageEvents.Event> accumulatedResult) {
-                        if (stats.events == null) {
-                            return;
-                        }
-
-                        final int startIndex = stats.events.firstIndexOnOrAfter(beginTime);
-                        final int size = stats.events.size();
-                        for (int i = startIndex; i < size; i++) {
-                            if (stats.events.get(i).mTimeStamp >= endTime) {
-                                return;
-                            }
-
-                            UsageEvents.Event event = stats.events.get(i);
-                            if (pkg != null && !pkg.equals(event.mPackage)) {
-                                continue;
-                            }
-                            accumulatedResult.add(event);
-                        }
+        List<UsageEvents.Event> events = queryEventList(beginTime, endTime,
+                (event, accumulatedResult) -> {
+                    if (pkg != null && !pkg.equals(event.mPackage)) {
+                        return;
                     }
+                    accumulatedResult.add(event);
                 });
 
         pw.print("Last 24 hour events (");
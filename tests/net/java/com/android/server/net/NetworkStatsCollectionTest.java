@@ -23,6 +23,7 @@ import static android.net.NetworkStats.TAG_NONE;
 import static android.net.NetworkStats.UID_ALL;
 import static android.net.NetworkStatsHistory.FIELD_ALL;
 import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.net.NetworkTemplate.buildTemplateWifiWildcard;
 import static android.os.Process.myUid;
 import static android.text.format.DateUtils.HOUR_IN_MILLIS;
 import static android.text.format.DateUtils.MINUTE_IN_MILLIS;
@@ -189,6 +190,42 @@ public class NetworkStatsCollectionTest {
                 77017831L, 100995L, 35436758L, 92344L);
     }
 
+    @Test
+    public void testReadMatchingSkipsOtherHistories() throws Exception {
+        final File testFile =
+                new File(InstrumentationRegistry.getContext().getFilesDir(), TEST_FILE);
+        stageFile(R.raw.netstats_uid_v4, testFile);
+
+        final NetworkStatsCollection collection = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        collection.readLegacyUid(testFile, false);
+
+        // export into the indexed format
+        try (DataOutputStream out = new DataOutputStream(new FileOutputStream(testFile))) {
+            collection.write(out);
+        }
+
+        // matching template and time range reads everything back
+        final NetworkStatsCollection matching = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        matching.readMatching(testFile, buildTemplateMobileAll(TEST_IMSI), Long.MIN_VALUE,
+                Long.MAX_VALUE);
+        assertSummaryTotal(matching, buildTemplateMobileAll(TEST_IMSI),
+                637076152L, 711413L, 88343717L, 521022L, NetworkStatsAccess.Level.DEVICE);
+
+        // other networks are skipped
+        final NetworkStatsCollection otherNetwork =
+                new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        otherNetwork.readMatching(testFile, buildTemplateWifiWildcard(), Long.MIN_VALUE,
+                Long.MAX_VALUE);
+        assertSummaryTotal(otherNetwork, buildTemplateMobileAll(TEST_IMSI),
+                0L, 0L, 0L, 0L, NetworkStatsAccess.Level.DEVICE);
+
+        // histories outside of the requested range are skipped
+        final NetworkStatsCollection otherRange = new NetworkStatsCollection(30 * MINUTE_IN_MILLIS);
+        otherRange.readMatching(testFile, buildTemplateMobileAll(TEST_IMSI), 0L, HOUR_IN_MILLIS);
+        assertSummaryTotal(otherRange, buildTemplateMobileAll(TEST_IMSI),
+                0L, 0L, 0L, 0L, NetworkStatsAccess.Level.DEVICE);
+    }
+
     @Test
     public void testStartEndAtomicBuckets() throws Exception {
         final NetworkStatsCollection collection = new NetworkStatsCollection(HOUR_IN_MILLIS);
@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2018 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.net;
+
+import static android.net.ConnectivityManager.TYPE_MOBILE;
+import static android.net.ConnectivityManager.TYPE_WIFI;
+import static android.net.NetworkStats.SET_DEFAULT;
+import static android.net.NetworkStats.TAG_NONE;
+import static android.net.NetworkTemplate.buildTemplateMobileAll;
+import static android.text.format.DateUtils.DAY_IN_MILLIS;
+import static android.text.format.DateUtils.HOUR_IN_MILLIS;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+
+import android.app.Activity;
+import android.net.NetworkIdentity;
+import android.net.NetworkStats;
+import android.net.NetworkTemplate;
+import android.os.Bundle;
+import android.os.DropBoxManager;
+import android.os.FileUtils;
+import android.os.Process;
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.util.FileRotator;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Times querying the uid history of one network, as NetworkStatsService.getNetworkUidBytes()
+ * does, against histories that hold more and more other networks: by loading the complete
+ * history, by loading only the matching history from disk, and from the cached matching
+ * history. Also checks that all three give the same totals.
+ *
+ * $ atest FrameworksNetTests:com.android.server.net.NetworkStatsRecorderPerfTest
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NetworkStatsRecorderPerfTest {
+    private static final String TEST_IMSI = "310260000000000";
+    private static final int[] WIFI_NETWORK_COUNTS = { 10, 50, 200 };
+    private static final int UIDS = 100;
+    private static final int DAYS = 30;
+    private static final int QUERIES = 20;
+
+    private static final long BUCKET_DURATION = 2 * HOUR_IN_MILLIS;
+    private static final long END_TIME = 1326088800000L;
+
+    private File mDir;
+
+    @Before
+    public void setUp() {
+        mDir = new File(InstrumentationRegistry.getContext().getCacheDir(), "netstats_perftest");
+        FileUtils.deleteContentsAndDir(mDir);
+        mDir.mkdirs();
+        NetworkTemplate.forceAllNetworkTypes();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mDir);
+    }
+
+    @Test
+    public void timeUidQueryVsHistorySize() throws Exception {
+        final NetworkTemplate template = buildTemplateMobileAll(TEST_IMSI);
+        final long start = END_TIME - 7 * DAY_IN_MILLIS;
+        final Bundle status = new Bundle();
+        for (int wifiNetworks : WIFI_NETWORK_COUNTS) {
+            final FileRotator rotator = writeHistory(wifiNetworks);
+
+            long startTime = SystemClock.elapsedRealtimeNanos();
+            long completeTotal = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                completeTotal = getTotal(newRecorder(rotator).getOrLoadCompleteLocked(), template,
+                        start);
+            }
+            final long completeNanos = (SystemClock.elapsedRealtimeNanos() - startTime) / QUERIES;
+
+            startTime = SystemClock.elapsedRealtimeNanos();
+            long matchingTotal = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                matchingTotal = getTotal(newRecorder(rotator).getOrLoadMatchingLocked(template,
+                        start), template, start);
+            }
+            final long matchingNanos = (SystemClock.elapsedRealtimeNanos() - startTime) / QUERIES;
+
+            final NetworkStatsRecorder recorder = newRecorder(rotator);
+            startTime = SystemClock.elapsedRealtimeNanos();
+            long cachedTotal = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                cachedTotal = getTotal(recorder.getOrLoadMatchingLocked(template, start),
+                        template, start);
+            }
+            final long cachedNanos = (SystemClock.elapsedRealtimeNanos() - startTime) / QUERIES;
+
+            assertEquals(completeTotal, matchingTotal);
+            assertEquals(completeTotal, cachedTotal);
+            status.putLong("complete_" + wifiNetworks + "_ns", completeNanos);
+            status.putLong("matching_" + wifiNetworks + "_ns", matchingNanos);
+            status.putLong("cached_" + wifiNetworks + "_ns", cachedNanos);
+            FileUtils.deleteContents(mDir);
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(Activity.RESULT_OK, status);
+    }
+
+    private static long getTotal(NetworkStatsCollection collection, NetworkTemplate template,
+            long start) {
+        return collection.getSummary(template, start, END_TIME, NetworkStatsAccess.Level.DEVICE,
+                Process.SYSTEM_UID).getTotalBytes();
+    }
+
+    private NetworkStatsRecorder newRecorder(FileRotator rotator) {
+        return new NetworkStatsRecorder(rotator, mock(NetworkStats.NonMonotonicObserver.class),
+                mock(DropBoxManager.class), "uid", BUCKET_DURATION, false);
+    }
+
+    /** Writes {@link #DAYS} of hourly uid traffic on one mobile and many wifi networks. */
+    private FileRotator writeHistory(int wifiNetworks) throws IOException {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(BUCKET_DURATION);
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+        entry.rxBytes = 1024;
+        entry.txBytes = 512;
+        for (int n = 0; n <= wifiNetworks; n++) {
+            final NetworkIdentitySet ident = new NetworkIdentitySet();
+            if (n == 0) {
+                ident.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                        TEST_IMSI, null, false, true, true));
+            } else {
+                ident.add(new NetworkIdentity(TYPE_WIFI, 0, null, "\"wifi" + n + "\"", false,
+                        true, true));
+            }
+            for (int uid = 0; uid < UIDS; uid++) {
+                for (long time = END_TIME - DAYS * DAY_IN_MILLIS; time < END_TIME;
+                        time += BUCKET_DURATION) {
+                    collection.recordData(ident, Process.FIRST_APPLICATION_UID + uid,
+                            SET_DEFAULT, TAG_NONE, time, time + HOUR_IN_MILLIS, entry);
+                }
+            }
+        }
+
+        final FileRotator rotator = new FileRotator(mDir, "uid", 365 * DAY_IN_MILLIS,
+                365 * DAY_IN_MILLIS);
+        rotator.rewriteActive(new FileRotator.Rewriter() {
+            @Override
+            public void reset() {
+            }
+
+            @Override
+            public void read(InputStream in) {
+            }
+
+            @Override
+            public boolean shouldWrite() {
+                return true;
+            }
+
+            @Override
+            public void write(OutputStream out) throws IOException {
+                collection.write(new DataOutputStream(out));
+            }
+        }, END_TIME - DAYS * DAY_IN_MILLIS);
+        return rotator;
+    }
+}